@@ -0,0 +1,87 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+
+/**
+ * Offscreen stand-in for the encoder: the frames are copied into a pbuffer surface of the given
+ * size instead of the input surface of a MediaCodec, for checking the recording path without an
+ * encoder. The config of the screen context must support pbuffers.
+ */
+public class PbufferTarget implements VideoRecorder.Target {
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private int mFrameCount = 0;
+
+    private boolean mIsReleased = false;
+
+    /**
+     * Constructor.
+     *
+     * @param width Width of the pbuffer.
+     * @param height Height of the pbuffer.
+     */
+    public PbufferTarget(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public EGLSurface createEglSurface(EGLDisplay display, EGLConfig config) {
+        int[] surfaceAttribs = {EGL14.EGL_WIDTH, mWidth, EGL14.EGL_HEIGHT, mHeight, EGL14.EGL_NONE};
+        return EGL14.eglCreatePbufferSurface(display, config, surfaceAttribs, 0);
+    }
+
+    @Override
+    public void onFrameSwapped() {
+        mFrameCount++;
+    }
+
+    @Override
+    public void release() {
+        mIsReleased = true;
+    }
+
+    /**
+     * Obtain the number of frames copied into the pbuffer.
+     *
+     * @return Frame count.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public boolean isReleased() {
+        return mIsReleased;
+    }
+}
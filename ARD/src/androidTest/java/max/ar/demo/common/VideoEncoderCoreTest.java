@@ -0,0 +1,164 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Encode a few frames through {@link VideoEncoderCore} and check the muxed file, with an offscreen
+ * OpenGL ES 2.0 context on a recordable config drawing into the encoder surface.
+ */
+@RunWith(AndroidJUnit4.class)
+public class VideoEncoderCoreTest {
+    private static final int VIDEO_WIDTH = 128;
+
+    private static final int VIDEO_HEIGHT = 96;
+
+    private static final int FRAME_COUNT = 10;
+
+    private static final long FRAME_INTERVAL_NS = 1000000000L / 30;
+
+    private static final long COMPLETION_TIMEOUT_SECONDS = 5L;
+
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+
+    private EGLConfig mConfig;
+
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+
+    private File mOutputFile;
+
+    /**
+     * Create an OpenGL ES 2.0 context on a recordable config. The test is skipped on devices without
+     * one.
+     *
+     * @throws IOException If the output file cannot be created.
+     */
+    @Before
+    public void setUp() throws IOException {
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        assertTrue(EGL14.eglInitialize(mDisplay, version, 0, version, 1));
+        int[] configAttribs = {
+            EGL14.EGL_RED_SIZE, 8, EGL14.EGL_GREEN_SIZE, 8, EGL14.EGL_BLUE_SIZE, 8, EGL14.EGL_ALPHA_SIZE, 8,
+            EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT, EGLExt.EGL_RECORDABLE_ANDROID, 1, EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        boolean hasConfig = EGL14.eglChooseConfig(mDisplay, configAttribs, 0, configs, 0, configs.length,
+            configCount, 0) && configCount[0] > 0;
+        assumeTrue("No recordable OpenGL ES 2.0 config.", hasConfig);
+        mConfig = configs[0];
+        int[] contextAttribs = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+        mContext = EGL14.eglCreateContext(mDisplay, mConfig, EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
+        assertNotEquals(EGL14.EGL_NO_CONTEXT, mContext);
+
+        // The temporary directory of an instrumented test is the cache directory of the app.
+        mOutputFile = File.createTempFile("VideoEncoderCoreTest", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        if (mOutputFile != null && mOutputFile.exists() && !mOutputFile.delete()) {
+            mOutputFile.deleteOnExit();
+        }
+        if (mDisplay == EGL14.EGL_NO_DISPLAY) {
+            return;
+        }
+        EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        if (mContext != EGL14.EGL_NO_CONTEXT) {
+            EGL14.eglDestroyContext(mDisplay, mContext);
+        }
+        EGL14.eglTerminate(mDisplay);
+    }
+
+    @Test
+    public void release_writesPlayableFile() throws IOException, InterruptedException {
+        CountDownLatch completion = new CountDownLatch(1);
+        AtomicBoolean isComplete = new AtomicBoolean(false);
+        Optional<VideoEncoderCore> encoder = VideoEncoderCore.create(mOutputFile, VIDEO_WIDTH, VIDEO_HEIGHT,
+            (outputFile, isPlayable) -> {
+                isComplete.set(isPlayable);
+                completion.countDown();
+            });
+        assumeTrue("No video encoder for the size.", encoder.isPresent());
+
+        EGLSurface surface = encoder.get().createEglSurface(mDisplay, mConfig);
+        assertNotEquals(EGL14.EGL_NO_SURFACE, surface);
+        assertTrue(EGL14.eglMakeCurrent(mDisplay, surface, surface, mContext));
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            GLES20.glClearColor((float) i / FRAME_COUNT, 0.5f, 1.0f - (float) i / FRAME_COUNT, 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            EGLExt.eglPresentationTimeANDROID(mDisplay, surface, i * FRAME_INTERVAL_NS);
+            assertTrue(EGL14.eglSwapBuffers(mDisplay, surface));
+            encoder.get().onFrameSwapped();
+        }
+        EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        EGL14.eglDestroySurface(mDisplay, surface);
+        encoder.get().release();
+
+        assertTrue(completion.await(COMPLETION_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(isComplete.get());
+        assertTrue(mOutputFile.length() > 0);
+
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(mOutputFile.getPath());
+            assertEquals(1, extractor.getTrackCount());
+            MediaFormat format = extractor.getTrackFormat(0);
+            assertTrue(format.getString(MediaFormat.KEY_MIME).startsWith("video/"));
+            assertEquals(VIDEO_WIDTH, format.getInteger(MediaFormat.KEY_WIDTH));
+            assertEquals(VIDEO_HEIGHT, format.getInteger(MediaFormat.KEY_HEIGHT));
+            extractor.selectTrack(0);
+            int sampleCount = 0;
+            while (extractor.getSampleTime() >= 0) {
+                sampleCount++;
+                extractor.advance();
+            }
+            assertTrue(sampleCount > 0);
+        } finally {
+            extractor.release();
+        }
+    }
+}
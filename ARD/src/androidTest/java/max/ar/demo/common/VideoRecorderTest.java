@@ -0,0 +1,145 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Drive the recording path of {@link VideoRecorder} into a {@link PbufferTarget}, with an offscreen
+ * OpenGL ES 3.0 context standing in for the screen.
+ */
+@RunWith(AndroidJUnit4.class)
+public class VideoRecorderTest {
+    private static final int SCREEN_WIDTH = 64;
+
+    private static final int SCREEN_HEIGHT = 48;
+
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+
+    private EGLSurface mScreenSurface = EGL14.EGL_NO_SURFACE;
+
+    private final VideoRecorder mRecorder = new VideoRecorder();
+
+    /**
+     * Make an OpenGL ES 3.0 context current on a pbuffer of the screen size. The test is skipped on
+     * devices without OpenGL ES 3.0.
+     */
+    @Before
+    public void setUp() {
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        assertTrue(EGL14.eglInitialize(mDisplay, version, 0, version, 1));
+        int[] configAttribs = {
+            EGL14.EGL_RED_SIZE, 8, EGL14.EGL_GREEN_SIZE, 8, EGL14.EGL_BLUE_SIZE, 8, EGL14.EGL_ALPHA_SIZE, 8,
+            EGL14.EGL_RENDERABLE_TYPE, EGLExt.EGL_OPENGL_ES3_BIT_KHR, EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+            EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        boolean hasConfig = EGL14.eglChooseConfig(mDisplay, configAttribs, 0, configs, 0, configs.length,
+            configCount, 0) && configCount[0] > 0;
+        assumeTrue("No OpenGL ES 3.0 pbuffer config.", hasConfig);
+        int[] contextAttribs = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 3, EGL14.EGL_NONE};
+        mContext = EGL14.eglCreateContext(mDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
+        int[] surfaceAttribs = {EGL14.EGL_WIDTH, SCREEN_WIDTH, EGL14.EGL_HEIGHT, SCREEN_HEIGHT, EGL14.EGL_NONE};
+        mScreenSurface = EGL14.eglCreatePbufferSurface(mDisplay, configs[0], surfaceAttribs, 0);
+        assertTrue(EGL14.eglMakeCurrent(mDisplay, mScreenSurface, mScreenSurface, mContext));
+        mRecorder.init();
+        mRecorder.setSize(SCREEN_WIDTH, SCREEN_HEIGHT);
+    }
+
+    @After
+    public void tearDown() {
+        mRecorder.stop();
+        if (mDisplay == EGL14.EGL_NO_DISPLAY) {
+            return;
+        }
+        EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        if (mScreenSurface != EGL14.EGL_NO_SURFACE) {
+            EGL14.eglDestroySurface(mDisplay, mScreenSurface);
+        }
+        if (mContext != EGL14.EGL_NO_CONTEXT) {
+            EGL14.eglDestroyContext(mDisplay, mContext);
+        }
+        EGL14.eglTerminate(mDisplay);
+    }
+
+    @Test
+    public void onFrameDrawn_copiesEachFrameToTarget() {
+        PbufferTarget target = new PbufferTarget(SCREEN_WIDTH / 2, SCREEN_HEIGHT / 2);
+        assertTrue(mRecorder.start(target));
+        assertTrue(mRecorder.isRecording());
+
+        for (int i = 0; i < 3; i++) {
+            mRecorder.onFrameDrawn();
+        }
+
+        assertEquals(3, target.getFrameCount());
+        assertFalse(target.isReleased());
+
+        // The screen surface is current again after each copy.
+        assertEquals(mScreenSurface, EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW));
+    }
+
+    @Test
+    public void stop_releasesTarget() {
+        PbufferTarget target = new PbufferTarget(SCREEN_WIDTH, SCREEN_HEIGHT);
+        assertTrue(mRecorder.start(target));
+        mRecorder.onFrameDrawn();
+
+        mRecorder.stop();
+
+        assertTrue(target.isReleased());
+        assertFalse(mRecorder.isRecording());
+        assertEquals(1, target.getFrameCount());
+    }
+
+    @Test
+    public void setSize_stopsRecordingWhenSizeChanges() {
+        PbufferTarget target = new PbufferTarget(SCREEN_WIDTH, SCREEN_HEIGHT);
+        assertTrue(mRecorder.start(target));
+
+        mRecorder.setSize(SCREEN_WIDTH, SCREEN_HEIGHT);
+        assertFalse(target.isReleased());
+
+        mRecorder.setSize(SCREEN_HEIGHT, SCREEN_WIDTH);
+        assertTrue(target.isReleased());
+        assertFalse(mRecorder.isRecording());
+
+        mRecorder.onFrameDrawn();
+        assertEquals(0, target.getFrameCount());
+    }
+}
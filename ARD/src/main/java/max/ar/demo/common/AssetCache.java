@@ -0,0 +1,240 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import max.ar.demo.common.mesh.MeshBvh;
+import max.ar.demo.common.mesh.MeshData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Process-wide cache of the CPU-side model data (meshes and decoded texture bitmaps), keyed by
+ * asset name. Entries survive activity switches and OpenGL context loss, so only the GPU upload
+ * is repeated. Entries that are referenced are never evicted; unreferenced entries are evicted
+ * in least-recently-used order once the byte budget is exceeded.
+ */
+public final class AssetCache {
+    private static final String TAG = AssetCache.class.getSimpleName();
+
+    private static final long DEFAULT_BYTE_BUDGET = 32L * 1024L * 1024L;
+
+    private static final AssetCache INSTANCE = new AssetCache(DEFAULT_BYTE_BUDGET);
+
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final long mByteBudget;
+
+    private long mTotalBytes;
+
+    private AssetCache(long byteBudget) {
+        mByteBudget = byteBudget;
+    }
+
+    /**
+     * Obtain the process-wide cache.
+     *
+     * @return AssetCache instance.
+     */
+    public static AssetCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Obtain the mesh of an OBJ asset, loading it on a miss. This may block, so call it on a worker thread.
+     *
+     * @param context Context.
+     * @param objName Asset name of the OBJ model.
+     * @param isRetained Whether to add a reference to the asset, as {@link #retain(String)} does. The
+     *        reference is added under the cache lock, so the mesh cannot be evicted before the caller holds it.
+     * @return Mesh data, or empty if the asset cannot be read.
+     */
+    public Optional<MeshData> getMesh(Context context, String objName, boolean isRetained) {
+        Object cached = get(objName, isRetained);
+        if (cached instanceof MeshData) {
+            return Optional.of((MeshData) cached);
+        }
+        Optional<MeshData> meshOptional = MeshLoader.load(context, objName);
+        return meshOptional.map(mesh -> (MeshData) put(objName, mesh,
+            (long) mesh.getVertices().remaining() + mesh.getIndices().remaining(), isRetained));
+    }
+
+    /**
+     * Obtain the ray-cast hierarchy of a cached mesh, building it on the first call. The hierarchy is
+     * kept with the mesh entry and evicted with it. This may block, so call it on a worker thread.
+     *
+     * @param objName Asset name of the OBJ model, whose mesh must be cached.
+     * @return Hierarchy of the mesh, or empty if the mesh is not cached.
+     */
+    public Optional<MeshBvh> getMeshBvh(String objName) {
+        MeshData mesh;
+        synchronized (this) {
+            Entry entry = mEntries.get(objName);
+            if (entry == null || !(entry.mValue instanceof MeshData)) {
+                return Optional.empty();
+            }
+            if (entry.mBvh != null) {
+                return Optional.of(entry.mBvh);
+            }
+            mesh = (MeshData) entry.mValue;
+        }
+
+        // Built outside the lock, so that the other workers are not blocked meanwhile.
+        return Optional.of(putBvh(objName, mesh, MeshBvh.build(mesh)));
+    }
+
+    /**
+     * Obtain the decoded bitmap of an image asset, decoding it on a miss. This may block, so call it
+     * on a worker thread.
+     *
+     * @param context Context.
+     * @param imageName Asset name of the image.
+     * @param isRetained Whether to add a reference to the asset, see {@link #getMesh(Context, String, boolean)}.
+     * @return Bitmap, or empty if the asset cannot be decoded.
+     */
+    public Optional<Bitmap> getBitmap(Context context, String imageName, boolean isRetained) {
+        Object cached = get(imageName, isRetained);
+        if (cached instanceof Bitmap) {
+            return Optional.of((Bitmap) cached);
+        }
+        Bitmap bitmap;
+        try (InputStream inputStream = context.getAssets().open(imageName)) {
+            bitmap = BitmapFactory.decodeStream(inputStream);
+        } catch (IllegalArgumentException | IOException exception) {
+            LogUtil.error(TAG, "Decode " + imageName + " failed: " + exception.getClass());
+            return Optional.empty();
+        }
+        if (bitmap == null) {
+            return Optional.empty();
+        }
+        return Optional.of((Bitmap) put(imageName, bitmap, bitmap.getAllocationByteCount(), isRetained));
+    }
+
+    /**
+     * Add a reference to a cached asset so that it is not evicted.
+     *
+     * @param name Asset name.
+     */
+    public synchronized void retain(String name) {
+        Entry entry = mEntries.get(name);
+        if (entry != null) {
+            entry.mRefCount++;
+        }
+    }
+
+    /**
+     * Remove a reference added by {@link #retain(String)}. The asset stays cached until the budget needs the space.
+     *
+     * @param name Asset name.
+     */
+    public synchronized void release(String name) {
+        Entry entry = mEntries.get(name);
+        if (entry != null && entry.mRefCount > 0) {
+            entry.mRefCount--;
+            trimToBudget();
+        }
+    }
+
+    private synchronized Object get(String name, boolean isRetained) {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (isRetained) {
+            entry.mRefCount++;
+        }
+        return entry.mValue;
+    }
+
+    // Returns the cached value, which is the one of another worker if it loaded the same asset meanwhile.
+    private synchronized Object put(String name, Object value, long byteSize, boolean isRetained) {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            entry = new Entry(value, byteSize);
+            mEntries.put(name, entry);
+            mTotalBytes += byteSize;
+        }
+
+        // Count the reference before trimming, so that the new entry is not the one evicted.
+        if (isRetained) {
+            entry.mRefCount++;
+        }
+        trimToBudget();
+        return entry.mValue;
+    }
+
+    // Returns the cached hierarchy, which is the one of another worker if it built it meanwhile.
+    private synchronized MeshBvh putBvh(String name, MeshData mesh, MeshBvh bvh) {
+        Entry entry = mEntries.get(name);
+        if (entry == null || entry.mValue != mesh) {
+            // The mesh was evicted meanwhile; the hierarchy is still valid for it.
+            return bvh;
+        }
+        if (entry.mBvh == null) {
+            entry.mBvh = bvh;
+            entry.mByteSize += bvh.getByteSize();
+            mTotalBytes += bvh.getByteSize();
+            trimToBudget();
+        }
+        return entry.mBvh;
+    }
+
+    private void trimToBudget() {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mTotalBytes > mByteBudget && iterator.hasNext()) {
+            Map.Entry<String, Entry> item = iterator.next();
+            if (item.getValue().mRefCount > 0) {
+                continue;
+            }
+            mTotalBytes -= item.getValue().mByteSize;
+            iterator.remove();
+            if (LogUtil.isLoggable(Log.DEBUG)) {
+                LogUtil.debug(TAG, "Evict " + item.getKey() + ", cached bytes " + mTotalBytes);
+            }
+        }
+    }
+
+    /**
+     * Cached asset with its reference count and derived data.
+     */
+    private static class Entry {
+        private final Object mValue;
+
+        private long mByteSize;
+
+        private int mRefCount;
+
+        /**
+         * Ray-cast hierarchy of a mesh entry, built on demand.
+         */
+        private MeshBvh mBvh;
+
+        Entry(Object value, long byteSize) {
+            mValue = value;
+            mByteSize = byteSize;
+        }
+    }
+}
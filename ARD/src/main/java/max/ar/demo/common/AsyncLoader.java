@@ -0,0 +1,119 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Run asset decoding on a shared worker pool and hand the results back to the OpenGL thread,
+ * which collects them with {@link #poll()} once per frame and performs the GPU upload itself.
+ *
+ * @param <T> Type of the loaded data.
+ */
+public class AsyncLoader<T> {
+    private static final String TAG = AsyncLoader.class.getSimpleName();
+
+    private static final int WORKER_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(WORKER_COUNT, runnable -> {
+        Thread thread = new Thread(runnable, "AsyncLoader");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    private final Queue<T> mLoaded = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+
+    /**
+     * Queue a load task on the worker pool.
+     *
+     * @param task Task run on a worker thread; an empty result is dropped.
+     */
+    public void submit(Supplier<Optional<T>> task) {
+        submit(mGeneration.get(), task);
+    }
+
+    /**
+     * Queue a load task on the worker pool for a generation obtained with {@link #getGeneration()}
+     * before the task was created. The result is dropped if the generation has changed meanwhile.
+     *
+     * @param generation Generation the task belongs to.
+     * @param task Task run on a worker thread; an empty result is dropped.
+     */
+    public void submit(int generation, Supplier<Optional<T>> task) {
+        mPendingCount.incrementAndGet();
+        WORKERS.execute(() -> {
+            try {
+                Optional<T> result = task.get();
+                if (result.isPresent() && generation == mGeneration.get()) {
+                    mLoaded.offer(result.get());
+                }
+            } catch (RuntimeException exception) {
+                LogUtil.error(TAG, "Load task failed: " + exception.getClass());
+            } finally {
+                mPendingCount.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Obtain the current generation, which changes with every {@link #cancelAll()}. A task can compare
+     * the generation of its submission with this one to find out whether its result will be dropped.
+     *
+     * @return Generation counter.
+     */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Obtain the next finished result. Call this on the OpenGL thread.
+     *
+     * @return Loaded data, or null if nothing has finished since the last call.
+     */
+    public T poll() {
+        return mLoaded.poll();
+    }
+
+    /**
+     * Drop the finished results and those of the tasks still running, for example when the
+     * OpenGL context they were meant for is recreated.
+     */
+    public void cancelAll() {
+        mGeneration.incrementAndGet();
+        mLoaded.clear();
+    }
+
+    /**
+     * Check whether every submitted task has finished and its result has been collected.
+     *
+     * @return true if nothing is left to load.
+     */
+    public boolean isIdle() {
+        return mPendingCount.get() == 0 && mLoaded.isEmpty();
+    }
+}
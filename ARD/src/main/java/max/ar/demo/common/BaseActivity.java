@@ -17,6 +17,7 @@
 package max.ar.demo.common;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
@@ -84,6 +85,8 @@ public class BaseActivity extends Activity {
 
     private static final String DEFAULT_IMAGE = "image_default.png";
 
+    private static final int GLES_VERSION_3_0 = 0x30000;
+
     /**
      * Error information about AR session initialization.
      */
@@ -114,6 +117,9 @@ public class BaseActivity extends Activity {
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+
+        // The renderer logs from the OpenGL thread; write to logcat off that thread.
+        LogUtil.setAsyncEnabled(true);
         mDisplayRotationManager = new DisplayRotationManager(this);
     }
 
@@ -198,6 +204,21 @@ public class BaseActivity extends Activity {
         LogUtil.debug(TAG, "onDestroy end.");
     }
 
+    /**
+     * Obtain the OpenGL ES client version to request for the GLSurfaceView: 3 when the device
+     * supports OpenGL ES 3.0, which enables instanced drawing, otherwise 2.
+     *
+     * @return OpenGL ES client version.
+     */
+    protected int getOpenGlEsVersion() {
+        ActivityManager activityManager = getSystemService(ActivityManager.class);
+        if (activityManager != null
+            && activityManager.getDeviceConfigurationInfo().reqGlEsVersion >= GLES_VERSION_3_0) {
+            return 3;
+        }
+        return 2;
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         LogUtil.debug(TAG, "result from ConnectAppMarketActivity start");
@@ -20,7 +20,6 @@ import android.app.Activity;
 import android.content.Context;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.view.MotionEvent;
 import android.widget.TextView;
 
 import max.ar.demo.java.utils.CommonUtil;
@@ -38,6 +37,12 @@ import com.huawei.hiar.exceptions.ARFatalException;
 import com.huawei.hiar.exceptions.ARSessionPausedException;
 import com.huawei.hiar.exceptions.ARUnavailableServiceApkTooOldException;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -80,6 +85,16 @@ public abstract class BaseRendererManager implements GLSurfaceView.Renderer {
      */
     protected TextDisplay mTextDisplay = new TextDisplay();
 
+    /**
+     * Recording of the rendered frames to a video file.
+     */
+    protected VideoRecorder mVideoRecorder = new VideoRecorder();
+
+    /**
+     * CPU and GPU times of the stages of each frame.
+     */
+    protected FrameProfiler mFrameProfiler = new FrameProfiler();
+
     /**
      * Session instance.
      */
@@ -192,18 +207,66 @@ public abstract class BaseRendererManager implements GLSurfaceView.Renderer {
         }
         return fps;
     }
+
+    /**
+     * Start recording the rendered frames to an MP4 file with the next frame. Can be called on any thread.
+     *
+     * @param outputFile The video file.
+     * @param callback Called on the encoder thread when the file is finished, or null.
+     */
+    public void startRecording(File outputFile, VideoEncoderCore.Callback callback) {
+        mVideoRecorder.requestStart(outputFile, callback);
+    }
+
+    /**
+     * Stop recording with the next frame. Can be called on any thread.
+     */
+    public void stopRecording() {
+        mVideoRecorder.requestStop();
+    }
+
+    public boolean isRecording() {
+        return mVideoRecorder.isRecording();
+    }
+
+    /**
+     * Write the frame times in the history of the profiler to a CSV file. The CSV is built on the
+     * OpenGL thread, so call this method there, and written on a background thread.
+     *
+     * @param outputFile The CSV file.
+     */
+    public void dumpFrameProfile(File outputFile) {
+        String csv = mFrameProfiler.toCsv();
+        new Thread(() -> {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.UTF_8)) {
+                writer.write(csv);
+                LogUtil.info(TAG, "Frame profile written to " + outputFile.getName());
+            } catch (IOException exception) {
+                LogUtil.error(TAG, "Writing the frame profile failed: " + exception.getClass());
+            }
+        }, "ProfileDump").start();
+    }
+
+    /**
+     * Stop recording immediately and finish the video file. Call this method on the OpenGL thread, for
+     * example with GLSurfaceView.queueEvent before the view is paused.
+     */
+    public void releaseVideoRecorder() {
+        mVideoRecorder.stop();
+    }
+
     /**
      * Determine whether the tap event occurs on the AR plane or in the AR dot matrix.
      *
      * @param frame A snapshot of the AR Engine system.
      * @param camera AR camera instance.
-     * @param event Finger tap and move event.
+     * @param event Finger tap or move event.
      * @return Return the tap result (ARHitResult type) if the tap event occurs on the AR plane or in the AR dot matrix;
      *         return null otherwise.
      */
-    protected ARHitResult hitTest4Result(ARFrame frame, ARCamera camera, MotionEvent event) {
+    protected ARHitResult hitTest4Result(ARFrame frame, ARCamera camera, GestureEvent event) {
         ARHitResult hitResult = null;
-        List<ARHitResult> hitTestResults = CommonUtil.hitTest(frame, event);
+        List<ARHitResult> hitTestResults = CommonUtil.hitTest(frame, event.getX(), event.getY());
 
         for (int i = 0; i < hitTestResults.size(); i++) {
             // Determine whether the hit point is within the plane polygon.
@@ -241,6 +304,8 @@ public abstract class BaseRendererManager implements GLSurfaceView.Renderer {
             return;
         }
         mBackgroundDisplay.init();
+        mVideoRecorder.init();
+        mFrameProfiler.init();
         if (mActivity != null && mTextView != null) {
             mTextDisplay.setListener((text, positionX, positionY) -> UiUtils.showTypeTextView(mActivity, mTextView,
                 text, positionX, positionY));
@@ -257,11 +322,21 @@ public abstract class BaseRendererManager implements GLSurfaceView.Renderer {
         }
         mBackgroundDisplay.onSurfaceChanged(width, height);
         mDisplayRotationManager.updateViewportRotation(width, height);
+        mVideoRecorder.setSize(width, height);
         mRenderer.surfaceChanged(gl, width, height);
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
+        mFrameProfiler.beginFrame();
+        try {
+            updateAndDrawFrame(gl);
+        } finally {
+            mFrameProfiler.endFrame();
+        }
+    }
+
+    private void updateAndDrawFrame(GL10 gl) {
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
         if (mSession == null) {
             return;
@@ -274,8 +349,11 @@ public abstract class BaseRendererManager implements GLSurfaceView.Renderer {
         }
         mSession.setCameraTextureName(mBackgroundDisplay.getExternalTextureId());
         try {
+            mFrameProfiler.beginStage(FrameProfiler.Stage.SESSION_UPDATE);
             mArFrame = mSession.update();
+            mFrameProfiler.beginStage(FrameProfiler.Stage.BACKGROUND);
             mBackgroundDisplay.onDrawFrame(mArFrame);
+            mFrameProfiler.endStage();
             mArCamera = mArFrame.getCamera();
             mArCamera.getProjectionMatrix(mProjectionMatrix, PROJ_MATRIX_OFFSET, PROJ_MATRIX_NEAR, PROJ_MATRIX_FAR);
             mArCamera.getViewMatrix(mViewMatrix, 0);
@@ -289,6 +367,10 @@ public abstract class BaseRendererManager implements GLSurfaceView.Renderer {
             return;
         }
         mRenderer.drawFrame(gl);
+
+        // Copy the composed frame to the video encoder before GLSurfaceView swaps it to the screen.
+        mFrameProfiler.beginStage(FrameProfiler.Stage.CAPTURE);
+        mVideoRecorder.onFrameDrawn();
     }
 
     /**
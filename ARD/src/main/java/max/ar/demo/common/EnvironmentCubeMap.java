@@ -0,0 +1,114 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cube map texture holding the environment texture of AR Engine, used for reflections on the
+ * virtual objects. The six faces are uploaded straight from the buffer returned by
+ * ARLightEstimate.acquireEnvironmentTexture, without copying them into Java arrays. Use this class on
+ * the OpenGL thread.
+ */
+public class EnvironmentCubeMap {
+    private static final String TAG = EnvironmentCubeMap.class.getSimpleName();
+
+    private static final int FACE_COUNT = 6;
+
+    /**
+     * The environment texture is in the RGB_888 format.
+     */
+    private static final int BYTES_PER_PIXEL = 3;
+
+    private final int mSideLength;
+
+    private final int mFaceSize;
+
+    private final int[] mTexture = new int[1];
+
+    private boolean mHasContent = false;
+
+    /**
+     * Constructor.
+     *
+     * @param sideLength Side length of a face in pixels.
+     */
+    public EnvironmentCubeMap(int sideLength) {
+        mSideLength = sideLength;
+        mFaceSize = sideLength * sideLength * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Create the cube map texture and allocate its faces. Call this method on the OpenGL thread when
+     * the surface is created.
+     */
+    public void init() {
+        GLES20.glGenTextures(1, mTexture, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_CUBE_MAP, mTexture[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_CUBE_MAP, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_CUBE_MAP, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_CUBE_MAP, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_CUBE_MAP, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        for (int face = 0; face < FACE_COUNT; face++) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_CUBE_MAP_POSITIVE_X + face, 0, GLES20.GL_RGB, mSideLength,
+                mSideLength, 0, GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, null);
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_CUBE_MAP, 0);
+        mHasContent = false;
+        ShaderUtil.checkGlError(TAG, "Cube map init");
+    }
+
+    /**
+     * Upload the environment texture into the faces of the cube map. The faces in the buffer are in
+     * the order right, left, top, bottom, front and back, which is the order of the cube map faces
+     * from GL_TEXTURE_CUBE_MAP_POSITIVE_X to GL_TEXTURE_CUBE_MAP_NEGATIVE_Z.
+     *
+     * @param environmentTexture Buffer from ARLightEstimate.acquireEnvironmentTexture.
+     */
+    public void update(ByteBuffer environmentTexture) {
+        if (environmentTexture.capacity() < FACE_COUNT * mFaceSize) {
+            LogUtil.warn(TAG, "Environment texture too small: " + environmentTexture.capacity());
+            return;
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_CUBE_MAP, mTexture[0]);
+
+        // Rows of RGB pixels are not padded to four bytes.
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        for (int face = 0; face < FACE_COUNT; face++) {
+            // glTexSubImage2D reads from the position of the buffer.
+            environmentTexture.position(face * mFaceSize);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_CUBE_MAP_POSITIVE_X + face, 0, 0, 0, mSideLength, mSideLength,
+                GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, environmentTexture);
+        }
+        environmentTexture.position(0);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_CUBE_MAP, 0);
+        mHasContent = true;
+        ShaderUtil.checkGlError(TAG, "Cube map update");
+    }
+
+    /**
+     * Obtain the cube map texture.
+     *
+     * @return Texture name, or 0 until an environment texture has been uploaded.
+     */
+    public int getTextureId() {
+        return mHasContent ? mTexture[0] : 0;
+    }
+}
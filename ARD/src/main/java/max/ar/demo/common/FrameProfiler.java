@@ -0,0 +1,387 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Record the CPU time of the stages of each frame and, where GL_EXT_disjoint_timer_query is
+ * available on OpenGL ES 3.0, their GPU time. The last {@link #HISTORY_SIZE} frames are kept in a
+ * ring buffer, summarized as p50/p95/p99 per stage with a count of janky frames, and can be dumped
+ * as CSV. Stages do not nest: beginning a stage ends the open one. Use the profiler on the OpenGL
+ * thread.
+ */
+public class FrameProfiler {
+    /**
+     * Number of frames kept in the ring buffer.
+     */
+    public static final int HISTORY_SIZE = 256;
+
+    private static final String TAG = FrameProfiler.class.getSimpleName();
+
+    private static final String TIMER_QUERY_EXTENSION = "GL_EXT_disjoint_timer_query";
+
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    /**
+     * Frames whose timer queries may be in flight; results are read this many frames later at most.
+     */
+    private static final int QUERY_FRAMES = 4;
+
+    /**
+     * Maximum number of timed spans per frame; a stage may be entered more than once.
+     */
+    private static final int MAX_SPANS = 16;
+
+    /**
+     * A frame is janky when the interval to the previous frame exceeds this multiple of the median.
+     */
+    private static final float JANK_FACTOR = 2.0f;
+
+    private static final long SUMMARY_INTERVAL_NS = 500_000_000L;
+
+    private static final double NS_PER_MS = 1_000_000.0;
+
+    private static final long NOT_MEASURED = -1L;
+
+    /**
+     * Stages of a frame.
+     */
+    public enum Stage {
+        SESSION_UPDATE("Update"),
+        BACKGROUND("Background"),
+        TARGETS("Targets"),
+        GESTURES("Gestures"),
+        LIGHTING("Lighting"),
+        OBJECTS("Objects"),
+        CAPTURE("Capture");
+
+        private final String mLabel;
+
+        Stage(String label) {
+            mLabel = label;
+        }
+
+        public String getLabel() {
+            return mLabel;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private static final int STAGE_COUNT = STAGES.length;
+
+    private static final float[] PERCENTILES = {0.50f, 0.95f, 0.99f};
+
+    private final long[] mFrameIntervals = new long[HISTORY_SIZE];
+
+    private final long[] mCpuFrameTimes = new long[HISTORY_SIZE];
+
+    private final long[] mCpuStageTimes = new long[HISTORY_SIZE * STAGE_COUNT];
+
+    private final long[] mGpuStageTimes = new long[HISTORY_SIZE * STAGE_COUNT];
+
+    private final long[] mScratch = new long[HISTORY_SIZE];
+
+    /**
+     * Timer queries of each in-flight frame, the stage timed by each span, and the frame they belong to.
+     */
+    private final int[] mQueries = new int[QUERY_FRAMES * MAX_SPANS];
+
+    private final int[] mSpanStages = new int[QUERY_FRAMES * MAX_SPANS];
+
+    private final int[] mSpanCounts = new int[QUERY_FRAMES];
+
+    private final long[] mQueryFrameNumbers = new long[QUERY_FRAMES];
+
+    private final int[] mQueryResult = new int[1];
+
+    private final StringBuilder mSummary = new StringBuilder();
+
+    private boolean mIsGpuTimingSupported = false;
+
+    private long mFrameNumber = 0L;
+
+    private long mFrameStart = 0L;
+
+    private long mLastFrameStart = 0L;
+
+    private long mLastSummaryTime = 0L;
+
+    private Stage mOpenStage;
+
+    private long mStageStart;
+
+    private boolean mIsQueryActive = false;
+
+    private boolean mIsInFrame = false;
+
+    /**
+     * Create the timer queries when GL_EXT_disjoint_timer_query is available. Call this method on the
+     * OpenGL thread when the surface is created.
+     */
+    public void init() {
+        Arrays.fill(mSpanCounts, 0);
+        mIsQueryActive = false;
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        mIsGpuTimingSupported = ShaderUtil.isGles3() && extensions != null
+            && extensions.contains(TIMER_QUERY_EXTENSION);
+        if (!mIsGpuTimingSupported) {
+            LogUtil.info(TAG, "GPU timer queries are not available, only CPU times are recorded.");
+            return;
+        }
+        GLES30.glGenQueries(mQueries.length, mQueries, 0);
+
+        // Reading the disjoint state clears it.
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mQueryResult, 0);
+        ShaderUtil.checkGlError(TAG, "Profiler init");
+    }
+
+    /**
+     * Start recording a frame, and collect the GPU times of earlier frames that are ready.
+     */
+    public void beginFrame() {
+        mFrameStart = System.nanoTime();
+        int row = (int) (mFrameNumber % HISTORY_SIZE);
+        mFrameIntervals[row] = mLastFrameStart == 0L ? 0L : mFrameStart - mLastFrameStart;
+        mLastFrameStart = mFrameStart;
+        mCpuFrameTimes[row] = 0L;
+        Arrays.fill(mCpuStageTimes, row * STAGE_COUNT, (row + 1) * STAGE_COUNT, 0L);
+        Arrays.fill(mGpuStageTimes, row * STAGE_COUNT, (row + 1) * STAGE_COUNT, NOT_MEASURED);
+        mIsInFrame = true;
+        if (mIsGpuTimingSupported) {
+            collectGpuTimes();
+        }
+    }
+
+    /**
+     * Start timing a stage of the frame, ending the open stage if any.
+     *
+     * @param stage Stage.
+     */
+    public void beginStage(Stage stage) {
+        if (!mIsInFrame) {
+            return;
+        }
+        endStage();
+        mOpenStage = stage;
+        int slot = (int) (mFrameNumber % QUERY_FRAMES);
+        if (mIsGpuTimingSupported && mSpanCounts[slot] < MAX_SPANS) {
+            int span = slot * MAX_SPANS + mSpanCounts[slot];
+            mSpanStages[span] = stage.ordinal();
+            GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[span]);
+            mIsQueryActive = true;
+        }
+        mStageStart = System.nanoTime();
+    }
+
+    /**
+     * End timing the open stage.
+     */
+    public void endStage() {
+        if (mOpenStage == null) {
+            return;
+        }
+        int row = (int) (mFrameNumber % HISTORY_SIZE);
+        mCpuStageTimes[row * STAGE_COUNT + mOpenStage.ordinal()] += System.nanoTime() - mStageStart;
+        mOpenStage = null;
+        if (mIsQueryActive) {
+            GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+            mIsQueryActive = false;
+            int slot = (int) (mFrameNumber % QUERY_FRAMES);
+            mQueryFrameNumbers[slot] = mFrameNumber;
+            mSpanCounts[slot]++;
+        }
+    }
+
+    /**
+     * Finish recording the frame. The summary is refreshed every half second.
+     */
+    public void endFrame() {
+        if (!mIsInFrame) {
+            return;
+        }
+        endStage();
+        long now = System.nanoTime();
+        mCpuFrameTimes[(int) (mFrameNumber % HISTORY_SIZE)] = now - mFrameStart;
+        mFrameNumber++;
+        mIsInFrame = false;
+        if (now - mLastSummaryTime > SUMMARY_INTERVAL_NS) {
+            updateSummary();
+            mLastSummaryTime = now;
+        }
+    }
+
+    /**
+     * Append the last summary to the HUD text: p50/p95/p99 in milliseconds of the CPU and GPU time
+     * per stage, and the number of janky frames in the history.
+     *
+     * @param sb Text of the HUD.
+     */
+    public void appendSummary(StringBuilder sb) {
+        sb.append(mSummary);
+    }
+
+    /**
+     * Dump the frames in the history as CSV, oldest first, with times in milliseconds. GPU columns
+     * are empty when not measured.
+     *
+     * @return CSV text.
+     */
+    public String toCsv() {
+        StringBuilder csv = new StringBuilder();
+        csv.append("frame,interval_ms,cpu_total_ms");
+        for (Stage stage : STAGES) {
+            csv.append(",cpu_").append(stage.getLabel().toLowerCase(Locale.ROOT)).append("_ms");
+        }
+        for (Stage stage : STAGES) {
+            csv.append(",gpu_").append(stage.getLabel().toLowerCase(Locale.ROOT)).append("_ms");
+        }
+        csv.append(System.lineSeparator());
+        int count = getRecordedCount();
+        for (long frame = mFrameNumber - count; frame < mFrameNumber; frame++) {
+            int row = (int) (frame % HISTORY_SIZE);
+            csv.append(frame).append(',').append(toMs(mFrameIntervals[row]))
+                .append(',').append(toMs(mCpuFrameTimes[row]));
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                csv.append(',').append(toMs(mCpuStageTimes[row * STAGE_COUNT + stage]));
+            }
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                long gpuTime = mGpuStageTimes[row * STAGE_COUNT + stage];
+                csv.append(',');
+                if (gpuTime != NOT_MEASURED) {
+                    csv.append(toMs(gpuTime));
+                }
+            }
+            csv.append(System.lineSeparator());
+        }
+        return csv.toString();
+    }
+
+    public boolean isGpuTimingSupported() {
+        return mIsGpuTimingSupported;
+    }
+
+    private int getRecordedCount() {
+        return (int) Math.min(mFrameNumber, HISTORY_SIZE);
+    }
+
+    // Read the timer queries of the finished frames without waiting; a frame whose queries are not
+    // ready when its slot is needed again loses its GPU times.
+    private void collectGpuTimes() {
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mQueryResult, 0);
+        boolean isDisjoint = mQueryResult[0] != 0;
+        int currentSlot = (int) (mFrameNumber % QUERY_FRAMES);
+        for (int slot = 0; slot < QUERY_FRAMES; slot++) {
+            int spanCount = mSpanCounts[slot];
+            if (spanCount == 0) {
+                continue;
+            }
+            GLES30.glGetQueryObjectuiv(mQueries[slot * MAX_SPANS + spanCount - 1],
+                GLES30.GL_QUERY_RESULT_AVAILABLE, mQueryResult, 0);
+            boolean isAvailable = mQueryResult[0] != 0;
+            if (!isAvailable && slot != currentSlot) {
+                continue;
+            }
+
+            // A disjoint operation, such as a frequency change, makes the results of the frames in
+            // flight meaningless.
+            long frame = mQueryFrameNumbers[slot];
+            if (isAvailable && !isDisjoint && frame > mFrameNumber - HISTORY_SIZE) {
+                int row = (int) (frame % HISTORY_SIZE);
+                for (int span = slot * MAX_SPANS; span < slot * MAX_SPANS + spanCount; span++) {
+                    GLES30.glGetQueryObjectuiv(mQueries[span], GLES30.GL_QUERY_RESULT, mQueryResult, 0);
+                    int index = row * STAGE_COUNT + mSpanStages[span];
+                    long elapsed = mQueryResult[0] & 0xFFFFFFFFL;
+                    mGpuStageTimes[index] = mGpuStageTimes[index] == NOT_MEASURED
+                        ? elapsed : mGpuStageTimes[index] + elapsed;
+                }
+            }
+            mSpanCounts[slot] = 0;
+        }
+    }
+
+    private void updateSummary() {
+        mSummary.setLength(0);
+        int count = getRecordedCount();
+        if (count == 0) {
+            return;
+        }
+        System.arraycopy(mCpuFrameTimes, 0, mScratch, 0, count);
+        appendPercentiles(mSummary.append("Frame cpu"), count);
+        mSummary.append(" jank=").append(countJankyFrames(count)).append('/').append(count)
+            .append(System.lineSeparator());
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            mSummary.append(STAGES[stage].getLabel()).append(" cpu");
+            appendPercentiles(mSummary, copyStageTimes(mCpuStageTimes, stage, count));
+            if (mIsGpuTimingSupported) {
+                int gpuCount = copyStageTimes(mGpuStageTimes, stage, count);
+                mSummary.append(" gpu");
+                if (gpuCount > 0) {
+                    appendPercentiles(mSummary, gpuCount);
+                } else {
+                    mSummary.append(" -");
+                }
+            }
+            mSummary.append(System.lineSeparator());
+        }
+    }
+
+    // Copy the measured times of a stage into the scratch array, and return their number.
+    private int copyStageTimes(long[] stageTimes, int stage, int count) {
+        int copied = 0;
+        for (int row = 0; row < count; row++) {
+            long time = stageTimes[row * STAGE_COUNT + stage];
+            if (time != NOT_MEASURED) {
+                mScratch[copied++] = time;
+            }
+        }
+        return copied;
+    }
+
+    // Sort the first count values of the scratch array and append their p50/p95/p99 in milliseconds.
+    private void appendPercentiles(StringBuilder sb, int count) {
+        Arrays.sort(mScratch, 0, count);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            int rank = Math.max(0, (int) Math.ceil(PERCENTILES[i] * count) - 1);
+            sb.append(i == 0 ? ' ' : '/').append(toMs(mScratch[rank]));
+        }
+    }
+
+    private int countJankyFrames(int count) {
+        System.arraycopy(mFrameIntervals, 0, mScratch, 0, count);
+        Arrays.sort(mScratch, 0, count);
+        long threshold = (long) (mScratch[(count - 1) / 2] * JANK_FACTOR);
+        int jankCount = 0;
+        for (int row = 0; row < count; row++) {
+            if (threshold > 0L && mFrameIntervals[row] > threshold) {
+                jankCount++;
+            }
+        }
+        return jankCount;
+    }
+
+    private static String toMs(long nanos) {
+        return String.format(Locale.ROOT, "%.2f", nanos / NS_PER_MS);
+    }
+}
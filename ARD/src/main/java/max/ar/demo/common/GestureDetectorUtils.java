@@ -21,8 +21,6 @@ import android.opengl.GLSurfaceView;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 
-import java.util.concurrent.ArrayBlockingQueue;
-
 /**
  * Listen to and control some gestures.
  */
@@ -36,7 +34,7 @@ public class GestureDetectorUtils {
      * @param queuedSingleTaps Gesture type queue.
      */
     public static void initGestureDetector(Context context, String tag, GLSurfaceView surfaceView,
-        ArrayBlockingQueue<GestureEvent> queuedSingleTaps) {
+        GestureEventQueue queuedSingleTaps) {
         GestureDetector gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
             @Override
             public boolean onDoubleTap(MotionEvent motionEvent) {
@@ -57,7 +55,7 @@ public class GestureDetectorUtils {
 
             @Override
             public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
-                onGestureEvent(GestureEvent.createScrollEvent(e1, e2, distanceX, distanceY), tag, queuedSingleTaps);
+                onGestureEvent(GestureEvent.createScrollEvent(e2, distanceX, distanceY), tag, queuedSingleTaps);
                 return true;
             }
         });
@@ -66,11 +64,23 @@ public class GestureDetectorUtils {
             LogUtil.warn(tag, "surfaceView params is invalid");
             return;
         }
-        surfaceView.setOnTouchListener((view, event) -> gestureDetector.onTouchEvent(event));
+        surfaceView.setOnTouchListener((view, event) -> {
+            boolean isHandled = gestureDetector.onTouchEvent(event);
+
+            // The detector does not report the end of a scroll, which completes a drag. A cancelled
+            // touch did not end where the user chose, so it is reported separately to undo the drag.
+            int action = event.getActionMasked();
+            if (action == MotionEvent.ACTION_UP) {
+                onGestureEvent(GestureEvent.createUpEvent(event), tag, queuedSingleTaps);
+            } else if (action == MotionEvent.ACTION_CANCEL) {
+                onGestureEvent(GestureEvent.createCancelEvent(event), tag, queuedSingleTaps);
+            }
+            return isHandled;
+        });
     }
 
     private static void onGestureEvent(GestureEvent gestureEvent, String tag,
-        ArrayBlockingQueue<GestureEvent> queuedSingleTaps) {
+        GestureEventQueue queuedSingleTaps) {
         boolean isSuccess = queuedSingleTaps.offer(gestureEvent);
         if (isSuccess) {
             LogUtil.debug(tag, "Successfully joined the queue.");
@@ -19,7 +19,9 @@ package max.ar.demo.common;
 import android.view.MotionEvent;
 
 /**
- * Gesture event management class for storing and creating gestures.
+ * Gesture event management class for storing and creating gestures. An event keeps only the touch
+ * position and the scroll distances, read from the MotionEvent on the UI thread, so no MotionEvent
+ * has to be copied for the OpenGL thread or recycled there.
  */
 public class GestureEvent {
     /**
@@ -52,11 +54,21 @@ public class GestureEvent {
      */
     public static final int GESTURE_EVENT_TYPE_DOUBLETAP = 5;
 
+    /**
+     * Define the constant 6, indicating that the gesture type is UP: the finger is lifted.
+     */
+    public static final int GESTURE_EVENT_TYPE_UP = 6;
+
+    /**
+     * Define the constant 7, indicating that the gesture type is CANCEL: the touch is taken away from the view.
+     */
+    public static final int GESTURE_EVENT_TYPE_CANCEL = 7;
+
     private int type;
 
-    private MotionEvent eventFirst;
+    private float x;
 
-    private MotionEvent eventSecond;
+    private float y;
 
     private float distanceX;
 
@@ -65,6 +77,14 @@ public class GestureEvent {
     private GestureEvent() {
     }
 
+    private static GestureEvent create(int type, MotionEvent motionEvent) {
+        GestureEvent ret = new GestureEvent();
+        ret.type = type;
+        ret.x = motionEvent.getX();
+        ret.y = motionEvent.getY();
+        return ret;
+    }
+
     public float getDistanceX() {
         return distanceX;
     }
@@ -77,12 +97,22 @@ public class GestureEvent {
         return type;
     }
 
-    public MotionEvent getEventFirst() {
-        return eventFirst;
+    /**
+     * Obtain the x coordinate of the touch point: the tap position, or the current position of a scroll.
+     *
+     * @return X coordinate in pixels of the view.
+     */
+    public float getX() {
+        return x;
     }
 
-    public MotionEvent getEventSecond() {
-        return eventSecond;
+    /**
+     * Obtain the y coordinate of the touch point: the tap position, or the current position of a scroll.
+     *
+     * @return Y coordinate in pixels of the view.
+     */
+    public float getY() {
+        return y;
     }
 
     /**
@@ -92,10 +122,7 @@ public class GestureEvent {
      * @return GestureEvent.
      */
     static GestureEvent createDownEvent(MotionEvent motionEvent) {
-        GestureEvent ret = new GestureEvent();
-        ret.type = GESTURE_EVENT_TYPE_DOWN;
-        ret.eventFirst = motionEvent;
-        return ret;
+        return create(GESTURE_EVENT_TYPE_DOWN, motionEvent);
     }
 
     /**
@@ -105,10 +132,7 @@ public class GestureEvent {
      * @return GestureEvent(SINGLETAPUP).
      */
     static GestureEvent createSingleTapUpEvent(MotionEvent motionEvent) {
-        GestureEvent ret = new GestureEvent();
-        ret.type = GESTURE_EVENT_TYPE_SINGLETAPUP;
-        ret.eventFirst = motionEvent;
-        return ret;
+        return create(GESTURE_EVENT_TYPE_SINGLETAPUP, motionEvent);
     }
 
     /**
@@ -118,10 +142,7 @@ public class GestureEvent {
      * @return GestureEvent(SINGLETAPCONFIRM).
      */
     public static GestureEvent createSingleTapConfirmEvent(MotionEvent motionEvent) {
-        GestureEvent ret = new GestureEvent();
-        ret.type = GESTURE_EVENT_TYPE_SINGLETAPCONFIRMED;
-        ret.eventFirst = motionEvent;
-        return ret;
+        return create(GESTURE_EVENT_TYPE_SINGLETAPCONFIRMED, motionEvent);
     }
 
     /**
@@ -131,28 +152,54 @@ public class GestureEvent {
      * @return GestureEvent(DOUBLETAP).
      */
     public static GestureEvent createDoubleTapEvent(MotionEvent motionEvent) {
-        GestureEvent ret = new GestureEvent();
-        ret.type = GESTURE_EVENT_TYPE_DOUBLETAP;
-        ret.eventFirst = motionEvent;
-        return ret;
+        return create(GESTURE_EVENT_TYPE_DOUBLETAP, motionEvent);
+    }
+
+    /**
+     * Create a gesture type: UP.
+     *
+     * @param motionEvent The gesture motion event: UP.
+     * @return GestureEvent(UP).
+     */
+    public static GestureEvent createUpEvent(MotionEvent motionEvent) {
+        return create(GESTURE_EVENT_TYPE_UP, motionEvent);
+    }
+
+    /**
+     * Create a gesture type: CANCEL.
+     *
+     * @param motionEvent The gesture motion event: CANCEL.
+     * @return GestureEvent(CANCEL).
+     */
+    public static GestureEvent createCancelEvent(MotionEvent motionEvent) {
+        return create(GESTURE_EVENT_TYPE_CANCEL, motionEvent);
     }
 
     /**
      * Create a gesture type: SCROLL.
      *
-     * @param e1 The first down motion event that started the scrolling.
-     * @param e2 The second down motion event that ended the scrolling.
+     * @param e2 The move motion event that triggered the current onScroll.
      * @param distanceX The distance along the X axis that has been scrolled since the last call to onScroll.
      * @param distanceY The distance along the Y axis that has been scrolled since the last call to onScroll.
      * @return GestureEvent(SCROLL).
      */
-    public static GestureEvent createScrollEvent(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
-        GestureEvent ret = new GestureEvent();
-        ret.type = GESTURE_EVENT_TYPE_SCROLL;
-        ret.eventFirst = e1;
-        ret.eventSecond = e2;
+    public static GestureEvent createScrollEvent(MotionEvent e2, float distanceX, float distanceY) {
+        GestureEvent ret = create(GESTURE_EVENT_TYPE_SCROLL, e2);
         ret.distanceX = distanceX;
         ret.distanceY = distanceY;
         return ret;
     }
-}
\ No newline at end of file
+
+    /**
+     * Merge a later SCROLL event into this one, without allocating: the scroll takes the current
+     * position of the later event, and the distances are added. Call this on the consumer thread only.
+     *
+     * @param later The later scroll event.
+     */
+    void mergeScrollEvent(GestureEvent later) {
+        x = later.x;
+        y = later.y;
+        distanceX += later.distanceX;
+        distanceY += later.distanceY;
+    }
+}
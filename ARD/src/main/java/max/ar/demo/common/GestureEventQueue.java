@@ -0,0 +1,118 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring buffer passing gesture events from the UI thread, the only producer, to the
+ * OpenGL thread, the only consumer. Neither side blocks; each side publishes its position with an
+ * ordered write that the other side reads.
+ *
+ * <p>The last free slot is kept for the UP or CANCEL event that ends a touch: other events are
+ * dropped when only one slot is free. A touch sequence ends with one such event and the sequences
+ * do not overlap, so the end of a touch is never dropped once any of its events has been queued.
+ */
+public class GestureEventQueue {
+    private final GestureEvent[] mEvents;
+
+    private final int mMask;
+
+    /**
+     * Position of the next event to read, written by the consumer only.
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * Position of the next event to write, written by the producer only.
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Minimum number of events the queue holds; it is rounded up to a power of two.
+     */
+    public GestureEventQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mEvents = new GestureEvent[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Add an event. Call this on the producer thread only.
+     *
+     * @param event Gesture event.
+     * @return false if the queue is full and the event is dropped.
+     */
+    public boolean offer(GestureEvent event) {
+        long tail = mTail.get();
+        int capacity = isTouchEnd(event) ? mEvents.length : mEvents.length - 1;
+        if (tail - mHead.get() >= capacity) {
+            return false;
+        }
+        mEvents[(int) tail & mMask] = event;
+
+        // The ordered write publishes the event before the new tail becomes visible.
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    private static boolean isTouchEnd(GestureEvent event) {
+        return event.getType() == GestureEvent.GESTURE_EVENT_TYPE_UP
+            || event.getType() == GestureEvent.GESTURE_EVENT_TYPE_CANCEL;
+    }
+
+    /**
+     * Take the oldest event. Call this on the consumer thread only.
+     *
+     * @return Gesture event, or null if the queue is empty.
+     */
+    public GestureEvent poll() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return null;
+        }
+        int slot = (int) head & mMask;
+        GestureEvent event = mEvents[slot];
+        mEvents[slot] = null;
+        mHead.lazySet(head + 1);
+        return event;
+    }
+
+    /**
+     * Take all queued events in order. Consecutive scroll events are merged into one, so a drag
+     * moves the object once per frame however many touch moves arrived. Call this on the consumer
+     * thread only.
+     *
+     * @param outEvents List receiving the events; it is not cleared.
+     */
+    public void drainTo(List<GestureEvent> outEvents) {
+        GestureEvent event = poll();
+        while (event != null) {
+            int last = outEvents.size() - 1;
+            if (last >= 0 && event.getType() == GestureEvent.GESTURE_EVENT_TYPE_SCROLL
+                && outEvents.get(last).getType() == GestureEvent.GESTURE_EVENT_TYPE_SCROLL) {
+                outEvents.get(last).mergeScrollEvent(event);
+            } else {
+                outEvents.add(event);
+            }
+            event = poll();
+        }
+    }
+}
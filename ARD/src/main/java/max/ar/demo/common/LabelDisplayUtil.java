@@ -32,9 +32,9 @@ public class LabelDisplayUtil {
 
     private static final int INDEX_Z = 2;
 
-    private static final int DOUBLE_NUM = 2;
+    private static final int INDEX_W = 3;
 
-    private static final int QUATERNION_SIZE = 4;
+    private static final int DOUBLE_NUM = 2;
 
     private static final float VERTICAL_INFO_PLANE = 90.0f;
 
@@ -47,24 +47,22 @@ public class LabelDisplayUtil {
     private static final float GIMBAL_LOCK_NUM = 0.0000001f;
 
     /**
-     * Obtains the AR pose rotation quaternion, x, y, z, and w.
+     * Obtains the AR pose rotation quaternion, x, y, z, and w, without allocating.
      *
      * @param cameraDisplayPose Pose of the camera in the world coordinate system.
      * @param angle Rotation radian of the z axis.
-     * @return Obtained rotation quaternion.
+     * @param outQuaternion Obtained rotation quaternion, at least 4 elements.
+     * @return false if the camera pose is missing; the quaternion is left unchanged.
      */
-    public static float[] getMeasureQuaternion(ARPose cameraDisplayPose, float angle) {
-        float[] measureQuaternion = null;
+    public static boolean getMeasureQuaternion(ARPose cameraDisplayPose, float angle, float[] outQuaternion) {
         if (cameraDisplayPose == null) {
             Log.e(TAG, "cameraDisplayPose is null!");
-            return measureQuaternion;
+            return false;
         }
-        ARPose camRot = cameraDisplayPose.extractRotation();
-        if (camRot == null) {
-            Log.e(TAG, "getMeasureQuaternion camRot null!");
-            return measureQuaternion;
-        }
-        float[] camEul = getEulerAngles(camRot);
+
+        // The output holds the Euler angles of the camera until the quaternion is written.
+        getEulerAngles(cameraDisplayPose, outQuaternion);
+        float[] camEul = outQuaternion;
 
         float perRad = STRAIGHT_ANGLE / (float) Math.PI;
         float anglesX = VERTICAL_INFO_PLANE / perRad - camEul[1] / DOUBLE_NUM;
@@ -87,29 +85,63 @@ public class LabelDisplayUtil {
             - (float) Math.sin(anglesY / DOUBLE_NUM) * (float) Math.sin(anglesZ / DOUBLE_NUM)
                 * (float) Math.sin(anglesX / DOUBLE_NUM);
 
-        float[] verticalQuaternion = {qx, qy, qz, qw};
-        ARPose verticalPose = ARPose.makeRotation(verticalQuaternion);
-        measureQuaternion = new float[QUATERNION_SIZE];
+        // Normalized as ARPose.makeRotation does.
+        float length = (float) Math.sqrt(qx * qx + qy * qy + qz * qz + qw * qw);
+        outQuaternion[INDEX_X] = qx / length;
+        outQuaternion[INDEX_Y] = qy / length;
+        outQuaternion[INDEX_Z] = qz / length;
+        outQuaternion[INDEX_W] = qw / length;
+        return true;
+    }
 
-        verticalPose.getRotationQuaternion(measureQuaternion, 0);
-        return measureQuaternion;
+    /**
+     * Write the column-major 4 * 4 matrix of a pose given by its translation and rotation
+     * quaternion, the same matrix as {@link ARPose#toMatrix}, without creating the pose.
+     *
+     * @param translation Translation x, y, z.
+     * @param quaternion Unit rotation quaternion x, y, z, w.
+     * @param outMatrix Pose matrix.
+     */
+    public static void getPoseMatrix(float[] translation, float[] quaternion, float[] outMatrix) {
+        float qx = quaternion[INDEX_X];
+        float qy = quaternion[INDEX_Y];
+        float qz = quaternion[INDEX_Z];
+        float qw = quaternion[INDEX_W];
+        outMatrix[0] = 1.0f - DOUBLE_NUM * (qy * qy + qz * qz);
+        outMatrix[1] = DOUBLE_NUM * (qx * qy + qz * qw);
+        outMatrix[2] = DOUBLE_NUM * (qx * qz - qy * qw);
+        outMatrix[3] = 0.0f;
+        outMatrix[4] = DOUBLE_NUM * (qx * qy - qz * qw);
+        outMatrix[5] = 1.0f - DOUBLE_NUM * (qx * qx + qz * qz);
+        outMatrix[6] = DOUBLE_NUM * (qy * qz + qx * qw);
+        outMatrix[7] = 0.0f;
+        outMatrix[8] = DOUBLE_NUM * (qx * qz + qy * qw);
+        outMatrix[9] = DOUBLE_NUM * (qy * qz - qx * qw);
+        outMatrix[10] = 1.0f - DOUBLE_NUM * (qx * qx + qy * qy);
+        outMatrix[11] = 0.0f;
+        outMatrix[12] = translation[INDEX_X];
+        outMatrix[13] = translation[INDEX_Y];
+        outMatrix[14] = translation[INDEX_Z];
+        outMatrix[15] = 1.0f;
     }
 
     /**
      * Calculate the Euler angle.
      *
-     * @param pose Pose of the target.
-     * @return Euler angle of the target in the world coordinate system.
+     * @param pose Pose of the target; only its rotation is used.
+     * @param outAngles Euler angle of the target in the world coordinate system: yaw, pitch, roll.
      */
-    private static float[] getEulerAngles(ARPose pose) {
-        float[] quaternion = {pose.qx(), pose.qy(), pose.qz()};
+    private static void getEulerAngles(ARPose pose, float[] outAngles) {
+        float quaternionX = pose.qx();
+        float quaternionY = pose.qy();
+        float quaternionZ = pose.qz();
         float quaternionW = pose.qw();
         float squareW = quaternionW * quaternionW;
-        float squareY = quaternion[INDEX_Y] * quaternion[INDEX_Y];
-        float squareX = quaternion[INDEX_X] * quaternion[INDEX_X];
-        float squareZ = quaternion[INDEX_Z] * quaternion[INDEX_Z];
+        float squareY = quaternionY * quaternionY;
+        float squareX = quaternionX * quaternionX;
+        float squareZ = quaternionZ * quaternionZ;
 
-        float psign = -DOUBLE_NUM * (-quaternionW * quaternion[INDEX_X] + quaternion[INDEX_Y] * quaternion[INDEX_Z]);
+        float psign = -DOUBLE_NUM * (-quaternionW * quaternionX + quaternionY * quaternionZ);
         float pitch;
         float yaw;
         float roll;
@@ -119,25 +151,27 @@ public class LabelDisplayUtil {
             yaw = 0.0f;
             pitch = -(float) Math.PI;
             roll = (float) Math.atan2(
-                DOUBLE_NUM * (-quaternion[INDEX_Y] * quaternion[INDEX_X] + quaternionW * quaternion[INDEX_Z]),
+                DOUBLE_NUM * (-quaternionY * quaternionX + quaternionW * quaternionZ),
                 squareW + squareX - squareY - squareZ);
         } else if (psign > NORTH_POLE_SINGULARITY - GIMBAL_LOCK_NUM) {
             // Arctic singularity.
             yaw = 0.0f;
             pitch = (float) Math.PI * DOUBLE_NUM;
             roll = (float) Math.atan2(
-                DOUBLE_NUM * (-quaternion[INDEX_Y] * quaternion[INDEX_X] + quaternionW * quaternion[INDEX_Z]),
+                DOUBLE_NUM * (-quaternionY * quaternionX + quaternionW * quaternionZ),
                 squareW + squareX - squareY - squareZ);
         } else {
             yaw = -(float) Math.atan2(
-                -DOUBLE_NUM * (quaternionW * quaternion[INDEX_Y] + quaternion[INDEX_X] * quaternion[INDEX_Z]),
+                -DOUBLE_NUM * (quaternionW * quaternionY + quaternionX * quaternionZ),
                 squareW + squareZ - squareY - squareX);
             pitch = (float) Math.asin(psign);
             roll = (float) Math.atan2(
-                DOUBLE_NUM * (quaternionW * quaternion[INDEX_Z] + quaternion[INDEX_Y] * quaternion[INDEX_X]),
+                DOUBLE_NUM * (quaternionW * quaternionZ + quaternionY * quaternionX),
                 squareW + squareY - squareX - squareZ);
         }
 
-        return new float[]{yaw, pitch, roll};
+        outAngles[INDEX_X] = yaw;
+        outAngles[INDEX_Y] = pitch;
+        outAngles[INDEX_Z] = roll;
     }
 }
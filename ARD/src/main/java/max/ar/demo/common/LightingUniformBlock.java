@@ -0,0 +1,258 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Uniform buffer with the lighting estimated by AR Engine: the 9 spherical harmonics coefficients of
+ * the ambient light and the primary directional light. The buffer is rewritten only when the
+ * estimate changes. Requires an OpenGL ES 3.0 context; use this class on the OpenGL thread.
+ *
+ * <p>The std140 layout of the block, named Lighting in the shaders, is:
+ * <pre>
+ * vec4 inShIrradiance[9];   // rgb: coefficient scaled for irradiance, see below
+ * vec4 inPrimaryLightDirection; // xyz: world direction towards the light
+ * vec4 inPrimaryLightColor; // rgb: color multiplied by intensity
+ * </pre>
+ * The irradiance for a world normal n is
+ * s0 + s1 * y + s2 * z + s3 * x + s4 * x * y + s5 * y * z + s6 * z * z + s7 * x * z + s8 * (x * x - y * y).
+ */
+public class LightingUniformBlock {
+    /**
+     * Name of the block in the shaders.
+     */
+    public static final String BLOCK_NAME = "Lighting";
+
+    private static final String TAG = LightingUniformBlock.class.getSimpleName();
+
+    private static final int BINDING_POINT = 0;
+
+    private static final int SH_COEFFICIENT_COUNT = 9;
+
+    private static final int RGB_SIZE = 3;
+
+    private static final int VEC4_SIZE = 4;
+
+    private static final int BLOCK_FLOATS = (SH_COEFFICIENT_COUNT + 2) * VEC4_SIZE;
+
+    private static final int FLOAT_BYTES = 4;
+
+    /**
+     * Convolution of the basis functions with the clamped cosine, from Ramamoorthi and Hanrahan,
+     * "An Efficient Representation for Irradiance Environment Maps".
+     */
+    private static final float C1 = 0.429043f;
+
+    private static final float C2 = 0.511664f;
+
+    private static final float C3 = 0.743125f;
+
+    private static final float C4 = 0.886227f;
+
+    private static final float C5 = 0.247708f;
+
+    /**
+     * Lighting used without an estimate, close to the fixed light of the other object shaders: an
+     * ambient term plus a light from above, both scaled by the pixel intensity.
+     */
+    private static final float DEFAULT_AMBIENT = 1.75f;
+
+    private static final float[] DEFAULT_LIGHT_DIRECTION = {0.0f, 1.0f, 0.0f};
+
+    private final float[] mShCoefficients = new float[SH_COEFFICIENT_COUNT * RGB_SIZE];
+
+    private final float[] mLightDirection = new float[RGB_SIZE];
+
+    private final float[] mLightColor = new float[RGB_SIZE];
+
+    private final float[] mBlockData = new float[BLOCK_FLOATS];
+
+    private final FloatBuffer mUploadBuffer = ByteBuffer.allocateDirect(BLOCK_FLOATS * FLOAT_BYTES)
+        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+    private float mLightIntensity = -1.0f;
+
+    private boolean mIsEstimated = false;
+
+    private boolean mIsDirty = true;
+
+    private int mBufferId;
+
+    private int mUploadCount;
+
+    /**
+     * Constructor, with the default lighting for a pixel intensity of 1.
+     */
+    public LightingUniformBlock() {
+        setDefault(1.0f);
+    }
+
+    /**
+     * Create the uniform buffer and bind it to the binding point of the block. Call this method on
+     * the OpenGL thread when the surface is created.
+     */
+    public void init() {
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        mBufferId = buffers[0];
+        GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, mBufferId);
+        GLES20.glBufferData(GLES30.GL_UNIFORM_BUFFER, BLOCK_FLOATS * FLOAT_BYTES, null, GLES20.GL_DYNAMIC_DRAW);
+        GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, 0);
+        GLES30.glBindBufferBase(GLES30.GL_UNIFORM_BUFFER, BINDING_POINT, mBufferId);
+        mIsDirty = true;
+        ShaderUtil.checkGlError(TAG, "Lighting block init");
+    }
+
+    /**
+     * Connect the block of a program to the uniform buffer.
+     *
+     * @param program Program declaring the Lighting block.
+     */
+    public static void bindProgram(int program) {
+        int blockIndex = GLES30.glGetUniformBlockIndex(program, BLOCK_NAME);
+        if (blockIndex == GLES30.GL_INVALID_INDEX) {
+            LogUtil.warn(TAG, "No lighting block in program " + program + ".");
+            return;
+        }
+        GLES30.glUniformBlockBinding(program, blockIndex, BINDING_POINT);
+    }
+
+    /**
+     * Set the lighting estimated by AR Engine.
+     *
+     * @param shCoefficients 27 spherical harmonics coefficients, 9 rgb triples in the order
+     *        L00, L1-1, L10, L11, L2-2, L2-1, L20, L21, L22.
+     * @param lightDirection World direction towards the primary light.
+     * @param lightColor Color of the primary light.
+     * @param lightIntensity Intensity of the primary light.
+     */
+    public void setEstimate(float[] shCoefficients, float[] lightDirection, float[] lightColor,
+        float lightIntensity) {
+        if (shCoefficients == null || shCoefficients.length < mShCoefficients.length || lightDirection == null
+            || lightDirection.length < RGB_SIZE || lightColor == null || lightColor.length < RGB_SIZE) {
+            return;
+        }
+        if (mIsEstimated && mLightIntensity == lightIntensity
+            && isPrefixEqual(mShCoefficients, shCoefficients) && isPrefixEqual(mLightDirection, lightDirection)
+            && isPrefixEqual(mLightColor, lightColor)) {
+            return;
+        }
+        System.arraycopy(shCoefficients, 0, mShCoefficients, 0, mShCoefficients.length);
+        System.arraycopy(lightDirection, 0, mLightDirection, 0, RGB_SIZE);
+        System.arraycopy(lightColor, 0, mLightColor, 0, RGB_SIZE);
+        mLightIntensity = lightIntensity;
+        mIsEstimated = true;
+        mIsDirty = true;
+    }
+
+    /**
+     * Use the default lighting, for frames without an estimate.
+     *
+     * @param pixelIntensity Pixel intensity of the camera image, 1 when unknown.
+     */
+    public void setDefault(float pixelIntensity) {
+        if (!mIsEstimated && mLightIntensity == pixelIntensity) {
+            return;
+        }
+        Arrays.fill(mShCoefficients, 0.0f);
+        for (int i = 0; i < RGB_SIZE; i++) {
+            // Only L00 is set, so that the ambient irradiance is DEFAULT_AMBIENT * pixelIntensity.
+            mShCoefficients[i] = DEFAULT_AMBIENT * pixelIntensity / C4;
+            mLightDirection[i] = DEFAULT_LIGHT_DIRECTION[i];
+            mLightColor[i] = DEFAULT_AMBIENT;
+        }
+        mLightIntensity = pixelIntensity;
+        mIsEstimated = false;
+        mIsDirty = true;
+    }
+
+    /**
+     * Write the lighting to the uniform buffer if it changed since the last upload. Call this method on
+     * the OpenGL thread before drawing with the block.
+     */
+    public void upload() {
+        if (!mIsDirty || mBufferId == 0) {
+            return;
+        }
+        fillBlockData();
+        mUploadBuffer.clear();
+        mUploadBuffer.put(mBlockData).flip();
+        GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, mBufferId);
+        GLES20.glBufferSubData(GLES30.GL_UNIFORM_BUFFER, 0, BLOCK_FLOATS * FLOAT_BYTES, mUploadBuffer);
+        GLES20.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, 0);
+        mIsDirty = false;
+        mUploadCount++;
+    }
+
+    /**
+     * Obtain the number of times the uniform buffer was rewritten.
+     *
+     * @return Upload count.
+     */
+    public int getUploadCount() {
+        return mUploadCount;
+    }
+
+    private void fillBlockData() {
+        Arrays.fill(mBlockData, 0.0f);
+        for (int channel = 0; channel < RGB_SIZE; channel++) {
+            float l00 = getCoefficient(0, channel);
+            float l20 = getCoefficient(6, channel);
+            setIrradiance(0, channel, C4 * l00 - C5 * l20);
+            setIrradiance(1, channel, 2.0f * C2 * getCoefficient(1, channel));
+            setIrradiance(2, channel, 2.0f * C2 * getCoefficient(2, channel));
+            setIrradiance(3, channel, 2.0f * C2 * getCoefficient(3, channel));
+            setIrradiance(4, channel, 2.0f * C1 * getCoefficient(4, channel));
+            setIrradiance(5, channel, 2.0f * C1 * getCoefficient(5, channel));
+            setIrradiance(6, channel, C3 * l20);
+            setIrradiance(7, channel, 2.0f * C1 * getCoefficient(7, channel));
+            setIrradiance(8, channel, C1 * getCoefficient(8, channel));
+        }
+        int directionOffset = SH_COEFFICIENT_COUNT * VEC4_SIZE;
+        int colorOffset = directionOffset + VEC4_SIZE;
+        float length = (float) Math.sqrt(mLightDirection[0] * mLightDirection[0]
+            + mLightDirection[1] * mLightDirection[1] + mLightDirection[2] * mLightDirection[2]);
+        for (int i = 0; i < RGB_SIZE; i++) {
+            mBlockData[directionOffset + i] = length > 0.0f ? mLightDirection[i] / length : 0.0f;
+            mBlockData[colorOffset + i] = mLightColor[i] * mLightIntensity;
+        }
+    }
+
+    private static boolean isPrefixEqual(float[] current, float[] estimate) {
+        for (int i = 0; i < current.length; i++) {
+            if (Float.compare(current[i], estimate[i]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private float getCoefficient(int coefficient, int channel) {
+        return mShCoefficients[coefficient * RGB_SIZE + channel];
+    }
+
+    private void setIrradiance(int coefficient, int channel, float value) {
+        mBlockData[coefficient * VEC4_SIZE + channel] = value;
+    }
+}
@@ -18,46 +18,88 @@ package max.ar.demo.common;
 
 import android.util.Log;
 
+import com.huawei.arengine.demos.BuildConfig;
+
+import java.util.IllegalFormatException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Log utility class, which provides a more convenient method of printing logs.
+ *
+ * <p>The level is checked before a message is built, and the variants taking a format and arguments
+ * only format the message when it is printed. The method name and line number of the caller cost a
+ * stack walk, so they are added only after {@link #setCallSiteEnabled(boolean)}. With the async
+ * appender, see {@link #setAsyncEnabled(boolean)}, the messages are written to logcat on a background
+ * thread. When its queue is full, messages below WARN are dropped rather than blocking the caller;
+ * warnings and errors are never dropped and are written on the calling thread instead.
  */
 public class LogUtil {
     private static final String PROJECT_NAME = "ArEngine_demo";
 
+    private static final int ASYNC_QUEUE_CAPACITY = 256;
+
+    /**
+     * Lowest printed level, one of the android.util.Log levels.
+     */
+    private static volatile int sMinLevel = BuildConfig.DEBUG ? Log.DEBUG : Log.INFO;
+
+    private static volatile boolean sIsCallSiteEnabled = false;
+
+    private static volatile boolean sIsAsyncEnabled = false;
+
+    private static final AtomicInteger DROPPED_COUNT = new AtomicInteger();
+
+    private LogUtil() {
+    }
+
     /**
-     * Method name.
+     * Set the lowest printed level.
+     *
+     * @param level One of the android.util.Log levels, for example Log.INFO.
      */
-    private static String methodName;
+    public static void setLevel(int level) {
+        sMinLevel = level;
+    }
 
     /**
-     * Line number.
+     * Check whether messages of a level are printed, to skip work done only for a log message.
+     *
+     * @param level One of the android.util.Log levels.
+     * @return true if the level is printed.
      */
-    private static int lineNumber;
+    public static boolean isLoggable(int level) {
+        return level >= sMinLevel;
+    }
 
     /**
-     * Create log information.
+     * Add the method name and line number of the caller to the messages. This walks the stack for
+     * every printed message, so enable it only while debugging.
      *
-     * @param tag Tag.
-     * @param logMsg Log messages.
-     * @return Packaged log messages.
+     * @param isEnabled Whether to add the call site.
      */
-    private static String createLog(String tag, String logMsg) {
-        StringBuffer buffer = new StringBuffer();
-        buffer.append("[").append(tag);
-        buffer.append(": ").append(methodName);
-        buffer.append(": ").append(lineNumber).append("] ");
-        buffer.append(logMsg);
-        return buffer.toString();
+    public static void setCallSiteEnabled(boolean isEnabled) {
+        sIsCallSiteEnabled = isEnabled;
     }
 
     /**
-     * Obtain the method name and line number in the printed log.
+     * Write the messages to logcat on a background thread instead of the calling thread.
      *
-     * @param stackElements Stack elements.
+     * @param isEnabled Whether to use the async appender.
      */
-    private static void getMethodNames(StackTraceElement[] stackElements) {
-        methodName = stackElements[1].getMethodName();
-        lineNumber = stackElements[1].getLineNumber();
+    public static void setAsyncEnabled(boolean isEnabled) {
+        sIsAsyncEnabled = isEnabled;
+    }
+
+    /**
+     * Obtain the number of messages below WARN dropped because the queue of the async appender was full.
+     *
+     * @return Dropped message count.
+     */
+    public static int getDroppedCount() {
+        return DROPPED_COUNT.get();
     }
 
     /**
@@ -67,8 +109,22 @@ public class LogUtil {
      * @param message Log messages.
      */
     public static void verbose(String tag, String message) {
-        getMethodNames(new Throwable().getStackTrace());
-        Log.v(PROJECT_NAME, createLog(tag, message));
+        if (isLoggable(Log.VERBOSE)) {
+            print(Log.VERBOSE, tag, message);
+        }
+    }
+
+    /**
+     * Print verbose logs, formatted only when printed.
+     *
+     * @param tag Tag.
+     * @param format Format string of the log message.
+     * @param args Format arguments.
+     */
+    public static void verbose(String tag, String format, Object... args) {
+        if (isLoggable(Log.VERBOSE)) {
+            print(Log.VERBOSE, tag, format(format, args));
+        }
     }
 
     /**
@@ -78,8 +134,22 @@ public class LogUtil {
      * @param message Log messages.
      */
     public static void debug(String tag, String message) {
-        getMethodNames(new Throwable().getStackTrace());
-        Log.d(PROJECT_NAME, createLog(tag, message));
+        if (isLoggable(Log.DEBUG)) {
+            print(Log.DEBUG, tag, message);
+        }
+    }
+
+    /**
+     * Print debug logs, formatted only when printed.
+     *
+     * @param tag Tag.
+     * @param format Format string of the log message.
+     * @param args Format arguments.
+     */
+    public static void debug(String tag, String format, Object... args) {
+        if (isLoggable(Log.DEBUG)) {
+            print(Log.DEBUG, tag, format(format, args));
+        }
     }
 
     /**
@@ -89,8 +159,22 @@ public class LogUtil {
      * @param message Log messages.
      */
     public static void info(String tag, String message) {
-        getMethodNames(new Throwable().getStackTrace());
-        Log.i(PROJECT_NAME, createLog(tag, message));
+        if (isLoggable(Log.INFO)) {
+            print(Log.INFO, tag, message);
+        }
+    }
+
+    /**
+     * Print info logs, formatted only when printed.
+     *
+     * @param tag Tag.
+     * @param format Format string of the log message.
+     * @param args Format arguments.
+     */
+    public static void info(String tag, String format, Object... args) {
+        if (isLoggable(Log.INFO)) {
+            print(Log.INFO, tag, format(format, args));
+        }
     }
 
     /**
@@ -100,8 +184,22 @@ public class LogUtil {
      * @param message Log messages.
      */
     public static void warn(String tag, String message) {
-        getMethodNames(new Throwable().getStackTrace());
-        Log.w(PROJECT_NAME, createLog(tag, message));
+        if (isLoggable(Log.WARN)) {
+            print(Log.WARN, tag, message);
+        }
+    }
+
+    /**
+     * Print warn logs, formatted only when printed.
+     *
+     * @param tag Tag.
+     * @param format Format string of the log message.
+     * @param args Format arguments.
+     */
+    public static void warn(String tag, String format, Object... args) {
+        if (isLoggable(Log.WARN)) {
+            print(Log.WARN, tag, format(format, args));
+        }
     }
 
     /**
@@ -111,7 +209,119 @@ public class LogUtil {
      * @param message Log messages.
      */
     public static void error(String tag, String message) {
-        getMethodNames(new Throwable().getStackTrace());
-        Log.e(PROJECT_NAME, createLog(tag, message));
+        if (isLoggable(Log.ERROR)) {
+            print(Log.ERROR, tag, message);
+        }
+    }
+
+    /**
+     * Print error logs, formatted only when printed.
+     *
+     * @param tag Tag.
+     * @param format Format string of the log message.
+     * @param args Format arguments.
+     */
+    public static void error(String tag, String format, Object... args) {
+        if (isLoggable(Log.ERROR)) {
+            print(Log.ERROR, tag, format(format, args));
+        }
+    }
+
+    private static String format(String format, Object[] args) {
+        try {
+            return String.format(Locale.ROOT, format, args);
+        } catch (IllegalFormatException exception) {
+            return format + " (format error: " + exception.getClass().getSimpleName() + ")";
+        }
+    }
+
+    private static void print(int level, String tag, String message) {
+        String log = createLog(tag, message);
+        if (!sIsAsyncEnabled) {
+            Log.println(level, PROJECT_NAME, log);
+            return;
+        }
+        if (AsyncAppender.QUEUE.offer(new LogRecord(level, log))) {
+            return;
+        }
+        if (level >= Log.WARN) {
+            Log.println(level, PROJECT_NAME, log);
+        } else {
+            DROPPED_COUNT.incrementAndGet();
+        }
+    }
+
+    /**
+     * Create log information.
+     *
+     * @param tag Tag.
+     * @param logMsg Log messages.
+     * @return Packaged log messages.
+     */
+    private static String createLog(String tag, String logMsg) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("[").append(tag);
+        if (sIsCallSiteEnabled) {
+            StackTraceElement callSite = getCallSite(new Throwable().getStackTrace());
+            if (callSite != null) {
+                builder.append(": ").append(callSite.getMethodName());
+                builder.append(": ").append(callSite.getLineNumber());
+            }
+        }
+        builder.append("] ");
+        builder.append(logMsg);
+        return builder.toString();
+    }
+
+    /**
+     * Obtain the first stack element outside of this class, which is the caller of the log method.
+     *
+     * @param stackElements Stack elements.
+     * @return Stack element of the caller, or null if not found.
+     */
+    private static StackTraceElement getCallSite(StackTraceElement[] stackElements) {
+        String className = LogUtil.class.getName();
+        for (StackTraceElement element : stackElements) {
+            if (!className.equals(element.getClassName())) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private static class LogRecord {
+        private final int mLevel;
+
+        private final String mMessage;
+
+        LogRecord(int level, String message) {
+            mLevel = level;
+            mMessage = message;
+        }
+    }
+
+    /**
+     * Background thread writing the queued messages, started with the first queued message.
+     */
+    private static class AsyncAppender {
+        private static final BlockingQueue<LogRecord> QUEUE = new ArrayBlockingQueue<>(ASYNC_QUEUE_CAPACITY);
+
+        static {
+            Thread thread = new Thread(AsyncAppender::run, "LogAppender");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void run() {
+            while (true) {
+                try {
+                    LogRecord record = QUEUE.take();
+                    Log.println(record.mLevel, PROJECT_NAME, record.mMessage);
+                } catch (InterruptedException exception) {
+                    Log.w(PROJECT_NAME, "[LogUtil] Log appender interrupted.");
+                    return;
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import max.ar.demo.common.mesh.MeshData;
+import max.ar.demo.common.mesh.MeshFormat;
+import max.ar.demo.common.mesh.ObjMeshCompiler;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Optional;
+
+/**
+ * Load model meshes from the assets. The precompiled binary mesh generated by the compileMeshes
+ * task is memory-mapped; the OBJ file is only parsed when the binary mesh is missing or invalid.
+ * Release builds package only the binary meshes, so there the OBJ fallback finds no file.
+ */
+public class MeshLoader {
+    private static final String TAG = MeshLoader.class.getSimpleName();
+
+    private static final String OBJ_SUFFIX = ".obj";
+
+    private MeshLoader() {
+    }
+
+    /**
+     * Load the mesh of an OBJ asset.
+     *
+     * @param context Context.
+     * @param objName Asset name of the OBJ model, for example "Cup.obj".
+     * @return Mesh data, or empty if neither the binary mesh nor the OBJ file can be read.
+     */
+    public static Optional<MeshData> load(Context context, String objName) {
+        String meshName = getMeshName(objName);
+        try {
+            return Optional.of(mapMesh(context, meshName));
+        } catch (FileNotFoundException exception) {
+            LogUtil.warn(TAG, "No precompiled mesh " + meshName + ", parse " + objName + " instead.");
+        } catch (IOException | IllegalArgumentException exception) {
+            LogUtil.error(TAG, "Map mesh " + meshName + " failed: " + exception.getClass()
+                + ", parse " + objName + " instead.");
+        }
+        try (InputStream objInputStream = context.getAssets().open(objName)) {
+            return Optional.of(MeshData.parse(ObjMeshCompiler.compile(objInputStream,
+                result -> LogUtil.info(TAG, "Optimized " + objName + ": " + result.getSummary()))));
+        } catch (IOException | IllegalArgumentException exception) {
+            LogUtil.error(TAG, "Read object " + objName + " failed: " + exception.getClass());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Obtain the asset name of the binary mesh generated for an OBJ asset.
+     *
+     * @param objName Asset name of the OBJ model.
+     * @return Asset name of the binary mesh.
+     */
+    public static String getMeshName(String objName) {
+        String baseName = objName.endsWith(OBJ_SUFFIX)
+            ? objName.substring(0, objName.length() - OBJ_SUFFIX.length()) : objName;
+        return baseName + MeshFormat.FILE_SUFFIX;
+    }
+
+    // The asset must be stored uncompressed in the APK (see aaptOptions.noCompress) so that it can be mapped.
+    private static MeshData mapMesh(Context context, String meshName) throws IOException {
+        try (AssetFileDescriptor fileDescriptor = context.getAssets().openFd(meshName);
+            FileInputStream inputStream = fileDescriptor.createInputStream()) {
+            MappedByteBuffer buffer = inputStream.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                fileDescriptor.getStartOffset(), fileDescriptor.getLength());
+            return MeshData.parse(buffer);
+        }
+    }
+}
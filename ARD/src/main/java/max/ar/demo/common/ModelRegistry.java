@@ -0,0 +1,212 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Virtual object models that can be placed, read from the models.json manifest in the assets.
+ * Each model lists its mesh, texture, optional MTL material and placement scale, so a model is
+ * added by editing the manifest instead of the rendering code.
+ */
+public final class ModelRegistry {
+    private static final String TAG = ModelRegistry.class.getSimpleName();
+
+    private static final String MANIFEST_NAME = "models.json";
+
+    private static final float DEFAULT_SCALE = 0.08f;
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private static ModelRegistry sInstance;
+
+    private final List<Model> mModels;
+
+    private ModelRegistry(List<Model> models) {
+        mModels = Collections.unmodifiableList(models);
+    }
+
+    /**
+     * Obtain the registry, reading the manifest on the first call.
+     *
+     * @param context Context.
+     * @return Model registry, empty if the manifest cannot be read.
+     */
+    public static synchronized ModelRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ModelRegistry(readManifest(context.getApplicationContext()));
+        }
+        return sInstance;
+    }
+
+    private static List<Model> readManifest(Context context) {
+        List<Model> models = new ArrayList<>();
+        try (InputStream inputStream = context.getAssets().open(MANIFEST_NAME)) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int length;
+            while ((length = inputStream.read(buffer)) > 0) {
+                content.write(buffer, 0, length);
+            }
+            JSONArray items = new JSONObject(new String(content.toByteArray(), StandardCharsets.UTF_8))
+                .getJSONArray("models");
+            for (int i = 0; i < items.length(); i++) {
+                JSONObject item = items.getJSONObject(i);
+                models.add(new Model(models.size(), item.getString("name"), item.getString("mesh"),
+                    item.optString("texture", null), item.optString("material", null),
+                    (float) item.optDouble("scale", DEFAULT_SCALE)));
+            }
+        } catch (IOException | JSONException exception) {
+            LogUtil.error(TAG, "Read " + MANIFEST_NAME + " failed: " + exception.getClass());
+        }
+        return models;
+    }
+
+    /**
+     * Obtain the number of models.
+     *
+     * @return Model count.
+     */
+    public int getModelCount() {
+        return mModels.size();
+    }
+
+    /**
+     * Obtain a model by its index in the manifest.
+     *
+     * @param index Model index, less than {@link #getModelCount()}.
+     * @return Model.
+     */
+    public Model getModel(int index) {
+        return mModels.get(index);
+    }
+
+    /**
+     * Find a model by name.
+     *
+     * @param name Model name, as shown in the object spinner.
+     * @return Model, or null if the manifest has no model with this name.
+     */
+    public Model findModel(String name) {
+        for (Model model : mModels) {
+            if (model.mName.equals(name)) {
+                return model;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Obtain the model names in manifest order, for the object spinner.
+     *
+     * @return Model names.
+     */
+    public List<String> getModelNames() {
+        List<String> names = new ArrayList<>(mModels.size());
+        for (Model model : mModels) {
+            names.add(model.mName);
+        }
+        return names;
+    }
+
+    /**
+     * One entry of the manifest.
+     */
+    public static class Model {
+        private final int mIndex;
+
+        private final String mName;
+
+        private final String mMeshName;
+
+        private final String mTextureName;
+
+        private final String mMaterialName;
+
+        private final float mScale;
+
+        Model(int index, String name, String meshName, String textureName, String materialName, float scale) {
+            mIndex = index;
+            mName = name;
+            mMeshName = meshName;
+            mTextureName = textureName;
+            mMaterialName = materialName;
+            mScale = scale;
+        }
+
+        /**
+         * Obtain the position of the model in the manifest, which is also its slot in {@link ObjectDisplay}.
+         *
+         * @return Model index.
+         */
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Obtain the asset name of the OBJ model; the precompiled mesh is found through {@link MeshLoader}.
+         *
+         * @return OBJ asset name.
+         */
+        public String getMeshName() {
+            return mMeshName;
+        }
+
+        /**
+         * Obtain the asset name of the texture image.
+         *
+         * @return Texture asset name, or null if the model is not textured.
+         */
+        public String getTextureName() {
+            return mTextureName;
+        }
+
+        /**
+         * Obtain the asset name of the MTL material library.
+         *
+         * @return MTL asset name, or null if the model has no material.
+         */
+        public String getMaterialName() {
+            return mMaterialName;
+        }
+
+        /**
+         * Obtain the scale applied when the model is placed.
+         *
+         * @return Scale factor.
+         */
+        public float getScale() {
+            return mScale;
+        }
+    }
+}
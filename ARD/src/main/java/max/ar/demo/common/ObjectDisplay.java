@@ -18,19 +18,19 @@ package max.ar.demo.common;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLUtils;
 import android.opengl.Matrix;
-import android.view.MotionEvent;
+
+import max.ar.demo.common.mesh.MeshBvh;
+import max.ar.demo.common.mesh.MeshData;
+import max.ar.demo.common.mesh.MeshFormat;
+import max.ar.demo.common.mesh.MeshSplitter;
 
 import de.javagl.obj.FloatTuple;
 import de.javagl.obj.Mtl;
 import de.javagl.obj.MtlReader;
-import de.javagl.obj.Obj;
-import de.javagl.obj.ObjData;
-import de.javagl.obj.ObjReader;
-import de.javagl.obj.ObjUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,17 +38,17 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 /**
  * Draw a virtual object based on the specified parameters.
  */
-public class ObjectDisplay {
+public class ObjectDisplay implements ObjectScene.BoundsSource {
     private static final String TAG = "ObjectDisplay";
 
     /**
@@ -56,34 +56,66 @@ public class ObjectDisplay {
      */
     private static final float[] LIGHT_DIRECTIONS = new float[]{0.0f, 1.0f, 0.0f, 0.0f};
 
-    private static final int FLOAT_BYTE_SIZE = 4;
+    private static final int MATRIX_SIZE = 16;
 
-    private static final int INDEX_COUNT_RATIO = 2;
+    private static final int INITIAL_QUEUE_CAPACITY = 32;
 
-    private static final int MATRIX_SIZE = 16;
+    private static final int PROGRAM_KEY_SHIFT = 56;
+
+    private static final int SLOT_KEY_SHIFT = 32;
+
+    private static final long SLOT_KEY_MASK = 0xFFFFFFL;
+
+    private static final long QUEUE_INDEX_MASK = 0xFFFFFFFFL;
 
-    private static final int MAX_OBJ_KIND = 4;
+    private static final int FLOAT_BYTES = 4;
+
+    private static final int COLOR_SIZE = 4;
 
     /**
-     * Light direction (x, y, z, w).
+     * Per-instance data of the instanced path: model matrix followed by color.
      */
-    private float[] mViewLightDirections = new float[4];
+    private static final int INSTANCE_FLOATS = MATRIX_SIZE + COLOR_SIZE;
+
+    private static final int INSTANCE_STRIDE = INSTANCE_FLOATS * FLOAT_BYTES;
+
+    // Attribute locations fixed by the layout qualifiers of the instanced shader.
+    private static final int INSTANCED_POSITION_LOCATION = 0;
+
+    private static final int INSTANCED_NORMAL_LOCATION = 1;
 
-    private int []mTexCoordsBaseAddress = new int[MAX_OBJ_KIND];
+    private static final int INSTANCED_TEX_COORD_LOCATION = 2;
 
-    private int []mNormalsBaseAddress = new int[MAX_OBJ_KIND];
+    private static final int INSTANCED_MATRIX_LOCATION = 3;
 
-    private int []mVertexBufferId = new int[MAX_OBJ_KIND];
+    private static final int INSTANCED_COLOR_LOCATION = 7;
+
+    private static final int MATRIX_COLUMNS = 4;
+
+    /**
+     * Texture unit of the environment cube map; unit 0 holds the texture of the model.
+     */
+    private static final int ENVIRONMENT_TEXTURE_UNIT = 1;
+
+    /**
+     * Weight of the environment reflection added to the lit color.
+     */
+    private static final float REFLECTION_STRENGTH = 0.25f;
+
+    /**
+     * Light direction (x, y, z, w).
+     */
+    private float[] mViewLightDirections = new float[4];
 
-    private int mIndexCount;
+    private int[] mVertexBufferId;
 
     private int mGlProgram;
 
     private int mGlProgram2;
 
-    private int []mIndexBufferId = new int[MAX_OBJ_KIND];
+    private int[] mIndexBufferId;
 
-    private int[] mTextures = new int[MAX_OBJ_KIND];
+    private int[] mTextures;
 
     private int mModelViewUniform;
 
@@ -97,31 +129,145 @@ public class ObjectDisplay {
 
     private int mTextureUniform;
 
+    private int mTexCoordTransformUniform;
+
     private int mLightingParametersUniform;
 
     private int mColorUniform;
 
+    private int mEnvironmentTextureUniform;
+
+    private int mCameraToWorldUniform;
+
+    private int mReflectionStrengthUniform;
+
+    /**
+     * Environment cube map reflected by the objects, or 0 for no reflection.
+     */
+    private int mEnvironmentTexture;
+
+    /**
+     * Rotation from camera space to world space, the transposed rotation of the view matrix.
+     */
+    private final float[] mCameraToWorld = new float[9];
+
+    /**
+     * World position of the camera, for the highlights of the lit material program.
+     */
+    private final float[] mCameraPosition = new float[3];
+
     private float[] mModelMatrixs = new float[MATRIX_SIZE];
 
     private float[] mModelViewMatrixs = new float[MATRIX_SIZE];
     private float[] mModelViewMatrixs2 = new float[MATRIX_SIZE];
     private float[] mModelViewProjectionMatrixs = new float[MATRIX_SIZE];
 
+    private float[] mObjectColors = new float[COLOR_SIZE];
+
+    /**
+     * Objects queued for the current frame, and their sort keys: program, model slot and queue index.
+     */
+    private VirtualObject[] mQueue = new VirtualObject[INITIAL_QUEUE_CAPACITY];
+
+    private long[] mQueueKeys = new long[INITIAL_QUEUE_CAPACITY];
+
+    private int mQueueSize;
+
+    private int mStateChangeCount;
+
+    private int mDrawCallCount;
+
+    private int mCulledCount;
+
+    private int mSceneCulledCount;
+
+    private final List<VirtualObject> mSceneObjects = new ArrayList<>();
+
+    private final List<VirtualObject> mCulledSceneObjects = new ArrayList<>();
+
+    private final ViewFrustum mFrustum = new ViewFrustum();
+
+    private final float[] mWorldBoundingBox = new float[6];
+
+    private final float[] mWorldBoundingSphere = new float[4];
+
+    /**
+     * World ray of the last pick: origin at the near plane, direction reaching the far plane at t = 1.
+     */
+    private final float[] mRayOrigin = new float[4];
+
+    private final float[] mRayDirection = new float[4];
+
+    private final float[] mRayHitPoint = new float[4];
+
+    private final float[] mModelRayOrigin = new float[4];
+
+    private final float[] mModelRayDirection = new float[4];
+
+    private final int[] mBvhStack = MeshBvh.createStack();
+
+    private final float[] mNdcPoint = new float[4];
+
+    private final float[] mInverseMatrix = new float[MATRIX_SIZE];
+
+    /**
+     * Program of the OpenGL ES 3.0 instanced path, or 0 when the batched path is used.
+     */
+    private int mInstancedProgram;
+
+    private int mInstancedViewUniform;
+
+    private int mInstancedProjectionUniform;
+
+    private int mInstancedTextureUniform;
+
+    private int mInstancedTexCoordTransformUniform;
+
+    private int mInstancedEnvironmentTextureUniform;
+
+    private int mInstancedCameraToWorldUniform;
+
+    private int mInstancedReflectionStrengthUniform;
+
+    private int mInstanceBufferId;
+
     /**
-     * The largest bounding box of a virtual object, represented by two diagonals of a cube.
+     * Lighting of the instanced path, rewritten only when the estimate changes.
      */
-    private float[] mBoundingBoxs = new float[6];
+    private final LightingUniformBlock mLighting = new LightingUniformBlock();
+
+    private FloatBuffer mInstanceData;
 
     private float mWidth;
 
     private float mHeight;
 
-    private ObjectData[] objectDatas = new ObjectData[MAX_OBJ_KIND];
+    private ModelRegistry mRegistry;
+
+    private Context mAppContext;
+
+    private ObjectData[] objectDatas;
+
+    /**
+     * Models placed at least once; only these are loaded, and reloaded when the context is recreated.
+     */
+    private boolean[] mIsRequested;
+
+    private AsyncLoader<ObjectData> mLoader = new AsyncLoader<>();
+
+    /**
+     * Names of the cached assets referenced by this display, see {@link AssetCache}. Guarded by
+     * mAssetLock together with the generation of mLoader.
+     */
+    private final Set<String> mHeldAssets = new HashSet<>();
+
+    private final Object mAssetLock = new Object();
 
     private int mPositionAttribute2;
     private int mNormalAttribute2;
     private int mTexCoordAttribute2;
     private int mTextureUniform2;
+    private int mTexCoordTransformUniform2;
     private int mLightingParametersUniform2;
     private int mColorUniform2;
     private int mModelViewUniform2;
@@ -132,7 +278,21 @@ public class ObjectDisplay {
     private int mKdi;
     private int mKsi;
 
-    private String[][] mtlNames = new String[MAX_OBJ_KIND][];
+    /**
+     * Whether the material program is the OpenGL ES 3.0 variant lit by the Lighting uniform block.
+     */
+    private boolean mIsMaterialLit;
+
+    private int mModelUniform2;
+
+    private int mCameraPositionUniform2;
+
+    /**
+     * Whether the device can draw with GL_UNSIGNED_INT indices. Meshes with 32-bit indices are
+     * split by {@link MeshSplitter} on the worker thread when it cannot.
+     */
+    private volatile boolean mIsIndexUintSupported;
+
     public ObjectDisplay() {
     }
 
@@ -148,24 +308,36 @@ public class ObjectDisplay {
     }
 
     /**
-     * Create a shader program to read the data of the virtual object.
+     * Create a shader program and the buffers of the models listed in the {@link ModelRegistry}.
+     * The data of a model is read in the background the first time it is requested, and the
+     * model is not drawn until its data has been uploaded by {@link #uploadLoadedData()}.
      *
      * @param context Context.
      */
     public void init(Context context) {
         ShaderUtil.checkGlError(TAG, "Init start.");
         createProgram();
+        createInstancedProgram();
         createProgram2();
 
-        // Coordinate and index.
-        int[] buffers = new int[2*MAX_OBJ_KIND];
-        GLES20.glGenBuffers(2*MAX_OBJ_KIND, IntBuffer.wrap(buffers));
+        mAppContext = context.getApplicationContext();
+        mRegistry = ModelRegistry.getInstance(mAppContext);
+        int modelCount = mRegistry.getModelCount();
+        if (objectDatas == null || objectDatas.length != modelCount) {
+            objectDatas = new ObjectData[modelCount];
+            mIsRequested = new boolean[modelCount];
+        }
 
-        for(int k=0;k<MAX_OBJ_KIND;k++){
-            mVertexBufferId[k] = buffers[(k+1)*2-2];
-            mIndexBufferId[k] = buffers[(k+1)*2-1];
+        // Coordinate and index.
+        mVertexBufferId = new int[modelCount];
+        mIndexBufferId = new int[modelCount];
+        int[] buffers = new int[2 * modelCount];
+        GLES20.glGenBuffers(buffers.length, IntBuffer.wrap(buffers));
+        for (int k = 0; k < modelCount; k++) {
+            mVertexBufferId[k] = buffers[2 * k];
+            mIndexBufferId[k] = buffers[2 * k + 1];
         }
-        initGlTextureData(context);
+        initGlTextureData();
         ShaderUtil.checkGlError(TAG, "Init end.");
     }
 
@@ -178,21 +350,68 @@ public class ObjectDisplay {
         mNormalAttribute = GLES20.glGetAttribLocation(mGlProgram, "inObjectNormalVector");
         mTexCoordAttribute = GLES20.glGetAttribLocation(mGlProgram, "inTexCoordinate");
         mTextureUniform = GLES20.glGetUniformLocation(mGlProgram, "inObjectTexture");
+        mTexCoordTransformUniform = GLES20.glGetUniformLocation(mGlProgram, "inTexCoordTransform");
         mLightingParametersUniform = GLES20.glGetUniformLocation(mGlProgram, "inLight");
         mColorUniform = GLES20.glGetUniformLocation(mGlProgram, "inObjectColor");
+        mEnvironmentTextureUniform = GLES20.glGetUniformLocation(mGlProgram, "inEnvironmentTexture");
+        mCameraToWorldUniform = GLES20.glGetUniformLocation(mGlProgram, "inCameraToWorld");
+        mReflectionStrengthUniform = GLES20.glGetUniformLocation(mGlProgram, "inReflectionStrength");
         Matrix.setIdentityM(mModelMatrixs, 0);
         ShaderUtil.checkGlError(TAG, "Create program end.");
     }
 
+    private void createInstancedProgram() {
+        mInstancedProgram = 0;
+        if (!ShaderUtil.isGles3()) {
+            LogUtil.info(TAG, "OpenGL ES 3.0 is not available, draw the objects one by one.");
+            return;
+        }
+        mInstancedProgram = WorldShaderUtil.getInstancedObjectProgram();
+        if (mInstancedProgram == 0) {
+            LogUtil.warn(TAG, "Create instanced program failed, draw the objects one by one.");
+            return;
+        }
+        mInstancedViewUniform = GLES20.glGetUniformLocation(mInstancedProgram, "inViewMatrix");
+        mInstancedProjectionUniform = GLES20.glGetUniformLocation(mInstancedProgram, "inProjectionMatrix");
+        mInstancedTextureUniform = GLES20.glGetUniformLocation(mInstancedProgram, "inObjectTexture");
+        mInstancedTexCoordTransformUniform =
+                GLES20.glGetUniformLocation(mInstancedProgram, "inTexCoordTransform");
+        mInstancedEnvironmentTextureUniform =
+                GLES20.glGetUniformLocation(mInstancedProgram, "inEnvironmentTexture");
+        mInstancedCameraToWorldUniform = GLES20.glGetUniformLocation(mInstancedProgram, "inCameraToWorld");
+        mInstancedReflectionStrengthUniform =
+                GLES20.glGetUniformLocation(mInstancedProgram, "inReflectionStrength");
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        mInstanceBufferId = buffers[0];
+        mLighting.init();
+        LightingUniformBlock.bindProgram(mInstancedProgram);
+        ShaderUtil.checkGlError(TAG, "Create instanced program end.");
+    }
+
     private void createProgram2(){
         ShaderUtil.checkGlError(TAG, "Create program2 start.");
-        mGlProgram2 = WorldShaderUtil.getMtlProgram();
+
+        // With the instanced program, the material models are lit by the same estimate as the others.
+        mGlProgram2 = mInstancedProgram == 0 ? 0 : WorldShaderUtil.getLitMtlProgram();
+        mIsMaterialLit = mGlProgram2 != 0;
+        if (mIsMaterialLit) {
+            LightingUniformBlock.bindProgram(mGlProgram2);
+            mModelUniform2 = GLES20.glGetUniformLocation(mGlProgram2, "inModelMatrix");
+            mCameraPositionUniform2 = GLES20.glGetUniformLocation(mGlProgram2, "inCameraPosition");
+        } else {
+            if (mInstancedProgram != 0) {
+                LogUtil.warn(TAG, "Create lit material program failed, use the unlit one.");
+            }
+            mGlProgram2 = WorldShaderUtil.getMtlProgram();
+        }
         mModelViewUniform2 = GLES20.glGetUniformLocation(mGlProgram2, "inViewMatrix");
         mModelViewProjectionUniform2 = GLES20.glGetUniformLocation(mGlProgram2, "inMVPMatrix");
         mPositionAttribute2 = GLES20.glGetAttribLocation(mGlProgram2, "inObjectPosition");
         mNormalAttribute2 = GLES20.glGetAttribLocation(mGlProgram2, "inObjectNormalVector");
         mTexCoordAttribute2 = GLES20.glGetAttribLocation(mGlProgram2, "inTexCoordinate");
         mTextureUniform2 = GLES20.glGetUniformLocation(mGlProgram2, "inObjectTexture");
+        mTexCoordTransformUniform2 = GLES20.glGetUniformLocation(mGlProgram2, "inTexCoordTransform");
         mKai = GLES20.glGetUniformLocation(mGlProgram2,"vKa");
         mKdi = GLES20.glGetUniformLocation(mGlProgram2,"vKd");
         mKsi = GLES20.glGetUniformLocation(mGlProgram2,"vKs");
@@ -200,607 +419,837 @@ public class ObjectDisplay {
         ShaderUtil.checkGlError(TAG, "Create program2 end.");
     }
 
-    private void initGlTextureData(Context context) {
+    private void initGlTextureData() {
+        mTextures = new int[objectDatas.length];
         GLES20.glGenTextures(mTextures.length, mTextures, 0);
-
-        for(int k=0;k<MAX_OBJ_KIND; k++){
-            ShaderUtil.checkGlError(TAG, "Init gl texture data start.");
-            bindGlTexture(context, k);
-            ShaderUtil.checkGlError(TAG, "Init gl texture data end.");
-            initializeGlObjectData(context, k);
+        mIsIndexUintSupported = isIndexUintSupported();
+
+        // Results still in flight belong to the previous OpenGL context.
+        mLoader.cancelAll();
+        Arrays.fill(objectDatas, null);
+        for (int k = 0; k < mIsRequested.length; k++) {
+            if (mIsRequested[k]) {
+                submitLoad(k);
+            }
         }
     }
 
-    private void initializeObjAndMtlData(Context context, int k){
-        ObjectData objectData = null;
-        Optional<ObjectData> objectDataOptional = readObjectAndMtl(context,k);
-        if (objectDataOptional.isPresent()) {
-            objectData = objectDataOptional.get();
-        } else {
-            LogUtil.error(TAG, "Read object error.");
+    /**
+     * Start loading a model in the background unless it has been requested before. Call this on
+     * the OpenGL thread when the model is placed.
+     *
+     * @param modelName Model name from the {@link ModelRegistry}.
+     */
+    public void requestModel(String modelName) {
+        ModelRegistry.Model model = mRegistry == null ? null : mRegistry.findModel(modelName);
+        if (model == null) {
+            LogUtil.warn(TAG, "Unknown model " + modelName);
             return;
         }
-        objectDatas[k]=objectData;
-
-        mTexCoordsBaseAddress[k] = FLOAT_BYTE_SIZE * objectData.mObjectIndices.limit();
-        mNormalsBaseAddress[k] = mTexCoordsBaseAddress[k] + FLOAT_BYTE_SIZE * objectData.mTexCoords.limit();
-        final int totalBytes = mNormalsBaseAddress[k] + FLOAT_BYTE_SIZE * objectData.mNormals.limit();
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId[k]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, null, GLES20.GL_STATIC_DRAW);
-        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0,
-                FLOAT_BYTE_SIZE * objectData.mObjectVertices.limit(), objectData.mObjectVertices);
-        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, mTexCoordsBaseAddress[k],
-                FLOAT_BYTE_SIZE * objectData.mTexCoords.limit(), objectData.mTexCoords);
-        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, mNormalsBaseAddress[k],
-                FLOAT_BYTE_SIZE * objectData.mNormals.limit(), objectData.mNormals);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId[k]);
-        mIndexCount = objectData.mIndices.limit();
-        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, INDEX_COUNT_RATIO * mIndexCount,
-                objectData.mIndices, GLES20.GL_STATIC_DRAW);
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
-        ShaderUtil.checkGlError(TAG, "obj buffer load");
+        requestModel(model);
     }
 
-    private Optional<ObjectData> readObjectAndMtl(Context context, int k){
-        Obj obj;
-        String s;
-        List<Mtl> mtl_list;
-        List<String> mtl_string_list;
-        Map<String, Mtl> mtls;
-
-        switch (k){
-            case 3:{s="Cottage.obj"; break;}
-            default: s = "AR_logo.obj";
+    private void requestModel(ModelRegistry.Model model) {
+        if (!mIsRequested[model.getIndex()]) {
+            mIsRequested[model.getIndex()] = true;
+            submitLoad(model.getIndex());
         }
-        try (InputStream objInputStream = context.getAssets().open(s)) {
-            obj = ObjReader.read(objInputStream);
-            obj = ObjUtils.convertToRenderable(obj);
-            mtl_string_list = obj.getMtlFileNames();
+    }
 
-        } catch (IllegalArgumentException | IOException e) {
-            LogUtil.error(TAG, "Get data failed!");
-            return Optional.empty();
-        }
+    private void submitLoad(int k) {
+        ModelRegistry.Model model = mRegistry.getModel(k);
+        Context appContext = mAppContext;
+        int generation = mLoader.getGeneration();
+        mLoader.submit(generation, () -> loadObjectData(appContext, model, generation));
+    }
 
-        /*Iterator<String> ite = mtl_string_list.listIterator();
-        while(ite.hasNext()){
-            try (InputStream mtlInputStream =  context.getAssets().open(ite.next()))
-            {
-                List<Mtl> mtlList = MtlReader.read(mtlInputStream);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }*/
-        try (InputStream mtlInputStream =  context.getAssets().open(mtl_string_list.get(0)))
-        {
-            mtl_list = MtlReader.read(mtlInputStream);
-            mtls = mtl_list.stream().collect(
-                    LinkedHashMap::new,
-                    (map,mtl) -> map.put(mtl.getName(),mtl),
-                    (map0,map1) -> map0.putAll(map1));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    // GL_UNSIGNED_INT indices are core in OpenGL ES 3.0 and an extension in OpenGL ES 2.0.
+    private static boolean isIndexUintSupported() {
+        if (ShaderUtil.isGles3()) {
+            return true;
         }
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        return extensions != null && extensions.contains("GL_OES_element_index_uint");
+    }
 
-        // Every surface of an object has three vertices.
-        IntBuffer objectIndices = ObjData.getFaceVertexIndices(obj, 3);
-        FloatBuffer objectVertices = ObjData.getVertices(obj);
+    /**
+     * Upload the virtual object data decoded since the last call. Call this on the OpenGL thread once per frame.
+     */
+    public void uploadLoadedData() {
+        ObjectData objectData = mLoader.poll();
+        while (objectData != null) {
+            int k = objectData.mSlot;
+            ShaderUtil.checkGlError(TAG, "Init gl texture data start.");
+            uploadTexture(k, objectData.mTextureBitmap);
+            ShaderUtil.checkGlError(TAG, "Init gl texture data end.");
+            uploadMesh(k, objectData.mMesh);
+            ShaderUtil.checkGlError(TAG, "obj buffer load");
+            objectDatas[k] = objectData;
+            objectData = mLoader.poll();
+        }
+    }
 
-        calculateBoundingBox(objectVertices);
+    /**
+     * Check whether the data of all virtual objects has been loaded and uploaded.
+     *
+     * @return true if no virtual object data is pending.
+     */
+    public boolean isLoadingFinished() {
+        return mLoader.isIdle();
+    }
 
-        // Size of the allocated buffer.
-        ShortBuffer indices = ByteBuffer.allocateDirect(2 * objectIndices.limit())
-                .order(ByteOrder.nativeOrder()).asShortBuffer();
-        while (objectIndices.hasRemaining()) {
-            indices.put((short) objectIndices.get());
+    // Runs on a worker thread: read the mesh, material and texture without touching OpenGL.
+    private Optional<ObjectData> loadObjectData(Context context, ModelRegistry.Model model, int generation) {
+        Optional<ObjectData> objectDataOptional = readObject(context, model, generation);
+        if (!objectDataOptional.isPresent()) {
+            LogUtil.error(TAG, "Read object error.");
+            return Optional.empty();
+        }
+        ObjectData objectData = objectDataOptional.get();
+        objectData.mSlot = model.getIndex();
+        if (objectData.mMesh.getIndexType() == MeshFormat.INDEX_TYPE_UNSIGNED_INT && !mIsIndexUintSupported) {
+            LogUtil.warn(TAG, "32-bit indices are not supported, split the mesh of " + model.getName());
+            objectData.mMesh = MeshSplitter.splitTo16BitIndices(objectData.mMesh);
         }
-        indices.rewind();
-
-        // The dimension of the texture coordinate is 2.
-        FloatBuffer texCoordinates = ObjData.getTexCoords(obj, 2);
-        FloatBuffer normals = ObjData.getNormals(obj);
 
-        return Optional.of(new ObjectData(objectIndices, objectVertices, indices, texCoordinates, normals,mtls));
+        // The hierarchy is built from the cached mesh; splitting the indices does not change the triangles.
+        objectData.mBvh = AssetCache.getInstance().getMeshBvh(model.getMeshName())
+            .orElseGet(() -> MeshBvh.build(objectData.mMesh));
+        if (model.getMaterialName() != null) {
+            objectData.mMaterial = readMaterial(context, model.getMaterialName());
+        }
+        if (model.getTextureName() != null) {
+            objectData.mTextureBitmap = decodeTexture(context, model.getTextureName(), generation);
+        }
+        return objectDataOptional;
     }
 
-    private void bindGlTexture(Context context, int k){
-        Bitmap textureBitmap;
-        String name;
+    // The first material of the library is used for the whole model.
+    private Mtl readMaterial(Context context, String materialName) {
+        try (InputStream mtlInputStream = context.getAssets().open(materialName)) {
+            List<Mtl> mtlList = MtlReader.read(mtlInputStream);
+            return mtlList.isEmpty() ? null : mtlList.get(0);
+        } catch (IOException exception) {
+            LogUtil.error(TAG, "Read material " + materialName + " failed: " + exception.getClass());
+            return null;
+        }
+    }
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + k);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[k]);
+    private Bitmap decodeTexture(Context context, String name, int generation) {
+        Optional<Bitmap> bitmapOptional = AssetCache.getInstance().getBitmap(context, name, true);
+        if (!bitmapOptional.isPresent()) {
+            LogUtil.error(TAG, "Get texture data error!");
+            return null;
+        }
+        holdAsset(name, generation);
+        return bitmapOptional.get();
+    }
 
-        switch (k){
-            case 0:{name = "AR_logo.png";
-                break;
-            }
-            case 1:{name = "cup.bmp";
-                break;
-            }
-            case 2:{name = "bulb.bmp";
-                break;
-            }
-            case 3:{name = "Ball.jpg";
-                break;
-            }
-            default:{name = "AR_logo.png";
-            }
+    private void uploadTexture(int k, Bitmap textureBitmap) {
+        if (textureBitmap == null) {
+            return;
         }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[k]);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        try (InputStream inputStream = context.getAssets().open(name)) {
-            textureBitmap = BitmapFactory.decodeStream(inputStream);
-        } catch (IllegalArgumentException | IOException exception) {
-            LogUtil.error(TAG, "Get texture data error!");
-            return;
-        }
         GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
         GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     }
 
-    private void initializeGlObjectData(Context context,int k) {
+    private Optional<ObjectData> readObject(Context context, ModelRegistry.Model model, int generation) {
+        String meshName = model.getMeshName();
+        Optional<MeshData> meshOptional = AssetCache.getInstance().getMesh(context, meshName, true);
+        if (!meshOptional.isPresent()) {
+            LogUtil.error(TAG, "Get data failed!");
+            return Optional.empty();
+        }
+        holdAsset(meshName, generation);
+        return Optional.of(new ObjectData(meshOptional.get()));
+    }
+
+    // Takes over the reference added by the cache for a load of the given generation. The display keeps
+    // one reference per asset; the reference of a repeated or cancelled load is released right away, so
+    // that an asset loaded after releaseAssets() is not pinned in the cache.
+    private void holdAsset(String name, int generation) {
+        synchronized (mAssetLock) {
+            if (generation == mLoader.getGeneration() && mHeldAssets.add(name)) {
+                return;
+            }
+        }
+        AssetCache.getInstance().release(name);
+    }
 
-        ObjectData objectData = null;
-        Optional<ObjectData> objectDataOptional = readObject(context,k);
-        if (objectDataOptional.isPresent()) {
-            objectData = objectDataOptional.get();
-        } else {
-            LogUtil.error(TAG, "Read object error.");
-            return;
+    /**
+     * Release the cached assets referenced by this display. The CPU-side data stays in the
+     * {@link AssetCache} for the next activity until the cache needs the space.
+     */
+    public void releaseAssets() {
+        List<String> heldAssets;
+        synchronized (mAssetLock) {
+            mLoader.cancelAll();
+            heldAssets = new ArrayList<>(mHeldAssets);
+            mHeldAssets.clear();
         }
-        objectDatas[k]=objectData;
+        for (String name : heldAssets) {
+            AssetCache.getInstance().release(name);
+        }
+    }
 
-        mTexCoordsBaseAddress[k] = FLOAT_BYTE_SIZE * objectData.mObjectIndices.limit();
-        mNormalsBaseAddress[k] = mTexCoordsBaseAddress[k] + FLOAT_BYTE_SIZE * objectData.mTexCoords.limit();
-        final int totalBytes = mNormalsBaseAddress[k] + FLOAT_BYTE_SIZE * objectData.mNormals.limit();
+    // The whole interleaved vertex array and the index array are each copied to the GPU in one call.
+    private void uploadMesh(int k, MeshData mesh) {
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId[k]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, null, GLES20.GL_STATIC_DRAW);
-        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0,
-                FLOAT_BYTE_SIZE * objectData.mObjectVertices.limit(), objectData.mObjectVertices);
-        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, mTexCoordsBaseAddress[k],
-                FLOAT_BYTE_SIZE * objectData.mTexCoords.limit(), objectData.mTexCoords);
-        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, mNormalsBaseAddress[k],
-                FLOAT_BYTE_SIZE * objectData.mNormals.limit(), objectData.mNormals);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mesh.getVertexCount() * MeshFormat.VERTEX_STRIDE,
+                mesh.getVertices(), GLES20.GL_STATIC_DRAW);
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
         GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId[k]);
-        mIndexCount = objectData.mIndices.limit();
-        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, INDEX_COUNT_RATIO * mIndexCount,
-                objectData.mIndices, GLES20.GL_STATIC_DRAW);
+        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.getIndices().remaining(),
+                mesh.getIndices(), GLES20.GL_STATIC_DRAW);
         GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
-        ShaderUtil.checkGlError(TAG, "obj buffer load");
     }
 
-    private Optional<ObjectData> readObject(Context context, int k) {
-        Obj obj;
-        String s;
-        List<Mtl> mtl_list = null;
+    /**
+     * The virtual object data class.
+     */
+    private static class ObjectData {
+        private int mSlot;
 
-        switch (k){
-            case 0:{s="AR_logo.obj"; break;}
-            case 1:{s="Cup.obj"; break;}
-            case 2:{s="bulb.obj"; break;}
-            case 3:{s="Ball.obj"; break;}
-            default: s = "AR_logo.obj";
-        }
-        try (InputStream objInputStream = context.getAssets().open(s)) {
-            obj = ObjReader.read(objInputStream);
-            obj = ObjUtils.convertToRenderable(obj);
-        } catch (IllegalArgumentException | IOException e) {
-            LogUtil.error(TAG, "Get data failed!");
-            return Optional.empty();
-        }
+        private MeshData mMesh;
 
-        // Every surface of an object has three vertices.
-        IntBuffer objectIndices = ObjData.getFaceVertexIndices(obj, 3);
-        FloatBuffer objectVertices = ObjData.getVertices(obj);
+        private Bitmap mTextureBitmap;
 
-        calculateBoundingBox(objectVertices);
+        private Mtl mMaterial;
 
-        // Size of the allocated buffer.
-        ShortBuffer indices = ByteBuffer.allocateDirect(2 * objectIndices.limit())
-                .order(ByteOrder.nativeOrder()).asShortBuffer();
-        while (objectIndices.hasRemaining()) {
-            indices.put((short) objectIndices.get());
-        }
-        indices.rewind();
+        /**
+         * Model-space bounds of the mesh, shared by all objects of the model.
+         */
+        private final float[] mBoundingBox;
 
-        // The dimension of the texture coordinate is 2.
-        FloatBuffer texCoordinates = ObjData.getTexCoords(obj, 2);
-        FloatBuffer normals = ObjData.getNormals(obj);
+        private final float[] mBoundingSphere;
 
-        return Optional.of(new ObjectData(objectIndices, objectVertices, indices, texCoordinates, normals));
+        /**
+         * Offset and scale restoring the quantized texture coordinates, see {@link MeshFormat}.
+         */
+        private final float[] mTexCoordTransform;
+
+        private MeshBvh mBvh;
+
+        ObjectData(MeshData mesh) {
+            this.mMesh = mesh;
+            this.mBoundingBox = mesh.getBoundingBox();
+            this.mBoundingSphere = mesh.getBoundingSphere();
+            this.mTexCoordTransform = mesh.getTexCoordTransform();
+        }
     }
 
     /**
-     * The virtual object data class.
+     * Add a virtual object to the render queue of this frame. A model that is still loading is
+     * skipped, and its loading is started if it has not been requested yet.
+     *
+     * @param obj The virtual object.
      */
-    private static class ObjectData {
-        private IntBuffer mObjectIndices;
-
-        private FloatBuffer mObjectVertices;
-
-        private ShortBuffer mIndices;
-
-        private FloatBuffer mTexCoords;
-
-        private FloatBuffer mNormals;
-
-        private Map<String, Mtl>mtls;
+    public void queueObject(VirtualObject obj) {
+        ModelRegistry.Model model = mRegistry == null ? null : mRegistry.findModel(obj.getObjname());
+        if (model == null) {
+            return;
+        }
+        int k = model.getIndex();
+        if (objectDatas[k] == null) {
+            // The data of this virtual object is still loading.
+            requestModel(model);
+            return;
+        }
+        if (mQueueSize == mQueue.length) {
+            mQueue = Arrays.copyOf(mQueue, mQueueSize * 2);
+            mQueueKeys = Arrays.copyOf(mQueueKeys, mQueueSize * 2);
+        }
+        long programKey = objectDatas[k].mMaterial != null ? 1L : 0L;
+        mQueueKeys[mQueueSize] = (programKey << PROGRAM_KEY_SHIFT) | ((long) k << SLOT_KEY_SHIFT) | mQueueSize;
+        mQueue[mQueueSize++] = obj;
+    }
 
-        ObjectData(IntBuffer objectIndices, FloatBuffer objectVertices, ShortBuffer indices, FloatBuffer texCoords,
-                   FloatBuffer normals) {
-            this.mObjectIndices = objectIndices;
-            this.mObjectVertices = objectVertices;
-            this.mIndices = indices;
-            this.mTexCoords = texCoords;
-            this.mNormals = normals;
-            this.mtls = null;
+    /**
+     * Add the tracked virtual objects of the scene that may be visible to the render queue of this
+     * frame. The scene is refreshed first, and its tree rejects whole groups of objects outside the
+     * frustum; the queued objects are tested one by one when they are drawn.
+     *
+     * @param scene The virtual objects.
+     * @param cameraView The viewMatrix is a 4 * 4 matrix.
+     * @param cameraProjection The ProjectionMatrix is a 4 * 4 matrix.
+     */
+    public void queueVisibleObjects(ObjectScene scene, float[] cameraView, float[] cameraProjection) {
+        scene.refresh(this);
+        mFrustum.update(cameraView, cameraProjection);
+        mSceneObjects.clear();
+        scene.queryFrustum(mFrustum, mSceneObjects, mCulledSceneObjects);
+        for (int i = 0; i < mSceneObjects.size(); i++) {
+            VirtualObject obj = mSceneObjects.get(i);
+            if (obj.isTracking()) {
+                queueObject(obj);
+            }
         }
+        mSceneObjects.clear();
 
-        ObjectData(IntBuffer objectIndices, FloatBuffer objectVertices, ShortBuffer indices, FloatBuffer texCoords,
-                   FloatBuffer normals, Map<String, Mtl> mtls){
-            this.mObjectIndices = objectIndices;
-            this.mObjectVertices = objectVertices;
-            this.mIndices = indices;
-            this.mTexCoords = texCoords;
-            this.mNormals = normals;
-            this.mtls = mtls;
+        // Objects that are not tracked would not be drawn anyway, so they do not count as culled.
+        mSceneCulledCount = 0;
+        for (int i = 0; i < mCulledSceneObjects.size(); i++) {
+            if (mCulledSceneObjects.get(i).isTracking()) {
+                mSceneCulledCount++;
+            }
         }
+        mCulledSceneObjects.clear();
     }
 
     /**
-     * Draw a virtual object at a specific location on a specified plane.
+     * Draw the queued virtual objects and clear the queue. The objects are sorted by program and
+     * model, and the program, texture, buffers and attribute pointers are set once per group, so
+     * the state changes grow with the number of models instead of the number of objects. On an
+     * OpenGL ES 3.0 context all copies of a textured model are drawn with one instanced call.
+     * Objects whose world bounding box is outside the view frustum are dropped before sorting.
      *
      * @param cameraView The viewMatrix is a 4 * 4 matrix.
      * @param cameraProjection The ProjectionMatrix is a 4 * 4 matrix.
      * @param lightIntensity The lighting intensity.
-     * @param obj The virtual object.
      */
-    public void onDrawFrame(float[] cameraView, float[] cameraProjection, float lightIntensity, VirtualObject obj) {
+    public void drawQueuedObjects(float[] cameraView, float[] cameraProjection, float lightIntensity) {
         ShaderUtil.checkGlError(TAG, "onDrawFrame start.");
-        int k;
-        switch (obj.getObjname()){
-            case "AR_logo":{
-                k=0;
-                break;}
-            case "Cup":{
-                k=1;
-                break;}
-            case "bulb":{
-                k=2;
-                break;}
-            case "Ball":{
-                k=3;
-                break;}
-            default:
-                k=0;
-        }
-        if(k>5){
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-            mModelMatrixs = obj.getModelArPoseMatrix();
-            Matrix.multiplyMM(mModelViewMatrixs, 0, cameraView, 0, mModelMatrixs, 0);
-            Matrix.multiplyMM(mModelViewProjectionMatrixs, 0, cameraProjection, 0, mModelViewMatrixs, 0);
-            GLES20.glUseProgram(mGlProgram2);
-            FloatTuple mKa[] = new FloatTuple[9];
-            FloatTuple mKs[] = new FloatTuple[9];
-            FloatTuple mKd[] = new FloatTuple[9];
-            for(int i = 0;i<1;i++){
-                String name = "a";
-                mKa[i]= objectDatas[k].mtls.get(name).getKa();
-                mKs[i]= objectDatas[k].mtls.get(name).getKs();
-                mKd[i]= objectDatas[k].mtls.get(name).getKd();
+        mStateChangeCount = 0;
+        mDrawCallCount = 0;
+        cullQueuedObjects(cameraView, cameraProjection);
+        updateCameraToWorld(cameraView);
+        Arrays.sort(mQueueKeys, 0, mQueueSize);
+        int batchedStart = 0;
+        if (mInstancedProgram != 0) {
+            mLighting.upload();
+
+            // Objects with a material sort last and keep using the batched path.
+            while (batchedStart < mQueueSize && (mQueueKeys[batchedStart] >>> PROGRAM_KEY_SHIFT) == 0) {
+                batchedStart++;
             }
-            GLES20.glUniform3f(
-                    mKai,mKa[0].getX(),mKa[0].getY(),mKa[0].getZ());
-            GLES20.glUniform3f(
-                    mKsi,mKs[0].getX(),mKs[0].getY(),mKs[0].getZ());
-            GLES20.glUniform3f(
-                    mKdi,mKd[0].getX(),mKd[0].getY(),mKd[0].getZ());
-
-            drawObject2(k);
-            ShaderUtil.checkGlError(TAG, "onDrawFrame end.");
-        }
-        else {
-            mModelMatrixs = obj.getModelArPoseMatrix();
-            Matrix.multiplyMM(mModelViewMatrixs, 0, cameraView, 0, mModelMatrixs, 0);
-            Matrix.multiplyMM(mModelViewProjectionMatrixs, 0, cameraProjection, 0, mModelViewMatrixs, 0);
-            GLES20.glUseProgram(mGlProgram);
-            Matrix.multiplyMV(mViewLightDirections, 0, mModelViewMatrixs, 0, LIGHT_DIRECTIONS, 0);
-            MatrixUtil.normalizeVec3(mViewLightDirections);
-            //System.out.println(mViewLightDirections);
-
-            // Light direction.
-            GLES20.glUniform4f(mLightingParametersUniform,
-                    mViewLightDirections[0], mViewLightDirections[1], mViewLightDirections[2], lightIntensity);
-
-            /*GLES20.glEnable(GLES20.GL_BLEND);
-            GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-*/
-            float[] objColors;
-            objColors = obj.getColor();
-            objColors[3] = 30f;
-            GLES20.glUniform4fv(mColorUniform, 1, objColors, 0);
-            drawObject(k);
-            ShaderUtil.checkGlError(TAG, "onDrawFrame end.");
+            drawInstanced(batchedStart, cameraView, cameraProjection);
         }
+        drawBatched(batchedStart, cameraView, cameraProjection, lightIntensity);
+        Arrays.fill(mQueue, 0, mQueueSize, null);
+        mQueueSize = 0;
+        ShaderUtil.checkGlError(TAG, "onDrawFrame end.");
     }
 
-    private void drawObject2(int k){
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[k]);
-        GLES20.glUniform1i(mTextureUniform2, 0);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId[k]);
+    // Compact the queue to the objects inside the frustum, keeping the keys in step with the objects.
+    // The sphere test rejects most hidden objects cheaply; the box test is tighter for the rest.
+    private void cullQueuedObjects(float[] cameraView, float[] cameraProjection) {
+        mFrustum.update(cameraView, cameraProjection);
+        int visibleCount = 0;
+        for (int i = 0; i < mQueueSize; i++) {
+            VirtualObject obj = mQueue[i];
+            long key = mQueueKeys[i];
+            ObjectData objectData = objectDatas[(int) ((key >>> SLOT_KEY_SHIFT) & SLOT_KEY_MASK)];
+            obj.getWorldBoundingSphere(objectData.mBoundingSphere, mWorldBoundingSphere);
+            if (!mFrustum.isSphereVisible(mWorldBoundingSphere)) {
+                continue;
+            }
+            obj.getWorldBoundingBox(objectData.mBoundingBox, mWorldBoundingBox);
+            if (!mFrustum.isBoxVisible(mWorldBoundingBox)) {
+                continue;
+            }
+            mQueue[visibleCount] = obj;
+            mQueueKeys[visibleCount] = (key & ~QUEUE_INDEX_MASK) | visibleCount;
+            visibleCount++;
+        }
+        Arrays.fill(mQueue, visibleCount, mQueueSize, null);
+        mCulledCount = mSceneCulledCount + mQueueSize - visibleCount;
+        mSceneCulledCount = 0;
+        mQueueSize = visibleCount;
+    }
 
-        // The coordinate dimension of the read virtual object is 3.
-        GLES20.glVertexAttribPointer(
-                mPositionAttribute2, 3, GLES20.GL_FLOAT, false, 0, 0);
-        // The dimension of the normal vector is 3.
-        GLES20.glVertexAttribPointer(
-                mNormalAttribute2, 3, GLES20.GL_FLOAT, false, 0, mNormalsBaseAddress[k]);
-        // The dimension of the texture coordinate is 2.
-        GLES20.glVertexAttribPointer(
-                mTexCoordAttribute2, 2, GLES20.GL_FLOAT, false, 0, mTexCoordsBaseAddress[k]);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    private void drawBatched(int start, float[] cameraView, float[] cameraProjection, float lightIntensity) {
+        boolean isProgramBound = false;
+        boolean isMaterialProgram = false;
+        int currentSlot = -1;
+        for (int i = start; i < mQueueSize; i++) {
+            long key = mQueueKeys[i];
+            VirtualObject obj = mQueue[(int) (key & QUEUE_INDEX_MASK)];
+            int k = (int) ((key >>> SLOT_KEY_SHIFT) & SLOT_KEY_MASK);
+            boolean isMaterial = (key >>> PROGRAM_KEY_SHIFT) != 0;
+            if (!isProgramBound || isMaterial != isMaterialProgram) {
+                if (isProgramBound) {
+                    disableAttributes(isMaterialProgram);
+                }
+                useProgram(isMaterial);
+                isProgramBound = true;
+                isMaterialProgram = isMaterial;
+                currentSlot = -1;
+            }
+            if (k != currentSlot) {
+                bindModel(k, isMaterial);
+                currentSlot = k;
+            }
+            drawInstance(k, obj, isMaterial, cameraView, cameraProjection, lightIntensity);
+        }
+        if (isProgramBound) {
+            disableAttributes(isMaterialProgram);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            unbindEnvironmentTexture();
+        }
+    }
 
-        GLES20.glUniformMatrix4fv(
-                mModelViewUniform2, 1, false, mModelViewMatrixs, 0);
-        GLES20.glUniformMatrix4fv(
-                mModelViewProjectionUniform2, 1, false, mModelViewProjectionMatrixs, 0);
+    // Draw the queued objects [0, end) with one glDrawElementsInstanced per model.
+    private void drawInstanced(int end, float[] cameraView, float[] cameraProjection) {
+        if (end == 0) {
+            return;
+        }
+        if (mInstanceData == null || mInstanceData.capacity() < end * INSTANCE_FLOATS) {
+            mInstanceData = ByteBuffer.allocateDirect(mQueue.length * INSTANCE_STRIDE)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        mInstanceData.clear();
+        for (int i = 0; i < end; i++) {
+            VirtualObject obj = mQueue[(int) (mQueueKeys[i] & QUEUE_INDEX_MASK)];
+            obj.getModelArPoseMatrix(mModelMatrixs);
+            obj.getColor(mObjectColors);
+            mObjectColors[3] = 30f;
+            mInstanceData.put(mModelMatrixs).put(mObjectColors);
+        }
+        mInstanceData.flip();
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mInstanceBufferId);
+
+        // Orphan the storage of the previous frame so that the upload does not wait for the GPU.
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mInstanceData.capacity() * FLOAT_BYTES, null,
+                GLES20.GL_STREAM_DRAW);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, end * INSTANCE_STRIDE, mInstanceData);
+
+        GLES20.glUseProgram(mInstancedProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUniform1i(mInstancedTextureUniform, 0);
+        GLES20.glUniformMatrix4fv(mInstancedViewUniform, 1, false, cameraView, 0);
+        GLES20.glUniformMatrix4fv(mInstancedProjectionUniform, 1, false, cameraProjection, 0);
+        bindEnvironmentTexture(mInstancedEnvironmentTextureUniform, mInstancedCameraToWorldUniform,
+                mInstancedReflectionStrengthUniform);
+        mStateChangeCount++;
+        for (int location = INSTANCED_POSITION_LOCATION; location <= INSTANCED_COLOR_LOCATION; location++) {
+            GLES20.glEnableVertexAttribArray(location);
+        }
+        for (int location = INSTANCED_MATRIX_LOCATION; location <= INSTANCED_COLOR_LOCATION; location++) {
+            GLES30.glVertexAttribDivisor(location, 1);
+        }
 
-        GLES20.glEnableVertexAttribArray(mPositionAttribute2);
-        GLES20.glEnableVertexAttribArray(mNormalAttribute2);
-        GLES20.glEnableVertexAttribArray(mTexCoordAttribute2);
+        int groupStart = 0;
+        while (groupStart < end) {
+            int k = (int) ((mQueueKeys[groupStart] >>> SLOT_KEY_SHIFT) & SLOT_KEY_MASK);
+            int groupEnd = groupStart + 1;
+            while (groupEnd < end && (int) ((mQueueKeys[groupEnd] >>> SLOT_KEY_SHIFT) & SLOT_KEY_MASK) == k) {
+                groupEnd++;
+            }
+            drawInstancedGroup(k, groupStart, groupEnd - groupStart);
+            groupStart = groupEnd;
+        }
 
-        ShaderUtil.checkGlError(TAG, "onDrawFrame glBindBuffer");
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId[k]);
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES, objectDatas[k].mIndices.limit(), GLES20.GL_UNSIGNED_SHORT, 0);
+        for (int location = INSTANCED_MATRIX_LOCATION; location <= INSTANCED_COLOR_LOCATION; location++) {
+            GLES30.glVertexAttribDivisor(location, 0);
+        }
+        for (int location = INSTANCED_POSITION_LOCATION; location <= INSTANCED_COLOR_LOCATION; location++) {
+            GLES20.glDisableVertexAttribArray(location);
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
         GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
-
-        ShaderUtil.checkGlError(TAG, "onDrawFrame glDisableVertexAttribArray");
-        GLES20.glDisableVertexAttribArray(mPositionAttribute2);
-        GLES20.glDisableVertexAttribArray(mNormalAttribute2);
-        GLES20.glDisableVertexAttribArray(mTexCoordAttribute2);
-
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        unbindEnvironmentTexture();
     }
-    private void drawObject(int k){
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + k);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[k]);
-        GLES20.glUniform1i(mTextureUniform, k);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId[k]);
 
-        // The coordinate dimension of the read virtual object is 3.
-        GLES20.glVertexAttribPointer(
-                mPositionAttribute, 3, GLES20.GL_FLOAT, false, 0, 0);
-        // The dimension of the normal vector is 3.
-        GLES20.glVertexAttribPointer(
-                mNormalAttribute, 3, GLES20.GL_FLOAT, false, 0, mNormalsBaseAddress[k]);
-        // The dimension of the texture coordinate is 2.
-        GLES20.glVertexAttribPointer(
-                mTexCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, mTexCoordsBaseAddress[k]);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-
-        GLES20.glUniformMatrix4fv(
-                mModelViewUniform, 1, false, mModelViewMatrixs, 0);
-        GLES20.glUniformMatrix4fv(
-                mModelViewProjectionUniform, 1, false, mModelViewProjectionMatrixs, 0);
+    private void drawInstancedGroup(int k, int firstInstance, int instanceCount) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[k]);
 
-        GLES20.glEnableVertexAttribArray(mPositionAttribute);
-        GLES20.glEnableVertexAttribArray(mNormalAttribute);
-        GLES20.glEnableVertexAttribArray(mTexCoordAttribute);
+        // The per-instance attributes of the group start at its first instance.
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mInstanceBufferId);
+        int instanceOffset = firstInstance * INSTANCE_STRIDE;
+        for (int column = 0; column < MATRIX_COLUMNS; column++) {
+            GLES20.glVertexAttribPointer(INSTANCED_MATRIX_LOCATION + column, MATRIX_COLUMNS, GLES20.GL_FLOAT, false,
+                    INSTANCE_STRIDE, instanceOffset + column * MATRIX_COLUMNS * FLOAT_BYTES);
+        }
+        GLES20.glVertexAttribPointer(INSTANCED_COLOR_LOCATION, COLOR_SIZE, GLES20.GL_FLOAT, false,
+                INSTANCE_STRIDE, instanceOffset + MATRIX_SIZE * FLOAT_BYTES);
 
-        ShaderUtil.checkGlError(TAG, "onDrawFrame glBindBuffer");
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId[k]);
         GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId[k]);
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES, objectDatas[k].mIndices.limit(), GLES20.GL_UNSIGNED_SHORT, 0);
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        mStateChangeCount += 3;
+        GLES20.glUniform4fv(mInstancedTexCoordTransformUniform, 1, objectDatas[k].mTexCoordTransform, 0);
+        MeshData mesh = objectDatas[k].mMesh;
+        for (int i = 0; i < mesh.getDrawRangeCount(); i++) {
+            MeshData.DrawRange range = mesh.getDrawRange(i);
+            setAttributePointers(INSTANCED_POSITION_LOCATION, INSTANCED_NORMAL_LOCATION,
+                    INSTANCED_TEX_COORD_LOCATION, range.getBaseVertex());
+            GLES30.glDrawElementsInstanced(GLES20.GL_TRIANGLES, range.getIndexCount(), mesh.getIndexType(),
+                    range.getFirstIndex() * mesh.getIndexSize(), instanceCount);
+            mDrawCallCount++;
+        }
+    }
 
-        ShaderUtil.checkGlError(TAG, "onDrawFrame glDisableVertexAttribArray");
-        GLES20.glDisableVertexAttribArray(mPositionAttribute);
-        GLES20.glDisableVertexAttribArray(mNormalAttribute);
-        GLES20.glDisableVertexAttribArray(mTexCoordAttribute);
+    /**
+     * Light the objects with the estimate of AR Engine: spherical harmonics for the ambient light
+     * and a primary directional light. On an OpenGL ES 3.0 context both the instanced objects and the
+     * models with a material evaluate the estimate; on OpenGL ES 2.0 the objects keep the fixed light
+     * scaled by the intensity given to {@link #drawQueuedObjects(float[], float[], float)}, and the
+     * material models their unlit colors.
+     *
+     * @param shCoefficients 27 spherical harmonics coefficients, 9 rgb triples.
+     * @param lightDirection World direction towards the primary light.
+     * @param lightColor Color of the primary light.
+     * @param lightIntensity Intensity of the primary light.
+     */
+    public void setLightEstimate(float[] shCoefficients, float[] lightDirection, float[] lightColor,
+            float lightIntensity) {
+        mLighting.setEstimate(shCoefficients, lightDirection, lightColor, lightIntensity);
+    }
 
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    /**
+     * Light the objects with the fixed light, for frames without an estimate.
+     *
+     * @param lightIntensity The lighting intensity.
+     */
+    public void setDefaultLighting(float lightIntensity) {
+        mLighting.setDefault(lightIntensity);
     }
 
     /**
-     * Check whether the virtual object is clicked.
+     * Set the environment cube map reflected by the objects without a material, see
+     * {@link EnvironmentCubeMap}.
      *
-     * @param cameraView The viewMatrix 4 * 4.
-     * @param cameraPerspective The ProjectionMatrix 4 * 4.
-     * @param obj The virtual object data.
-     * @param event The gesture event.
-     * @return Return the click result for determining whether the input virtual object is clicked
+     * @param textureId Cube map texture, or 0 to draw without reflections.
      */
-    public boolean hitTest(float[] cameraView, float[] cameraPerspective, VirtualObject obj, MotionEvent event) {
-        mModelMatrixs = obj.getModelArPoseMatrix();
-        Matrix.multiplyMM(mModelViewMatrixs, 0, cameraView, 0, mModelMatrixs, 0);
-        Matrix.multiplyMM(mModelViewProjectionMatrixs, 0, cameraPerspective, 0, mModelViewMatrixs, 0);
+    public void setEnvironmentTexture(int textureId) {
+        mEnvironmentTexture = textureId;
+    }
 
-        // Calculate the coordinates of the smallest bounding box in the coordinate system of the device screen.
-        float[] screenPos = calculateScreenPos(mBoundingBoxs[0], mBoundingBoxs[1], mBoundingBoxs[2]);
+    /**
+     * Obtain the number of program, texture and buffer bindings made by the last
+     * {@link #drawQueuedObjects(float[], float[], float)}.
+     *
+     * @return State change count.
+     */
+    public int getStateChangeCount() {
+        return mStateChangeCount;
+    }
 
-        // Record the largest bounding rectangle of an object (minX/minY/maxX/maxY).
-        float[] boundarys = new float[4];
-        boundarys[0] = screenPos[0];
-        boundarys[1] = screenPos[0];
-        boundarys[2] = screenPos[1];
-        boundarys[3] = screenPos[1];
+    /**
+     * Obtain the number of glDrawElements calls made by the last
+     * {@link #drawQueuedObjects(float[], float[], float)}.
+     *
+     * @return Draw call count.
+     */
+    public int getDrawCallCount() {
+        return mDrawCallCount;
+    }
 
-        // Determine whether a screen position corresponding to (maxX, maxY, maxZ) is clicked.
-        boundarys = findMaximum(boundarys, new int[]{3, 4, 5});
-        if (determineWhetherToClick(event, boundarys)) {
-            return true;
+    /**
+     * Obtain the number of tracked objects skipped by the last frame because they were outside the
+     * view frustum, rejected by the scene tree or by {@link #drawQueuedObjects(float[], float[], float)}.
+     *
+     * @return Culled object count.
+     */
+    public int getCulledCount() {
+        return mCulledCount;
+    }
+
+    private void useProgram(boolean isMaterial) {
+        GLES20.glUseProgram(isMaterial ? mGlProgram2 : mGlProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUniform1i(isMaterial ? mTextureUniform2 : mTextureUniform, 0);
+        if (!isMaterial) {
+            bindEnvironmentTexture(mEnvironmentTextureUniform, mCameraToWorldUniform, mReflectionStrengthUniform);
+        } else if (mIsMaterialLit) {
+            GLES20.glUniform3fv(mCameraPositionUniform2, 1, mCameraPosition, 0);
         }
+        GLES20.glEnableVertexAttribArray(isMaterial ? mPositionAttribute2 : mPositionAttribute);
+        GLES20.glEnableVertexAttribArray(isMaterial ? mNormalAttribute2 : mNormalAttribute);
+        GLES20.glEnableVertexAttribArray(isMaterial ? mTexCoordAttribute2 : mTexCoordAttribute);
+        mStateChangeCount++;
+    }
 
-        // Determine whether a screen position corresponding to (minX, minY, maxZ) is clicked.
-        boundarys = findMaximum(boundarys, new int[]{0, 1, 5});
-        if (determineWhetherToClick(event, boundarys)) {
-            return true;
+    // Bind the environment cube map to its unit, and leave unit 0 active for the model textures.
+    private void bindEnvironmentTexture(int textureUniform, int cameraToWorldUniform, int strengthUniform) {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + ENVIRONMENT_TEXTURE_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_CUBE_MAP, mEnvironmentTexture);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUniform1i(textureUniform, ENVIRONMENT_TEXTURE_UNIT);
+        GLES20.glUniformMatrix3fv(cameraToWorldUniform, 1, false, mCameraToWorld, 0);
+        GLES20.glUniform1f(strengthUniform, mEnvironmentTexture == 0 ? 0.0f : REFLECTION_STRENGTH);
+    }
+
+    private void unbindEnvironmentTexture() {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + ENVIRONMENT_TEXTURE_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_CUBE_MAP, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
+
+    // The upper 3 * 3 of the view matrix is a rotation, so its inverse is its transpose; the camera
+    // position follows from it.
+    private void updateCameraToWorld(float[] cameraView) {
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                mCameraToWorld[column * 3 + row] = cameraView[row * MATRIX_COLUMNS + column];
+            }
         }
 
-        // Determine whether a screen position corresponding to (minX, maxY, minZ) is clicked.
-        boundarys = findMaximum(boundarys, new int[]{0, 4, 2});
-        if (determineWhetherToClick(event, boundarys)) {
-            return true;
+        // The camera is at -R^T * t, with t the translation of the view matrix.
+        for (int row = 0; row < 3; row++) {
+            float position = 0.0f;
+            for (int column = 0; column < 3; column++) {
+                position -= mCameraToWorld[column * 3 + row] * cameraView[3 * MATRIX_COLUMNS + column];
+            }
+            mCameraPosition[row] = position;
         }
+    }
 
-        // Determine whether a screen position corresponding to (minX, maxY, maxZ) is clicked.
-        boundarys = findMaximum(boundarys, new int[]{0, 4, 5});
-        if (determineWhetherToClick(event, boundarys)) {
-            return true;
+    private void disableAttributes(boolean isMaterial) {
+        GLES20.glDisableVertexAttribArray(isMaterial ? mPositionAttribute2 : mPositionAttribute);
+        GLES20.glDisableVertexAttribArray(isMaterial ? mNormalAttribute2 : mNormalAttribute);
+        GLES20.glDisableVertexAttribArray(isMaterial ? mTexCoordAttribute2 : mTexCoordAttribute);
+    }
+
+    // Bind the texture, buffers and material shared by every object of the model.
+    private void bindModel(int k, boolean isMaterial) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[k]);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId[k]);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferId[k]);
+        mStateChangeCount += 3;
+        MeshData mesh = objectDatas[k].mMesh;
+        if (mesh.getDrawRangeCount() == 1) {
+            setAttributePointers(isMaterial, mesh.getDrawRange(0).getBaseVertex());
         }
+        GLES20.glUniform4fv(isMaterial ? mTexCoordTransformUniform2 : mTexCoordTransformUniform, 1,
+                objectDatas[k].mTexCoordTransform, 0);
+        if (isMaterial) {
+            Mtl material = objectDatas[k].mMaterial;
+            FloatTuple ka = material.getKa();
+            FloatTuple ks = material.getKs();
+            FloatTuple kd = material.getKd();
+            GLES20.glUniform3f(mKai, ka.getX(), ka.getY(), ka.getZ());
+            GLES20.glUniform3f(mKsi, ks.getX(), ks.getY(), ks.getZ());
+            GLES20.glUniform3f(mKdi, kd.getX(), kd.getY(), kd.getZ());
+        }
+    }
 
-        // Determine whether a screen position corresponding to (maxX, minY, minZ) is clicked.
-        boundarys = findMaximum(boundarys, new int[]{3, 1, 2});
-        if (determineWhetherToClick(event, boundarys)) {
-            return true;
+    private void setAttributePointers(boolean isMaterial, int baseVertex) {
+        if (isMaterial) {
+            setAttributePointers(mPositionAttribute2, mNormalAttribute2, mTexCoordAttribute2, baseVertex);
+        } else {
+            setAttributePointers(mPositionAttribute, mNormalAttribute, mTexCoordAttribute, baseVertex);
         }
+    }
 
-        // Determine whether a screen position corresponding to (maxX, minY, maxZ) is clicked.
-        boundarys = findMaximum(boundarys, new int[]{3, 1, 5});
-        if (determineWhetherToClick(event, boundarys)) {
-            return true;
+    // OpenGL ES 2.0 has no base vertex draw, so the base vertex of a range is applied by offsetting
+    // the attribute pointers.
+    private void setAttributePointers(int positionAttribute, int normalAttribute, int texCoordAttribute,
+            int baseVertex) {
+        int vertexOffset = baseVertex * MeshFormat.VERTEX_STRIDE;
+
+        // The coordinate dimension of the read virtual object is 3.
+        GLES20.glVertexAttribPointer(positionAttribute, 3, GLES20.GL_FLOAT, false,
+                MeshFormat.VERTEX_STRIDE, vertexOffset + MeshFormat.POSITION_OFFSET);
+        // The dimension of the normal vector is 3, quantized to signed bytes.
+        GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_BYTE, true,
+                MeshFormat.VERTEX_STRIDE, vertexOffset + MeshFormat.NORMAL_OFFSET);
+        // The dimension of the texture coordinate is 2, quantized to unsigned shorts.
+        GLES20.glVertexAttribPointer(texCoordAttribute, 2, GLES20.GL_UNSIGNED_SHORT, true,
+                MeshFormat.VERTEX_STRIDE, vertexOffset + MeshFormat.TEX_COORD_OFFSET);
+    }
+
+    private void drawInstance(int k, VirtualObject obj, boolean isMaterial, float[] cameraView,
+            float[] cameraProjection, float lightIntensity) {
+        obj.getModelArPoseMatrix(mModelMatrixs);
+        Matrix.multiplyMM(mModelViewMatrixs, 0, cameraView, 0, mModelMatrixs, 0);
+        Matrix.multiplyMM(mModelViewProjectionMatrixs, 0, cameraProjection, 0, mModelViewMatrixs, 0);
+        if (isMaterial) {
+            GLES20.glUniformMatrix4fv(mModelViewUniform2, 1, false, mModelViewMatrixs, 0);
+            GLES20.glUniformMatrix4fv(mModelViewProjectionUniform2, 1, false, mModelViewProjectionMatrixs, 0);
+            if (mIsMaterialLit) {
+                GLES20.glUniformMatrix4fv(mModelUniform2, 1, false, mModelMatrixs, 0);
+            }
+        } else {
+            Matrix.multiplyMV(mViewLightDirections, 0, mModelViewMatrixs, 0, LIGHT_DIRECTIONS, 0);
+            MatrixUtil.normalizeVec3(mViewLightDirections);
+
+            // Light direction.
+            GLES20.glUniform4f(mLightingParametersUniform,
+                    mViewLightDirections[0], mViewLightDirections[1], mViewLightDirections[2], lightIntensity);
+            obj.getColor(mObjectColors);
+            mObjectColors[3] = 30f;
+            GLES20.glUniform4fv(mColorUniform, 1, mObjectColors, 0);
+            GLES20.glUniformMatrix4fv(mModelViewUniform, 1, false, mModelViewMatrixs, 0);
+            GLES20.glUniformMatrix4fv(mModelViewProjectionUniform, 1, false, mModelViewProjectionMatrixs, 0);
         }
 
-        // Determine whether a screen position corresponding to (maxX, maxY, maxZ) is clicked.
-        if (determineWhetherToClick(event, boundarys)) {
-            return true;
+        MeshData mesh = objectDatas[k].mMesh;
+        for (int i = 0; i < mesh.getDrawRangeCount(); i++) {
+            MeshData.DrawRange range = mesh.getDrawRange(i);
+            if (mesh.getDrawRangeCount() > 1) {
+                setAttributePointers(isMaterial, range.getBaseVertex());
+            }
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, range.getIndexCount(), mesh.getIndexType(),
+                    range.getFirstIndex() * mesh.getIndexSize());
+            mDrawCallCount++;
         }
-        return false;
     }
 
     /**
-     * Determine whether the click happens within the valid boundary.
+     * Find the nearest virtual object under a tap. The tap is unprojected into a world ray; the scene
+     * returns the objects whose box the ray crosses, which are tested against their world bounding
+     * box and then against the triangles of their mesh through its BVH. Call this on the OpenGL thread.
      *
+     * @param cameraView The viewMatrix 4 * 4.
+     * @param cameraPerspective The ProjectionMatrix 4 * 4.
+     * @param scene The virtual objects to test.
      * @param event The gesture event.
-     * @param boundarys Record the largest bounding rectangle of an object (minX/minY/maxX/maxY).
-     * @return Determine whether the corresponding screen position is tapped.
+     * @return Nearest hit object and the hit point, empty if no object is hit.
      */
-    private boolean determineWhetherToClick(MotionEvent event, float[] boundarys) {
-        // The size of the click boundary rectangle array is 4.
-        if (event == null || boundarys.length < 4) {
-            return false;
+    public Optional<PickResult> pickObject(float[] cameraView, float[] cameraPerspective,
+            ObjectScene scene, GestureEvent event) {
+        if (event == null || mWidth <= 0 || mHeight <= 0 || !unprojectTap(cameraView, cameraPerspective, event)) {
+            return Optional.empty();
         }
-        // Determine whether the click point is within the valid boundary.
-        if (((event.getX() > boundarys[0]) && (event.getX() < boundarys[1]))
-                && ((event.getY() > boundarys[2]) && (event.getY() < boundarys[3]))) {
-            return true;
+        mSceneObjects.clear();
+        scene.refresh(this);
+        scene.queryRay(mRayOrigin, mRayDirection, mSceneObjects);
+        VirtualObject nearestObject = null;
+        float nearest = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < mSceneObjects.size(); i++) {
+            VirtualObject obj = mSceneObjects.get(i);
+            ObjectData objectData = findObjectData(obj);
+            if (objectData == null) {
+                continue;
+            }
+            obj.getWorldBoundingBox(objectData.mBoundingBox, mWorldBoundingBox);
+            if (intersectBox(mWorldBoundingBox, mRayOrigin, mRayDirection) >= nearest) {
+                continue;
+            }
+
+            // The ray parameter is the same in model space, because the transform is affine.
+            obj.getModelArPoseMatrix(mModelMatrixs);
+            if (!Matrix.invertM(mInverseMatrix, 0, mModelMatrixs, 0)) {
+                continue;
+            }
+            Matrix.multiplyMV(mModelRayOrigin, 0, mInverseMatrix, 0, mRayOrigin, 0);
+            Matrix.multiplyMV(mModelRayDirection, 0, mInverseMatrix, 0, mRayDirection, 0);
+            float distance = objectData.mBvh.intersectRay(mModelRayOrigin, mModelRayDirection, nearest,
+                mBvhStack);
+            if (distance < nearest) {
+                nearest = distance;
+                nearestObject = obj;
+            }
+        }
+        mSceneObjects.clear();
+        if (nearestObject == null) {
+            return Optional.empty();
+        }
+        for (int i = 0; i < 3; i++) {
+            mRayHitPoint[i] = mRayOrigin[i] + nearest * mRayDirection[i];
         }
-        return false;
+        float rayLength = Matrix.length(mRayDirection[0], mRayDirection[1], mRayDirection[2]);
+        return Optional.of(new PickResult(nearestObject, mRayHitPoint, nearest * rayLength));
     }
 
     /**
-     * Obtain the AABB bounding box of a virtual object.
+     * Obtain the world ray through a touch point, from the near plane to the far plane.
      *
-     * @return AABB bounding box data (minX, minY, minZ, maxX, maxY, maxZ).
-     */
-    public float[] getBoundingBox() {
-        return Arrays.copyOf(mBoundingBoxs, mBoundingBoxs.length);
-    }
-
-    // The size of minXmaxXminYmaxY is 4, and the size of index is 3.
-    private float[] findMaximum(float[] minXmaxXminYmaxY, int[] index) {
-        float[] screenPos = calculateScreenPos(mBoundingBoxs[index[0]],
-                mBoundingBoxs[index[1]], mBoundingBoxs[index[2]]);
-        if (screenPos[0] < minXmaxXminYmaxY[0]) {
-            minXmaxXminYmaxY[0] = screenPos[0];
-        }
-        if (screenPos[0] > minXmaxXminYmaxY[1]) {
-            minXmaxXminYmaxY[1] = screenPos[0];
-        }
-        if (screenPos[1] < minXmaxXminYmaxY[2]) {
-            minXmaxXminYmaxY[2] = screenPos[1];
-        }
-        if (screenPos[1] > minXmaxXminYmaxY[3]) {
-            minXmaxXminYmaxY[3] = screenPos[1];
-        }
-        return minXmaxXminYmaxY;
-    }
-
-    // Convert the input coordinates to the plane coordinate system.
-    private float[] calculateScreenPos(float coordinateX, float coordinateY, float coordinateZ) {
-        // The coordinates of the point are four-dimensional (x, y, z, w).
-        float[] vecs = new float[4];
-        vecs[0] = coordinateX;
-        vecs[1] = coordinateY;
-        vecs[2] = coordinateZ;
-        vecs[3] = 1.0f;
-
-        // Store the coordinate values in the clip coordinate system.
-        float[] rets = new float[4];
-        Matrix.multiplyMV(rets, 0, mModelViewProjectionMatrixs, 0, vecs, 0);
-
-        // Divide by the w component of the coordinates.
-        rets[0] /= rets[3];
-        rets[1] /= rets[3];
-        rets[2] /= rets[3];
-
-        // In the current coordinate system, left is negative, right is positive, downward
-        // is positive, and upward is negative.Adding 1 to the left of the X coordinate is
-        // equivalent to moving the coordinate system leftwards. Such an operation on the Y
-        // axis is equivalent to moving the coordinate system upwards.
-        rets[0] += 1.0f;
-        rets[1] = 1.0f - rets[1];
-
-        // Convert to pixel coordinates.
-        rets[0] *= mWidth;
-        rets[1] *= mHeight;
-
-        // When the w component is set to 1, the xy component caused by coordinate system
-        // movement is eliminated and doubled.
-        rets[3] = 1.0f;
-        rets[0] /= 2.0f;
-        rets[1] /= 2.0f;
-        return rets;
-    }
-
-    // Bounding box [minX, minY, minZ, maxX, maxY, maxZ].
-    private void calculateBoundingBox(FloatBuffer vertices) {
-        if (vertices.limit() < 3) {
-            mBoundingBoxs[0] = 0.0f;
-            mBoundingBoxs[1] = 0.0f;
-            mBoundingBoxs[2] = 0.0f;
-            mBoundingBoxs[3] = 0.0f;
-            mBoundingBoxs[4] = 0.0f;
-            mBoundingBoxs[5] = 0.0f;
-            return;
-        } else {
-            mBoundingBoxs[0] = vertices.get(0);
-            mBoundingBoxs[1] = vertices.get(1);
-            mBoundingBoxs[2] = vertices.get(2);
-            mBoundingBoxs[3] = vertices.get(0);
-            mBoundingBoxs[4] = vertices.get(1);
-            mBoundingBoxs[5] = vertices.get(2);
-        }
-
-        // Use the first three pairs as the initial variables and get the three
-        // maximum values and three minimum values.
-        int index = 3;
-        while (index < vertices.limit() - 2) {
-            if (vertices.get(index) < mBoundingBoxs[0]) {
-                mBoundingBoxs[0] = vertices.get(index);
-            }
-            if (vertices.get(index) > mBoundingBoxs[3]) {
-                mBoundingBoxs[3] = vertices.get(index);
-            }
-            index++;
+     * @param cameraView The viewMatrix 4 * 4.
+     * @param cameraPerspective The ProjectionMatrix 4 * 4.
+     * @param event The touch event.
+     * @param outOrigin Array with a length of at least 3 receiving the point on the near plane.
+     * @param outDirection Array with a length of at least 3 receiving the direction; the ray
+     *        reaches the far plane at origin + direction.
+     * @return false if the surface size is unknown or the matrices cannot be inverted.
+     */
+    public boolean getTouchRay(float[] cameraView, float[] cameraPerspective, GestureEvent event,
+            float[] outOrigin, float[] outDirection) {
+        if (event == null || mWidth <= 0 || mHeight <= 0 || !unprojectTap(cameraView, cameraPerspective, event)) {
+            return false;
+        }
+        System.arraycopy(mRayOrigin, 0, outOrigin, 0, 3);
+        System.arraycopy(mRayDirection, 0, outDirection, 0, 3);
+        return true;
+    }
 
-            if (vertices.get(index) < mBoundingBoxs[1]) {
-                mBoundingBoxs[1] = vertices.get(index);
-            }
-            if (vertices.get(index) > mBoundingBoxs[4]) {
-                mBoundingBoxs[4] = vertices.get(index);
-            }
-            index++;
+    // Set the world ray from the near plane to the far plane through the tapped pixel.
+    private boolean unprojectTap(float[] cameraView, float[] cameraPerspective, GestureEvent event) {
+        Matrix.multiplyMM(mModelViewProjectionMatrixs, 0, cameraPerspective, 0, cameraView, 0);
+        if (!Matrix.invertM(mInverseMatrix, 0, mModelViewProjectionMatrixs, 0)) {
+            return false;
+        }
+        float ndcX = event.getX() * 2.0f / mWidth - 1.0f;
+        float ndcY = 1.0f - event.getY() * 2.0f / mHeight;
+        mNdcPoint[0] = ndcX;
+        mNdcPoint[1] = ndcY;
+        mNdcPoint[2] = -1.0f;
+        mNdcPoint[3] = 1.0f;
+        Matrix.multiplyMV(mRayOrigin, 0, mInverseMatrix, 0, mNdcPoint, 0);
+        mNdcPoint[2] = 1.0f;
+        Matrix.multiplyMV(mRayDirection, 0, mInverseMatrix, 0, mNdcPoint, 0);
+        for (int i = 0; i < 3; i++) {
+            mRayOrigin[i] /= mRayOrigin[3];
+            mRayDirection[i] = mRayDirection[i] / mRayDirection[3] - mRayOrigin[i];
+        }
+        mRayOrigin[3] = 1.0f;
+        mRayDirection[3] = 0.0f;
+        return true;
+    }
 
-            if (vertices.get(index) < mBoundingBoxs[2]) {
-                mBoundingBoxs[2] = vertices.get(index);
-            }
-            if (vertices.get(index) > mBoundingBoxs[5]) {
-                mBoundingBoxs[5] = vertices.get(index);
+    // Slab test: the ray parameter where the ray enters the box, or infinity if it misses.
+    private static float intersectBox(float[] box, float[] origin, float[] direction) {
+        float near = 0.0f;
+        float far = Float.POSITIVE_INFINITY;
+        for (int axis = 0; axis < 3; axis++) {
+            if (direction[axis] == 0.0f) {
+                // Parallel to the slab, where the products below would be 0 * infinity = NaN.
+                if (origin[axis] < box[axis] || origin[axis] > box[axis + 3]) {
+                    return Float.POSITIVE_INFINITY;
+                }
+                continue;
             }
-            index++;
+            float inverse = 1.0f / direction[axis];
+            float t1 = (box[axis] - origin[axis]) * inverse;
+            float t2 = (box[axis + 3] - origin[axis]) * inverse;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        return near <= far ? near : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Obtain the world-space AABB of a virtual object.
+     *
+     * @param obj The virtual object.
+     * @param outBoundingBox Array with a length of at least 6 receiving the box.
+     * @return false if the model of the object is not loaded yet.
+     */
+    @Override
+    public boolean getWorldBoundingBox(VirtualObject obj, float[] outBoundingBox) {
+        ObjectData objectData = findObjectData(obj);
+        if (objectData == null) {
+            return false;
+        }
+        obj.getWorldBoundingBox(objectData.mBoundingBox, outBoundingBox);
+        return true;
+    }
+
+    private ObjectData findObjectData(VirtualObject obj) {
+        ModelRegistry.Model model = mRegistry == null ? null : mRegistry.findModel(obj.getObjname());
+        return model == null ? null : objectDatas[model.getIndex()];
+    }
+
+    /**
+     * Obtain the AABB bounding box of a loaded model.
+     *
+     * @param modelName Model name from the {@link ModelRegistry}.
+     * @return AABB bounding box data (minX, minY, minZ, maxX, maxY, maxZ), empty if the model is not loaded.
+     */
+    public Optional<float[]> getBoundingBox(String modelName) {
+        ModelRegistry.Model model = mRegistry == null ? null : mRegistry.findModel(modelName);
+        if (model == null || objectDatas[model.getIndex()] == null) {
+            return Optional.empty();
         }
+        float[] boundingBox = objectDatas[model.getIndex()].mBoundingBox;
+        return Optional.of(Arrays.copyOf(boundingBox, boundingBox.length));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import com.huawei.hiar.ARHitResult;
+import com.huawei.hiar.ARPose;
+
+/**
+ * Drag a virtual object along the surface under the finger. While the finger moves, the object
+ * follows the point where the touch ray crosses the plane of the last engine hit, and engine hit
+ * tests are limited to a configurable rate to pick up a change of surface. The object is anchored
+ * once, when the finger is lifted. Use the dragger on the OpenGL thread.
+ */
+public class ObjectDragger {
+    private static final String TAG = ObjectDragger.class.getSimpleName();
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private static final float MIN_RAY_PLANE_COSINE = 1.0e-4f;
+
+    private long mHitTestIntervalNanos;
+
+    private VirtualObject mObject;
+
+    /**
+     * Pose of the object when the drag began, restored by {@link #cancel()}.
+     */
+    private ARPose mStartPose;
+
+    private ARHitResult mLastHitResult;
+
+    private long mLastHitTestNanos;
+
+    private final float[] mPlanePoint = new float[3];
+
+    private final float[] mPlaneNormal = new float[3];
+
+    private final float[] mRotation = new float[4];
+
+    private final float[] mPosition = new float[3];
+
+    private final float[] mRayOrigin = new float[3];
+
+    private final float[] mRayDirection = new float[3];
+
+    /**
+     * Constructor.
+     *
+     * @param hitTestIntervalMillis Minimum time between two engine hit tests during a drag.
+     */
+    public ObjectDragger(long hitTestIntervalMillis) {
+        setHitTestInterval(hitTestIntervalMillis);
+    }
+
+    /**
+     * Set the minimum time between two engine hit tests during a drag.
+     *
+     * @param hitTestIntervalMillis Interval in milliseconds; 0 hit tests on every move.
+     */
+    public void setHitTestInterval(long hitTestIntervalMillis) {
+        mHitTestIntervalNanos = Math.max(0L, hitTestIntervalMillis) * NANOS_PER_MILLI;
+    }
+
+    public boolean isDragging() {
+        return mObject != null;
+    }
+
+    /**
+     * Start dragging an object from an engine hit under the finger. The object moves to the hit
+     * point and keeps its rotation; its anchor is not changed until {@link #end(ARHitResult)}.
+     *
+     * @param obj The virtual object.
+     * @param hitResult Engine hit under the finger.
+     */
+    public void begin(VirtualObject obj, ARHitResult hitResult) {
+        mObject = obj;
+        mStartPose = obj.getArPose();
+        mStartPose.getRotationQuaternion(mRotation, 0);
+        updatePlane(hitResult);
+    }
+
+    /**
+     * Check whether the rate limit allows an engine hit test for this move.
+     *
+     * @return true if the last engine hit test is older than the interval.
+     */
+    public boolean isHitTestDue() {
+        return System.nanoTime() - mLastHitTestNanos >= mHitTestIntervalNanos;
+    }
+
+    /**
+     * Take the result of an engine hit test made during the drag: the object moves to the hit
+     * point, and the drag continues on the plane of the hit.
+     *
+     * @param hitResult Engine hit under the finger.
+     */
+    public void updatePlane(ARHitResult hitResult) {
+        mLastHitResult = hitResult;
+        mLastHitTestNanos = System.nanoTime();
+        ARPose hitPose = hitResult.getHitPose();
+        mPlanePoint[0] = hitPose.tx();
+        mPlanePoint[1] = hitPose.ty();
+        mPlanePoint[2] = hitPose.tz();
+
+        // The Y axis of the hit pose is the normal of the surface.
+        hitPose.getTransformedAxis(1, 1.0f, mPlaneNormal, 0);
+        moveObject(mPlanePoint);
+    }
+
+    /**
+     * Move the object to where the touch ray crosses the drag plane, without an engine hit test.
+     *
+     * @param rayOrigin World ray origin (x, y, z).
+     * @param rayDirection World ray direction (x, y, z).
+     */
+    public void moveAlongPlane(float[] rayOrigin, float[] rayDirection) {
+        if (mObject == null) {
+            return;
+        }
+        float cosine = mPlaneNormal[0] * rayDirection[0] + mPlaneNormal[1] * rayDirection[1]
+            + mPlaneNormal[2] * rayDirection[2];
+        if (Math.abs(cosine) < MIN_RAY_PLANE_COSINE) {
+            // The ray is parallel to the plane.
+            return;
+        }
+        float distance = (mPlaneNormal[0] * (mPlanePoint[0] - rayOrigin[0])
+            + mPlaneNormal[1] * (mPlanePoint[1] - rayOrigin[1])
+            + mPlaneNormal[2] * (mPlanePoint[2] - rayOrigin[2])) / cosine;
+        if (distance < 0.0f) {
+            return;
+        }
+        for (int i = 0; i < mPosition.length; i++) {
+            mPosition[i] = rayOrigin[i] + distance * rayDirection[i];
+        }
+        moveObject(mPosition);
+    }
+
+    /**
+     * Move the object to the touch point of a move event along the drag plane.
+     *
+     * @param objectDisplay Source of the touch ray.
+     * @param viewMatrix The viewMatrix 4 * 4.
+     * @param projectionMatrix The ProjectionMatrix 4 * 4.
+     * @param event The scroll event.
+     */
+    public void moveAlongPlane(ObjectDisplay objectDisplay, float[] viewMatrix, float[] projectionMatrix,
+        GestureEvent event) {
+        if (objectDisplay.getTouchRay(viewMatrix, projectionMatrix, event, mRayOrigin, mRayDirection)) {
+            moveAlongPlane(mRayOrigin, mRayDirection);
+        }
+    }
+
+    /**
+     * Finish the drag and anchor the object once: at the release hit if there is one, otherwise at
+     * the last engine hit of the drag.
+     *
+     * @param releaseHitResult Engine hit under the finger when it is lifted, or null.
+     */
+    public void end(ARHitResult releaseHitResult) {
+        if (mObject == null) {
+            return;
+        }
+        ARHitResult hitResult = releaseHitResult != null ? releaseHitResult : mLastHitResult;
+        if (hitResult != null) {
+            mObject.setAnchor(hitResult.createAnchor());
+        } else {
+            LogUtil.warn(TAG, "No hit result to anchor the dragged object.");
+        }
+        reset();
+    }
+
+    /**
+     * Stop dragging without creating an anchor, and move the object back to its pose before the drag.
+     * Use this when the touch is cancelled, or when the dragged object is deleted.
+     */
+    public void cancel() {
+        if (mObject != null) {
+            mObject.setArPose(mStartPose);
+        }
+        reset();
+    }
+
+    /**
+     * Stop dragging an object that has been removed from the scene, without anchoring or moving it.
+     *
+     * @param obj The removed virtual object.
+     */
+    public void onObjectRemoved(VirtualObject obj) {
+        if (mObject == obj) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        mObject = null;
+        mStartPose = null;
+        mLastHitResult = null;
+        mLastHitTestNanos = 0L;
+    }
+
+    private void moveObject(float[] position) {
+        // ARPose copies the values, so the position and rotation arrays are reused for every move.
+        mObject.setArPose(new ARPose(position, mRotation));
+    }
+}
@@ -0,0 +1,631 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * The placed virtual objects, in placement order, indexed by a dynamic AABB tree of their world
+ * bounding boxes for frustum, ray and nearest-neighbour queries. The leaf boxes are enlarged by a
+ * margin, so an object is re-inserted only after it has moved out of its enlarged box, and the tree
+ * is kept balanced by rotations. The objects report their moves, so that only the moved ones are
+ * checked. Use the scene on the OpenGL thread.
+ */
+public class ObjectScene implements Iterable<VirtualObject> {
+    private static final int NULL_NODE = -1;
+
+    private static final int BOX_SIZE = 6;
+
+    private static final int AXIS_COUNT = 3;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Enlargement of the leaf boxes in meters, so that small movements do not change the tree.
+     */
+    private static final float FAT_MARGIN = 0.05f;
+
+    /**
+     * Source of the world bounding boxes of the objects, such as {@link ObjectDisplay}.
+     */
+    public interface BoundsSource {
+        /**
+         * Obtain the world-space AABB of a virtual object.
+         *
+         * @param obj The virtual object.
+         * @param outBoundingBox Array with a length of at least 6 receiving the box.
+         * @return false if the bounds of the object are not known yet.
+         */
+        boolean getWorldBoundingBox(VirtualObject obj, float[] outBoundingBox);
+    }
+
+    /**
+     * Leaf node of each object, or NULL_NODE while its model is loading and its bounds are unknown.
+     */
+    private final LinkedHashMap<VirtualObject, Integer> mLeaves = new LinkedHashMap<>();
+
+    private final List<VirtualObject> mPendingObjects = new ArrayList<>();
+
+    /**
+     * Objects whose transform has changed since the last refresh, reported from any thread. An
+     * object can be listed more than once, or after it has been removed.
+     */
+    private final Queue<VirtualObject> mMovedObjects = new ConcurrentLinkedQueue<>();
+
+    private final Consumer<VirtualObject> mMoveListener = mMovedObjects::offer;
+
+    private float[] mBounds = new float[INITIAL_CAPACITY * BOX_SIZE];
+
+    private float[] mCenters = new float[INITIAL_CAPACITY * AXIS_COUNT];
+
+    /**
+     * Parent of a node; for a free node, the next free node.
+     */
+    private int[] mParent = new int[INITIAL_CAPACITY];
+
+    private int[] mChild1 = new int[INITIAL_CAPACITY];
+
+    private int[] mChild2 = new int[INITIAL_CAPACITY];
+
+    private int[] mHeight = new int[INITIAL_CAPACITY];
+
+    private VirtualObject[] mObjects = new VirtualObject[INITIAL_CAPACITY];
+
+    private int mRoot = NULL_NODE;
+
+    private int mFreeNode = NULL_NODE;
+
+    private int mNodeCapacity = 0;
+
+    private int[] mStack = new int[INITIAL_CAPACITY];
+
+    private final float[] mBox = new float[BOX_SIZE];
+
+    /**
+     * Add a virtual object. It enters the tree on the next {@link #refresh(BoundsSource)} after its
+     * model is loaded; until then it is returned by every frustum query.
+     *
+     * @param obj The virtual object.
+     */
+    public void add(VirtualObject obj) {
+        if (mLeaves.containsKey(obj)) {
+            return;
+        }
+        mLeaves.put(obj, NULL_NODE);
+        mPendingObjects.add(obj);
+        obj.setTransformListener(mMoveListener);
+    }
+
+    /**
+     * Remove a virtual object. The anchor of the object is not detached.
+     *
+     * @param obj The virtual object.
+     * @return true if the object was in the scene.
+     */
+    public boolean remove(VirtualObject obj) {
+        Integer leaf = mLeaves.remove(obj);
+        if (leaf == null) {
+            return false;
+        }
+        dropLeaf(obj, leaf);
+        return true;
+    }
+
+    /**
+     * Remove the object that was added first.
+     *
+     * @return The removed object, or null if the scene is empty.
+     */
+    public VirtualObject removeOldest() {
+        Iterator<VirtualObject> iterator = iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        VirtualObject oldest = iterator.next();
+        iterator.remove();
+        return oldest;
+    }
+
+    /**
+     * Obtain the object that was added first.
+     *
+     * @return The oldest object, or null if the scene is empty.
+     */
+    public VirtualObject getOldest() {
+        return mLeaves.isEmpty() ? null : mLeaves.keySet().iterator().next();
+    }
+
+    public int size() {
+        return mLeaves.size();
+    }
+
+    public boolean isEmpty() {
+        return mLeaves.isEmpty();
+    }
+
+    /**
+     * Iterate over the objects in placement order. The iterator supports remove().
+     *
+     * @return Iterator of the objects.
+     */
+    @Override
+    public Iterator<VirtualObject> iterator() {
+        Iterator<Map.Entry<VirtualObject, Integer>> entries = mLeaves.entrySet().iterator();
+        return new Iterator<VirtualObject>() {
+            private Map.Entry<VirtualObject, Integer> mCurrent;
+
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public VirtualObject next() {
+                mCurrent = entries.next();
+                return mCurrent.getKey();
+            }
+
+            @Override
+            public void remove() {
+                entries.remove();
+                dropLeaf(mCurrent.getKey(), mCurrent.getValue());
+            }
+        };
+    }
+
+    /**
+     * Bring the tree up to date with the objects: insert those whose model has been loaded since the
+     * last call, and re-insert those that have moved out of their enlarged box since. Call this once
+     * per frame.
+     *
+     * @param boundsSource Source of the world bounding boxes.
+     */
+    public void refresh(BoundsSource boundsSource) {
+        for (int i = mPendingObjects.size() - 1; i >= 0; i--) {
+            VirtualObject obj = mPendingObjects.get(i);
+            if (!boundsSource.getWorldBoundingBox(obj, mBox)) {
+                continue;
+            }
+            int leaf = allocateNode();
+            mObjects[leaf] = obj;
+            setLeafBounds(leaf, mBox);
+            insertLeaf(leaf);
+            mLeaves.put(obj, leaf);
+            int last = mPendingObjects.size() - 1;
+            mPendingObjects.set(i, mPendingObjects.get(last));
+            mPendingObjects.remove(last);
+        }
+
+        // Only the objects whose transform has changed can have left their enlarged box.
+        VirtualObject moved = mMovedObjects.poll();
+        while (moved != null) {
+            Integer leaf = mLeaves.get(moved);
+            if (leaf != null && leaf != NULL_NODE && boundsSource.getWorldBoundingBox(moved, mBox)
+                && !containsBox(leaf, mBox)) {
+                removeLeaf(leaf);
+                setLeafBounds(leaf, mBox);
+                insertLeaf(leaf);
+            }
+            moved = mMovedObjects.poll();
+        }
+    }
+
+    /**
+     * Collect the objects whose enlarged box is at least partly inside the frustum, and the objects
+     * whose bounds are not known yet.
+     *
+     * @param frustum The view frustum.
+     * @param outObjects List receiving the objects; it is not cleared.
+     */
+    public void queryFrustum(ViewFrustum frustum, List<VirtualObject> outObjects) {
+        queryFrustum(frustum, outObjects, null);
+    }
+
+    /**
+     * Collect the objects whose enlarged box is at least partly inside the frustum, and the objects
+     * whose bounds are not known yet, and optionally the other objects of the tree.
+     *
+     * @param frustum The view frustum.
+     * @param outObjects List receiving the objects; it is not cleared.
+     * @param outCulledObjects List receiving the objects outside the frustum, or null; it is not cleared.
+     */
+    public void queryFrustum(ViewFrustum frustum, List<VirtualObject> outObjects,
+        List<VirtualObject> outCulledObjects) {
+        outObjects.addAll(mPendingObjects);
+        int stackSize = pushRoot();
+        while (stackSize > 0) {
+            int node = mStack[--stackSize];
+            if (!frustum.isBoxVisible(nodeBox(node))) {
+                if (outCulledObjects != null) {
+                    collectLeaves(node, stackSize, outCulledObjects);
+                }
+                continue;
+            }
+            if (isLeaf(node)) {
+                outObjects.add(mObjects[node]);
+            } else {
+                stackSize = pushChildren(node, stackSize);
+            }
+        }
+    }
+
+    /**
+     * Collect the objects whose enlarged box is crossed by a ray.
+     *
+     * @param origin Ray origin (x, y, z) in world space.
+     * @param direction Ray direction (x, y, z), not necessarily normalized.
+     * @param outObjects List receiving the objects; it is not cleared.
+     */
+    public void queryRay(float[] origin, float[] direction, List<VirtualObject> outObjects) {
+        int stackSize = pushRoot();
+        while (stackSize > 0) {
+            int node = mStack[--stackSize];
+            if (!isRayCrossing(node, origin, direction)) {
+                continue;
+            }
+            if (isLeaf(node)) {
+                outObjects.add(mObjects[node]);
+            } else {
+                stackSize = pushChildren(node, stackSize);
+            }
+        }
+    }
+
+    /**
+     * Find the object whose bounding box center is nearest to a point. Objects whose bounds are not
+     * known yet are ignored.
+     *
+     * @param point World coordinates (x, y, z).
+     * @return Nearest object, empty if no object is in the tree.
+     */
+    public Optional<VirtualObject> findNearest(float[] point) {
+        VirtualObject nearestObject = null;
+        float nearest = Float.POSITIVE_INFINITY;
+        int stackSize = pushRoot();
+        while (stackSize > 0) {
+            int node = mStack[--stackSize];
+            if (distanceSquaredToBox(node, point) >= nearest) {
+                continue;
+            }
+            if (isLeaf(node)) {
+                float distance = 0.0f;
+                for (int axis = 0; axis < AXIS_COUNT; axis++) {
+                    float delta = mCenters[node * AXIS_COUNT + axis] - point[axis];
+                    distance += delta * delta;
+                }
+                if (distance < nearest) {
+                    nearest = distance;
+                    nearestObject = mObjects[node];
+                }
+                continue;
+            }
+
+            // Push the farther child first, so that the nearer one is searched first and prunes more.
+            int child1 = mChild1[node];
+            int child2 = mChild2[node];
+            boolean isChild1Nearer = distanceSquaredToBox(child1, point) <= distanceSquaredToBox(child2, point);
+            stackSize = push(isChild1Nearer ? child2 : child1, stackSize);
+            stackSize = push(isChild1Nearer ? child1 : child2, stackSize);
+        }
+        return Optional.ofNullable(nearestObject);
+    }
+
+    /**
+     * Obtain the height of the tree, 0 for a single leaf and -1 for an empty tree.
+     *
+     * @return Height of the root.
+     */
+    int getTreeHeight() {
+        return mRoot == NULL_NODE ? -1 : mHeight[mRoot];
+    }
+
+    // Add the objects of a subtree, using the stack above the given size.
+    private void collectLeaves(int root, int stackBase, List<VirtualObject> outObjects) {
+        int stackSize = push(root, stackBase);
+        while (stackSize > stackBase) {
+            int node = mStack[--stackSize];
+            if (isLeaf(node)) {
+                outObjects.add(mObjects[node]);
+            } else {
+                stackSize = pushChildren(node, stackSize);
+            }
+        }
+    }
+
+    private void dropLeaf(VirtualObject obj, int leaf) {
+        obj.setTransformListener(null);
+        if (leaf == NULL_NODE) {
+            mPendingObjects.remove(obj);
+            return;
+        }
+        removeLeaf(leaf);
+        freeNode(leaf);
+    }
+
+    private boolean isLeaf(int node) {
+        return mChild1[node] == NULL_NODE;
+    }
+
+    private void setLeafBounds(int leaf, float[] box) {
+        int base = leaf * BOX_SIZE;
+        for (int axis = 0; axis < AXIS_COUNT; axis++) {
+            mBounds[base + axis] = box[axis] - FAT_MARGIN;
+            mBounds[base + axis + AXIS_COUNT] = box[axis + AXIS_COUNT] + FAT_MARGIN;
+            mCenters[leaf * AXIS_COUNT + axis] = (box[axis] + box[axis + AXIS_COUNT]) * 0.5f;
+        }
+    }
+
+    private boolean containsBox(int node, float[] box) {
+        int base = node * BOX_SIZE;
+        for (int axis = 0; axis < AXIS_COUNT; axis++) {
+            if (box[axis] < mBounds[base + axis] || box[axis + AXIS_COUNT] > mBounds[base + axis + AXIS_COUNT]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private float[] nodeBox(int node) {
+        System.arraycopy(mBounds, node * BOX_SIZE, mBox, 0, BOX_SIZE);
+        return mBox;
+    }
+
+    // Surface area of the union of two node boxes, or of one box when both are the same node.
+    private float unionArea(int nodeA, int nodeB) {
+        int baseA = nodeA * BOX_SIZE;
+        int baseB = nodeB * BOX_SIZE;
+        float x = Math.max(mBounds[baseA + 3], mBounds[baseB + 3]) - Math.min(mBounds[baseA], mBounds[baseB]);
+        float y = Math.max(mBounds[baseA + 4], mBounds[baseB + 4]) - Math.min(mBounds[baseA + 1], mBounds[baseB + 1]);
+        float z = Math.max(mBounds[baseA + 5], mBounds[baseB + 5]) - Math.min(mBounds[baseA + 2], mBounds[baseB + 2]);
+        return 2.0f * (x * y + y * z + z * x);
+    }
+
+    private void setUnion(int node, int nodeA, int nodeB) {
+        int base = node * BOX_SIZE;
+        int baseA = nodeA * BOX_SIZE;
+        int baseB = nodeB * BOX_SIZE;
+        for (int axis = 0; axis < AXIS_COUNT; axis++) {
+            mBounds[base + axis] = Math.min(mBounds[baseA + axis], mBounds[baseB + axis]);
+            mBounds[base + axis + AXIS_COUNT] =
+                Math.max(mBounds[baseA + axis + AXIS_COUNT], mBounds[baseB + axis + AXIS_COUNT]);
+        }
+    }
+
+    private void insertLeaf(int leaf) {
+        if (mRoot == NULL_NODE) {
+            mRoot = leaf;
+            mParent[leaf] = NULL_NODE;
+            return;
+        }
+
+        // Descend towards the sibling that increases the total surface area of the tree the least.
+        int sibling = mRoot;
+        while (!isLeaf(sibling)) {
+            float area = unionArea(sibling, sibling);
+            float combinedArea = unionArea(sibling, leaf);
+            float cost = 2.0f * combinedArea;
+            float inheritanceCost = 2.0f * (combinedArea - area);
+            float cost1 = descendCost(mChild1[sibling], leaf, inheritanceCost);
+            float cost2 = descendCost(mChild2[sibling], leaf, inheritanceCost);
+            if (cost < cost1 && cost < cost2) {
+                break;
+            }
+            sibling = cost1 < cost2 ? mChild1[sibling] : mChild2[sibling];
+        }
+
+        int oldParent = mParent[sibling];
+        int newParent = allocateNode();
+        mParent[newParent] = oldParent;
+        mChild1[newParent] = sibling;
+        mChild2[newParent] = leaf;
+        mHeight[newParent] = mHeight[sibling] + 1;
+        setUnion(newParent, sibling, leaf);
+        replaceChild(oldParent, sibling, newParent);
+        mParent[sibling] = newParent;
+        mParent[leaf] = newParent;
+        refitUpwards(newParent);
+    }
+
+    private float descendCost(int child, int leaf, float inheritanceCost) {
+        float combinedArea = unionArea(child, leaf);
+        if (isLeaf(child)) {
+            return combinedArea + inheritanceCost;
+        }
+        return combinedArea - unionArea(child, child) + inheritanceCost;
+    }
+
+    private void removeLeaf(int leaf) {
+        if (leaf == mRoot) {
+            mRoot = NULL_NODE;
+            return;
+        }
+        int parent = mParent[leaf];
+        int grandParent = mParent[parent];
+        int sibling = mChild1[parent] == leaf ? mChild2[parent] : mChild1[parent];
+        replaceChild(grandParent, parent, sibling);
+        mParent[sibling] = grandParent;
+        freeNode(parent);
+        if (grandParent != NULL_NODE) {
+            refitUpwards(grandParent);
+        }
+    }
+
+    // Rebalance and refit the ancestors, starting at the given node.
+    private void refitUpwards(int start) {
+        int node = start;
+        while (node != NULL_NODE) {
+            node = balance(node);
+            int child1 = mChild1[node];
+            int child2 = mChild2[node];
+            mHeight[node] = 1 + Math.max(mHeight[child1], mHeight[child2]);
+            setUnion(node, child1, child2);
+            node = mParent[node];
+        }
+    }
+
+    // Rotate the taller child up when the heights of the children differ by more than one.
+    private int balance(int node) {
+        if (isLeaf(node) || mHeight[node] < 2) {
+            return node;
+        }
+        int child1 = mChild1[node];
+        int child2 = mChild2[node];
+        int difference = mHeight[child2] - mHeight[child1];
+        if (difference > 1) {
+            return rotateUp(node, child2, child1, true);
+        }
+        if (difference < -1) {
+            return rotateUp(node, child1, child2, false);
+        }
+        return node;
+    }
+
+    private int rotateUp(int node, int up, int other, boolean isUpChild2) {
+        int grandChild1 = mChild1[up];
+        int grandChild2 = mChild2[up];
+        int keep = mHeight[grandChild1] > mHeight[grandChild2] ? grandChild1 : grandChild2;
+        int move = keep == grandChild1 ? grandChild2 : grandChild1;
+
+        // The child takes the place of the node, which becomes its first child.
+        mChild1[up] = node;
+        mChild2[up] = keep;
+        mParent[up] = mParent[node];
+        mParent[node] = up;
+        replaceChild(mParent[up], node, up);
+
+        // The shorter grandchild takes the place of the child under the node.
+        if (isUpChild2) {
+            mChild2[node] = move;
+        } else {
+            mChild1[node] = move;
+        }
+        mParent[move] = node;
+        setUnion(node, other, move);
+        mHeight[node] = 1 + Math.max(mHeight[other], mHeight[move]);
+        setUnion(up, node, keep);
+        mHeight[up] = 1 + Math.max(mHeight[node], mHeight[keep]);
+        return up;
+    }
+
+    private void replaceChild(int parent, int oldChild, int newChild) {
+        if (parent == NULL_NODE) {
+            mRoot = newChild;
+        } else if (mChild1[parent] == oldChild) {
+            mChild1[parent] = newChild;
+        } else {
+            mChild2[parent] = newChild;
+        }
+    }
+
+    private int allocateNode() {
+        if (mFreeNode == NULL_NODE) {
+            growNodes();
+        }
+        int node = mFreeNode;
+        mFreeNode = mParent[node];
+        mParent[node] = NULL_NODE;
+        mChild1[node] = NULL_NODE;
+        mChild2[node] = NULL_NODE;
+        mHeight[node] = 0;
+        mObjects[node] = null;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        mObjects[node] = null;
+        mParent[node] = mFreeNode;
+        mFreeNode = node;
+    }
+
+    private void growNodes() {
+        int oldCapacity = mNodeCapacity;
+        int capacity = oldCapacity == 0 ? INITIAL_CAPACITY : oldCapacity * 2;
+        if (capacity > mParent.length) {
+            mBounds = Arrays.copyOf(mBounds, capacity * BOX_SIZE);
+            mCenters = Arrays.copyOf(mCenters, capacity * AXIS_COUNT);
+            mParent = Arrays.copyOf(mParent, capacity);
+            mChild1 = Arrays.copyOf(mChild1, capacity);
+            mChild2 = Arrays.copyOf(mChild2, capacity);
+            mHeight = Arrays.copyOf(mHeight, capacity);
+            mObjects = Arrays.copyOf(mObjects, capacity);
+        }
+        for (int node = capacity - 1; node >= oldCapacity; node--) {
+            mObjects[node] = null;
+            mParent[node] = mFreeNode;
+            mFreeNode = node;
+        }
+        mNodeCapacity = capacity;
+    }
+
+    private int pushRoot() {
+        return mRoot == NULL_NODE ? 0 : push(mRoot, 0);
+    }
+
+    private int pushChildren(int node, int stackSize) {
+        return push(mChild2[node], push(mChild1[node], stackSize));
+    }
+
+    private int push(int node, int stackSize) {
+        if (stackSize == mStack.length) {
+            mStack = Arrays.copyOf(mStack, stackSize * 2);
+        }
+        mStack[stackSize] = node;
+        return stackSize + 1;
+    }
+
+    // Slab test of the ray against the node box, for t >= 0.
+    private boolean isRayCrossing(int node, float[] origin, float[] direction) {
+        int base = node * BOX_SIZE;
+        float near = 0.0f;
+        float far = Float.POSITIVE_INFINITY;
+        for (int axis = 0; axis < AXIS_COUNT; axis++) {
+            if (direction[axis] == 0.0f) {
+                // Parallel to the slab, where the products below would be 0 * infinity = NaN.
+                if (origin[axis] < mBounds[base + axis] || origin[axis] > mBounds[base + axis + AXIS_COUNT]) {
+                    return false;
+                }
+                continue;
+            }
+            float inverse = 1.0f / direction[axis];
+            float t1 = (mBounds[base + axis] - origin[axis]) * inverse;
+            float t2 = (mBounds[base + axis + AXIS_COUNT] - origin[axis]) * inverse;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        return near <= far;
+    }
+
+    private float distanceSquaredToBox(int node, float[] point) {
+        int base = node * BOX_SIZE;
+        float distance = 0.0f;
+        for (int axis = 0; axis < AXIS_COUNT; axis++) {
+            float delta = Math.max(0.0f,
+                Math.max(mBounds[base + axis] - point[axis], point[axis] - mBounds[base + axis + AXIS_COUNT]));
+            distance += delta * delta;
+        }
+        return distance;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import java.util.Arrays;
+
+/**
+ * The nearest virtual object hit by a tap, see {@link ObjectDisplay#pickObject}.
+ */
+public class PickResult {
+    private final VirtualObject mObject;
+
+    private final float[] mHitPoint;
+
+    private final float mDistance;
+
+    PickResult(VirtualObject object, float[] hitPoint, float distance) {
+        mObject = object;
+        mHitPoint = Arrays.copyOf(hitPoint, 3);
+        mDistance = distance;
+    }
+
+    public VirtualObject getObject() {
+        return mObject;
+    }
+
+    /**
+     * Obtain the point of the model surface that was hit.
+     *
+     * @return World coordinates (x, y, z).
+     */
+    public float[] getHitPoint() {
+        return Arrays.copyOf(mHitPoint, mHitPoint.length);
+    }
+
+    /**
+     * Obtain the distance from the camera to the hit point.
+     *
+     * @return Distance in meters.
+     */
+    public float getDistance() {
+        return mDistance;
+    }
+}
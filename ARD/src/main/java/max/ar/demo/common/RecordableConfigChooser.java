@@ -0,0 +1,100 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import android.opengl.EGL14;
+import android.opengl.EGLExt;
+import android.opengl.GLSurfaceView;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+/**
+ * EGL config chooser of the GLSurfaceView for RGBA8888 with a depth buffer, which also requires
+ * EGL_RECORDABLE_ANDROID, so that {@link VideoRecorder} can create the input surface of a video
+ * encoder with the config of the screen context. If the device has no recordable config of this
+ * format, a config without the attribute is used and recording may fail.
+ */
+public class RecordableConfigChooser implements GLSurfaceView.EGLConfigChooser {
+    private static final String TAG = RecordableConfigChooser.class.getSimpleName();
+
+    private static final int COLOR_SIZE = 8;
+
+    private final int mDepthSize;
+
+    private final int mRenderableType;
+
+    /**
+     * Constructor.
+     *
+     * @param glEsVersion OpenGL ES version of the context, 2 or 3.
+     * @param depthSize Minimum number of depth bits.
+     */
+    public RecordableConfigChooser(int glEsVersion, int depthSize) {
+        mDepthSize = depthSize;
+        mRenderableType = glEsVersion >= 3 ? EGLExt.EGL_OPENGL_ES3_BIT_KHR : EGL14.EGL_OPENGL_ES2_BIT;
+    }
+
+    @Override
+    public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
+        EGLConfig config = chooseConfig(egl, display, true);
+        if (config == null) {
+            LogUtil.warn(TAG, "No recordable EGL config, recording may fail.");
+            config = chooseConfig(egl, display, false);
+        }
+        if (config == null) {
+            throw new IllegalArgumentException("No EGL config matches RGBA8888 with depth " + mDepthSize + ".");
+        }
+        return config;
+    }
+
+    private EGLConfig chooseConfig(EGL10 egl, EGLDisplay display, boolean isRecordable) {
+        // Without the recordable attribute the list ends before it.
+        int[] configAttribs = {
+            EGL10.EGL_RED_SIZE, COLOR_SIZE, EGL10.EGL_GREEN_SIZE, COLOR_SIZE, EGL10.EGL_BLUE_SIZE, COLOR_SIZE,
+            EGL10.EGL_ALPHA_SIZE, COLOR_SIZE, EGL10.EGL_DEPTH_SIZE, mDepthSize,
+            EGL10.EGL_RENDERABLE_TYPE, mRenderableType,
+            isRecordable ? EGLExt.EGL_RECORDABLE_ANDROID : EGL10.EGL_NONE, 1,
+            EGL10.EGL_NONE
+        };
+        int[] configCount = new int[1];
+        if (!egl.eglChooseConfig(display, configAttribs, null, 0, configCount) || configCount[0] <= 0) {
+            return null;
+        }
+        EGLConfig[] configs = new EGLConfig[configCount[0]];
+        if (!egl.eglChooseConfig(display, configAttribs, configs, configs.length, configCount)) {
+            return null;
+        }
+
+        // eglChooseConfig also returns deeper color formats; take the first exact RGBA8888 one.
+        int[] value = new int[1];
+        for (EGLConfig config : configs) {
+            if (getAttrib(egl, display, config, EGL10.EGL_RED_SIZE, value) == COLOR_SIZE
+                && getAttrib(egl, display, config, EGL10.EGL_GREEN_SIZE, value) == COLOR_SIZE
+                && getAttrib(egl, display, config, EGL10.EGL_BLUE_SIZE, value) == COLOR_SIZE
+                && getAttrib(egl, display, config, EGL10.EGL_ALPHA_SIZE, value) == COLOR_SIZE) {
+                return config;
+            }
+        }
+        return null;
+    }
+
+    private static int getAttrib(EGL10 egl, EGLDisplay display, EGLConfig config, int attribute, int[] value) {
+        return egl.eglGetConfigAttrib(display, config, attribute, value) ? value[0] : 0;
+    }
+}
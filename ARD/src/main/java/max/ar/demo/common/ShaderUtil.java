@@ -116,6 +116,16 @@ public class ShaderUtil {
         }
     }
 
+    /**
+     * Check whether the current context is OpenGL ES 3.0 or later. Call this on the OpenGL thread.
+     *
+     * @return true if OpenGL ES 3.0 functions can be used.
+     */
+    public static boolean isGles3() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES ") && !version.startsWith("OpenGL ES 2.");
+    }
+
     /**
      * Shader program generator.
      *
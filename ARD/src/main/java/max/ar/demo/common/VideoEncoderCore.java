@@ -0,0 +1,272 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hardware video encoder writing an MP4 file. The frames are rendered into the input surface of a
+ * MediaCodec encoder, H.264 or HEVC, and the encoded stream is drained into a MediaMuxer on a
+ * background thread, so the OpenGL thread never waits for the encoder output.
+ */
+public class VideoEncoderCore implements VideoRecorder.Target {
+    private static final String TAG = VideoEncoderCore.class.getSimpleName();
+
+    private static final int FRAME_RATE = 30;
+
+    private static final int I_FRAME_INTERVAL_SECONDS = 1;
+
+    /**
+     * Bit rate per pixel and frame; about 12 Mbit/s for 1080p at 30 fps.
+     */
+    private static final float BITS_PER_PIXEL = 0.2f;
+
+    private static final long DEQUEUE_TIMEOUT_US = 10000L;
+
+    /**
+     * Number of empty dequeues after the end of stream is signaled before the drain gives up.
+     */
+    private static final int MAX_END_OF_STREAM_RETRIES = 100;
+
+    /**
+     * Receive the end of a recording.
+     */
+    public interface Callback {
+        /**
+         * Called on the encoder thread when the file is finished.
+         *
+         * @param outputFile The video file.
+         * @param isComplete true if the file holds a playable stream.
+         */
+        void onEncodingComplete(File outputFile, boolean isComplete);
+    }
+
+    private final File mOutputFile;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final MediaCodec mEncoder;
+
+    private final MediaMuxer mMuxer;
+
+    private final Surface mInputSurface;
+
+    private final Callback mCallback;
+
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    private final HandlerThread mEncoderThread = new HandlerThread("VideoEncoder");
+
+    private final Handler mHandler;
+
+    private final AtomicBoolean mIsDrainPending = new AtomicBoolean(false);
+
+    private final Runnable mDrainTask = () -> {
+        mIsDrainPending.set(false);
+        drainEncoder(false);
+    };
+
+    private int mTrackIndex = -1;
+
+    private boolean mIsMuxerStarted = false;
+
+    private VideoEncoderCore(File outputFile, int width, int height, MediaCodec encoder, MediaMuxer muxer,
+        Surface inputSurface, Callback callback) {
+        mOutputFile = outputFile;
+        mWidth = width;
+        mHeight = height;
+        mEncoder = encoder;
+        mMuxer = muxer;
+        mInputSurface = inputSurface;
+        mCallback = callback;
+        mEncoderThread.start();
+        mHandler = new Handler(mEncoderThread.getLooper());
+    }
+
+    /**
+     * Create an encoder recording to a file. HEVC is used when the device has an HEVC encoder for
+     * the size, H.264 otherwise.
+     *
+     * @param outputFile The video file.
+     * @param width Video width; encoders need a multiple of 16.
+     * @param height Video height; encoders need a multiple of 16.
+     * @param callback Called when the file is finished, or null.
+     * @return The encoder, or empty if the device cannot encode the size.
+     */
+    public static Optional<VideoEncoderCore> create(File outputFile, int width, int height, Callback callback) {
+        Optional<MediaFormat> format = selectFormat(width, height);
+        if (!format.isPresent()) {
+            LogUtil.error(TAG, "No video encoder for " + width + "x" + height + ".");
+            return Optional.empty();
+        }
+        MediaCodec encoder = null;
+        Surface inputSurface = null;
+        MediaMuxer muxer = null;
+        try {
+            encoder = MediaCodec.createEncoderByType(format.get().getString(MediaFormat.KEY_MIME));
+            encoder.configure(format.get(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = encoder.createInputSurface();
+            muxer = new MediaMuxer(outputFile.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            encoder.start();
+            return Optional.of(new VideoEncoderCore(outputFile, width, height, encoder, muxer, inputSurface,
+                callback));
+        } catch (IOException | IllegalStateException | IllegalArgumentException exception) {
+            LogUtil.error(TAG, "Creating the video encoder failed: " + exception.getClass());
+            if (inputSurface != null) {
+                inputSurface.release();
+            }
+            if (encoder != null) {
+                encoder.release();
+            }
+            if (muxer != null) {
+                // The muxer has created the file, which holds no playable stream.
+                muxer.release();
+                if (!outputFile.delete()) {
+                    LogUtil.warn(TAG, "Deleting the unfinished video file failed.");
+                }
+            }
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<MediaFormat> selectFormat(int width, int height) {
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (String mime : new String[] {MediaFormat.MIMETYPE_VIDEO_HEVC, MediaFormat.MIMETYPE_VIDEO_AVC}) {
+            MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, (int) (BITS_PER_PIXEL * width * height * FRAME_RATE));
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_SECONDS);
+            if (codecList.findEncoderForFormat(format) != null) {
+                return Optional.of(format);
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public EGLSurface createEglSurface(EGLDisplay display, EGLConfig config) {
+        int[] surfaceAttribs = {EGL14.EGL_NONE};
+        return EGL14.eglCreateWindowSurface(display, config, mInputSurface, surfaceAttribs, 0);
+    }
+
+    @Override
+    public void onFrameSwapped() {
+        // One pending drain collects the output of every frame swapped before it runs.
+        if (mIsDrainPending.compareAndSet(false, true)) {
+            mHandler.post(mDrainTask);
+        }
+    }
+
+    @Override
+    public void release() {
+        mHandler.post(() -> {
+            boolean isComplete = false;
+            try {
+                mEncoder.signalEndOfInputStream();
+                drainEncoder(true);
+                isComplete = mIsMuxerStarted;
+                mEncoder.stop();
+                if (mIsMuxerStarted) {
+                    mMuxer.stop();
+                }
+            } catch (IllegalStateException exception) {
+                LogUtil.error(TAG, "Stopping the video encoder failed: " + exception.getClass());
+                isComplete = false;
+            } finally {
+                mEncoder.release();
+                mMuxer.release();
+                mInputSurface.release();
+                mEncoderThread.quitSafely();
+            }
+            if (mCallback != null) {
+                mCallback.onEncodingComplete(mOutputFile, isComplete);
+            }
+        });
+    }
+
+    /**
+     * Write the encoded frames available from the encoder to the muxer. Called on the encoder thread.
+     *
+     * @param isEndOfStream true to wait until the encoder has output the end of the stream.
+     */
+    private void drainEncoder(boolean isEndOfStream) {
+        int retries = 0;
+        while (true) {
+            int index = mEncoder.dequeueOutputBuffer(mBufferInfo, isEndOfStream ? DEQUEUE_TIMEOUT_US : 0L);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!isEndOfStream || ++retries > MAX_END_OF_STREAM_RETRIES) {
+                    return;
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // The format holds the codec specific data the muxer needs to start.
+                mTrackIndex = mMuxer.addTrack(mEncoder.getOutputFormat());
+                mMuxer.start();
+                mIsMuxerStarted = true;
+            } else if (index >= 0) {
+                writeSample(index);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void writeSample(int index) {
+        ByteBuffer encodedData = mEncoder.getOutputBuffer(index);
+
+        // The codec config was passed to the muxer with the output format.
+        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            mBufferInfo.size = 0;
+        }
+        if (encodedData != null && mBufferInfo.size > 0 && mIsMuxerStarted) {
+            encodedData.position(mBufferInfo.offset);
+            encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+            mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+        }
+        mEncoder.releaseOutputBuffer(index, false);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.io.File;
+import java.util.Optional;
+
+/**
+ * Record the frames rendered to the screen without reading them back to the CPU. After a frame is
+ * drawn, it is copied on the GPU with glBlitFramebuffer from the screen surface into the EGL
+ * surface of a {@link Target}, normally the input surface of a {@link VideoEncoderCore}. The
+ * target shares the EGL context of the screen. Blitting needs OpenGL ES 3.0.
+ */
+public class VideoRecorder {
+    private static final String TAG = VideoRecorder.class.getSimpleName();
+
+    /**
+     * Video encoders need sizes that are multiples of 16.
+     */
+    private static final int SIZE_ALIGNMENT = 16;
+
+    /**
+     * Surface receiving the recorded frames.
+     */
+    public interface Target {
+        /**
+         * Obtain the width of the recorded frames.
+         *
+         * @return Width in pixels.
+         */
+        int getWidth();
+
+        /**
+         * Obtain the height of the recorded frames.
+         *
+         * @return Height in pixels.
+         */
+        int getHeight();
+
+        /**
+         * Create the EGL surface the frames are copied to. Called on the OpenGL thread.
+         *
+         * @param display EGL display of the screen.
+         * @param config EGL config of the screen context.
+         * @return EGL surface, or EGL_NO_SURFACE on failure.
+         */
+        EGLSurface createEglSurface(EGLDisplay display, EGLConfig config);
+
+        /**
+         * Called on the OpenGL thread after a frame has been swapped into the surface.
+         */
+        void onFrameSwapped();
+
+        /**
+         * Called on the OpenGL thread when the recording stops, after the EGL surface is destroyed.
+         */
+        void release();
+    }
+
+    private final Object mRequestLock = new Object();
+
+    private File mRequestedFile;
+
+    private VideoEncoderCore.Callback mRequestedCallback;
+
+    private boolean mIsStopRequested = false;
+
+    private volatile boolean mIsRecording = false;
+
+    private boolean mIsBlitSupported = false;
+
+    private int mWidth = 0;
+
+    private int mHeight = 0;
+
+    private Target mTarget;
+
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+
+    private EGLSurface mScreenSurface = EGL14.EGL_NO_SURFACE;
+
+    private EGLSurface mTargetSurface = EGL14.EGL_NO_SURFACE;
+
+    /**
+     * Check whether frames can be recorded. Call this method on the OpenGL thread when the surface
+     * is created.
+     */
+    public void init() {
+        mIsBlitSupported = ShaderUtil.isGles3();
+        if (!mIsBlitSupported) {
+            LogUtil.info(TAG, "Video recording needs OpenGL ES 3.0.");
+        }
+    }
+
+    /**
+     * Set the size of the screen surface. A recording stops when the size changes, since the size
+     * of an encoder is fixed. Call this method on the OpenGL thread.
+     *
+     * @param width Surface width.
+     * @param height Surface height.
+     */
+    public void setSize(int width, int height) {
+        if (mTarget != null && (width != mWidth || height != mHeight)) {
+            stop();
+        }
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Start recording to a file with the next frame. Can be called on any thread.
+     *
+     * @param outputFile The video file.
+     * @param callback Called on the encoder thread when the file is finished, or null.
+     */
+    public void requestStart(File outputFile, VideoEncoderCore.Callback callback) {
+        synchronized (mRequestLock) {
+            mRequestedFile = outputFile;
+            mRequestedCallback = callback;
+            mIsStopRequested = false;
+        }
+    }
+
+    /**
+     * Stop recording with the next frame. Can be called on any thread.
+     */
+    public void requestStop() {
+        synchronized (mRequestLock) {
+            mRequestedFile = null;
+            mRequestedCallback = null;
+            mIsStopRequested = true;
+        }
+    }
+
+    public boolean isRecording() {
+        return mIsRecording;
+    }
+
+    /**
+     * Start copying the frames to a target. Call this method on the OpenGL thread, with the EGL
+     * context of the screen current.
+     *
+     * @param target Target surface, released here if it cannot be used.
+     * @return true if the recording started.
+     */
+    public boolean start(Target target) {
+        stop();
+        if (!mIsBlitSupported) {
+            target.release();
+            return false;
+        }
+        mDisplay = EGL14.eglGetCurrentDisplay();
+        mContext = EGL14.eglGetCurrentContext();
+        mScreenSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
+        Optional<EGLConfig> config = getContextConfig();
+        if (config.isPresent()) {
+            mTargetSurface = target.createEglSurface(mDisplay, config.get());
+        }
+        if (mTargetSurface == null || mTargetSurface == EGL14.EGL_NO_SURFACE) {
+            LogUtil.error(TAG, "Creating the recording surface failed: " + EGL14.eglGetError());
+            mTargetSurface = EGL14.EGL_NO_SURFACE;
+            target.release();
+            return false;
+        }
+        mTarget = target;
+        mIsRecording = true;
+        return true;
+    }
+
+    /**
+     * Stop copying the frames and release the target. Call this method on the OpenGL thread.
+     */
+    public void stop() {
+        if (mTarget == null) {
+            return;
+        }
+        EGL14.eglDestroySurface(mDisplay, mTargetSurface);
+        mTargetSurface = EGL14.EGL_NO_SURFACE;
+        mTarget.release();
+        mTarget = null;
+        mIsRecording = false;
+    }
+
+    /**
+     * Copy the frame just drawn to the target. Call this method on the OpenGL thread after the
+     * frame is drawn and before it is swapped to the screen.
+     */
+    public void onFrameDrawn() {
+        handleRequests();
+        if (mTarget == null) {
+            return;
+        }
+
+        // Read from the screen surface, draw to the target surface.
+        if (!EGL14.eglMakeCurrent(mDisplay, mTargetSurface, mScreenSurface, mContext)) {
+            LogUtil.error(TAG, "Making the recording surface current failed, stop recording.");
+            EGL14.eglMakeCurrent(mDisplay, mScreenSurface, mScreenSurface, mContext);
+            stop();
+            return;
+        }
+        GLES30.glBlitFramebuffer(0, 0, mWidth, mHeight, 0, 0, mTarget.getWidth(), mTarget.getHeight(),
+            GLES20.GL_COLOR_BUFFER_BIT, GLES20.GL_LINEAR);
+        EGLExt.eglPresentationTimeANDROID(mDisplay, mTargetSurface, System.nanoTime());
+        EGL14.eglSwapBuffers(mDisplay, mTargetSurface);
+        EGL14.eglMakeCurrent(mDisplay, mScreenSurface, mScreenSurface, mContext);
+        mTarget.onFrameSwapped();
+    }
+
+    private void handleRequests() {
+        File requestedFile;
+        VideoEncoderCore.Callback requestedCallback;
+        boolean isStopRequested;
+        synchronized (mRequestLock) {
+            requestedFile = mRequestedFile;
+            requestedCallback = mRequestedCallback;
+            isStopRequested = mIsStopRequested;
+            mRequestedFile = null;
+            mRequestedCallback = null;
+            mIsStopRequested = false;
+        }
+        if (isStopRequested) {
+            stop();
+        }
+        if (requestedFile == null || mWidth == 0 || mHeight == 0) {
+            return;
+        }
+        int width = Math.max(SIZE_ALIGNMENT, mWidth / SIZE_ALIGNMENT * SIZE_ALIGNMENT);
+        int height = Math.max(SIZE_ALIGNMENT, mHeight / SIZE_ALIGNMENT * SIZE_ALIGNMENT);
+        Optional<VideoEncoderCore> encoder = VideoEncoderCore.create(requestedFile, width, height, requestedCallback);
+        if (!encoder.isPresent() || !start(encoder.get())) {
+            LogUtil.error(TAG, "Video recording did not start.");
+            if (!encoder.isPresent() && requestedCallback != null) {
+                requestedCallback.onEncodingComplete(requestedFile, false);
+            }
+        }
+    }
+
+    private Optional<EGLConfig> getContextConfig() {
+        // The target surface must use the config of the context it is made current with.
+        int[] configId = new int[1];
+        if (!EGL14.eglQueryContext(mDisplay, mContext, EGL14.EGL_CONFIG_ID, configId, 0)) {
+            return Optional.empty();
+        }
+        int[] configAttribs = {EGL14.EGL_CONFIG_ID, configId[0], EGL14.EGL_NONE};
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        if (!EGL14.eglChooseConfig(mDisplay, configAttribs, 0, configs, 0, configs.length, configCount, 0)
+            || configCount[0] == 0) {
+            return Optional.empty();
+        }
+
+        // RecordableConfigChooser picks a recordable config for the GLSurfaceView where the device has one.
+        int[] isRecordable = new int[1];
+        if (!EGL14.eglGetConfigAttrib(mDisplay, configs[0], EGLExt.EGL_RECORDABLE_ANDROID, isRecordable, 0)
+            || isRecordable[0] == 0) {
+            LogUtil.warn(TAG, "The context config is not recordable, the encoder surface may fail.");
+        }
+        return Optional.of(configs[0]);
+    }
+}
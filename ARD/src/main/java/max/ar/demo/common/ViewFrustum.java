@@ -0,0 +1,105 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import android.opengl.Matrix;
+
+/**
+ * The six clip planes of a camera, extracted from its projection * view matrix, for testing
+ * world-space bounding boxes against the visible volume.
+ */
+public class ViewFrustum {
+    private static final int MATRIX_SIZE = 16;
+
+    private static final int PLANE_COUNT = 6;
+
+    private static final int PLANE_SIZE = 4;
+
+    private final float[] mViewProjectionMatrix = new float[MATRIX_SIZE];
+
+    /**
+     * Plane i is (a, b, c, d) at i * 4; a point p is inside when a * x + b * y + c * z + d >= 0.
+     */
+    private final float[] mPlanes = new float[PLANE_COUNT * PLANE_SIZE];
+
+    /**
+     * Update the planes for a camera.
+     *
+     * @param viewMatrix The viewMatrix is a 4 * 4 matrix.
+     * @param projectionMatrix The ProjectionMatrix is a 4 * 4 matrix.
+     */
+    public void update(float[] viewMatrix, float[] projectionMatrix) {
+        Matrix.multiplyMM(mViewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+        float[] m = mViewProjectionMatrix;
+
+        // Gribb-Hartmann: each plane is the fourth row of the column-major matrix plus or minus another row.
+        for (int row = 0; row < 3; row++) {
+            for (int side = 0; side < 2; side++) {
+                int plane = (row * 2 + side) * PLANE_SIZE;
+                float sign = side == 0 ? 1.0f : -1.0f;
+                for (int column = 0; column < PLANE_SIZE; column++) {
+                    mPlanes[plane + column] = m[column * PLANE_SIZE + 3] + sign * m[column * PLANE_SIZE + row];
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether a sphere is at least partly inside the frustum.
+     *
+     * @param sphere World-space sphere (centerX, centerY, centerZ, radius).
+     * @return false if the sphere is completely outside one of the planes.
+     */
+    public boolean isSphereVisible(float[] sphere) {
+        for (int plane = 0; plane < PLANE_COUNT * PLANE_SIZE; plane += PLANE_SIZE) {
+            float a = mPlanes[plane];
+            float b = mPlanes[plane + 1];
+            float c = mPlanes[plane + 2];
+
+            // The planes are not normalized, so the radius is scaled by the length of the normal.
+            float distance = a * sphere[0] + b * sphere[1] + c * sphere[2] + mPlanes[plane + 3];
+            if (distance < 0.0f && distance * distance > sphere[3] * sphere[3] * (a * a + b * b + c * c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether an axis-aligned box is at least partly inside the frustum. The test is
+     * conservative: a box near a frustum corner may be reported visible although it is not.
+     *
+     * @param box World-space bounding box (minX, minY, minZ, maxX, maxY, maxZ).
+     * @return false if the box is completely outside one of the planes.
+     */
+    public boolean isBoxVisible(float[] box) {
+        for (int plane = 0; plane < PLANE_COUNT * PLANE_SIZE; plane += PLANE_SIZE) {
+            float a = mPlanes[plane];
+            float b = mPlanes[plane + 1];
+            float c = mPlanes[plane + 2];
+
+            // Test the corner that lies furthest along the plane normal.
+            float x = a >= 0.0f ? box[3] : box[0];
+            float y = b >= 0.0f ? box[4] : box[1];
+            float z = c >= 0.0f ? box[5] : box[2];
+            if (a * x + b * y + c * z + mPlanes[plane + 3] < 0.0f) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
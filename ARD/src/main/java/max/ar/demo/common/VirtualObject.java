@@ -20,8 +20,10 @@ import android.opengl.Matrix;
 
 import com.huawei.hiar.ARAnchor;
 import com.huawei.hiar.ARPose;
+import com.huawei.hiar.ARTrackable;
 
 import java.util.Arrays;
+import java.util.function.Consumer;
 
 /**
  * This class provides attributes of the virtual object and necessary methods related to virtual object rendering.
@@ -33,7 +35,11 @@ public class VirtualObject {
 
     private static final int COLOR_SIZE = 4;
 
-    private static float SCALE_FACTOR = 0.08f;
+    private static final int BOUNDING_BOX_SIZE = 6;
+
+    private static final int AXIS_COUNT = 3;
+
+    private static final float DEFAULT_SCALE_FACTOR = 0.08f;
 
     private static final float INSTANT_SCALE_FACTOR = 0.01f;
 
@@ -61,18 +67,49 @@ public class VirtualObject {
 
     private String mObjName;
 
+    private float mModelScale = DEFAULT_SCALE_FACTOR;
+
+    /**
+     * Cached world transform: pose * model * rotation * scale. It is recomputed only after the pose,
+     * rotation or scale has changed, so drawing does not allocate.
+     */
+    private final float[] mWorldMatrix = new float[MATRIX_SIZE];
+
+    private final float[] mPoseMatrix = new float[MATRIX_SIZE];
+
+    private volatile boolean mIsTransformDirty = true;
+
+    /**
+     * Told about every change of the transform, on the thread making the change.
+     */
+    private volatile Consumer<VirtualObject> mTransformListener;
+
+    /**
+     * World-space AABB of the model, cached for the local box it was computed from.
+     */
+    private final float[] mWorldBoundingBox = new float[BOUNDING_BOX_SIZE];
+
+    private float[] mWorldBoundsSource;
+
+    private final float[] mSphereCenter = {0.0f, 0.0f, 0.0f, 1.0f};
+
+    private final float[] mWorldSphereCenter = new float[4];
+
     /**
      * The constructor initializes the pose of the virtual object in a space and the
      * color of the virtual object with the input anchor point and color parameters.
      *
      * @param arAnchor Data provided by AR Engine, describing the pose.
      * @param color4f Color data in an array with a length of 4.
+     * @param name Model name from the {@link ModelRegistry}.
+     * @param modelScale Scale of the model, see {@link ModelRegistry.Model#getScale()}.
      */
-    public VirtualObject(ARAnchor arAnchor, float[] color4f,String name) {
+    public VirtualObject(ARAnchor arAnchor, float[] color4f, String name, float modelScale) {
         mObjectColors = Arrays.copyOf(color4f, color4f.length);
         mArAnchor = arAnchor;
         mArPose = arAnchor.getPose();
         mObjName = name;
+        mModelScale = modelScale;
         initWorldModel();
     }
 
@@ -82,10 +119,12 @@ public class VirtualObject {
      *
      * @param arPose Data provided by AR Engine, describing the pose.
      * @param color4f Color data in an array with a length of 4.
+     * @param name Model name from the {@link ModelRegistry}.
      */
     public VirtualObject(ARPose arPose, float[] color4f,String name) {
         mObjectColors = Arrays.copyOf(color4f, color4f.length);
         mArPose = arPose;
+        mObjName = name;
         initInstantModel();
     }
 
@@ -105,12 +144,6 @@ public class VirtualObject {
         Matrix.rotateM(mModelMatrix, 0, ROTATION_ANGLE, 0f, 1f, 0f);
     }
 
-    private void nameScaleCheck(){
-        if(mObjName.equals("Ball")){
-            SCALE_FACTOR = 0.005F;
-        }
-        else{SCALE_FACTOR = 0.08F;};
-    }
     private void initInstantModel() {
         initScale();
 
@@ -122,11 +155,10 @@ public class VirtualObject {
 
     private void initScale() {
         // Set a scaling matrix, in which the elements of the principal diagonal is the scaling coefficient.
-        nameScaleCheck();
         Matrix.setIdentityM(mModelMatrix, 0);
-        mModelMatrix[0] = SCALE_FACTOR;
-        mModelMatrix[5] = SCALE_FACTOR;
-        mModelMatrix[10] = SCALE_FACTOR;
+        mModelMatrix[0] = mModelScale;
+        mModelMatrix[5] = mModelScale;
+        mModelMatrix[10] = mModelScale;
     }
 
     /**
@@ -140,6 +172,7 @@ public class VirtualObject {
         }
         mArAnchor = arAnchor;
         mArPose = arAnchor.getPose();
+        markTransformDirty();
     }
 
     /**
@@ -158,6 +191,16 @@ public class VirtualObject {
      */
     public void setArPose(ARPose arPose) {
         mArPose = arPose;
+        markTransformDirty();
+    }
+
+    /**
+     * Check whether the object should be drawn: its anchor is tracked, or it has no anchor.
+     *
+     * @return true if the anchor is in the TRACKING state or the object is not anchored.
+     */
+    public boolean isTracking() {
+        return mArAnchor == null || mArAnchor.getTrackingState() == ARTrackable.TrackingState.TRACKING;
     }
 
     /**
@@ -170,20 +213,18 @@ public class VirtualObject {
     }
 
     /**
-     *  Obtain the anchor information of a virtual object corresponding to the class.
+     * Obtain the color of the virtual object, inverted while it is selected.
      *
-     * @return Color of the virtual object, returned in an array with a length of 4.
+     * @param outColor Array with a length of at least 4 receiving the color.
      */
-    public float[] getColor() {
-        float[] rets = new float[4];
+    public void getColor(float[] outColor) {
         if (mIsSelectedFlag) {
-            rets[0] = 255.0f - mObjectColors[0];
-            rets[1] = 255.0f - mObjectColors[1];
-            rets[2] = 255.0f - mObjectColors[2];
-            rets[3] = mObjectColors[3];
-            return rets;
+            outColor[0] = 255.0f - mObjectColors[0];
+            outColor[1] = 255.0f - mObjectColors[1];
+            outColor[2] = 255.0f - mObjectColors[2];
+            outColor[3] = mObjectColors[3];
         } else {
-            return Arrays.copyOf(mObjectColors, mObjectColors.length);
+            System.arraycopy(mObjectColors, 0, outColor, 0, COLOR_SIZE);
         }
     }
 
@@ -205,6 +246,7 @@ public class VirtualObject {
      */
     public void updateScaleFactor(float scaleFactor) {
         mScaleFactor = INSTANT_SCALE_FACTOR * scaleFactor;
+        markTransformDirty();
     }
 
     /**
@@ -214,29 +256,114 @@ public class VirtualObject {
      */
     public void updateRotation(float angle) {
         mRotationAngle = angle;
+        markTransformDirty();
+    }
+
+    /**
+     * Obtain the ArPose matrix data of the current virtual object. Call this on the OpenGL thread.
+     *
+     * @param outMatrix Array with a length of at least 16 receiving the model matrix.
+     */
+    public void getModelArPoseMatrix(float[] outMatrix) {
+        updateTransformIfDirty();
+        System.arraycopy(mWorldMatrix, 0, outMatrix, 0, MATRIX_SIZE);
+    }
+
+    /**
+     * Obtain the world-space AABB enclosing the model box under the current transform. The result
+     * is cached until the transform changes. Call this on the OpenGL thread.
+     *
+     * @param localBoundingBox Model-space box (minX, minY, minZ, maxX, maxY, maxZ). The array must
+     *        not be modified afterwards, because it identifies the cached result.
+     * @param outBoundingBox Array with a length of at least 6 receiving the world-space box.
+     */
+    public void getWorldBoundingBox(float[] localBoundingBox, float[] outBoundingBox) {
+        updateTransformIfDirty();
+        if (mWorldBoundsSource != localBoundingBox) {
+            transformBoundingBox(localBoundingBox);
+            mWorldBoundsSource = localBoundingBox;
+        }
+        System.arraycopy(mWorldBoundingBox, 0, outBoundingBox, 0, BOUNDING_BOX_SIZE);
     }
 
     /**
-     * Obtain the ArPose matrix data of the current virtual object.
+     * Obtain the world-space sphere enclosing the model sphere under the current transform. Call
+     * this on the OpenGL thread.
      *
-     * @return ArPose matrix data of the current virtual object.
+     * @param localBoundingSphere Model-space sphere (centerX, centerY, centerZ, radius).
+     * @param outBoundingSphere Array with a length of at least 4 receiving the world-space sphere.
      */
-    public float[] getModelArPoseMatrix() {
-        float[] modelMatrix = new float[MATRIX_SIZE];
+    public void getWorldBoundingSphere(float[] localBoundingSphere, float[] outBoundingSphere) {
+        updateTransformIfDirty();
+        System.arraycopy(localBoundingSphere, 0, mSphereCenter, 0, AXIS_COUNT);
+        Matrix.multiplyMV(mWorldSphereCenter, 0, mWorldMatrix, 0, mSphereCenter, 0);
+        System.arraycopy(mWorldSphereCenter, 0, outBoundingSphere, 0, AXIS_COUNT);
+
+        // The radius grows with the largest scale of the three axes.
+        float maxScaleSquared = 0.0f;
+        for (int column = 0; column < AXIS_COUNT; column++) {
+            float x = mWorldMatrix[column * 4];
+            float y = mWorldMatrix[column * 4 + 1];
+            float z = mWorldMatrix[column * 4 + 2];
+            maxScaleSquared = Math.max(maxScaleSquared, x * x + y * y + z * z);
+        }
+        outBoundingSphere[AXIS_COUNT] = localBoundingSphere[AXIS_COUNT] * (float) Math.sqrt(maxScaleSquared);
+    }
+
+    /**
+     * Set the listener told about every change of the pose, rotation or scale, so that the scene
+     * holding the object updates only the objects that have moved.
+     *
+     * @param listener Listener called on the thread making the change, or null.
+     */
+    void setTransformListener(Consumer<VirtualObject> listener) {
+        mTransformListener = listener;
+    }
+
+    private void markTransformDirty() {
+        mIsTransformDirty = true;
+        Consumer<VirtualObject> listener = mTransformListener;
+        if (listener != null) {
+            listener.accept(this);
+        }
+    }
+
+    private void updateTransformIfDirty() {
+        if (mIsTransformDirty) {
+            // Clear the flag first so that a change made meanwhile on the UI thread is not lost.
+            mIsTransformDirty = false;
+            updateWorldMatrix();
+            mWorldBoundsSource = null;
+        }
+    }
+
+    // Transform the box center and project the extents onto the world axes (Arvo's method).
+    private void transformBoundingBox(float[] box) {
+        for (int row = 0; row < AXIS_COUNT; row++) {
+            float center = mWorldMatrix[12 + row];
+            float extent = 0.0f;
+            for (int column = 0; column < AXIS_COUNT; column++) {
+                float element = mWorldMatrix[column * 4 + row];
+                center += element * (box[column] + box[column + AXIS_COUNT]) * 0.5f;
+                extent += Math.abs(element) * (box[column + AXIS_COUNT] - box[column]) * 0.5f;
+            }
+            mWorldBoundingBox[row] = center - extent;
+            mWorldBoundingBox[row + AXIS_COUNT] = center + extent;
+        }
+    }
+
+    private void updateWorldMatrix() {
         if (mArPose != null) {
-            mArPose.toMatrix(modelMatrix, 0);
+            mArPose.toMatrix(mPoseMatrix, 0);
         } else {
-            Matrix.setIdentityM(modelMatrix, 0);
+            Matrix.setIdentityM(mPoseMatrix, 0);
         }
-        float[] rets = new float[MATRIX_SIZE];
-        Matrix.multiplyMM(rets, 0, modelMatrix, 0, mModelMatrix, 0);
+        Matrix.multiplyMM(mWorldMatrix, 0, mPoseMatrix, 0, mModelMatrix, 0);
 
         // Rotate the camera along the Y axis by a certain angle.
-        Matrix.rotateM(rets, 0, mRotationAngle, 0.0f, 1.0f, 0.0f);
-        Matrix.rotateM(rets, 0, mRotationAngleY, 1.0f, 0.0f, 0.0f);
-        Matrix.scaleM(rets, 0, mScaleFactor, mScaleFactor, mScaleFactor);
-
-        return rets;
+        Matrix.rotateM(mWorldMatrix, 0, mRotationAngle, 0.0f, 1.0f, 0.0f);
+        Matrix.rotateM(mWorldMatrix, 0, mRotationAngleY, 1.0f, 0.0f, 0.0f);
+        Matrix.scaleM(mWorldMatrix, 0, mScaleFactor, mScaleFactor, mScaleFactor);
     }
 
     /**
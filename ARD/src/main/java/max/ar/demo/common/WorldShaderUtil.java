@@ -22,9 +22,14 @@ package max.ar.demo.common;
 public class WorldShaderUtil {
     private static final String LS = System.lineSeparator();
 
+    /**
+     * The texture coordinates are quantized over their range in the mesh; inTexCoordTransform holds
+     * the offset (xy) and scale (zw) of that range, see MeshFormat.
+     */
     private static final String OBJECT_VERTEX =
         "uniform mat4 inMVPMatrix;" + LS
         + "uniform mat4 inViewMatrix;" + LS
+        + "uniform vec4 inTexCoordTransform;" + LS
         + "attribute vec3 inObjectNormalVector;" + LS
         + "attribute vec4 inObjectPosition;" + LS
         + "attribute vec2 inTexCoordinate;" + LS
@@ -34,15 +39,22 @@ public class WorldShaderUtil {
         + "void main() {" + LS
         + "    gl_Position = inMVPMatrix * inObjectPosition;" + LS
         + "    varCameraNormalVector = (inViewMatrix * vec4(inObjectNormalVector, 0.0)).xyz;" + LS
-        + "    varTexCoordinate = inTexCoordinate;" + LS
+        + "    varTexCoordinate = inTexCoordTransform.xy + inTexCoordTransform.zw * inTexCoordinate;" + LS
         + "    varCameraPos = (inViewMatrix * inObjectPosition).xyz;" + LS
         + "}";
 
+    /**
+     * The view space reflection vector is turned into world space by inCameraToWorld to sample the
+     * environment cube map, which is aligned with the world axes.
+     */
     private static final String OBJECT_FRAGMENT =
         "precision mediump float;" + LS
         + " uniform vec4 inLight;" + LS
         + "uniform vec4 inObjectColor;" + LS
         + "uniform sampler2D inObjectTexture;" + LS
+        + "uniform samplerCube inEnvironmentTexture;" + LS
+        + "uniform mat3 inCameraToWorld;" + LS
+        + "uniform float inReflectionStrength;" + LS
         + "varying vec3 varCameraPos;" + LS
         + "varying vec3 varCameraNormalVector;" + LS
         + "varying vec2 varTexCoordinate;" + LS
@@ -61,6 +73,113 @@ public class WorldShaderUtil {
         + "    float specular = inLight.w *" + LS
         + "        pow(specularStrength, 6.0);" + LS
         + "    gl_FragColor.rgb = objectColor.rgb * + diffuse + specular;" + LS
+        + "    if (inReflectionStrength > 0.0) {" + LS
+        + "        vec3 worldReflection = inCameraToWorld * reflect(normalCameraPos, viewNormal);" + LS
+        + "        vec3 reflection = textureCube(inEnvironmentTexture, worldReflection).rgb;" + LS
+        + "        gl_FragColor.rgb += inReflectionStrength * reflection;" + LS
+        + "    }" + LS
+        + "}";
+
+    /**
+     * The Lighting uniform block, see {@link LightingUniformBlock}, and the irradiance it gives for a
+     * world normal: the 9 spherical harmonics coefficients plus the primary light.
+     */
+    private static final String LIGHTING_BLOCK =
+        "layout(std140) uniform Lighting {" + LS
+        + "    vec4 inShIrradiance[9];" + LS
+        + "    vec4 inPrimaryLightDirection;" + LS
+        + "    vec4 inPrimaryLightColor;" + LS
+        + "};" + LS
+        + "vec3 getIrradiance(vec3 n) {" + LS
+        + "    vec3 irradiance = inShIrradiance[0].rgb" + LS
+        + "        + inShIrradiance[1].rgb * n.y + inShIrradiance[2].rgb * n.z + inShIrradiance[3].rgb * n.x" + LS
+        + "        + inShIrradiance[4].rgb * (n.x * n.y) + inShIrradiance[5].rgb * (n.y * n.z)" + LS
+        + "        + inShIrradiance[6].rgb * (n.z * n.z) + inShIrradiance[7].rgb * (n.x * n.z)" + LS
+        + "        + inShIrradiance[8].rgb * (n.x * n.x - n.y * n.y);" + LS
+        + "    irradiance += inPrimaryLightColor.rgb * max(dot(n, inPrimaryLightDirection.xyz), 0.0);" + LS
+        + "    return max(irradiance, vec3(0.0));" + LS
+        + "}" + LS;
+
+    /**
+     * OpenGL ES 3.0 variant of the object shader that reads the model matrix and color of each
+     * copy from per-instance attributes, so that all copies of a model are drawn in one call. The
+     * light comes from the Lighting uniform block, see {@link LightingUniformBlock}: the irradiance of
+     * the 9 spherical harmonics coefficients plus the primary light is evaluated per vertex for the
+     * world normal, leaving only texturing and the environment reflection to the fragments.
+     */
+    private static final String INSTANCED_OBJECT_VERTEX =
+        "#version 300 es" + LS
+        + "uniform mat4 inViewMatrix;" + LS
+        + "uniform mat4 inProjectionMatrix;" + LS
+        + "uniform vec4 inTexCoordTransform;" + LS
+        + LIGHTING_BLOCK
+        + "layout(location = 0) in vec4 inObjectPosition;" + LS
+        + "layout(location = 1) in vec3 inObjectNormalVector;" + LS
+        + "layout(location = 2) in vec2 inTexCoordinate;" + LS
+        + "layout(location = 3) in mat4 inInstanceModelMatrix;" + LS
+        + "layout(location = 7) in vec4 inInstanceColor;" + LS
+        + "out vec3 varCameraNormalVector;" + LS
+        + "out vec2 varTexCoordinate;" + LS
+        + "out vec3 varCameraPos;" + LS
+        + "out vec3 varIrradiance;" + LS
+        + "flat out vec4 varObjectColor;" + LS
+        + "void main() {" + LS
+        + "    vec4 worldPos = inInstanceModelMatrix * inObjectPosition;" + LS
+        + "    vec4 cameraPos = inViewMatrix * worldPos;" + LS
+        + "    gl_Position = inProjectionMatrix * cameraPos;" + LS
+        + "    vec3 n = normalize((inInstanceModelMatrix * vec4(inObjectNormalVector, 0.0)).xyz);" + LS
+        + "    varIrradiance = getIrradiance(n);" + LS
+        + "    varCameraNormalVector = (inViewMatrix * vec4(n, 0.0)).xyz;" + LS
+        + "    varTexCoordinate = inTexCoordTransform.xy + inTexCoordTransform.zw * inTexCoordinate;" + LS
+        + "    varCameraPos = cameraPos.xyz;" + LS
+        + "    varObjectColor = inInstanceColor;" + LS
+        + "}";
+
+    private static final String INSTANCED_OBJECT_FRAGMENT =
+        "#version 300 es" + LS
+        + "precision mediump float;" + LS
+        + "uniform sampler2D inObjectTexture;" + LS
+        + "uniform samplerCube inEnvironmentTexture;" + LS
+        + "uniform mat3 inCameraToWorld;" + LS
+        + "uniform float inReflectionStrength;" + LS
+        + "in vec3 varCameraPos;" + LS
+        + "in vec3 varCameraNormalVector;" + LS
+        + "in vec2 varTexCoordinate;" + LS
+        + "in vec3 varIrradiance;" + LS
+        + "flat in vec4 varObjectColor;" + LS
+        + "out vec4 fragColor;" + LS
+        + "void main() {" + LS
+        + "    vec4 texColor = texture(inObjectTexture, varTexCoordinate);" + LS
+        + "    vec4 objectColor = varObjectColor / 255.0;" + LS
+        + "    objectColor.rgb = objectColor.rgb * objectColor.a + (1.0 - objectColor.a) * texColor.rgb;" + LS
+        + "    fragColor = vec4(objectColor.rgb * varIrradiance, 1.0);" + LS
+        + "    if (inReflectionStrength > 0.0) {" + LS
+        + "        vec3 viewNormal = normalize(varCameraNormalVector);" + LS
+        + "        vec3 worldReflection = inCameraToWorld * reflect(normalize(varCameraPos), viewNormal);" + LS
+        + "        fragColor.rgb += inReflectionStrength * texture(inEnvironmentTexture, worldReflection).rgb;" + LS
+        + "    }" + LS
+        + "}";
+
+    /**
+     * Label vertices are in world space, with uv coordinates in the label atlas.
+     */
+    private static final String LABEL_ATLAS_VERTEX =
+        "uniform mat4 inVPMatrix;" + LS
+        + "attribute vec3 inPosition;" + LS
+        + "attribute vec2 inTexCoordinate;" + LS
+        + "varying vec2 varTexCoordinate;" + LS
+        + "void main() {" + LS
+        + "    varTexCoordinate = inTexCoordinate;" + LS
+        + "    gl_Position = inVPMatrix * vec4(inPosition, 1.0);" + LS
+        + "}";
+
+    private static final String LABEL_ATLAS_FRAGMENT =
+        "precision highp float;" + LS
+        + "uniform sampler2D inTexture;" + LS
+        + "varying vec2 varTexCoordinate;" + LS
+        + "void main() {" + LS
+        + "    vec4 control = texture2D(inTexture, varTexCoordinate);" + LS
+        + "    gl_FragColor = vec4(control.rgb, 1.0);" + LS
         + "}";
 
     private static final String POINTCLOUD_VERTEX =
@@ -86,6 +205,7 @@ public class WorldShaderUtil {
     private static final String MTL_VERTEX=
             "uniform mat4 inMVPMatrix;" + LS
                     + "uniform mat4 inViewMatrix;" + LS
+                    + "uniform vec4 inTexCoordTransform;" + LS
                     + "attribute vec3 inObjectNormalVector;" + LS
                     + "attribute vec4 inObjectPosition;" + LS
                     + "attribute vec2 inTexCoordinate;" + LS
@@ -103,7 +223,7 @@ public class WorldShaderUtil {
                     + "float shininess=10.0; " + LS
                     + "    gl_Position = inMVPMatrix * inObjectPosition;" + LS
                     + "    varCameraNormalVector = (inViewMatrix * vec4(inObjectNormalVector, 0.0)).xyz;" + LS
-                    + "    varTexCoordinate = inTexCoordinate;" + LS
+                    + "    varTexCoordinate = inTexCoordTransform.xy + inTexCoordTransform.zw * inTexCoordinate;" + LS
                     + "    varCameraPos = (inViewMatrix * inObjectPosition).xyz;" + LS
                     + "vDiffuse=vec4(vKd,1.0);" + LS
                     + "vSpecular=vec4(vKs,1.0);" + LS
@@ -122,6 +242,51 @@ public class WorldShaderUtil {
                     + " gl_FragColor=finalColor*vAmbient+finalColor*vSpecular+finalColor*vDiffuse;" + LS
                     + "}";
 
+    /**
+     * OpenGL ES 3.0 variant of the material shader, lit by the Lighting uniform block like the
+     * instanced object shader: the ambient color takes the constant spherical harmonics term, the
+     * diffuse color the irradiance of the world normal and the specular color a Blinn-Phong highlight
+     * of the primary light, all evaluated per vertex.
+     */
+    private static final String LIT_MTL_VERTEX =
+        "#version 300 es" + LS
+        + "uniform mat4 inMVPMatrix;" + LS
+        + "uniform mat4 inModelMatrix;" + LS
+        + "uniform vec3 inCameraPosition;" + LS
+        + "uniform vec4 inTexCoordTransform;" + LS
+        + "uniform vec3 vKa;" + LS
+        + "uniform vec3 vKd;" + LS
+        + "uniform vec3 vKs;" + LS
+        + LIGHTING_BLOCK
+        + "in vec4 inObjectPosition;" + LS
+        + "in vec3 inObjectNormalVector;" + LS
+        + "in vec2 inTexCoordinate;" + LS
+        + "out vec2 varTexCoordinate;" + LS
+        + "out vec3 varLight;" + LS
+        + "void main() {" + LS
+        + "    float shininess = 10.0;" + LS
+        + "    gl_Position = inMVPMatrix * inObjectPosition;" + LS
+        + "    vec3 worldPos = (inModelMatrix * inObjectPosition).xyz;" + LS
+        + "    vec3 n = normalize((inModelMatrix * vec4(inObjectNormalVector, 0.0)).xyz);" + LS
+        + "    vec3 lightDirection = inPrimaryLightDirection.xyz;" + LS
+        + "    vec3 halfVector = normalize(lightDirection + normalize(inCameraPosition - worldPos));" + LS
+        + "    float specular = dot(n, lightDirection) > 0.0" + LS
+        + "        ? pow(max(dot(n, halfVector), 0.0), shininess) : 0.0;" + LS
+        + "    varLight = vKa * inShIrradiance[0].rgb + vKd * getIrradiance(n)" + LS
+        + "        + vKs * inPrimaryLightColor.rgb * specular;" + LS
+        + "    varTexCoordinate = inTexCoordTransform.xy + inTexCoordTransform.zw * inTexCoordinate;" + LS
+        + "}";
+
+    private static final String LIT_MTL_FRAGMENT =
+        "#version 300 es" + LS
+        + "precision mediump float;" + LS
+        + "uniform sampler2D inObjectTexture;" + LS
+        + "in vec2 varTexCoordinate;" + LS
+        + "in vec3 varLight;" + LS
+        + "out vec4 fragColor;" + LS
+        + "void main() {" + LS
+        + "    fragColor = vec4(texture(inObjectTexture, varTexCoordinate).rgb * varLight, 1.0);" + LS
+        + "}";
 
     /**
      * Shader label program generator.
@@ -132,6 +297,15 @@ public class WorldShaderUtil {
         return ShaderUtil.createGlProgram(ShaderUtil.LABEL_VERTEX, ShaderUtil.LABEL_FRAGMENT);
     }
 
+    /**
+     * Shader program generator for labels drawn from an atlas.
+     *
+     * @return int Program handle.
+     */
+    public static int getLabelAtlasProgram() {
+        return ShaderUtil.createGlProgram(LABEL_ATLAS_VERTEX, LABEL_ATLAS_FRAGMENT);
+    }
+
     /**
      * Shader point cloud program generator.
      *
@@ -150,7 +324,26 @@ public class WorldShaderUtil {
         return ShaderUtil.createGlProgram(OBJECT_VERTEX, OBJECT_FRAGMENT);
     }
 
+    /**
+     * Shader instanced object program generator. Requires an OpenGL ES 3.0 context.
+     *
+     * @return int Program handle, or 0 if the program cannot be built.
+     */
+    protected static int getInstancedObjectProgram() {
+        return ShaderUtil.createGlProgram(INSTANCED_OBJECT_VERTEX, INSTANCED_OBJECT_FRAGMENT);
+    }
+
     public static int getMtlProgram(){
         return  ShaderUtil.createGlProgram(MTL_VERTEX, MTL_FRAGMENT);
     }
+
+    /**
+     * Shader material program generator, lit by the Lighting uniform block. Requires an OpenGL ES 3.0
+     * context.
+     *
+     * @return int Program handle, or 0 if the program cannot be built.
+     */
+    protected static int getLitMtlProgram() {
+        return ShaderUtil.createGlProgram(LIT_MTL_VERTEX, LIT_MTL_FRAGMENT);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common.mesh;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Bounding volume hierarchy over the triangles of a mesh, for ray casts in model space. The nodes
+ * and triangles are kept in flat arrays, and a ray visits O(log n) nodes for a mesh of n triangles.
+ */
+public final class MeshBvh {
+    private static final int VERTICES_PER_TRIANGLE = 3;
+
+    private static final int TRIANGLE_SIZE = 9;
+
+    private static final int NODE_BOUNDS_SIZE = 6;
+
+    private static final int MAX_LEAF_TRIANGLES = 4;
+
+    private static final int STACK_SIZE = 64;
+
+    private static final int FLOATS_PER_VERTEX = MeshFormat.VERTEX_STRIDE / Float.BYTES;
+
+    /**
+     * Smallest accepted sine of the angle between the ray and the triangle plane. The determinant is
+     * compared relative to the edge and direction lengths, so that the test does not depend on the
+     * scale of the mesh.
+     */
+    private static final double PARALLEL_EPSILON = 1.0e-6;
+
+    /**
+     * Triangle corners (x0, y0, z0, x1, ..., z2), in the order of the leaves.
+     */
+    private final float[] mTriangles;
+
+    private final float[] mNodeBounds;
+
+    /**
+     * For a leaf, the first triangle; for an inner node, the index of the left child, the right
+     * child being the next node.
+     */
+    private final int[] mNodeFirst;
+
+    /**
+     * Number of triangles of a leaf, 0 for an inner node.
+     */
+    private final int[] mNodeTriangles;
+
+    private int mNodeCount;
+
+    private MeshBvh(int triangleCount) {
+        mTriangles = new float[triangleCount * TRIANGLE_SIZE];
+        int maxNodes = Math.max(1, 2 * triangleCount - 1);
+        mNodeBounds = new float[maxNodes * NODE_BOUNDS_SIZE];
+        mNodeFirst = new int[maxNodes];
+        mNodeTriangles = new int[maxNodes];
+    }
+
+    /**
+     * Build the hierarchy of a mesh. The work is proportional to n log n, so call this on a worker thread.
+     *
+     * @param mesh Mesh in the layout of {@link MeshFormat}.
+     * @return Hierarchy of the triangles of all draw ranges.
+     */
+    public static MeshBvh build(MeshData mesh) {
+        int triangleCount = mesh.getIndexCount() / VERTICES_PER_TRIANGLE;
+        FloatBuffer vertices = mesh.getVertices().asFloatBuffer();
+        ByteBuffer indices = mesh.getIndices();
+        boolean isIndex32Bit = mesh.getIndexType() == MeshFormat.INDEX_TYPE_UNSIGNED_INT;
+
+        // Gather the corners of each triangle, with the base vertex of its range applied.
+        float[] corners = new float[triangleCount * TRIANGLE_SIZE];
+        int written = 0;
+        for (int r = 0; r < mesh.getDrawRangeCount(); r++) {
+            MeshData.DrawRange range = mesh.getDrawRange(r);
+            int end = range.getFirstIndex() + range.getIndexCount();
+            for (int i = range.getFirstIndex(); i < end; i++) {
+                int index = isIndex32Bit ? indices.getInt(i * Integer.BYTES)
+                    : indices.getShort(i * Short.BYTES) & 0xFFFF;
+                int vertex = (range.getBaseVertex() + index) * FLOATS_PER_VERTEX;
+                corners[written++] = vertices.get(vertex);
+                corners[written++] = vertices.get(vertex + 1);
+                corners[written++] = vertices.get(vertex + 2);
+            }
+        }
+
+        MeshBvh bvh = new MeshBvh(triangleCount);
+        int[] order = new int[triangleCount];
+        float[] centroids = new float[triangleCount * VERTICES_PER_TRIANGLE];
+        for (int t = 0; t < triangleCount; t++) {
+            order[t] = t;
+            for (int axis = 0; axis < VERTICES_PER_TRIANGLE; axis++) {
+                int base = t * TRIANGLE_SIZE + axis;
+                centroids[t * VERTICES_PER_TRIANGLE + axis] =
+                    (corners[base] + corners[base + 3] + corners[base + 6]) / VERTICES_PER_TRIANGLE;
+            }
+        }
+        bvh.mNodeCount = 1;
+        bvh.buildNode(0, 0, triangleCount, corners, centroids, order);
+        for (int t = 0; t < triangleCount; t++) {
+            System.arraycopy(corners, order[t] * TRIANGLE_SIZE, bvh.mTriangles, t * TRIANGLE_SIZE, TRIANGLE_SIZE);
+        }
+        return bvh;
+    }
+
+    // Fit the node to the triangles [first, first + count) and split them at the median of the longest axis.
+    private void buildNode(int node, int first, int count, float[] corners, float[] centroids, int[] order) {
+        int bounds = node * NODE_BOUNDS_SIZE;
+        for (int axis = 0; axis < VERTICES_PER_TRIANGLE; axis++) {
+            mNodeBounds[bounds + axis] = Float.MAX_VALUE;
+            mNodeBounds[bounds + axis + VERTICES_PER_TRIANGLE] = -Float.MAX_VALUE;
+        }
+        for (int i = first; i < first + count; i++) {
+            int base = order[i] * TRIANGLE_SIZE;
+            for (int corner = 0; corner < TRIANGLE_SIZE; corner += VERTICES_PER_TRIANGLE) {
+                for (int axis = 0; axis < VERTICES_PER_TRIANGLE; axis++) {
+                    float value = corners[base + corner + axis];
+                    mNodeBounds[bounds + axis] = Math.min(mNodeBounds[bounds + axis], value);
+                    mNodeBounds[bounds + axis + VERTICES_PER_TRIANGLE] =
+                        Math.max(mNodeBounds[bounds + axis + VERTICES_PER_TRIANGLE], value);
+                }
+            }
+        }
+        if (count <= MAX_LEAF_TRIANGLES) {
+            mNodeFirst[node] = first;
+            mNodeTriangles[node] = count;
+            return;
+        }
+        int splitAxis = 0;
+        float longest = -1.0f;
+        for (int axis = 0; axis < VERTICES_PER_TRIANGLE; axis++) {
+            float extent = mNodeBounds[bounds + axis + VERTICES_PER_TRIANGLE] - mNodeBounds[bounds + axis];
+            if (extent > longest) {
+                longest = extent;
+                splitAxis = axis;
+            }
+        }
+        int half = count / 2;
+        selectNth(order, centroids, splitAxis, first, first + count - 1, first + half);
+
+        int left = mNodeCount;
+        mNodeCount += 2;
+        mNodeFirst[node] = left;
+        mNodeTriangles[node] = 0;
+        buildNode(left, first, half, corners, centroids, order);
+        buildNode(left + 1, first + half, count - half, corners, centroids, order);
+    }
+
+    // Partially sort order[low..high] so that the element at nth has the nth smallest centroid on the axis.
+    private static void selectNth(int[] order, float[] centroids, int axis, int low, int high, int nth) {
+        while (low < high) {
+            float pivot = centroids[order[(low + high) >>> 1] * VERTICES_PER_TRIANGLE + axis];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (centroids[order[i] * VERTICES_PER_TRIANGLE + axis] < pivot) {
+                    i++;
+                }
+                while (centroids[order[j] * VERTICES_PER_TRIANGLE + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (nth <= j) {
+                high = j;
+            } else if (nth >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Create the traversal stack of {@link #intersectRay}. A hierarchy is shared by the displays of a
+     * cached mesh, so each caller keeps its own stack.
+     *
+     * @return Stack for the ray casts of one thread.
+     */
+    public static int[] createStack() {
+        return new int[STACK_SIZE];
+    }
+
+    /**
+     * Find the nearest triangle hit by a ray. The hierarchy is not modified, so rays can be cast from
+     * several threads, each with its own stack.
+     *
+     * @param origin Ray origin (x, y, z) in model space.
+     * @param direction Ray direction (x, y, z) in model space, not necessarily normalized.
+     * @param maxDistance Hits at or beyond this ray parameter are ignored.
+     * @param stack Stack obtained with {@link #createStack()}.
+     * @return Ray parameter t of the nearest hit, so that the hit point is origin + t * direction,
+     *         or Float.POSITIVE_INFINITY if the ray misses.
+     */
+    public float intersectRay(float[] origin, float[] direction, float maxDistance, int[] stack) {
+        int triangle = findNearestTriangle(origin, direction, maxDistance, stack);
+        return triangle < 0 ? Float.POSITIVE_INFINITY : intersectTriangle(triangle * TRIANGLE_SIZE, origin, direction);
+    }
+
+    /**
+     * Find the nearest triangle hit by a ray, as {@link #intersectRay} does.
+     *
+     * @param origin Ray origin (x, y, z) in model space.
+     * @param direction Ray direction (x, y, z) in model space, not necessarily normalized.
+     * @param maxDistance Hits at or beyond this ray parameter are ignored.
+     * @param stack Stack obtained with {@link #createStack()}.
+     * @return Index of the triangle in the order of the leaves, for {@link #getTriangle}, or -1 if
+     *         the ray misses.
+     */
+    int findNearestTriangle(float[] origin, float[] direction, float maxDistance, int[] stack) {
+        if (mTriangles.length == 0) {
+            return -1;
+        }
+        float inverseX = getInverse(direction[0]);
+        float inverseY = getInverse(direction[1]);
+        float inverseZ = getInverse(direction[2]);
+        float nearest = maxDistance;
+        int nearestTriangle = -1;
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            if (intersectBounds(node, origin, inverseX, inverseY, inverseZ) >= nearest) {
+                continue;
+            }
+            if (mNodeTriangles[node] == 0) {
+                // Visit the nearer child first, so that farther subtrees are pruned by its hit.
+                int left = mNodeFirst[node];
+                float leftDistance = intersectBounds(left, origin, inverseX, inverseY, inverseZ);
+                float rightDistance = intersectBounds(left + 1, origin, inverseX, inverseY, inverseZ);
+                boolean isLeftNearer = leftDistance <= rightDistance;
+                stack[stackSize++] = isLeftNearer ? left + 1 : left;
+                stack[stackSize++] = isLeftNearer ? left : left + 1;
+                continue;
+            }
+            int end = mNodeFirst[node] + mNodeTriangles[node];
+            for (int t = mNodeFirst[node]; t < end; t++) {
+                float distance = intersectTriangle(t * TRIANGLE_SIZE, origin, direction);
+                if (distance < nearest) {
+                    nearest = distance;
+                    nearestTriangle = t;
+                }
+            }
+        }
+        return nearestTriangle;
+    }
+
+    /**
+     * Obtain the corners of a triangle.
+     *
+     * @param triangle Index of the triangle in the order of the leaves.
+     * @param outCorners Array with a length of at least 9 receiving (x0, y0, z0, x1, ..., z2).
+     */
+    void getTriangle(int triangle, float[] outCorners) {
+        System.arraycopy(mTriangles, triangle * TRIANGLE_SIZE, outCorners, 0, TRIANGLE_SIZE);
+    }
+
+    // A zero component would give 0 * infinity = NaN in the slab test when the origin lies on a face
+    // of a box. The largest finite value keeps the products finite or infinite, never NaN.
+    private static float getInverse(float component) {
+        return component != 0.0f ? 1.0f / component : Math.copySign(Float.MAX_VALUE, component);
+    }
+
+    // Slab test: the entry parameter of the ray into the node box, or infinity if it misses.
+    private float intersectBounds(int node, float[] origin, float inverseX, float inverseY, float inverseZ) {
+        int bounds = node * NODE_BOUNDS_SIZE;
+        float t1 = (mNodeBounds[bounds] - origin[0]) * inverseX;
+        float t2 = (mNodeBounds[bounds + 3] - origin[0]) * inverseX;
+        float near = Math.min(t1, t2);
+        float far = Math.max(t1, t2);
+        t1 = (mNodeBounds[bounds + 1] - origin[1]) * inverseY;
+        t2 = (mNodeBounds[bounds + 4] - origin[1]) * inverseY;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        t1 = (mNodeBounds[bounds + 2] - origin[2]) * inverseZ;
+        t2 = (mNodeBounds[bounds + 5] - origin[2]) * inverseZ;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        if (far < Math.max(near, 0.0f)) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return Math.max(near, 0.0f);
+    }
+
+    // Moller-Trumbore: the ray parameter of the hit with both faces of the triangle, or infinity.
+    private float intersectTriangle(int base, float[] origin, float[] direction) {
+        float[] v = mTriangles;
+        float edge1X = v[base + 3] - v[base];
+        float edge1Y = v[base + 4] - v[base + 1];
+        float edge1Z = v[base + 5] - v[base + 2];
+        float edge2X = v[base + 6] - v[base];
+        float edge2Y = v[base + 7] - v[base + 1];
+        float edge2Z = v[base + 8] - v[base + 2];
+        float pX = direction[1] * edge2Z - direction[2] * edge2Y;
+        float pY = direction[2] * edge2X - direction[0] * edge2Z;
+        float pZ = direction[0] * edge2Y - direction[1] * edge2X;
+        float determinant = edge1X * pX + edge1Y * pY + edge1Z * pZ;
+
+        // |determinant| <= |edge1| * |edge2| * |direction|; squared in double, which neither
+        // underflows for tiny meshes nor needs a square root. Degenerate triangles are rejected too.
+        double lengthsSquared = (double) (edge1X * edge1X + edge1Y * edge1Y + edge1Z * edge1Z)
+            * (edge2X * edge2X + edge2Y * edge2Y + edge2Z * edge2Z)
+            * (direction[0] * direction[0] + direction[1] * direction[1] + direction[2] * direction[2]);
+        if ((double) determinant * determinant <= PARALLEL_EPSILON * PARALLEL_EPSILON * lengthsSquared) {
+            return Float.POSITIVE_INFINITY;
+        }
+        float inverseDeterminant = 1.0f / determinant;
+        float sX = origin[0] - v[base];
+        float sY = origin[1] - v[base + 1];
+        float sZ = origin[2] - v[base + 2];
+        float u = (sX * pX + sY * pY + sZ * pZ) * inverseDeterminant;
+        if (u < 0.0f || u > 1.0f) {
+            return Float.POSITIVE_INFINITY;
+        }
+        float qX = sY * edge1Z - sZ * edge1Y;
+        float qY = sZ * edge1X - sX * edge1Z;
+        float qZ = sX * edge1Y - sY * edge1X;
+        float w = (direction[0] * qX + direction[1] * qY + direction[2] * qZ) * inverseDeterminant;
+        if (w < 0.0f || u + w > 1.0f) {
+            return Float.POSITIVE_INFINITY;
+        }
+        float distance = (edge2X * qX + edge2Y * qY + edge2Z * qZ) * inverseDeterminant;
+        return distance >= 0.0f ? distance : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Obtain the memory held by the hierarchy.
+     *
+     * @return Size in bytes of the triangle and node arrays.
+     */
+    public long getByteSize() {
+        return (long) Float.BYTES * (mTriangles.length + mNodeBounds.length)
+            + (long) Integer.BYTES * (mNodeFirst.length + mNodeTriangles.length);
+    }
+
+    public int getTriangleCount() {
+        return mTriangles.length / TRIANGLE_SIZE;
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common.mesh;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * CPU-side mesh in the layout described by {@link MeshFormat}. The vertex and index buffers are
+ * views of the source buffer, so a memory-mapped file is uploaded without any intermediate copy.
+ */
+public class MeshData {
+    private static final int AXIS_COUNT = 3;
+
+    private static final int VERTICES_PER_TRIANGLE = 3;
+
+    private static final int BOUNDING_BOX_SIZE = 6;
+
+    private static final int BOUNDING_SPHERE_SIZE = 4;
+
+    private static final int FLOATS_PER_VERTEX = MeshFormat.VERTEX_STRIDE / Float.BYTES;
+
+    private static final int BOUNDS_BLOCK_VERTICES = 1024;
+
+    private static final float SPHERE_TOLERANCE = 1.0e-5f;
+
+    private final ByteBuffer mVertices;
+
+    private final ByteBuffer mIndices;
+
+    private final int mVertexCount;
+
+    private final int mIndexCount;
+
+    private final int mIndexType;
+
+    private final float[] mBoundingBox = new float[BOUNDING_BOX_SIZE];
+
+    private final float[] mBoundingSphere = new float[BOUNDING_SPHERE_SIZE];
+
+    private final float[] mTexCoordTransform = new float[MeshFormat.TEX_COORD_TRANSFORM_SIZE];
+
+    private final DrawRange[] mDrawRanges;
+
+    MeshData(ByteBuffer vertices, ByteBuffer indices, int vertexCount, int indexCount, int indexType,
+        float[] texCoordTransform, DrawRange[] drawRanges) {
+        mVertices = vertices;
+        mIndices = indices;
+        mVertexCount = vertexCount;
+        mIndexCount = indexCount;
+        mIndexType = indexType;
+        System.arraycopy(texCoordTransform, 0, mTexCoordTransform, 0, mTexCoordTransform.length);
+        mDrawRanges = drawRanges;
+    }
+
+    /**
+     * Parse a buffer holding a complete binary mesh file. The header is checked against the buffer
+     * length, so a truncated or corrupted file is rejected instead of being read out of bounds.
+     *
+     * @param source Mesh file content, for example a MappedByteBuffer of the asset.
+     * @return Mesh whose vertex and index buffers share memory with the source.
+     * @throws IllegalArgumentException If the buffer is not a valid mesh file.
+     */
+    public static MeshData parse(ByteBuffer source) {
+        ByteBuffer header = source.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (header.remaining() < MeshFormat.HEADER_SIZE || header.getInt() != MeshFormat.MAGIC) {
+            throw new IllegalArgumentException("Not a binary mesh file.");
+        }
+        int version = header.getInt();
+        if (version != MeshFormat.VERSION) {
+            throw new IllegalArgumentException("Unsupported mesh version " + version);
+        }
+        int flags = header.getInt();
+        int vertexCount = header.getInt();
+        int indexCount = header.getInt();
+        int stride = header.getInt();
+        if (stride != MeshFormat.VERTEX_STRIDE) {
+            throw new IllegalArgumentException("Unsupported vertex stride " + stride);
+        }
+        float[] boundingBox = new float[BOUNDING_BOX_SIZE];
+        for (int i = 0; i < boundingBox.length; i++) {
+            boundingBox[i] = header.getFloat();
+        }
+        int vertexOffset = header.getInt();
+        int indexOffset = header.getInt();
+        float[] texCoordTransform = new float[MeshFormat.TEX_COORD_TRANSFORM_SIZE];
+        for (int i = 0; i < texCoordTransform.length; i++) {
+            texCoordTransform[i] = header.getFloat();
+        }
+
+        boolean isIndex32Bit = (flags & MeshFormat.FLAG_INDEX_32BIT) != 0;
+        int indexSize = isIndex32Bit ? Integer.BYTES : Short.BYTES;
+        checkLayout(source.limit(), vertexCount, indexCount, vertexOffset, indexOffset, indexSize);
+        checkBoundingBox(boundingBox, vertexCount);
+        int indexBytes = indexCount * indexSize;
+        ByteBuffer indices = slice(source, indexOffset, indexBytes);
+        checkIndices(indices, indexCount, isIndex32Bit, vertexCount);
+        MeshData meshData = new MeshData(slice(source, vertexOffset, vertexCount * stride),
+            indices, vertexCount, indexCount,
+            isIndex32Bit ? MeshFormat.INDEX_TYPE_UNSIGNED_INT : MeshFormat.INDEX_TYPE_UNSIGNED_SHORT,
+            texCoordTransform, new DrawRange[] {new DrawRange(0, 0, indexCount)});
+        System.arraycopy(boundingBox, 0, meshData.mBoundingBox, 0, BOUNDING_BOX_SIZE);
+        meshData.computeBoundingSphere();
+        return meshData;
+    }
+
+    // The sizes are computed in long so that huge counts in a corrupted header cannot overflow.
+    private static void checkLayout(int length, int vertexCount, int indexCount, int vertexOffset,
+        int indexOffset, int indexSize) {
+        if (vertexCount < 0 || indexCount < 0 || indexCount % VERTICES_PER_TRIANGLE != 0
+            || (vertexCount == 0 && indexCount > 0)) {
+            throw new IllegalArgumentException("Invalid mesh counts " + vertexCount + ", " + indexCount);
+        }
+        long vertexEnd = (long) vertexOffset + (long) vertexCount * MeshFormat.VERTEX_STRIDE;
+        long indexEnd = (long) indexOffset + (long) indexCount * indexSize;
+        if (vertexOffset < MeshFormat.HEADER_SIZE || vertexEnd > indexOffset || indexEnd > length) {
+            throw new IllegalArgumentException("Truncated mesh file.");
+        }
+    }
+
+    // An index past the vertices would be an out-of-range fetch in glDrawElements and in the BVH.
+    private static void checkIndices(ByteBuffer indices, int indexCount, boolean isIndex32Bit, int vertexCount) {
+        for (int i = 0; i < indexCount; i++) {
+            long index = isIndex32Bit ? Integer.toUnsignedLong(indices.getInt(i * Integer.BYTES))
+                : Short.toUnsignedInt(indices.getShort(i * Short.BYTES));
+            if (index >= vertexCount) {
+                throw new IllegalArgumentException("Mesh index " + index + " out of range " + vertexCount);
+            }
+        }
+    }
+
+    private static void checkBoundingBox(float[] boundingBox, int vertexCount) {
+        if (vertexCount == 0) {
+            return;
+        }
+        for (int axis = 0; axis < AXIS_COUNT; axis++) {
+            float min = boundingBox[axis];
+            float max = boundingBox[axis + AXIS_COUNT];
+            if (!Float.isFinite(min) || !Float.isFinite(max) || min > max) {
+                throw new IllegalArgumentException("Invalid mesh bounding box.");
+            }
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer source, int offset, int length) {
+        ByteBuffer duplicate = source.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Obtain the interleaved vertex data.
+     *
+     * @return Read-only view positioned at 0.
+     */
+    public ByteBuffer getVertices() {
+        return mVertices.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Obtain the index data.
+     *
+     * @return Read-only view positioned at 0.
+     */
+    public ByteBuffer getIndices() {
+        return mIndices.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    public int getIndexCount() {
+        return mIndexCount;
+    }
+
+    /**
+     * Obtain the GL type of the indices.
+     *
+     * @return GL_UNSIGNED_SHORT or GL_UNSIGNED_INT.
+     */
+    public int getIndexType() {
+        return mIndexType;
+    }
+
+    /**
+     * Obtain the size of one index in bytes.
+     *
+     * @return 2 for GL_UNSIGNED_SHORT, 4 for GL_UNSIGNED_INT.
+     */
+    public int getIndexSize() {
+        return mIndexType == MeshFormat.INDEX_TYPE_UNSIGNED_INT ? Integer.BYTES : Short.BYTES;
+    }
+
+    /**
+     * Obtain the number of draw calls needed to render the mesh. A mesh has more than one range only
+     * after it has been split by {@link MeshSplitter} for devices without 32-bit index support.
+     *
+     * @return Number of draw ranges.
+     */
+    public int getDrawRangeCount() {
+        return mDrawRanges.length;
+    }
+
+    /**
+     * Obtain a draw range of the mesh.
+     *
+     * @param index Range index, less than {@link #getDrawRangeCount()}.
+     * @return Draw range.
+     */
+    public DrawRange getDrawRange(int index) {
+        return mDrawRanges[index];
+    }
+
+    /**
+     * Obtain the AABB bounding box of the mesh.
+     *
+     * @return Bounding box (minX, minY, minZ, maxX, maxY, maxZ).
+     */
+    public float[] getBoundingBox() {
+        return Arrays.copyOf(mBoundingBox, mBoundingBox.length);
+    }
+
+    /**
+     * Obtain the bounding sphere of the mesh.
+     *
+     * @return Bounding sphere (centerX, centerY, centerZ, radius).
+     */
+    public float[] getBoundingSphere() {
+        return Arrays.copyOf(mBoundingSphere, mBoundingSphere.length);
+    }
+
+    /**
+     * Obtain the transform restoring the texture coordinates from their quantized values.
+     *
+     * @return Transform (offsetU, offsetV, scaleU, scaleV): uv = offset + scale * stored value.
+     */
+    public float[] getTexCoordTransform() {
+        return Arrays.copyOf(mTexCoordTransform, mTexCoordTransform.length);
+    }
+
+    void copyBounds(MeshData source) {
+        System.arraycopy(source.mBoundingBox, 0, mBoundingBox, 0, BOUNDING_BOX_SIZE);
+        System.arraycopy(source.mBoundingSphere, 0, mBoundingSphere, 0, BOUNDING_SPHERE_SIZE);
+    }
+
+    // One pass over the positions, read in blocks into a flat array, growing a sphere to enclose
+    // every point outside it. The smaller of that sphere and the one around the AABB of the header is kept.
+    private void computeBoundingSphere() {
+        if (mVertexCount == 0) {
+            return;
+        }
+        FloatBuffer floats = getVertices().asFloatBuffer();
+        float[] block = new float[BOUNDS_BLOCK_VERTICES * FLOATS_PER_VERTEX];
+        float centerX = floats.get(0);
+        float centerY = floats.get(1);
+        float centerZ = floats.get(2);
+        float radius = 0.0f;
+        for (int first = 0; first < mVertexCount; first += BOUNDS_BLOCK_VERTICES) {
+            int length = Math.min(BOUNDS_BLOCK_VERTICES, mVertexCount - first) * FLOATS_PER_VERTEX;
+            floats.get(block, 0, length);
+            for (int i = 0; i < length; i += FLOATS_PER_VERTEX) {
+                float dx = block[i] - centerX;
+                float dy = block[i + 1] - centerY;
+                float dz = block[i + 2] - centerZ;
+                float distanceSquared = dx * dx + dy * dy + dz * dz;
+                if (distanceSquared > radius * radius) {
+                    // Move the center towards the point so that the new sphere touches it and the old one.
+                    float distance = (float) Math.sqrt(distanceSquared);
+                    float newRadius = (radius + distance) * 0.5f;
+                    float shift = (newRadius - radius) / distance;
+                    centerX += dx * shift;
+                    centerY += dy * shift;
+                    centerZ += dz * shift;
+                    radius = newRadius;
+                }
+            }
+        }
+
+        float halfX = (mBoundingBox[3] - mBoundingBox[0]) * 0.5f;
+        float halfY = (mBoundingBox[4] - mBoundingBox[1]) * 0.5f;
+        float halfZ = (mBoundingBox[5] - mBoundingBox[2]) * 0.5f;
+        float boxRadius = (float) Math.sqrt(halfX * halfX + halfY * halfY + halfZ * halfZ);
+
+        // Absorb the rounding of the incremental updates, which may leave a point just outside.
+        radius *= 1.0f + SPHERE_TOLERANCE;
+        if (boxRadius < radius) {
+            centerX = mBoundingBox[0] + halfX;
+            centerY = mBoundingBox[1] + halfY;
+            centerZ = mBoundingBox[2] + halfZ;
+            radius = boxRadius;
+        }
+        mBoundingSphere[0] = centerX;
+        mBoundingSphere[1] = centerY;
+        mBoundingSphere[2] = centerZ;
+        mBoundingSphere[3] = radius;
+    }
+
+    /**
+     * One glDrawElements call: the indices of the range are relative to its base vertex, which is
+     * applied through the attribute pointer offsets because OpenGL ES 2.0 has no base vertex draw.
+     */
+    public static class DrawRange {
+        private final int mBaseVertex;
+
+        private final int mFirstIndex;
+
+        private final int mIndexCount;
+
+        DrawRange(int baseVertex, int firstIndex, int indexCount) {
+            mBaseVertex = baseVertex;
+            mFirstIndex = firstIndex;
+            mIndexCount = indexCount;
+        }
+
+        public int getBaseVertex() {
+            return mBaseVertex;
+        }
+
+        public int getFirstIndex() {
+            return mFirstIndex;
+        }
+
+        public int getIndexCount() {
+            return mIndexCount;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common.mesh;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the precompiled binary mesh file (*.mesh). The file is a fixed header followed by
+ * the interleaved vertex array and the index array, so it can be handed to glBufferData as is.
+ * This class has no Android dependency because the build script uses it to generate the assets.
+ * <p>
+ * Header (little endian): magic, version, flags, vertex count, index count, vertex stride,
+ * AABB (minX, minY, minZ, maxX, maxY, maxZ), vertex data offset, index data offset,
+ * texture coordinate transform (offsetU, offsetV, scaleU, scaleV).
+ * <p>
+ * Vertex (20 bytes): position 3 x float, normal 3 x signed normalized byte + 1 byte padding,
+ * texture coordinate 2 x unsigned normalized short. The texture coordinates are quantized over their
+ * range in the mesh, so that tiled coordinates outside [0, 1] are kept; the shaders restore them as
+ * offset + scale * stored value.
+ */
+public final class MeshFormat {
+    /**
+     * File name suffix of the precompiled mesh assets.
+     */
+    public static final String FILE_SUFFIX = ".mesh";
+
+    /**
+     * "ARMS" in little endian.
+     */
+    public static final int MAGIC = 0x534D5241;
+
+    /**
+     * Current version of the format.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Set in the header flags when the indices are stored as 32-bit integers.
+     */
+    public static final int FLAG_INDEX_32BIT = 1;
+
+    /**
+     * Size of the header in bytes.
+     */
+    public static final int HEADER_SIZE = 80;
+
+    /**
+     * Size of one interleaved vertex in bytes.
+     */
+    public static final int VERTEX_STRIDE = 20;
+
+    /**
+     * Byte offset of the position (3 x float) in a vertex.
+     */
+    public static final int POSITION_OFFSET = 0;
+
+    /**
+     * Byte offset of the normal vector (3 x byte) in a vertex.
+     */
+    public static final int NORMAL_OFFSET = 12;
+
+    /**
+     * Byte offset of the texture coordinate (2 x unsigned short) in a vertex.
+     */
+    public static final int TEX_COORD_OFFSET = 16;
+
+    /**
+     * Number of floats of the texture coordinate transform: offset (u, v) and scale (u, v).
+     */
+    public static final int TEX_COORD_TRANSFORM_SIZE = 4;
+
+    /**
+     * Same value as GLES20.GL_UNSIGNED_SHORT.
+     */
+    public static final int INDEX_TYPE_UNSIGNED_SHORT = 0x1403;
+
+    /**
+     * Same value as GLES20.GL_UNSIGNED_INT.
+     */
+    public static final int INDEX_TYPE_UNSIGNED_INT = 0x1405;
+
+    /**
+     * Largest vertex count that can be addressed by 16-bit indices.
+     */
+    public static final int MAX_SHORT_INDEX_VERTICES = 65536;
+
+    private static final int POSITION_SIZE = 3;
+
+    private static final int TEX_COORD_SIZE = 2;
+
+    private static final int BOUNDING_BOX_SIZE = 6;
+
+    private static final float BYTE_SCALE = 127.0f;
+
+    private static final float SHORT_SCALE = 65535.0f;
+
+    private MeshFormat() {
+    }
+
+    /**
+     * Encode a renderable mesh into the binary mesh format.
+     *
+     * @param positions Vertex positions (x, y, z).
+     * @param normals Vertex normal vectors (x, y, z), one per vertex.
+     * @param texCoords Texture coordinates (u, v), one per vertex.
+     * @param indices Triangle list indices.
+     * @return Little-endian buffer holding the complete file, positioned at 0.
+     */
+    public static ByteBuffer encode(float[] positions, float[] normals, float[] texCoords, int[] indices) {
+        int vertexCount = positions.length / POSITION_SIZE;
+        boolean isIndex32Bit = vertexCount > MAX_SHORT_INDEX_VERTICES;
+        int indexSize = isIndex32Bit ? Integer.BYTES : Short.BYTES;
+        int indexOffset = HEADER_SIZE + vertexCount * VERTEX_STRIDE;
+        int totalSize = indexOffset + align4(indices.length * indexSize);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(totalSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(isIndex32Bit ? FLAG_INDEX_32BIT : 0);
+        buffer.putInt(vertexCount);
+        buffer.putInt(indices.length);
+        buffer.putInt(VERTEX_STRIDE);
+        for (float value : calculateBoundingBox(positions)) {
+            buffer.putFloat(value);
+        }
+        buffer.putInt(HEADER_SIZE);
+        buffer.putInt(indexOffset);
+        float[] texCoordTransform = calculateTexCoordTransform(texCoords);
+        for (float value : texCoordTransform) {
+            buffer.putFloat(value);
+        }
+
+        buffer.position(HEADER_SIZE);
+        for (int i = 0; i < vertexCount; i++) {
+            buffer.putFloat(positions[i * POSITION_SIZE]);
+            buffer.putFloat(positions[i * POSITION_SIZE + 1]);
+            buffer.putFloat(positions[i * POSITION_SIZE + 2]);
+            putNormal(buffer, normals, i);
+            for (int axis = 0; axis < TEX_COORD_SIZE; axis++) {
+                buffer.putShort(quantizeUnsigned(texCoords, i * TEX_COORD_SIZE + axis, texCoordTransform[axis],
+                    texCoordTransform[axis + TEX_COORD_SIZE]));
+            }
+        }
+        for (int index : indices) {
+            if (isIndex32Bit) {
+                buffer.putInt(index);
+            } else {
+                buffer.putShort((short) index);
+            }
+        }
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * Calculate the AABB bounding box of a position array.
+     *
+     * @param positions Vertex positions (x, y, z).
+     * @return Bounding box (minX, minY, minZ, maxX, maxY, maxZ).
+     */
+    public static float[] calculateBoundingBox(float[] positions) {
+        float[] boundingBox = new float[BOUNDING_BOX_SIZE];
+        if (positions.length < POSITION_SIZE) {
+            return boundingBox;
+        }
+        for (int axis = 0; axis < POSITION_SIZE; axis++) {
+            boundingBox[axis] = positions[axis];
+            boundingBox[axis + POSITION_SIZE] = positions[axis];
+        }
+        for (int i = POSITION_SIZE; i + POSITION_SIZE <= positions.length; i += POSITION_SIZE) {
+            for (int axis = 0; axis < POSITION_SIZE; axis++) {
+                float value = positions[i + axis];
+                boundingBox[axis] = Math.min(boundingBox[axis], value);
+                boundingBox[axis + POSITION_SIZE] = Math.max(boundingBox[axis + POSITION_SIZE], value);
+            }
+        }
+        return boundingBox;
+    }
+
+    /**
+     * Calculate the transform mapping the quantized texture coordinates back to their range.
+     *
+     * @param texCoords Texture coordinates (u, v), or null.
+     * @return Transform (offsetU, offsetV, scaleU, scaleV); the identity for the range [0, 1] if
+     *         there are no texture coordinates.
+     */
+    public static float[] calculateTexCoordTransform(float[] texCoords) {
+        float[] transform = {0.0f, 0.0f, 1.0f, 1.0f};
+        if (texCoords == null || texCoords.length < TEX_COORD_SIZE) {
+            return transform;
+        }
+        for (int axis = 0; axis < TEX_COORD_SIZE; axis++) {
+            float min = texCoords[axis];
+            float max = texCoords[axis];
+            for (int i = axis + TEX_COORD_SIZE; i < texCoords.length; i += TEX_COORD_SIZE) {
+                min = Math.min(min, texCoords[i]);
+                max = Math.max(max, texCoords[i]);
+            }
+            transform[axis] = min;
+            transform[axis + TEX_COORD_SIZE] = max - min;
+        }
+        return transform;
+    }
+
+    private static void putNormal(ByteBuffer buffer, float[] normals, int vertex) {
+        int base = vertex * POSITION_SIZE;
+        if (normals == null || base + POSITION_SIZE > normals.length) {
+            buffer.putInt(0);
+            return;
+        }
+        float x = normals[base];
+        float y = normals[base + 1];
+        float z = normals[base + 2];
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        float scale = length > 0.0f ? BYTE_SCALE / length : 0.0f;
+        buffer.put((byte) Math.round(x * scale));
+        buffer.put((byte) Math.round(y * scale));
+        buffer.put((byte) Math.round(z * scale));
+        buffer.put((byte) 0);
+    }
+
+    private static short quantizeUnsigned(float[] values, int index, float offset, float scale) {
+        if (values == null || index >= values.length || scale <= 0.0f) {
+            return 0;
+        }
+
+        // The clamp only absorbs rounding, since the values are within [offset, offset + scale].
+        float value = Math.max(0.0f, Math.min(1.0f, (values[index] - offset) / scale));
+        return (short) Math.round(value * SHORT_SCALE);
+    }
+
+    private static int align4(int size) {
+        return (size + 3) & ~3;
+    }
+}
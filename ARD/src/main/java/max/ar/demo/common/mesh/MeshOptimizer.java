@@ -0,0 +1,391 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common.mesh;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Import-time optimization of a renderable triangle mesh: duplicate vertices are merged, the
+ * triangles are reordered for the post-transform vertex cache with Tom Forsyth's linear-speed
+ * algorithm, and the vertices are reordered by first use so that vertex fetch is sequential.
+ */
+public final class MeshOptimizer {
+    private static final int POSITION_SIZE = 3;
+
+    private static final int TEX_COORD_SIZE = 2;
+
+    private static final int VERTEX_FLOATS = POSITION_SIZE * 2 + TEX_COORD_SIZE;
+
+    private static final int VERTICES_PER_TRIANGLE = 3;
+
+    /**
+     * Size of the modelled LRU cache used for scoring; larger than most GPU caches on purpose.
+     */
+    private static final int FORSYTH_CACHE_SIZE = 32;
+
+    private static final float CACHE_DECAY_POWER = 1.5f;
+
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+
+    private static final float VALENCE_BOOST_POWER = -0.5f;
+
+    /**
+     * Size of the FIFO cache used to measure the ACMR, close to the post-transform cache of mobile GPUs.
+     */
+    private static final int ACMR_CACHE_SIZE = 16;
+
+    private MeshOptimizer() {
+    }
+
+    /**
+     * Optimize a renderable mesh. The attribute arrays may be empty when the model has no normals or
+     * texture coordinates.
+     *
+     * @param positions Vertex positions (x, y, z).
+     * @param normals Vertex normal vectors (x, y, z).
+     * @param texCoords Texture coordinates (u, v).
+     * @param indices Triangle list indices.
+     * @return Optimized mesh with the statistics before and after.
+     */
+    public static Result optimize(float[] positions, float[] normals, float[] texCoords, int[] indices) {
+        int vertexCount = positions.length / POSITION_SIZE;
+        float acmrBefore = calculateAcmr(indices, vertexCount);
+
+        int[] remap = new int[vertexCount];
+        int uniqueCount = findUniqueVertices(positions, normals, texCoords, remap);
+        int[] newIndices = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            newIndices[i] = remap[indices[i]];
+        }
+        newIndices = reorderTriangles(newIndices, uniqueCount);
+
+        // Renumber the vertices in the order the reordered triangles first reference them.
+        int[] firstUse = new int[uniqueCount];
+        Arrays.fill(firstUse, -1);
+        int nextVertex = 0;
+        for (int i = 0; i < newIndices.length; i++) {
+            if (firstUse[newIndices[i]] < 0) {
+                firstUse[newIndices[i]] = nextVertex++;
+            }
+            newIndices[i] = firstUse[newIndices[i]];
+        }
+        // The remap goes source vertex -> unique vertex -> final vertex; unreferenced vertices are dropped.
+        for (int i = 0; i < vertexCount; i++) {
+            remap[i] = firstUse[remap[i]];
+        }
+        Result result = new Result();
+        result.mPositions = new float[nextVertex * POSITION_SIZE];
+        result.mNormals = normals.length == 0 ? normals : new float[nextVertex * POSITION_SIZE];
+        result.mTexCoords = texCoords.length == 0 ? texCoords : new float[nextVertex * TEX_COORD_SIZE];
+        for (int i = 0; i < vertexCount; i++) {
+            if (remap[i] >= 0) {
+                copyAttribute(positions, result.mPositions, i, remap[i], POSITION_SIZE);
+                copyAttribute(normals, result.mNormals, i, remap[i], POSITION_SIZE);
+                copyAttribute(texCoords, result.mTexCoords, i, remap[i], TEX_COORD_SIZE);
+            }
+        }
+        result.mIndices = newIndices;
+        result.mVertexCountBefore = vertexCount;
+        result.mAcmrBefore = acmrBefore;
+        result.mAcmrAfter = calculateAcmr(newIndices, nextVertex);
+        return result;
+    }
+
+    /**
+     * Calculate the average cache miss ratio (transformed vertices per triangle) of a triangle list
+     * with a FIFO post-transform cache. 0.5 is the ideal for a regular grid, 3.0 the worst case.
+     *
+     * @param indices Triangle list indices.
+     * @param vertexCount Number of vertices referenced by the indices.
+     * @return ACMR, or 0 for an empty mesh.
+     */
+    public static float calculateAcmr(int[] indices, int vertexCount) {
+        int triangleCount = indices.length / VERTICES_PER_TRIANGLE;
+        if (triangleCount == 0) {
+            return 0.0f;
+        }
+        // The time stamp of a vertex is the miss counter value when it entered the FIFO.
+        int[] cacheStamp = new int[vertexCount];
+        Arrays.fill(cacheStamp, Integer.MIN_VALUE / 2);
+        int misses = 0;
+        for (int i = 0; i < triangleCount * VERTICES_PER_TRIANGLE; i++) {
+            int vertex = indices[i];
+            if (misses - cacheStamp[vertex] >= ACMR_CACHE_SIZE) {
+                cacheStamp[vertex] = misses;
+                misses++;
+            }
+        }
+        return (float) misses / triangleCount;
+    }
+
+    // Merge vertices whose attributes are bitwise equal. Returns the unique count and fills remap.
+    private static int findUniqueVertices(float[] positions, float[] normals, float[] texCoords, int[] remap) {
+        int vertexCount = remap.length;
+        float[] keys = new float[vertexCount * VERTEX_FLOATS];
+        for (int i = 0; i < vertexCount; i++) {
+            int base = i * VERTEX_FLOATS;
+            for (int j = 0; j < POSITION_SIZE; j++) {
+                keys[base + j] = positions[i * POSITION_SIZE + j];
+                keys[base + POSITION_SIZE + j] = getAttribute(normals, i * POSITION_SIZE + j);
+            }
+            for (int j = 0; j < TEX_COORD_SIZE; j++) {
+                keys[base + POSITION_SIZE * 2 + j] = getAttribute(texCoords, i * TEX_COORD_SIZE + j);
+            }
+        }
+
+        // Open addressing table of unique vertex ids, at most half full.
+        int tableSize = Integer.highestOneBit(Math.max(1, vertexCount) * 2) * 2;
+        int[] table = new int[tableSize];
+        Arrays.fill(table, -1);
+        int uniqueCount = 0;
+        for (int i = 0; i < vertexCount; i++) {
+            int slot = hashVertex(keys, i) & (tableSize - 1);
+            while (table[slot] >= 0 && !isSameVertex(keys, table[slot], i)) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            if (table[slot] < 0) {
+                table[slot] = i;
+                remap[i] = uniqueCount++;
+            } else {
+                remap[i] = remap[table[slot]];
+            }
+        }
+        return uniqueCount;
+    }
+
+    private static int hashVertex(float[] keys, int vertex) {
+        int hash = 0;
+        for (int i = vertex * VERTEX_FLOATS; i < (vertex + 1) * VERTEX_FLOATS; i++) {
+            hash = hash * 31 + Float.floatToIntBits(keys[i]);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean isSameVertex(float[] keys, int first, int second) {
+        for (int i = 0; i < VERTEX_FLOATS; i++) {
+            if (Float.floatToIntBits(keys[first * VERTEX_FLOATS + i])
+                != Float.floatToIntBits(keys[second * VERTEX_FLOATS + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Forsyth's greedy reordering: always emit the triangle with the best score, where vertices score
+    // high when they are recently used and when few of their triangles are left.
+    private static int[] reorderTriangles(int[] indices, int vertexCount) {
+        int triangleCount = indices.length / VERTICES_PER_TRIANGLE;
+        if (triangleCount == 0) {
+            return indices;
+        }
+
+        // Triangles of each vertex in compressed rows; the first remaining[v] entries are not emitted yet.
+        int[] remaining = new int[vertexCount];
+        for (int i = 0; i < triangleCount * VERTICES_PER_TRIANGLE; i++) {
+            remaining[indices[i]]++;
+        }
+        int[] adjacencyOffset = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++) {
+            adjacencyOffset[v + 1] = adjacencyOffset[v] + remaining[v];
+        }
+        int[] adjacency = new int[adjacencyOffset[vertexCount]];
+        int[] fill = Arrays.copyOf(adjacencyOffset, vertexCount);
+        for (int t = 0; t < triangleCount; t++) {
+            for (int corner = 0; corner < VERTICES_PER_TRIANGLE; corner++) {
+                int vertex = indices[t * VERTICES_PER_TRIANGLE + corner];
+                adjacency[fill[vertex]++] = t;
+            }
+        }
+
+        int[] cachePosition = new int[vertexCount];
+        Arrays.fill(cachePosition, -1);
+        float[] vertexScore = new float[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            vertexScore[v] = scoreVertex(-1, remaining[v]);
+        }
+        boolean[] isEmitted = new boolean[triangleCount];
+        int bestTriangle = 0;
+        float bestScore = -1.0f;
+        for (int t = 0; t < triangleCount; t++) {
+            float score = scoreTriangle(indices, vertexScore, t);
+            if (score > bestScore) {
+                bestScore = score;
+                bestTriangle = t;
+            }
+        }
+
+        int[] cache = new int[FORSYTH_CACHE_SIZE + VERTICES_PER_TRIANGLE];
+        int[] nextCache = new int[FORSYTH_CACHE_SIZE + VERTICES_PER_TRIANGLE];
+        int cacheCount = 0;
+        int[] output = new int[triangleCount * VERTICES_PER_TRIANGLE];
+        int scanCursor = 0;
+        for (int emitted = 0; emitted < triangleCount; emitted++) {
+            if (bestTriangle < 0) {
+                // Nothing in the cache has triangles left; continue with the next triangle in input order.
+                while (isEmitted[scanCursor]) {
+                    scanCursor++;
+                }
+                bestTriangle = scanCursor;
+            }
+            isEmitted[bestTriangle] = true;
+
+            // Emit the triangle and put its vertices at the front of the cache.
+            int nextCount = 0;
+            for (int corner = 0; corner < VERTICES_PER_TRIANGLE; corner++) {
+                int vertex = indices[bestTriangle * VERTICES_PER_TRIANGLE + corner];
+                output[emitted * VERTICES_PER_TRIANGLE + corner] = vertex;
+                removeTriangle(adjacency, adjacencyOffset[vertex], remaining, vertex, bestTriangle);
+                if (cachePosition[vertex] != -2) {
+                    cachePosition[vertex] = -2;
+                    nextCache[nextCount++] = vertex;
+                }
+            }
+            for (int i = 0; i < cacheCount; i++) {
+                if (cachePosition[cache[i]] != -2) {
+                    nextCache[nextCount++] = cache[i];
+                }
+            }
+
+            // Rescore the cached vertices, and those just pushed out, then their remaining triangles.
+            for (int i = 0; i < nextCount; i++) {
+                int vertex = nextCache[i];
+                cachePosition[vertex] = i < FORSYTH_CACHE_SIZE ? i : -1;
+                vertexScore[vertex] = scoreVertex(cachePosition[vertex], remaining[vertex]);
+            }
+            bestTriangle = -1;
+            bestScore = 0.0f;
+            for (int i = 0; i < nextCount; i++) {
+                int vertex = nextCache[i];
+                for (int j = adjacencyOffset[vertex]; j < adjacencyOffset[vertex] + remaining[vertex]; j++) {
+                    int t = adjacency[j];
+                    float score = scoreTriangle(indices, vertexScore, t);
+                    if (score > bestScore) {
+                        bestScore = score;
+                        bestTriangle = t;
+                    }
+                }
+            }
+            cacheCount = Math.min(nextCount, FORSYTH_CACHE_SIZE);
+            int[] swap = cache;
+            cache = nextCache;
+            nextCache = swap;
+        }
+        return output;
+    }
+
+    private static void removeTriangle(int[] adjacency, int offset, int[] remaining, int vertex, int triangle) {
+        int last = offset + remaining[vertex] - 1;
+        for (int i = offset; i <= last; i++) {
+            if (adjacency[i] == triangle) {
+                adjacency[i] = adjacency[last];
+                adjacency[last] = triangle;
+                remaining[vertex]--;
+                return;
+            }
+        }
+    }
+
+    private static float scoreTriangle(int[] indices, float[] vertexScore, int triangle) {
+        return vertexScore[indices[triangle * VERTICES_PER_TRIANGLE]]
+            + vertexScore[indices[triangle * VERTICES_PER_TRIANGLE + 1]]
+            + vertexScore[indices[triangle * VERTICES_PER_TRIANGLE + 2]];
+    }
+
+    private static float scoreVertex(int cachePosition, int remainingTriangles) {
+        if (remainingTriangles == 0) {
+            return -1.0f;
+        }
+        float score = 0.0f;
+        if (cachePosition >= 0) {
+            if (cachePosition < VERTICES_PER_TRIANGLE) {
+                // The vertices of the last triangle get a fixed score so that strips are not favoured.
+                score = LAST_TRIANGLE_SCORE;
+            } else {
+                float scale = 1.0f / (FORSYTH_CACHE_SIZE - VERTICES_PER_TRIANGLE);
+                score = (float) Math.pow(1.0f - (cachePosition - VERTICES_PER_TRIANGLE) * scale, CACHE_DECAY_POWER);
+            }
+        }
+        // Boost vertices with few triangles left so that lone triangles are not left behind.
+        return score + VALENCE_BOOST_SCALE * (float) Math.pow(remainingTriangles, VALENCE_BOOST_POWER);
+    }
+
+    private static float getAttribute(float[] values, int index) {
+        return index < values.length ? values[index] : 0.0f;
+    }
+
+    private static void copyAttribute(float[] source, float[] target, int from, int to, int size) {
+        if ((from + 1) * size <= source.length && (to + 1) * size <= target.length) {
+            System.arraycopy(source, from * size, target, to * size, size);
+        }
+    }
+
+    /**
+     * Optimized mesh arrays and the statistics of the optimization.
+     */
+    public static class Result {
+        private float[] mPositions;
+
+        private float[] mNormals;
+
+        private float[] mTexCoords;
+
+        private int[] mIndices;
+
+        private int mVertexCountBefore;
+
+        private float mAcmrBefore;
+
+        private float mAcmrAfter;
+
+        public float[] getPositions() {
+            return mPositions;
+        }
+
+        public float[] getNormals() {
+            return mNormals;
+        }
+
+        public float[] getTexCoords() {
+            return mTexCoords;
+        }
+
+        public int[] getIndices() {
+            return mIndices;
+        }
+
+        public float getAcmrBefore() {
+            return mAcmrBefore;
+        }
+
+        public float getAcmrAfter() {
+            return mAcmrAfter;
+        }
+
+        /**
+         * Describe the effect of the optimization for the build or debug log.
+         *
+         * @return Vertex counts and ACMR before and after.
+         */
+        public String getSummary() {
+            return String.format(Locale.ROOT, "vertices %d -> %d, ACMR %.3f -> %.3f",
+                mVertexCountBefore, mPositions.length / POSITION_SIZE, mAcmrBefore, mAcmrAfter);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common.mesh;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Split a mesh with 32-bit indices into draw ranges that can each be drawn with 16-bit indices,
+ * for devices without the OES_element_index_uint extension.
+ */
+public final class MeshSplitter {
+    private static final int VERTICES_PER_TRIANGLE = 3;
+
+    private MeshSplitter() {
+    }
+
+    /**
+     * Rebuild the mesh with 16-bit indices. Triangles are kept in order and grouped into ranges of at
+     * most 65536 vertices; vertices shared by two ranges are duplicated.
+     *
+     * @param mesh Mesh with GL_UNSIGNED_INT indices.
+     * @return Mesh with GL_UNSIGNED_SHORT indices and one draw range per group, or the input mesh
+     *         if it already uses 16-bit indices.
+     */
+    public static MeshData splitTo16BitIndices(MeshData mesh) {
+        if (mesh.getIndexType() != MeshFormat.INDEX_TYPE_UNSIGNED_INT) {
+            return mesh;
+        }
+        IntBuffer indices = mesh.getIndices().asIntBuffer();
+        int indexCount = mesh.getIndexCount();
+        int triangleCount = indexCount / VERTICES_PER_TRIANGLE;
+
+        // Local index of each source vertex in the current range; valid when the stamp matches the range.
+        int[] localIndex = new int[mesh.getVertexCount()];
+        int[] rangeStamp = new int[mesh.getVertexCount()];
+        Arrays.fill(rangeStamp, -1);
+
+        // First pass: decide where each range ends and how many vertices it needs.
+        List<int[]> ranges = new ArrayList<>();
+        int rangeFirstTriangle = 0;
+        int rangeVertexCount = 0;
+        int totalVertexCount = 0;
+        for (int triangle = 0; triangle < triangleCount; triangle++) {
+            int newVertices = 0;
+            for (int corner = 0; corner < VERTICES_PER_TRIANGLE; corner++) {
+                int vertex = indices.get(triangle * VERTICES_PER_TRIANGLE + corner);
+                if (rangeStamp[vertex] != ranges.size()) {
+                    rangeStamp[vertex] = ranges.size();
+                    newVertices++;
+                }
+            }
+            if (rangeVertexCount + newVertices > MeshFormat.MAX_SHORT_INDEX_VERTICES) {
+                ranges.add(new int[] {rangeFirstTriangle, triangle, rangeVertexCount});
+                totalVertexCount += rangeVertexCount;
+                rangeFirstTriangle = triangle;
+                rangeVertexCount = 0;
+                triangle--;
+                continue;
+            }
+            rangeVertexCount += newVertices;
+        }
+        ranges.add(new int[] {rangeFirstTriangle, triangleCount, rangeVertexCount});
+        totalVertexCount += rangeVertexCount;
+
+        // Second pass: copy the vertices of each range and write the range-relative indices.
+        ByteBuffer sourceVertices = mesh.getVertices();
+        ByteBuffer vertices = ByteBuffer.allocateDirect(totalVertexCount * MeshFormat.VERTEX_STRIDE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer shortIndices = ByteBuffer.allocateDirect(triangleCount * VERTICES_PER_TRIANGLE * Short.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        Arrays.fill(rangeStamp, -1);
+        MeshData.DrawRange[] drawRanges = new MeshData.DrawRange[ranges.size()];
+        int baseVertex = 0;
+        for (int r = 0; r < ranges.size(); r++) {
+            int[] range = ranges.get(r);
+            int firstIndex = shortIndices.position() / Short.BYTES;
+            int nextLocal = 0;
+            for (int i = range[0] * VERTICES_PER_TRIANGLE; i < range[1] * VERTICES_PER_TRIANGLE; i++) {
+                int vertex = indices.get(i);
+                if (rangeStamp[vertex] != r) {
+                    rangeStamp[vertex] = r;
+                    localIndex[vertex] = nextLocal++;
+                    ByteBuffer source = sourceVertices.duplicate();
+                    source.position(vertex * MeshFormat.VERTEX_STRIDE);
+                    source.limit(source.position() + MeshFormat.VERTEX_STRIDE);
+                    vertices.put(source);
+                }
+                shortIndices.putShort((short) localIndex[vertex]);
+            }
+            drawRanges[r] = new MeshData.DrawRange(baseVertex, firstIndex,
+                (range[1] - range[0]) * VERTICES_PER_TRIANGLE);
+            baseVertex += range[2];
+        }
+        vertices.rewind();
+        shortIndices.rewind();
+        MeshData splitMesh = new MeshData(vertices, shortIndices, totalVertexCount,
+            triangleCount * VERTICES_PER_TRIANGLE, MeshFormat.INDEX_TYPE_UNSIGNED_SHORT,
+            mesh.getTexCoordTransform(), drawRanges);
+        splitMesh.copyBounds(mesh);
+        return splitMesh;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common.mesh;
+
+import de.javagl.obj.Obj;
+import de.javagl.obj.ObjData;
+import de.javagl.obj.ObjReader;
+import de.javagl.obj.ObjUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Convert a Wavefront OBJ model into the binary mesh format. It is used by the compileMeshes
+ * Gradle task and, for models without a precompiled mesh, by the runtime loader.
+ */
+public final class ObjMeshCompiler {
+    // Every surface of an object has three vertices.
+    private static final int VERTICES_PER_FACE = 3;
+
+    // The dimension of the texture coordinate is 2.
+    private static final int TEX_COORD_DIMENSIONS = 2;
+
+    private ObjMeshCompiler() {
+    }
+
+    /**
+     * Read an OBJ model and encode it as an optimized binary mesh.
+     *
+     * @param objInputStream OBJ text stream.
+     * @return Binary mesh file content.
+     * @throws IOException If the stream cannot be read.
+     */
+    public static ByteBuffer compile(InputStream objInputStream) throws IOException {
+        return compile(ObjReader.read(objInputStream), result -> { });
+    }
+
+    /**
+     * Read an OBJ model and encode it as an optimized binary mesh.
+     *
+     * @param objInputStream OBJ text stream.
+     * @param reporter Receives the statistics of the {@link MeshOptimizer} pass.
+     * @return Binary mesh file content.
+     * @throws IOException If the stream cannot be read.
+     */
+    public static ByteBuffer compile(InputStream objInputStream, Consumer<MeshOptimizer.Result> reporter)
+        throws IOException {
+        return compile(ObjReader.read(objInputStream), reporter);
+    }
+
+    /**
+     * Encode an OBJ model as an optimized binary mesh.
+     *
+     * @param obj OBJ model, which does not have to be renderable yet.
+     * @return Binary mesh file content.
+     */
+    public static ByteBuffer compile(Obj obj) {
+        return compile(obj, result -> { });
+    }
+
+    /**
+     * Encode an OBJ model as a binary mesh after merging duplicate vertices and reordering the
+     * triangles for the vertex cache.
+     *
+     * @param obj OBJ model, which does not have to be renderable yet.
+     * @param reporter Receives the statistics of the {@link MeshOptimizer} pass.
+     * @return Binary mesh file content.
+     */
+    public static ByteBuffer compile(Obj obj, Consumer<MeshOptimizer.Result> reporter) {
+        Obj renderableObj = ObjUtils.convertToRenderable(obj);
+        MeshOptimizer.Result result = MeshOptimizer.optimize(ObjData.getVerticesArray(renderableObj),
+            ObjData.getNormalsArray(renderableObj), ObjData.getTexCoordsArray(renderableObj, TEX_COORD_DIMENSIONS),
+            ObjData.getFaceVertexIndicesArray(renderableObj, VERTICES_PER_FACE));
+        reporter.accept(result);
+        return MeshFormat.encode(result.getPositions(), result.getNormals(), result.getTexCoords(),
+            result.getIndices());
+    }
+}
@@ -19,12 +19,14 @@ package max.ar.demo.java.camera;
 import android.content.Context;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.RelativeLayout;
 import android.widget.Spinner;
@@ -35,8 +37,10 @@ import com.huawei.arengine.demos.R;
 
 import max.ar.demo.common.BaseActivity;
 import max.ar.demo.common.GestureDetectorUtils;
-import max.ar.demo.common.GestureEvent;
+import max.ar.demo.common.GestureEventQueue;
 import max.ar.demo.common.LogUtil;
+import max.ar.demo.common.ModelRegistry;
+import max.ar.demo.common.RecordableConfigChooser;
 import max.ar.demo.java.camera.rendering.CameraRendererManager;
 
 import com.huawei.hiar.ARConfigBase;
@@ -44,14 +48,13 @@ import com.huawei.hiar.ARSession;
 import com.huawei.hiar.ARWorldTrackingConfig;
 import com.huawei.hiar.exceptions.ARUnavailableServiceApkTooOldException;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.io.File;
+
 
 public class CameraActivity extends BaseActivity {
     private static final String TAG = CameraActivity.class.getSimpleName();
 
-    private static final int MOTIONEVENT_QUEUE_CAPACITY = 2;
-
-    private static final int OPENGLES_VERSION = 2;
+    private static final int MOTIONEVENT_QUEUE_CAPACITY = 64;
 
     private static final long BUTTON_REPEAT_CLICK_INTERVAL_TIME = 2000L;
 
@@ -69,7 +72,7 @@ public class CameraActivity extends BaseActivity {
 
     private CameraRendererManager mCameraRendererManager;
 
-    private ArrayBlockingQueue<GestureEvent> mQueuedSingleTaps = new ArrayBlockingQueue<>(MOTIONEVENT_QUEUE_CAPACITY);
+    private GestureEventQueue mQueuedSingleTaps = new GestureEventQueue(MOTIONEVENT_QUEUE_CAPACITY);
 
     private boolean mIsEnvTextureModeOpen = false;
 
@@ -103,18 +106,32 @@ public class CameraActivity extends BaseActivity {
         GestureDetectorUtils.initGestureDetector(this, TAG, mSurfaceView, mQueuedSingleTaps);
 
         mSurfaceView.setPreserveEGLContextOnPause(true);
-        mSurfaceView.setEGLContextClientVersion(OPENGLES_VERSION);
+        mSurfaceView.setEGLContextClientVersion(getOpenGlEsVersion());
 
         // Set the EGL configuration chooser, including for the number of
-        // bits of the color buffer and the number of depth bits.
-        mSurfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0);
+        // bits of the color buffer and the number of depth bits. The config
+        // must be recordable for the video encoder surface.
+        mSurfaceView.setEGLConfigChooser(new RecordableConfigChooser(getOpenGlEsVersion(), 16));
 
         mCameraRendererManager = new CameraRendererManager(this);
         mCameraRendererManager.setDisplayRotationManager(mDisplayRotationManager);
         TextView textView = findViewById(R.id.wordTextView);
         mCameraRendererManager.setTextView(textView);
+
+        // A long press on the statistics writes the frame profile to a CSV file.
+        textView.setOnLongClickListener(view -> {
+            String profileName = "FrameProfile_" + System.currentTimeMillis() + ".csv";
+            File profileFile = new File(getExternalFilesDir(null), profileName);
+            mSurfaceView.queueEvent(() -> mCameraRendererManager.dumpFrameProfile(profileFile));
+            Toast.makeText(this, "Frame profile: " + profileFile.getName(), Toast.LENGTH_SHORT).show();
+            return true;
+        });
         mCameraRendererManager.setQueuedSingleTaps(mQueuedSingleTaps);
 
+        // The environment texture preview is a debug overlay; the objects reflect the texture without it.
+        mCameraRendererManager.setEnvTexturePreviewEnabled(mIsEnvTextureModeOpen);
+        mEnvTextureLayout.setVisibility(mIsEnvTextureModeOpen ? View.VISIBLE : View.GONE);
+
         mSurfaceView.setRenderer(mCameraRendererManager);
         mSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
     }
@@ -139,7 +156,15 @@ public class CameraActivity extends BaseActivity {
             takePhoto();
             handler.sendEmptyMessageDelayed(MSG_PHOTO_BTN_CLICK_ENABLE, BUTTON_REPEAT_CLICK_INTERVAL_TIME);
         });
+
+        // A long press on the photo button starts or stops a video recording.
+        mTakePhotoBtn.setOnLongClickListener(view -> {
+            toggleRecording();
+            return true;
+        });
         Context context = this;
+        mSpinnerObject.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item,
+            ModelRegistry.getInstance(this).getModelNames()));
         mSpinnerObject.setOnItemSelectedListener(new ObjOnItemSelectedListener());
     }
 
@@ -155,12 +180,34 @@ public class CameraActivity extends BaseActivity {
     }
 
     private void deleteObject(){
-        mCameraRendererManager.deleteObject();
+        // The selection and the dragger belong to the OpenGL thread.
+        mSurfaceView.queueEvent(mCameraRendererManager::deleteObject);
     };
 
     private void takePhoto(){
         mCameraRendererManager.takePhoto();
     };
+
+    private void toggleRecording() {
+        if (mCameraRendererManager.isRecording()) {
+            mCameraRendererManager.stopRecording();
+            return;
+        }
+
+        // The app-specific directory needs no storage permission on any API level.
+        File videoDirectory = getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+        if (videoDirectory == null) {
+            Toast.makeText(this, "Video recording failed.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        File videoFile = new File(videoDirectory, "Video_" + System.currentTimeMillis() + ".mp4");
+        mCameraRendererManager.startRecording(videoFile, (outputFile, isComplete) -> runOnUiThread(() -> {
+            String toastMsg = isComplete ? "Video saved: " + outputFile.getName() : "Video recording failed.";
+            Toast.makeText(this, toastMsg, Toast.LENGTH_SHORT).show();
+        }));
+        Toast.makeText(this, "Recording, long press again to stop.", Toast.LENGTH_SHORT).show();
+    }
+
     private long getInputMaxMapSize() {
         long maxMapSize = 0L;
         /*EditText editText = findViewById(R.id.text_max_size);
@@ -312,11 +359,21 @@ public class CameraActivity extends BaseActivity {
         }
     }
 
+    @Override
+    protected void onPause() {
+        // Finish the video file on the OpenGL thread before the surface is paused.
+        if (mCameraRendererManager != null && mCameraRendererManager.isRecording()) {
+            mSurfaceView.queueEvent(mCameraRendererManager::releaseVideoRecorder);
+        }
+        super.onPause();
+    }
+
     @Override
     protected void onDestroy() {
         LogUtil.info(TAG, "onDestroy start.");
         if (mCameraRendererManager != null) {
             mCameraRendererManager.releaseARAnchor();
+            mCameraRendererManager.releaseObjectAssets();
         }
         if (handler != null) {
             handler.removeCallbacksAndMessages(null);
@@ -1,34 +1,390 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
 package max.ar.demo.java.camera.rendering;
 
+import android.content.Context;
 import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import max.ar.demo.common.LogUtil;
+import max.ar.demo.common.ShaderUtil;
+import max.ar.demo.java.utils.BitmapUtils;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
-import javax.microedition.khronos.opengles.GL10;
-import android.opengl.GLException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
 
+/**
+ * Capture the rendered frame to an image file without stalling the OpenGL thread. On OpenGL ES 3.0
+ * the frame is read into one of two pixel pack buffers and mapped once its fence has signaled, a
+ * later frame; on OpenGL ES 2.0 it is read with a blocking glReadPixels. The row flip, the PNG
+ * encoding and the file I/O run on a capture worker thread.
+ */
 public class BitmapRenderer {
-    public Bitmap createBitmapFromGLSurface(int x, int y, int w, int h, GL10 gl) {
-        int bitmapBuffer[] = new int[w * h];
-        int bitmapSource[] = new int[w * h];
-        IntBuffer intBuffer = IntBuffer.wrap(bitmapBuffer);
-        intBuffer.position(0);
-        try {
-            gl.glReadPixels(x, y, w, h, GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE,
-                    intBuffer);
-            int offset1, offset2;
-            for (int i = 0; i < h; i++) {
-                offset1 = i * w;
-                offset2 = (h - i - 1) * w;
-                for (int j = 0; j < w; j++) {
-                    int texturePixel = bitmapBuffer[offset1 + j];
-                    int blue = (texturePixel >> 16) & 0xff;
-                    int red = (texturePixel << 16) & 0x00ff0000;
-                    int pixel = (texturePixel & 0xff00ff00) | red | blue;
-                    bitmapSource[offset2 + j] = pixel;
+    private static final String TAG = BitmapRenderer.class.getSimpleName();
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private static final int PIXEL_BUFFER_COUNT = 2;
+
+    /**
+     * Number of row stripes flipped in parallel.
+     */
+    private static final int FLIP_STRIPE_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final ExecutorService CAPTURE_WORKER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FrameCapture");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    /**
+     * Receive the result of a capture.
+     */
+    public interface CaptureCallback {
+        /**
+         * Called on the capture worker thread when the image is saved or the capture failed.
+         *
+         * @param fileName Name of the image file.
+         * @param isSaved true if the image was written.
+         */
+        void onCaptureComplete(String fileName, boolean isSaved);
+    }
+
+    private final Queue<CaptureRequest> mRequests = new ArrayDeque<>();
+
+    private final int[] mPixelBuffers = new int[PIXEL_BUFFER_COUNT];
+
+    private final long[] mFences = new long[PIXEL_BUFFER_COUNT];
+
+    private final CaptureRequest[] mPendingReads = new CaptureRequest[PIXEL_BUFFER_COUNT];
+
+    private CaptureFrame mFrame;
+
+    private boolean mIsPixelBufferSupported = false;
+
+    private int mNextPixelBuffer = 0;
+
+    private int mWidth = 0;
+
+    private int mHeight = 0;
+
+    /**
+     * Create the pixel pack buffers when the context supports them. Call this method on the OpenGL
+     * thread when the surface is created.
+     */
+    public void init() {
+        // After the context is recreated, the fences of the reads in flight and the storage of the
+        // buffers are gone: drop the reads and let the next setSize allocate the new buffers.
+        dropPendingReads(false);
+        mNextPixelBuffer = 0;
+        mWidth = 0;
+        mHeight = 0;
+        mIsPixelBufferSupported = ShaderUtil.isGles3();
+        if (mIsPixelBufferSupported) {
+            GLES20.glGenBuffers(PIXEL_BUFFER_COUNT, mPixelBuffers, 0);
+        } else {
+            LogUtil.info(TAG, "Pixel pack buffers need OpenGL ES 3.0, frames are read synchronously.");
+        }
+    }
+
+    /**
+     * Set the size of the captured frame. Call this method on the OpenGL thread when the surface changes.
+     *
+     * @param width Surface width.
+     * @param height Surface height.
+     */
+    public void setSize(int width, int height) {
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+
+        // Reads in flight have the old size: drop them.
+        dropPendingReads(true);
+        mWidth = width;
+        mHeight = height;
+
+        // The capture buffer is sized here once, instead of for every capture.
+        if (mFrame != null) {
+            CAPTURE_WORKER.execute(mFrame::recycle);
+        }
+        mFrame = new CaptureFrame(width, height);
+        if (!mIsPixelBufferSupported) {
+            return;
+        }
+        for (int pixelBuffer : mPixelBuffers) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffer);
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, width * height * BYTES_PER_PIXEL, null,
+                GLES30.GL_STREAM_READ);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        ShaderUtil.checkGlError(TAG, "Pixel buffers");
+    }
+
+    /**
+     * Capture the frame being rendered. Call this method on the OpenGL thread; the frame is read in
+     * the next call of {@link #onDrawFrame}.
+     *
+     * @param context Context used to save the image.
+     * @param fileName Name of the image file.
+     * @param callback Called on the capture worker thread when the capture is complete.
+     */
+    public void requestCapture(Context context, String fileName, CaptureCallback callback) {
+        mRequests.offer(new CaptureRequest(context.getApplicationContext(), fileName, callback));
+    }
+
+    /**
+     * Hand the finished frame reads to the capture worker and start the requested ones. Call this
+     * method on the OpenGL thread at the end of every frame, after the scene is drawn.
+     */
+    public void onDrawFrame() {
+        if (mIsPixelBufferSupported) {
+            collectFinishedReads();
+        }
+        if (mRequests.isEmpty() || mFrame == null) {
+            return;
+        }
+        if (!mIsPixelBufferSupported) {
+            // Without pixel buffers, a capture waits until the worker has released the capture frame.
+            if (mFrame.mIsBusy) {
+                return;
+            }
+            mFrame.mPixels.clear();
+            GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mFrame.mPixels);
+            submit(mRequests.poll(), mFrame);
+            return;
+        }
+
+        // When both buffers are still being read, the capture waits for the next frame.
+        int index = mNextPixelBuffer;
+        if (mPendingReads[index] != null) {
+            return;
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[index]);
+        GLES30.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mFences[index] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        mPendingReads[index] = mRequests.poll();
+        mNextPixelBuffer = (index + 1) % PIXEL_BUFFER_COUNT;
+        ShaderUtil.checkGlError(TAG, "Read pixels");
+    }
+
+    /**
+     * Fail the reads in flight.
+     *
+     * @param isContextAlive Whether their fences belong to the current context and can be deleted.
+     */
+    private void dropPendingReads(boolean isContextAlive) {
+        for (int i = 0; i < PIXEL_BUFFER_COUNT; i++) {
+            if (mPendingReads[i] != null) {
+                if (isContextAlive) {
+                    GLES30.glDeleteSync(mFences[i]);
                 }
+                fail(mPendingReads[i]);
+                mPendingReads[i] = null;
+            }
+            mFences[i] = 0L;
+        }
+    }
+
+    private void collectFinishedReads() {
+        for (int i = 0; i < PIXEL_BUFFER_COUNT; i++) {
+            if (mPendingReads[i] == null) {
+                continue;
+            }
+
+            // A finished read stays in its pixel buffer until the worker has released the capture frame.
+            if (mFrame.mIsBusy) {
+                return;
+            }
+
+            // A zero timeout polls the fence: the mapping below no longer waits for the GPU.
+            int status = GLES30.glClientWaitSync(mFences[i], 0, 0);
+            if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+                continue;
+            }
+            GLES30.glDeleteSync(mFences[i]);
+            CaptureRequest request = mPendingReads[i];
+            mPendingReads[i] = null;
+            if (status == GLES30.GL_WAIT_FAILED) {
+                LogUtil.error(TAG, "Waiting for the frame read failed.");
+                fail(request);
+                continue;
+            }
+
+            int size = mWidth * mHeight * BYTES_PER_PIXEL;
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[i]);
+            Buffer mapped = GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT);
+            if (mapped instanceof ByteBuffer) {
+                // The mapping is only valid until it is unmapped on this thread, so copy it out.
+                mFrame.mPixels.clear();
+                mFrame.mPixels.put((ByteBuffer) mapped);
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+                submit(request, mFrame);
+            } else {
+                LogUtil.error(TAG, "Mapping the pixel buffer failed.");
+                fail(request);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        }
+    }
+
+    private static void fail(CaptureRequest request) {
+        CAPTURE_WORKER.execute(() -> request.complete(false));
+    }
+
+    private static void submit(CaptureRequest request, CaptureFrame frame) {
+        frame.mIsBusy = true;
+        CAPTURE_WORKER.execute(() -> {
+            boolean isSaved = false;
+            try {
+                flipRows(frame);
+                Bitmap bitmap = frame.getBitmap();
+                frame.mPixels.rewind();
+
+                // The RGBA bytes already have the memory layout of an ARGB_8888 bitmap.
+                bitmap.copyPixelsFromBuffer(frame.mPixels);
+                isSaved = BitmapUtils.saveBitmap(request.mContext, bitmap, request.mFileName);
+            } catch (IOException | RuntimeException exception) {
+                LogUtil.error(TAG, "Saving the capture failed: " + exception.getClass());
+            } finally {
+                frame.mIsBusy = false;
+            }
+            request.complete(isSaved);
+        });
+    }
+
+    /**
+     * Flip the rows of a frame read with glReadPixels in place, since OpenGL reads bottom-up. The
+     * row pairs are split into stripes that are swapped in parallel.
+     *
+     * @param frame Captured frame.
+     */
+    private static void flipRows(CaptureFrame frame) {
+        int width = frame.mWidth;
+        int rowPairs = frame.mHeight / 2;
+        int rowsPerStripe = (rowPairs + FLIP_STRIPE_COUNT - 1) / FLIP_STRIPE_COUNT;
+        IntStream.range(0, FLIP_STRIPE_COUNT).parallel().forEach(stripe -> {
+            IntBuffer pixels = frame.mStripePixels[stripe];
+            int[] topRow = frame.mStripeRows[stripe * 2];
+            int[] bottomRow = frame.mStripeRows[stripe * 2 + 1];
+            int end = Math.min(rowPairs, (stripe + 1) * rowsPerStripe);
+            for (int top = stripe * rowsPerStripe; top < end; top++) {
+                int bottom = frame.mHeight - 1 - top;
+                pixels.position(top * width);
+                pixels.get(topRow);
+                pixels.position(bottom * width);
+                pixels.get(bottomRow);
+                pixels.position(bottom * width);
+                pixels.put(topRow);
+                pixels.position(top * width);
+                pixels.put(bottomRow);
+            }
+        });
+    }
+
+    /**
+     * Pixels of a captured frame and the bitmap they are copied to, reused by all captures of one
+     * surface size. The OpenGL thread fills the pixels while the frame is not busy; the capture
+     * worker owns the frame from submission until the image is saved.
+     */
+    private static class CaptureFrame {
+        private final int mWidth;
+
+        private final int mHeight;
+
+        private final ByteBuffer mPixels;
+
+        /**
+         * One view of the pixels and two row buffers per stripe, so that stripes do not share a position.
+         */
+        private final IntBuffer[] mStripePixels = new IntBuffer[FLIP_STRIPE_COUNT];
+
+        private final int[][] mStripeRows = new int[FLIP_STRIPE_COUNT * 2][];
+
+        private Bitmap mBitmap;
+
+        private volatile boolean mIsBusy = false;
+
+        CaptureFrame(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            mPixels = ByteBuffer.allocateDirect(width * height * BYTES_PER_PIXEL).order(ByteOrder.nativeOrder());
+            for (int i = 0; i < FLIP_STRIPE_COUNT; i++) {
+                mStripePixels[i] = mPixels.asIntBuffer();
+            }
+            for (int i = 0; i < mStripeRows.length; i++) {
+                mStripeRows[i] = new int[width];
+            }
+        }
+
+        /**
+         * Obtain the bitmap of the frame, created by the first capture. Call this on the capture worker.
+         *
+         * @return Bitmap of the frame size.
+         */
+        Bitmap getBitmap() {
+            if (mBitmap == null) {
+                mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            }
+            return mBitmap;
+        }
+
+        /**
+         * Release the bitmap once the frame is replaced. Call this on the capture worker, after the
+         * captures of the frame.
+         */
+        void recycle() {
+            if (mBitmap != null) {
+                mBitmap.recycle();
+                mBitmap = null;
+            }
+        }
+    }
+
+    /**
+     * A requested capture.
+     */
+    private static class CaptureRequest {
+        private final Context mContext;
+
+        private final String mFileName;
+
+        private final CaptureCallback mCallback;
+
+        CaptureRequest(Context context, String fileName, CaptureCallback callback) {
+            mContext = context;
+            mFileName = fileName;
+            mCallback = callback;
+        }
+
+        void complete(boolean isSaved) {
+            if (mCallback != null) {
+                mCallback.onCaptureComplete(mFileName, isSaved);
             }
-        } catch (GLException e) {
-            return null;
         }
-        return Bitmap.createBitmap(bitmapSource, w, h, Bitmap.Config.ARGB_8888);
     }
 }
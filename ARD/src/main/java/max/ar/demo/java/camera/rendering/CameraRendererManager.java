@@ -19,7 +19,7 @@ package max.ar.demo.java.camera.rendering;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.view.MotionEvent;
+import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.SeekBar;
@@ -29,11 +29,17 @@ import com.huawei.arengine.demos.R;
 
 import max.ar.demo.common.ArDemoRuntimeException;
 import max.ar.demo.common.LogUtil;
+import max.ar.demo.common.ModelRegistry;
 import max.ar.demo.common.BaseRendererManager;
+import max.ar.demo.common.EnvironmentCubeMap;
+import max.ar.demo.common.FrameProfiler;
 import max.ar.demo.common.GestureEvent;
+import max.ar.demo.common.GestureEventQueue;
 import max.ar.demo.common.ObjectDisplay;
+import max.ar.demo.common.ObjectDragger;
+import max.ar.demo.common.ObjectScene;
+import max.ar.demo.common.PickResult;
 import max.ar.demo.common.VirtualObject;
-import max.ar.demo.java.utils.BitmapUtils;
 import max.ar.demo.java.utils.CommonUtil;
 
 import com.huawei.hiar.ARCamera;
@@ -52,14 +58,13 @@ import com.huawei.hiar.exceptions.ARDeadlineExceededException;
 import com.huawei.hiar.exceptions.ARFatalException;
 import com.huawei.hiar.exceptions.ARUnavailableServiceApkTooOldException;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -80,12 +85,21 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
 
     private static final float[] GREEN_COLORS = new float[] {66.0f, 244.0f, 133.0f, 255.0f};
 
+    private static final int MAX_VIRTUAL_OBJECTS = 256;
+
+    /**
+     * Minimum time between two AR Engine hit tests while an object is dragged.
+     */
+    private static final long DRAG_HIT_TEST_INTERVAL_MS = 100L;
+
     private static final int SIDE_LENGTH = 128;
 
     private static final int LIGHTING_CUBE_MAP_SINGLE_FACE_SIZE = SIDE_LENGTH * SIDE_LENGTH * 3;
 
     private static final int LIGHTING_CUBE_MAP_SIZE = LIGHTING_CUBE_MAP_SINGLE_FACE_SIZE * 6;
 
+    private static final int ENV_TEXTURE_UPDATE_INTERVAL = 10;
+
     private ARWorldTrackingConfig mArWorldTrackingConfig;
 
     private TextView mSearchingTextView;
@@ -110,32 +124,38 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
 
     private ObjectDisplay mObjectDisplay = new ObjectDisplay();
 
+    private EnvironmentCubeMap mEnvironmentCubeMap = new EnvironmentCubeMap(SIDE_LENGTH);
+
     private PointCloudRenderer mPointCloud = new PointCloudRenderer();
 
     private BitmapRenderer mBitmapR = new BitmapRenderer();
 
-    private Bitmap mOutputPic;
+    private GestureEventQueue mQueuedSingleTaps;
 
-    private ArrayBlockingQueue<GestureEvent> mQueuedSingleTaps;
+    private final List<GestureEvent> mGestureEvents = new ArrayList<>();
 
     private VirtualObject mSelectedObj = null;
 
-    private ArrayList<VirtualObject> mVirtualObjects = new ArrayList<>();
+    private ObjectDragger mObjectDragger = new ObjectDragger(DRAG_HIT_TEST_INTERVAL_MS);
+
+    private ObjectScene mVirtualObjects = new ObjectScene();
 
     private TargetRenderManager mTargetRenderManager = new TargetRenderManager();
 
     private boolean hasSetEnvTextureData = false;
 
     private int mUpdateIndex = 0;
+
+    /**
+     * Whether the faces of the environment texture are also shown in the image views, for debugging.
+     */
+    private volatile boolean mIsEnvTexturePreviewEnabled = false;
+
     private SeekBar mScaleSeekBar = null;
 
     private SeekBar mRotationSeekBar = null;
-    private ByteBuffer mCaptureBuffer;
-
-    private boolean isTakePic = false;
 
-    private int mOutputWidth;
-    private int mOutputHeight;
+    private volatile boolean isTakePic = false;
 
     private String mObjectKind = "AR_logo";
 
@@ -213,8 +233,24 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
         }
     }
 
-    public void setObject(String s){
-        mObjectKind = s;
+    /**
+     * Show the faces of the environment texture in the image views. The preview converts every face
+     * to a bitmap on the CPU, so it is meant for debugging only; the objects reflect the environment
+     * texture through a cube map either way.
+     *
+     * @param isEnabled Whether to show the preview.
+     */
+    public void setEnvTexturePreviewEnabled(boolean isEnabled) {
+        mIsEnvTexturePreviewEnabled = isEnabled;
+    }
+
+    /**
+     * Set the model placed by the next double tap. The model is loaded when it is first placed.
+     *
+     * @param modelName Model name from the {@link ModelRegistry}.
+     */
+    public void setObject(String modelName) {
+        mObjectKind = modelName;
     }
 
     /**
@@ -222,7 +258,7 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
      *
      * @param queuedSingleTaps Gesture type queue.
      */
-    public void setQueuedSingleTaps(ArrayBlockingQueue<GestureEvent> queuedSingleTaps) {
+    public void setQueuedSingleTaps(GestureEventQueue queuedSingleTaps) {
         if (queuedSingleTaps == null) {
             LogUtil.error(TAG, "setSession error, arSession is null!");
             return;
@@ -236,20 +272,24 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
 
         mObjectDisplay.init(mActivity);
 
+        // The cube map is empty until the next environment texture arrives.
+        mEnvironmentCubeMap.init();
+        mObjectDisplay.setEnvironmentTexture(0);
+        mUpdateIndex = 0;
+
         mPointCloud.init(mActivity);
 
         mTargetRenderManager.init();
 
         mTargetRenderManager.initTargetLabelDisplay(getTargetLabelBitmaps(""));
+
+        mBitmapR.init();
     }
 
     @Override
     public void surfaceChanged(GL10 unused, int width, int height) {
         mObjectDisplay.setSize(width, height);
-        mOutputWidth = width;
-        mOutputHeight = height;
-        mCaptureBuffer = ByteBuffer.allocate(mOutputWidth * mOutputHeight * 4);
-        mOutputPic =  Bitmap.createBitmap(mOutputWidth, height, Bitmap.Config.ARGB_8888);
+        mBitmapR.setSize(width, height);
     }
 
     @Override
@@ -269,13 +309,19 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
                     break;
                 }
             }
+            mFrameProfiler.beginStage(FrameProfiler.Stage.TARGETS);
             drawTarget(mSession.getAllTrackables(ARTarget.class), mArCamera, mViewMatrix, mProjectionMatrix);
             //mLabelDisplay.onDrawFrame(mSession.getAllTrackables(ARPlane.class), mArCamera.getDisplayOrientedPose(),mProjectionMatrix);
+            mFrameProfiler.beginStage(FrameProfiler.Stage.GESTURES);
             handleGestureEvent(mArFrame, mArCamera, mProjectionMatrix, mViewMatrix);
+            mFrameProfiler.beginStage(FrameProfiler.Stage.LIGHTING);
             ARLightEstimate lightEstimate = mArFrame.getLightEstimate();
             ARPointCloud arPointCloud = mArFrame.acquirePointCloud();
             getEnvironmentTexture(lightEstimate);
-            drawAllObjects(mProjectionMatrix, mViewMatrix, getPixelIntensity(lightEstimate));
+            float lightPixelIntensity = getPixelIntensity(lightEstimate);
+            updateObjectLighting(lightEstimate, lightPixelIntensity);
+            mFrameProfiler.beginStage(FrameProfiler.Stage.OBJECTS);
+            drawAllObjects(mProjectionMatrix, mViewMatrix, lightPixelIntensity);
             //mPointCloud.onDrawFrame(arPointCloud, mViewMatrix, mProjectionMatrix);
         } catch (ArDemoRuntimeException e) {
             LogUtil.error(TAG, "Exception on the ArDemoRuntimeException!");
@@ -285,21 +331,33 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
             LogUtil.error(TAG, "Exception on the OpenGL thread. Name:" + t.getClass());
         }
 
+        mFrameProfiler.beginStage(FrameProfiler.Stage.CAPTURE);
         if (isTakePic) {
             isTakePic = false;
-            mOutputPic = mBitmapR.createBitmapFromGLSurface(0,0,mOutputWidth,mOutputHeight,gl);
             String imagename = "Image_" + System.currentTimeMillis() + ".jpg";
-            try {
-                BitmapUtils.saveBitmap(mActivity,mOutputPic,imagename);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            mBitmapR.requestCapture(mActivity, imagename, (fileName, isSaved) -> {
+                if (isSaved) {
+                    LogUtil.info(TAG, "Photo saved: " + fileName);
+                } else {
+                    LogUtil.warn(TAG, "Photo not saved: " + fileName);
+                }
+            });
         }
+
+        // Reads the frame back for a requested photo; encoding and saving run on a worker thread.
+        mBitmapR.onDrawFrame();
+        mFrameProfiler.endStage();
     }
 
     private void setEnvTextureData() {
-        if (!hasSetEnvTextureData) {
-            float[] boundBox = mObjectDisplay.getBoundingBox();
+        // The probe uses the bounding box of the model of the first placed virtual object, which is
+        // loaded in the background when it is first placed.
+        if (hasSetEnvTextureData || mVirtualObjects.isEmpty()) {
+            return;
+        }
+        Optional<float[]> boundingBox = mObjectDisplay.getBoundingBox(mVirtualObjects.getOldest().getObjname());
+        if (boundingBox.isPresent()) {
+            float[] boundBox = boundingBox.get();
             mSession.setEnvironmentTextureProbe(boundBox);
             LogUtil.info(TAG, "setEnvironmentTextureProbe = " + Arrays.toString(boundBox));
             mSession.setEnvironmentTextureUpdateMode(ARSession.EnvironmentTextureUpdateMode.AUTO);
@@ -313,11 +371,27 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
         // Obtain the pixel light intensity when the light intensity mode is enabled.
         if ((mArWorldTrackingConfig.getLightingMode() & ARConfigBase.LIGHT_MODE_AMBIENT_INTENSITY) != 0) {
             lightPixelIntensity = lightEstimate.getPixelIntensity();
-            LogUtil.info(TAG, "onDrawFrame: lightEstimate getPixelIntensity =" + lightPixelIntensity);
+
+            // Checked here, so that the float is not boxed into the arguments array on every frame.
+            if (LogUtil.isLoggable(Log.DEBUG)) {
+                LogUtil.debug(TAG, "onDrawFrame: lightEstimate getPixelIntensity = %f", lightPixelIntensity);
+            }
         }
         return lightPixelIntensity;
     }
 
+    private void updateObjectLighting(ARLightEstimate lightEstimate, float lightPixelIntensity) {
+        // Use the spherical harmonics and primary light when the environment lighting mode is enabled.
+        if ((lightEstimate.getState() == ARLightEstimate.State.VALID)
+            && ((mArWorldTrackingConfig.getLightingMode() & ARConfigBase.LIGHT_MODE_ENVIRONMENT_LIGHTING) != 0)) {
+            mObjectDisplay.setLightEstimate(lightEstimate.getSphericalHarmonicCoefficients(),
+                lightEstimate.getPrimaryLightDirection(), lightEstimate.getPrimaryLightColor(),
+                lightEstimate.getPrimaryLightIntensity());
+        } else {
+            mObjectDisplay.setDefaultLighting(lightPixelIntensity);
+        }
+    }
+
     private void getEnvironmentTexture(ARLightEstimate lightEstimate) {
         if ((mSearchingTextView.getVisibility() != View.GONE)
             || (lightEstimate.getState() != ARLightEstimate.State.VALID)) {
@@ -333,17 +407,17 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
             return;
         }
 
-        // Update the environment texture every 10 frames.
-        if ((mUpdateIndex % 10) == 0) {
-            byte[] bytes = new byte[LIGHTING_CUBE_MAP_SIZE];
-            byteBuffer.get(bytes);
-            mActivity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    updateTextureDisplay(bytes);
-                    mUpdateIndex = 0;
-                }
-            });
+        // Update the environment texture every 10 frames. The buffer is uploaded to the cube map as it is.
+        if ((mUpdateIndex % ENV_TEXTURE_UPDATE_INTERVAL) == 0) {
+            mEnvironmentCubeMap.update(byteBuffer);
+            mObjectDisplay.setEnvironmentTexture(mEnvironmentCubeMap.getTextureId());
+            mUpdateIndex = 0;
+            if (mIsEnvTexturePreviewEnabled) {
+                byte[] bytes = new byte[LIGHTING_CUBE_MAP_SIZE];
+                byteBuffer.get(bytes);
+                byteBuffer.rewind();
+                mActivity.runOnUiThread(() -> updateTextureDisplay(bytes));
+            }
         }
         mUpdateIndex++;
     }
@@ -399,15 +473,29 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
     }
 
     private void drawAllObjects(float[] projectionMatrix, float[] viewMatrix, float lightPixelIntensity) {
+        mObjectDisplay.uploadLoadedData();
         Iterator<VirtualObject> ite = mVirtualObjects.iterator();
         while (ite.hasNext()) {
             VirtualObject obj = ite.next();
             if (obj.getAnchor().getTrackingState() == ARTrackable.TrackingState.STOPPED) {
                 ite.remove();
+                onObjectRemoved(obj);
             }
-            if (obj.getAnchor().getTrackingState() == ARTrackable.TrackingState.TRACKING) {
-                mObjectDisplay.onDrawFrame(viewMatrix, projectionMatrix, lightPixelIntensity, obj);
-            }
+        }
+        mObjectDisplay.queueVisibleObjects(mVirtualObjects, viewMatrix, projectionMatrix);
+        mObjectDisplay.drawQueuedObjects(viewMatrix, projectionMatrix, lightPixelIntensity);
+    }
+
+    /**
+     * Forget an object removed from the scene, so that a drag in progress does not anchor it later.
+     *
+     * @param obj The removed virtual object.
+     */
+    private void onObjectRemoved(VirtualObject obj) {
+        mObjectDragger.onObjectRemoved(obj);
+        if (mSelectedObj == obj) {
+            mSelectedObj.setIsSelected(false);
+            mSelectedObj = null;
         }
     }
 
@@ -460,6 +548,11 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
     private void updateMessageData(ARFrame arFrame, StringBuilder sb) {
         float fpsResult = doFpsCalculate();
         sb.append("FPS=").append(fpsResult).append(System.lineSeparator());
+        sb.append("DrawCalls=").append(mObjectDisplay.getDrawCallCount())
+            .append(" StateChanges=").append(mObjectDisplay.getStateChangeCount())
+            .append(" Culled=").append(mObjectDisplay.getCulledCount())
+            .append(System.lineSeparator());
+        mFrameProfiler.appendSummary(sb);
 
         ARLightEstimate lightEstimate = arFrame.getLightEstimate();
 
@@ -504,16 +597,36 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
     }
 
     private void handleGestureEvent(ARFrame arFrame, ARCamera arCamera, float[] projectionMatrix, float[] viewMatrix) {
-        GestureEvent event = mQueuedSingleTaps.poll();
-        if (event == null) {
+        mGestureEvents.clear();
+        mQueuedSingleTaps.drainTo(mGestureEvents);
+        if (mGestureEvents.isEmpty()) {
             return;
         }
 
-        // Do not perform anything when the object is not tracked.
+        // Do not perform anything when the object is not tracked, except ending a drag: without the
+        // lift of the finger the dragger would stay in drag mode. No anchor can be created while the
+        // camera is not tracking, so the drag is cancelled.
         if (arCamera.getTrackingState() != ARTrackable.TrackingState.TRACKING) {
+            for (GestureEvent event : mGestureEvents) {
+                int eventType = event.getType();
+                if (eventType == GestureEvent.GESTURE_EVENT_TYPE_UP
+                    || eventType == GestureEvent.GESTURE_EVENT_TYPE_CANCEL) {
+                    mObjectDragger.cancel();
+                }
+            }
+            mGestureEvents.clear();
             return;
         }
 
+        // Handle every event of the frame; consecutive scrolls have been merged into one.
+        for (GestureEvent event : mGestureEvents) {
+            dispatchGestureEvent(arFrame, arCamera, projectionMatrix, viewMatrix, event);
+        }
+        mGestureEvents.clear();
+    }
+
+    private void dispatchGestureEvent(ARFrame arFrame, ARCamera arCamera, float[] projectionMatrix,
+        float[] viewMatrix, GestureEvent event) {
         int eventType = event.getType();
         switch (eventType) {
             case GestureEvent.GESTURE_EVENT_TYPE_SINGLETAPCONFIRMED: {
@@ -524,12 +637,21 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
                 if (mSelectedObj == null) {
                     break;
                 }
-                ARHitResult hitResult = hitTest4Result(arFrame, arCamera, event.getEventSecond());
-                if (hitResult != null) {
-                    mSelectedObj.setAnchor(hitResult.createAnchor());
+                doWhenEventTypeScroll(arFrame, arCamera, projectionMatrix, viewMatrix, event);
+                break;
+            }
+            case GestureEvent.GESTURE_EVENT_TYPE_UP: {
+                if (mObjectDragger.isDragging()) {
+                    // Anchor the dragged object once, where the finger is lifted.
+                    mObjectDragger.end(hitTest4Result(arFrame, arCamera, event));
                 }
                 break;
             }
+            case GestureEvent.GESTURE_EVENT_TYPE_CANCEL: {
+                // Put the dragged object back where it was before the drag.
+                mObjectDragger.cancel();
+                break;
+            }
             case GestureEvent.GESTURE_EVENT_TYPE_DOUBLETAP: {
                 // Do not perform anything when an object is selected.
                 if (mSelectedObj != null) {
@@ -537,8 +659,7 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
                     mSelectedObj = null;
                 }
 
-                MotionEvent tap = event.getEventFirst();
-                ARHitResult hitResult = hitTest4Result(arFrame, arCamera, tap);
+                ARHitResult hitResult = hitTest4Result(arFrame, arCamera, event);
 
                 if (hitResult == null) {
                     break;
@@ -552,38 +673,73 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
         }
     }
 
+    private void doWhenEventTypeScroll(ARFrame arFrame, ARCamera arCamera, float[] projectionMatrix,
+        float[] viewMatrix, GestureEvent event) {
+        if (!mObjectDragger.isDragging() || mObjectDragger.isHitTestDue()) {
+            ARHitResult hitResult = hitTest4Result(arFrame, arCamera, event);
+            if (hitResult != null) {
+                if (mObjectDragger.isDragging()) {
+                    mObjectDragger.updatePlane(hitResult);
+                } else {
+                    mObjectDragger.begin(mSelectedObj, hitResult);
+                }
+                return;
+            }
+        }
+
+        // Between the rate-limited engine hit tests, follow the finger on the plane of the last hit.
+        mObjectDragger.moveAlongPlane(mObjectDisplay, viewMatrix, projectionMatrix, event);
+    }
+
     private void doWhenEventTypeSingleTap(float[] viewMatrix, float[] projectionMatrix, GestureEvent event) {
+        mObjectDragger.cancel();
         if (mSelectedObj != null) {
             mSelectedObj.setIsSelected(false);
             mSelectedObj = null;
         }
-        for (VirtualObject obj : mVirtualObjects) {
-            if (mObjectDisplay.hitTest(viewMatrix, projectionMatrix, obj, event.getEventFirst())) {
-                obj.setIsSelected(true);
-                mSelectedObj = obj;
-                break;
-            }
+        Optional<PickResult> pickResult =
+            mObjectDisplay.pickObject(viewMatrix, projectionMatrix, mVirtualObjects, event);
+        if (pickResult.isPresent()) {
+            mSelectedObj = pickResult.get().getObject();
+            mSelectedObj.setIsSelected(true);
         }
     }
 
     private void doWhenEventTypeDoubleTap(ARHitResult hitResult) {
         // The hit results are sorted by distance. Only the nearest hit point is valid.
-        // Set the number of stored objects to 10 to avoid the overload of rendering and AR Engine.
-        if (mVirtualObjects.size() >= 16) {
-            mVirtualObjects.get(0).getAnchor().detach();
-            mVirtualObjects.remove(0);
+        // Limit the number of stored objects to avoid the overload of AR Engine; the copies of a
+        // model are drawn with one instanced call, so rendering is no longer the limit.
+        if (mVirtualObjects.size() >= MAX_VIRTUAL_OBJECTS) {
+            VirtualObject oldest = mVirtualObjects.removeOldest();
+            oldest.getAnchor().detach();
+            onObjectRemoved(oldest);
         }
 
+        ModelRegistry.Model model = ModelRegistry.getInstance(mActivity).findModel(mObjectKind);
+        if (model == null) {
+            LogUtil.warn(TAG, "Model " + mObjectKind + " is not in the manifest.");
+            return;
+        }
+        mObjectDisplay.requestModel(model.getName());
         ARTrackable currentTrackable = hitResult.getTrackable();
         if (currentTrackable instanceof ARPoint) {
-            mVirtualObjects.add(new VirtualObject(hitResult.createAnchor(), BLUE_COLORS, mObjectKind));
+            mVirtualObjects.add(new VirtualObject(hitResult.createAnchor(), BLUE_COLORS, model.getName(),
+                model.getScale()));
         } else if (currentTrackable instanceof ARPlane) {
-            mVirtualObjects.add(new VirtualObject(hitResult.createAnchor(), GREEN_COLORS, mObjectKind));
+            mVirtualObjects.add(new VirtualObject(hitResult.createAnchor(), GREEN_COLORS, model.getName(),
+                model.getScale()));
         } else {
             LogUtil.info(TAG, "Hit result is not plane or point.");
         }
     }
 
+    /**
+     * Release the cached model assets referenced by this renderer when destroying Activity.
+     */
+    public void releaseObjectAssets() {
+        mObjectDisplay.releaseAssets();
+    }
+
     /**
      * Release the anchor when destroying Activity.
      */
@@ -596,6 +752,10 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
         }
     }
 
+    /**
+     * Delete the selected virtual object, ending its drag. Call this method on the OpenGL thread,
+     * for example through GLSurfaceView.queueEvent.
+     */
     public void deleteObject(){
         if (mSelectedObj != null){
             Iterator<VirtualObject> ite = mVirtualObjects.iterator();
@@ -603,6 +763,7 @@ public class CameraRendererManager extends BaseRendererManager implements BaseRe
             while (ite.hasNext()) {
                 VirtualObject obj = ite.next();
                 if(obj == mSelectedObj){
+                    mObjectDragger.cancel();
                     obj.getAnchor().detach();
                     mSelectedObj.setIsSelected(false);
                     mSelectedObj = null;
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.java.camera.rendering;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+import max.ar.demo.common.LogUtil;
+import max.ar.demo.common.ShaderUtil;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One texture holding the images of several labels in a grid of cells, so that labels with
+ * different images can be drawn with a single texture binding. Use the atlas on the OpenGL thread.
+ */
+public class LabelAtlas {
+    private static final String TAG = LabelAtlas.class.getSimpleName();
+
+    /**
+     * Transparent border around each cell, so that filtering and the smaller mipmap levels do not
+     * blend the neighboring labels.
+     */
+    private static final int CELL_PADDING = 4;
+
+    /**
+     * Size of the uv rectangle of a cell: (u0, v0, u1, v1).
+     */
+    private static final int UV_RECT_SIZE = 4;
+
+    private final int[] mTexture = new int[1];
+
+    private float[] mUvRects = new float[0];
+
+    private int mCellCount = 0;
+
+    /**
+     * Create the atlas texture. Call this method on the OpenGL thread.
+     */
+    public void init() {
+        GLES20.glGenTextures(1, mTexture, 0);
+    }
+
+    /**
+     * Pack the label images into the grid of the atlas and upload it. Cell i holds image i; a null
+     * image leaves its cell empty.
+     *
+     * @param bitmaps Label images.
+     */
+    public void upload(List<Bitmap> bitmaps) {
+        int cellCount = bitmaps.size();
+        int cellWidth = 1;
+        int cellHeight = 1;
+        for (Bitmap bitmap : bitmaps) {
+            if (bitmap != null) {
+                cellWidth = Math.max(cellWidth, bitmap.getWidth() + 2 * CELL_PADDING);
+                cellHeight = Math.max(cellHeight, bitmap.getHeight() + 2 * CELL_PADDING);
+            }
+        }
+        int columns = Math.max(1, (int) Math.ceil(Math.sqrt(cellCount)));
+        int rows = Math.max(1, (cellCount + columns - 1) / columns);
+
+        // Power of two sizes keep the mipmaps complete on OpenGL ES 2.0.
+        int atlasWidth = nextPowerOfTwo(columns * cellWidth);
+        int atlasHeight = nextPowerOfTwo(rows * cellHeight);
+        Bitmap atlas = Bitmap.createBitmap(atlasWidth, atlasHeight, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(atlas);
+        setCellCount(cellCount);
+        for (int i = 0; i < cellCount; i++) {
+            Bitmap bitmap = bitmaps.get(i);
+            if (bitmap == null) {
+                LogUtil.warn(TAG, "No bitmap for label " + i + ".");
+                continue;
+            }
+            int left = (i % columns) * cellWidth + CELL_PADDING;
+            int top = (i / columns) * cellHeight + CELL_PADDING;
+            canvas.drawBitmap(bitmap, left, top, null);
+            setUvRect(i, (float) left / atlasWidth, (float) top / atlasHeight,
+                (float) (left + bitmap.getWidth()) / atlasWidth, (float) (top + bitmap.getHeight()) / atlasHeight);
+        }
+        uploadTexture(atlas);
+        atlas.recycle();
+    }
+
+    /**
+     * Replace the content of the atlas with a single label image that fills it.
+     *
+     * @param bitmap Label image.
+     */
+    public void upload(Bitmap bitmap) {
+        setCellCount(1);
+        setUvRect(0, 0.0f, 0.0f, 1.0f, 1.0f);
+        uploadTexture(bitmap);
+    }
+
+    public int getTextureId() {
+        return mTexture[0];
+    }
+
+    public int getCellCount() {
+        return mCellCount;
+    }
+
+    /**
+     * Map a u coordinate of a label image to the atlas.
+     *
+     * @param cell Cell of the label.
+     * @param u Coordinate in the label image, from 0 to 1.
+     * @return Coordinate in the atlas.
+     */
+    public float mapU(int cell, float u) {
+        int offset = cell * UV_RECT_SIZE;
+        return mUvRects[offset] + u * (mUvRects[offset + 2] - mUvRects[offset]);
+    }
+
+    /**
+     * Map a v coordinate of a label image to the atlas.
+     *
+     * @param cell Cell of the label.
+     * @param v Coordinate in the label image, from 0 to 1.
+     * @return Coordinate in the atlas.
+     */
+    public float mapV(int cell, float v) {
+        int offset = cell * UV_RECT_SIZE;
+        return mUvRects[offset + 1] + v * (mUvRects[offset + 3] - mUvRects[offset + 1]);
+    }
+
+    private void setCellCount(int cellCount) {
+        if (mUvRects.length < cellCount * UV_RECT_SIZE) {
+            mUvRects = new float[cellCount * UV_RECT_SIZE];
+        }
+
+        // Empty cells map to the transparent corner of the atlas.
+        Arrays.fill(mUvRects, 0.0f);
+        mCellCount = cellCount;
+    }
+
+    private void setUvRect(int cell, float u0, float v0, float u1, float v1) {
+        int offset = cell * UV_RECT_SIZE;
+        mUvRects[offset] = u0;
+        mUvRects[offset + 1] = v0;
+        mUvRects[offset + 2] = u1;
+        mUvRects[offset + 3] = v1;
+    }
+
+    private void uploadTexture(Bitmap bitmap) {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        ShaderUtil.checkGlError(TAG, "Atlas loading");
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+}
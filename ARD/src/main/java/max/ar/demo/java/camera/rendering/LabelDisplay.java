@@ -18,9 +18,9 @@ package max.ar.demo.java.camera.rendering;
 
 import android.graphics.Bitmap;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 import android.opengl.Matrix;
-import android.util.Pair;
+
+import com.huawei.arengine.demos.BuildConfig;
 
 import max.ar.demo.common.LabelDisplayUtil;
 import max.ar.demo.common.LogUtil;
@@ -33,14 +33,14 @@ import com.huawei.hiar.ARTarget;
 import com.huawei.hiar.ARTrackable;
 import com.huawei.hiar.ARTrackableBase;
 
-import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 
 /**
  * This class demonstrates how to use ARPlane, including how to obtain the center point of a plane.
@@ -62,39 +62,108 @@ public class LabelDisplay {
 
     private static final int DOUBLE_NUM = 2;
 
-    private static final int TEXTURES_SIZE = 12;
-
     private static final int MATRIX_SIZE = 16;
 
-    private static final int PLANE_ANGLE_MATRIX_SIZE = 4;
-
     private static final int INDEX_Y = 1;
 
-    private final int[] textures = new int[TEXTURES_SIZE];
+    private static final int FLOAT_BYTES = 4;
+
+    private static final int SHORT_BYTES = 2;
+
+    /**
+     * Vertex layout in the label vertex buffer: world position (x, y, z) and atlas uv (u, v).
+     */
+    private static final int FLOATS_PER_VERTEX = 5;
+
+    private static final int TEXCOORDS_OFFSET = COORDS_PER_VERTEX;
+
+    /**
+     * Label quad corners in the label plane: (x, z) followed by the uv in the label image.
+     */
+    private static final float[] QUAD_CORNERS = {-LABEL_WIDTH / 2.0f, -LABEL_HEIGHT / 2.0f, 0.0f, 0.0f,
+        -LABEL_WIDTH / 2.0f, LABEL_HEIGHT / 2.0f, 0.0f, 1.0f, LABEL_WIDTH / 2.0f, LABEL_HEIGHT / 2.0f, 1.0f, 1.0f,
+        LABEL_WIDTH / 2.0f, -LABEL_HEIGHT / 2.0f, 1.0f, 0.0f};
+
+    private static final int CORNER_SIZE = 4;
+
+    private static final int VERTICES_PER_LABEL = 4;
+
+    /**
+     * Two triangles that form a label quad, relative to the first vertex of the label.
+     */
+    private static final short[] QUAD_INDICES = {0, 1, 2, 0, 2, 3};
+
+    private static final int INITIAL_LABEL_CAPACITY = 16;
+
+    /**
+     * 16-bit indices address at most this many labels in one draw call.
+     */
+    private static final int MAX_LABEL_CAPACITY = 65536 / VERTICES_PER_LABEL;
+
+    /**
+     * Number of direct buffers allocated by label displays, counted in debug builds only to catch
+     * allocations on the draw path.
+     */
+    private static int sDirectAllocationCount = 0;
+
+    private final LabelAtlas mAtlas = new LabelAtlas();
+
+    /**
+     * Label vertex buffer, rewritten every frame, and the index buffer of its quads.
+     */
+    private final int[] mLabelBuffers = new int[2];
+
+    private int mLabelCapacity = 0;
+
+    private float[] mVertexData = new float[0];
+
+    private FloatBuffer mVertexBuffer;
+
+    /**
+     * Target label image last uploaded to the atlas and its generation, so that the image is only
+     * uploaded again when it is replaced or redrawn.
+     */
+    private Bitmap mUploadedBitmap;
+
+    private int mUploadedGenerationId;
 
     /**
      * Allocate a temporary list/matrix here to reduce the number of allocations per frame.
      */
     private final float[] modelMatrix = new float[MATRIX_SIZE];
 
-    private final float[] modelViewMatrix = new float[MATRIX_SIZE];
+    private final float[] viewProjectionMatrix = new float[MATRIX_SIZE];
+
+    private final float[] cameraViewMatrix = new float[MATRIX_SIZE];
+
+    private final float[] cameraPoseMatrix = new float[MATRIX_SIZE];
 
-    private final float[] modelViewProjectionMatrix = new float[MATRIX_SIZE];
+    private final float[] targetPosition = new float[3];
+
+    private final float[] measureQuaternion = {0.0f, 0.0f, 0.0f, 1.0f};
+
+    private final ArrayList<ARTrackableBase> trackableBases = new ArrayList<>();
 
     /**
-     * A 2 * 2 rotation matrix applied to the uv coordinates.
+     * Labeled planes in the order of the last frame, with their distances from the camera.
      */
-    private final float[] planeAngleUvMatrix = new float[PLANE_ANGLE_MATRIX_SIZE];
+    private final ArrayList<ARPlane> sortedPlanes = new ArrayList<>();
+
+    private final HashSet<ARPlane> sortedPlaneSet = new HashSet<>();
+
+    private float[] planeDistances = new float[INITIAL_LABEL_CAPACITY];
+
+    private final float[] planeNormalVector = new float[3];
 
     private int mProgram;
 
     private int glPositionParameter;
 
-    private int glModelViewProjectionMatrix;
+    private int glTexCoordParameter;
 
-    private int glTexture;
+    private int glViewProjectionMatrix;
 
-    private int glPlaneUvMatrix;
+    private int glTexture;
 
     /**
      * Create the shader program for label display in the openGL thread.
@@ -108,35 +177,68 @@ public class LabelDisplay {
             LogUtil.error(TAG, "No bitmap.");
         }
         createProgram();
-        int idx = 0;
-        GLES20.glGenTextures(textures.length, textures, 0);
-        for (Bitmap labelBitmap : labelBitmaps) {
-            // for semantic label plane
-            setTextBitmap(labelBitmap, idx);
-            idx++;
-        }
+        GLES20.glGenBuffers(mLabelBuffers.length, mLabelBuffers, 0);
+
+        // The buffers of a previous OpenGL context are gone, so grow the new ones from scratch.
+        mLabelCapacity = 0;
+        mVertexData = new float[0];
+        mVertexBuffer = null;
+        ensureLabelCapacity(INITIAL_LABEL_CAPACITY);
+
+        // The images of all semantic plane labels share one texture.
+        mAtlas.init();
+        mAtlas.upload(labelBitmaps);
+        mUploadedBitmap = null;
+        mUploadedGenerationId = 0;
         ShaderUtil.checkGlError(TAG, "Init end.");
     }
 
-    private void setTextBitmap(Bitmap labelBitmap, int idx) {
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + idx);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[idx]);
+    /**
+     * Grow the label vertex and index buffers to hold at least the given number of labels.
+     *
+     * @param labelCount Number of labels.
+     */
+    private void ensureLabelCapacity(int labelCount) {
+        if (labelCount <= mLabelCapacity) {
+            return;
+        }
+        int capacity = Math.min(MAX_LABEL_CAPACITY, Math.max(labelCount, mLabelCapacity * 2));
+        mVertexData = new float[capacity * VERTICES_PER_LABEL * FLOATS_PER_VERTEX];
+        mVertexBuffer = allocateDirect(FLOAT_BYTES * mVertexData.length).asFloatBuffer();
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mLabelBuffers[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, FLOAT_BYTES * mVertexData.length, null,
+            GLES20.GL_DYNAMIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        ShortBuffer indexBuffer = allocateDirect(SHORT_BYTES * capacity * QUAD_INDICES.length).asShortBuffer();
+        for (int i = 0; i < capacity; i++) {
+            for (short index : QUAD_INDICES) {
+                indexBuffer.put((short) (i * VERTICES_PER_LABEL + index));
+            }
+        }
+        indexBuffer.rewind();
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mLabelBuffers[1]);
+        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, SHORT_BYTES * indexBuffer.limit(), indexBuffer,
+            GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        mLabelCapacity = capacity;
+        ShaderUtil.checkGlError(TAG, "Label buffers");
+    }
 
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, labelBitmap, 0);
-        GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-        ShaderUtil.checkGlError(TAG, "Texture loading");
+    private static ByteBuffer allocateDirect(int capacity) {
+        if (BuildConfig.DEBUG) {
+            sDirectAllocationCount++;
+        }
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
     }
 
     private void createProgram() {
         ShaderUtil.checkGlError(TAG, "program start.");
-        mProgram = WorldShaderUtil.getLabelProgram();
-        glPositionParameter = GLES20.glGetAttribLocation(mProgram, "inPosXZAlpha");
-        glModelViewProjectionMatrix = GLES20.glGetUniformLocation(mProgram, "inMVPMatrix");
+        mProgram = WorldShaderUtil.getLabelAtlasProgram();
+        glPositionParameter = GLES20.glGetAttribLocation(mProgram, "inPosition");
+        glTexCoordParameter = GLES20.glGetAttribLocation(mProgram, "inTexCoordinate");
+        glViewProjectionMatrix = GLES20.glGetUniformLocation(mProgram, "inVPMatrix");
         glTexture = GLES20.glGetUniformLocation(mProgram, "inTexture");
-        glPlaneUvMatrix = GLES20.glGetUniformLocation(mProgram, "inPlanUVMatrix");
         ShaderUtil.checkGlError(TAG, "program end.");
     }
 
@@ -149,11 +251,10 @@ public class LabelDisplay {
      * @param cameraProjection Projection matrix of the current camera.
      */
     public void onDrawFrame(Collection<ARPlane> allPlanes, ARPose cameraPose, float[] cameraProjection) {
-        ArrayList<ARPlane> sortedPlanes = getSortedPlanes(allPlanes, cameraPose);
-        float[] cameraViewMatrix = new float[MATRIX_SIZE];
-        cameraPose.inverse().toMatrix(cameraViewMatrix, 0);
-        ArrayList<ARTrackableBase> trackableBases = new ArrayList<ARTrackableBase>(sortedPlanes);
-        drawTrackables(trackableBases, cameraViewMatrix, cameraProjection, cameraPose);
+        ArrayList<ARPlane> planes = getSortedPlanes(allPlanes, cameraPose);
+        cameraPose.toMatrix(cameraPoseMatrix, 0);
+        Matrix.invertM(cameraViewMatrix, 0, cameraPoseMatrix, 0);
+        drawTrackables(planes, cameraViewMatrix, cameraProjection, cameraPose);
     }
 
     /**
@@ -165,110 +266,157 @@ public class LabelDisplay {
      * @param cameraProjection Projection matrix.
      */
     public void onDrawFrame(ARTarget target, Bitmap bitmap, ARCamera camera, float[] cameraProjection) {
-        setTextBitmap(bitmap, 0);
-        float[] cameraViewMatrix = new float[MATRIX_SIZE];
+        if (bitmap != mUploadedBitmap || bitmap.getGenerationId() != mUploadedGenerationId) {
+            mAtlas.upload(bitmap);
+            mUploadedBitmap = bitmap;
+            mUploadedGenerationId = bitmap.getGenerationId();
+        }
         camera.getViewMatrix(cameraViewMatrix, 0);
-        ArrayList<ARTrackableBase> trackableBases = new ArrayList<>(1);
+        trackableBases.clear();
         trackableBases.add(target);
         drawTrackables(trackableBases, cameraViewMatrix, cameraProjection, camera.getDisplayOrientedPose());
+        trackableBases.clear();
     }
 
+    /**
+     * Sort the labeled planes by the distance from the camera, farthest first. The planes keep the
+     * order of the last frame and are sorted again with an insertion sort: the camera moves little
+     * between two frames, so the order is nearly sorted and the sort takes close to linear time.
+     *
+     * @param allPlanes All identified planes.
+     * @param cameraPose Location and pose of the current camera.
+     * @return Sorted planes; the list is reused by the next call.
+     */
     private ArrayList<ARPlane> getSortedPlanes(Collection<ARPlane> allPlanes, ARPose cameraPose) {
         // Planes must be sorted by the distance from the camera so that we can
         // first draw the closer planes, and have them block the further planes.
-        ArrayList<Pair<ARPlane, Float>> pairPlanes = new ArrayList<>();
-        for (ARPlane plane : allPlanes) {
-            if ((plane.getType() == ARPlane.PlaneType.UNKNOWN_FACING)
-                || plane.getTrackingState() != ARTrackable.TrackingState.TRACKING || plane.getSubsumedBy() != null) {
-                continue;
+        int count = 0;
+        for (int i = 0; i < sortedPlanes.size(); i++) {
+            ARPlane plane = sortedPlanes.get(i);
+            if (isLabeledPlane(plane)) {
+                sortedPlanes.set(count, plane);
+                count++;
+            } else {
+                sortedPlaneSet.remove(plane);
             }
-
-            // Store the normal vector of the current plane.
-            float[] planeNormalVector = new float[3];
-            ARPose planeCenterPose = plane.getCenterPose();
-            planeCenterPose.getTransformedAxis(1, 1.0f, planeNormalVector, 0);
-
-            // Calculate the distance from the camera to the plane. If the value is negative,
-            // it indicates that the camera is behind the plane (the normal vector distinguishes
-            // the front side from the back side).
-            float distanceBetweenPlaneAndCamera = (cameraPose.tx() - planeCenterPose.tx()) * planeNormalVector[0]
-                + (cameraPose.ty() - planeCenterPose.ty()) * planeNormalVector[1]
-                + (cameraPose.tz() - planeCenterPose.tz()) * planeNormalVector[2];
-            pairPlanes.add(new Pair<>(plane, distanceBetweenPlaneAndCamera));
+        }
+        while (sortedPlanes.size() > count) {
+            sortedPlanes.remove(sortedPlanes.size() - 1);
         }
 
-        pairPlanes.sort(new PlanCompare());
+        // New planes are added at the end and sorted into place.
+        for (ARPlane plane : allPlanes) {
+            if (isLabeledPlane(plane) && sortedPlaneSet.add(plane)) {
+                sortedPlanes.add(plane);
+            }
+        }
+        if (planeDistances.length < sortedPlanes.size()) {
+            planeDistances = new float[Math.max(sortedPlanes.size(), planeDistances.length * 2)];
+        }
+        for (int i = 0; i < sortedPlanes.size(); i++) {
+            planeDistances[i] = getDistanceToPlane(sortedPlanes.get(i), cameraPose);
+        }
 
-        ArrayList<ARPlane> sortedPlanes = new ArrayList<>();
-        for (Pair<ARPlane, Float> eachPlane : pairPlanes) {
-            sortedPlanes.add(eachPlane.first);
+        for (int i = 1; i < sortedPlanes.size(); i++) {
+            ARPlane plane = sortedPlanes.get(i);
+            float distance = planeDistances[i];
+            int j = i - 1;
+            while (j >= 0 && planeDistances[j] < distance) {
+                sortedPlanes.set(j + 1, sortedPlanes.get(j));
+                planeDistances[j + 1] = planeDistances[j];
+                j--;
+            }
+            sortedPlanes.set(j + 1, plane);
+            planeDistances[j + 1] = distance;
         }
         return sortedPlanes;
     }
 
-    /**
-     * Sort the planes.
-     *
-     * @author HW
-     * @since 2020-04-17
-     */
-    static class PlanCompare implements Comparator<Pair<ARPlane, Float>>, Serializable {
-        private static final long serialVersionUID = -7710923839970415650L;
+    private static boolean isLabeledPlane(ARPlane plane) {
+        return plane.getType() != ARPlane.PlaneType.UNKNOWN_FACING
+            && plane.getTrackingState() == ARTrackable.TrackingState.TRACKING && plane.getSubsumedBy() == null;
+    }
 
-        @Override
-        public int compare(Pair<ARPlane, Float> planA, Pair<ARPlane, Float> planB) {
-            return planB.second.compareTo(planA.second);
-        }
+    private float getDistanceToPlane(ARPlane plane, ARPose cameraPose) {
+        // Store the normal vector of the current plane.
+        ARPose planeCenterPose = plane.getCenterPose();
+        planeCenterPose.getTransformedAxis(1, 1.0f, planeNormalVector, 0);
+
+        // Calculate the distance from the camera to the plane. If the value is negative,
+        // it indicates that the camera is behind the plane (the normal vector distinguishes
+        // the front side from the back side).
+        return (cameraPose.tx() - planeCenterPose.tx()) * planeNormalVector[0]
+            + (cameraPose.ty() - planeCenterPose.ty()) * planeNormalVector[1]
+            + (cameraPose.tz() - planeCenterPose.tz()) * planeNormalVector[2];
     }
 
-    private void drawTrackables(ArrayList<ARTrackableBase> arTrackableBases, float[] cameraViews,
+    private void drawTrackables(List<? extends ARTrackableBase> arTrackableBases, float[] cameraViews,
         float[] cameraProjection, ARPose cameraDisplayPose) {
         ShaderUtil.checkGlError(TAG, "Draw sorted plans start.");
-
-        GLES20.glDepthMask(false);
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFuncSeparate(GLES20.GL_DST_ALPHA, GLES20.GL_ONE, GLES20.GL_ZERO, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        GLES20.glUseProgram(mProgram);
-        GLES20.glEnableVertexAttribArray(glPositionParameter);
-
-        for (ARTrackableBase arTrackable : arTrackableBases) {
-            float[] objModelMatrix = new float[MATRIX_SIZE];
-            int idx = 0;
+        int labelCount = Math.min(arTrackableBases.size(), MAX_LABEL_CAPACITY);
+        if (labelCount == 0) {
+            return;
+        }
+        ensureLabelCapacity(labelCount);
+
+        // Growing the buffers above is expected; any other direct allocation from here on is churn.
+        int allocationCount = sDirectAllocationCount;
+        // Write the quads in the sorted order, so that one draw call blends them back to front.
+        for (int i = 0; i < labelCount; i++) {
+            ARTrackableBase arTrackable = arTrackableBases.get(i);
+            int cell = 0;
             if (arTrackable instanceof ARPlane) {
                 ARPlane arPlane = (ARPlane) arTrackable;
-                arPlane.getCenterPose().toMatrix(objModelMatrix, 0);
-                idx = arPlane.getLabel().ordinal();
+                arPlane.getCenterPose().toMatrix(modelMatrix, 0);
+                cell = Math.abs(arPlane.getLabel().ordinal());
             }
             if (arTrackable instanceof ARTarget) {
                 ARTarget target = (ARTarget) arTrackable;
-                objModelMatrix = getLabelModeMatrix(cameraDisplayPose, target);
+                getLabelModeMatrix(cameraDisplayPose, target, modelMatrix);
             }
+            if (cell >= mAtlas.getCellCount()) {
+                cell = 0;
+            }
+            writeLabel(i, cell);
+        }
+        int floatCount = labelCount * VERTICES_PER_LABEL * FLOATS_PER_VERTEX;
+        mVertexBuffer.clear();
+        mVertexBuffer.put(mVertexData, 0, floatCount).rewind();
 
-            System.arraycopy(objModelMatrix, 0, modelMatrix, 0, MATRIX_SIZE);
+        GLES20.glDepthMask(false);
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendFuncSeparate(GLES20.GL_DST_ALPHA, GLES20.GL_ONE, GLES20.GL_ZERO, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLES20.glUseProgram(mProgram);
 
-            float scaleU = 1.0f / LABEL_WIDTH;
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mAtlas.getTextureId());
+        GLES20.glUniform1i(glTexture, 0);
+        Matrix.multiplyMM(viewProjectionMatrix, 0, cameraProjection, 0, cameraViews, 0);
+        GLES20.glUniformMatrix4fv(glViewProjectionMatrix, 1, false, viewProjectionMatrix, 0);
 
-            // Set the value of the plane angle uv matrix.
-            planeAngleUvMatrix[0] = scaleU;
-            planeAngleUvMatrix[1] = 0.0f;
-            planeAngleUvMatrix[2] = 0.0f;
-            float scaleV = 1.0f / LABEL_HEIGHT;
-            planeAngleUvMatrix[3] = scaleV;
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mLabelBuffers[0]);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, FLOAT_BYTES * floatCount, mVertexBuffer);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mLabelBuffers[1]);
+        GLES20.glEnableVertexAttribArray(glPositionParameter);
+        GLES20.glEnableVertexAttribArray(glTexCoordParameter);
+        GLES20.glVertexAttribPointer(glPositionParameter, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
+            FLOAT_BYTES * FLOATS_PER_VERTEX, 0);
+        GLES20.glVertexAttribPointer(glTexCoordParameter, 2, GLES20.GL_FLOAT, false,
+            FLOAT_BYTES * FLOATS_PER_VERTEX, FLOAT_BYTES * TEXCOORDS_OFFSET);
 
-            LogUtil.debug(TAG, "Plane getLabel:" + idx);
-            idx = Math.abs(idx);
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + idx);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[idx]);
-            GLES20.glUniform1i(glTexture, idx);
-            GLES20.glUniformMatrix2fv(glPlaneUvMatrix, 1, false, planeAngleUvMatrix, 0);
-
-            drawLabel(cameraViews, cameraProjection);
-        }
+        // All labels in a single draw call.
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, labelCount * QUAD_INDICES.length, GLES20.GL_UNSIGNED_SHORT, 0);
 
         GLES20.glDisableVertexAttribArray(glPositionParameter);
+        GLES20.glDisableVertexAttribArray(glTexCoordParameter);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
         GLES20.glDisable(GLES20.GL_BLEND);
         GLES20.glDepthMask(true);
+        if (sDirectAllocationCount != allocationCount) {
+            LogUtil.warn(TAG, "Direct buffers allocated while drawing labels.");
+        }
         ShaderUtil.checkGlError(TAG, "Draw sorted plans end.");
     }
 
@@ -277,60 +425,39 @@ public class LabelDisplay {
      *
      * @param cameraDisplayPose Pose of the camera in the world coordinate system.
      * @param target Information about the object that is recognized and tracked.
-     * @return label Plane matrix.
+     * @param outMatrix Label plane matrix 4 * 4.
      */
-    private float[] getLabelModeMatrix(ARPose cameraDisplayPose, ARTarget target) {
-        float[] measureQuaternion = LabelDisplayUtil.getMeasureQuaternion(cameraDisplayPose, STRAIGHT_ANGLE);
+    private void getLabelModeMatrix(ARPose cameraDisplayPose, ARTarget target, float[] outMatrix) {
+        LabelDisplayUtil.getMeasureQuaternion(cameraDisplayPose, STRAIGHT_ANGLE, measureQuaternion);
         ARPose targetCenterPose = target.getCenterPose();
-        float[] topPosition =
-            new float[] {targetCenterPose.tx(), targetCenterPose.ty(), targetCenterPose.tz()};
+        targetPosition[0] = targetCenterPose.tx();
+        targetPosition[INDEX_Y] = targetCenterPose.ty();
+        targetPosition[2] = targetCenterPose.tz();
         if (target.getShapeType() == ARTarget.TargetShapeType.TARGET_SHAPE_BOX) {
-            topPosition[INDEX_Y] += target.getAxisAlignBoundingBox()[INDEX_Y] / DOUBLE_NUM;
+            targetPosition[INDEX_Y] += target.getAxisAlignBoundingBox()[INDEX_Y] / DOUBLE_NUM;
         }
-        ARPose measurePose = new ARPose(topPosition, measureQuaternion);
-        float[] planeMatrix = new float[MATRIX_SIZE];
-        measurePose.toMatrix(planeMatrix, 0);
-        return planeMatrix;
+        LabelDisplayUtil.getPoseMatrix(targetPosition, measureQuaternion, outMatrix);
     }
 
-    private void drawLabel(float[] cameraViews, float[] cameraProjection) {
-        ShaderUtil.checkGlError(TAG, "Draw label start.");
-        Matrix.multiplyMM(modelViewMatrix, 0, cameraViews, 0, modelMatrix, 0);
-        Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraProjection, 0, modelViewMatrix, 0);
-
-        float halfWidth = LABEL_WIDTH / 2.0f;
-        float halfHeight = LABEL_HEIGHT / 2.0f;
-        float[] vertices = {-halfWidth, -halfHeight, 1, -halfWidth, halfHeight, 1, halfWidth, halfHeight, 1, halfWidth,
-            -halfHeight, 1};
-
-        // The size of each floating point is 4 bits.
-        FloatBuffer vetBuffer =
-            ByteBuffer.allocateDirect(4 * vertices.length).order(ByteOrder.nativeOrder()).asFloatBuffer();
-        vetBuffer.rewind();
-        for (int i = 0; i < vertices.length; ++i) {
-            vetBuffer.put(vertices[i]);
-        }
-        vetBuffer.rewind();
-
-        // The size of each floating point is 4 bits.
-        GLES20.glVertexAttribPointer(glPositionParameter, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
-            4 * COORDS_PER_VERTEX, vetBuffer);
-
-        // Set the sequence of OpenGL drawing points to generate two triangles that form a plane.
-        short[] indices = {0, 1, 2, 0, 2, 3};
-
-        // Size of the allocated buffer.
-        ShortBuffer idxBuffer =
-            ByteBuffer.allocateDirect(2 * indices.length).order(ByteOrder.nativeOrder()).asShortBuffer();
-        idxBuffer.rewind();
-        for (int i = 0; i < indices.length; ++i) {
-            idxBuffer.put(indices[i]);
+    /**
+     * Write the four vertices of a label quad: the corners are transformed to world space by the
+     * model matrix of the label, and the uv coordinates are mapped to the atlas cell of the label.
+     *
+     * @param label Index of the label in the vertex buffer.
+     * @param cell Atlas cell of the label image.
+     */
+    private void writeLabel(int label, int cell) {
+        int offset = label * VERTICES_PER_LABEL * FLOATS_PER_VERTEX;
+        for (int corner = 0; corner < QUAD_CORNERS.length; corner += CORNER_SIZE) {
+            // The label lies in the xz plane of its model space.
+            float x = QUAD_CORNERS[corner];
+            float z = QUAD_CORNERS[corner + 1];
+            mVertexData[offset] = modelMatrix[0] * x + modelMatrix[8] * z + modelMatrix[12];
+            mVertexData[offset + 1] = modelMatrix[1] * x + modelMatrix[9] * z + modelMatrix[13];
+            mVertexData[offset + 2] = modelMatrix[2] * x + modelMatrix[10] * z + modelMatrix[14];
+            mVertexData[offset + TEXCOORDS_OFFSET] = mAtlas.mapU(cell, QUAD_CORNERS[corner + 2]);
+            mVertexData[offset + TEXCOORDS_OFFSET + 1] = mAtlas.mapV(cell, QUAD_CORNERS[corner + 3]);
+            offset += FLOATS_PER_VERTEX;
         }
-        idxBuffer.rewind();
-
-        GLES20.glUniformMatrix4fv(glModelViewProjectionMatrix, 1, false, modelViewProjectionMatrix, 0);
-
-        GLES20.glDrawElements(GLES20.GL_TRIANGLE_STRIP, idxBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, idxBuffer);
-        ShaderUtil.checkGlError(TAG, "Draw label end.");
     }
-}
\ No newline at end of file
+}
@@ -23,7 +23,7 @@ import android.widget.Toast;
 
 import com.huawei.arengine.demos.R;
 
-import max.ar.demo.common.GestureEvent;
+import max.ar.demo.common.GestureEventQueue;
 import max.ar.demo.common.LogUtil;
 import max.ar.demo.java.instant.rendering.InstantRendererManager;
 import max.ar.demo.common.BaseActivity;
@@ -38,7 +38,6 @@ import com.huawei.hiar.exceptions.ARUnavailableClientSdkTooOldException;
 import com.huawei.hiar.exceptions.ARUnavailableServiceApkTooOldException;
 import com.huawei.hiar.exceptions.ARUnavailableServiceNotInstalledException;
 
-import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * This AR example shows how to use the Instant AR scene of HUAWEI AR Engine,
@@ -49,13 +48,11 @@ public class InstantActivity extends BaseActivity {
     public static InstantActivity instantActivity;
     private static final String TAG = "InstantActivity";
 
-    private static final int MOTIONEVENT_QUEUE_CAPACITY = 2;
-
-    private static final int OPENGLES_VERSION = 2;
+    private static final int MOTIONEVENT_QUEUE_CAPACITY = 64;
 
     private InstantRendererManager mInstantRendererManager;
 
-    private ArrayBlockingQueue<GestureEvent> mQueuedSingleTaps = new ArrayBlockingQueue<>(MOTIONEVENT_QUEUE_CAPACITY);
+    private GestureEventQueue mQueuedSingleTaps = new GestureEventQueue(MOTIONEVENT_QUEUE_CAPACITY);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -66,7 +63,7 @@ public class InstantActivity extends BaseActivity {
         GestureDetectorUtils.initGestureDetector(this, TAG, mSurfaceView, mQueuedSingleTaps);
 
         mSurfaceView.setPreserveEGLContextOnPause(true);
-        mSurfaceView.setEGLContextClientVersion(OPENGLES_VERSION);
+        mSurfaceView.setEGLContextClientVersion(getOpenGlEsVersion());
 
         // Set the EGL configuration chooser, including for the number of
         // bits of the color buffer and the number of depth bits.
@@ -120,6 +117,7 @@ public class InstantActivity extends BaseActivity {
         LogUtil.info(TAG, "onDestroy start.");
         if (mInstantRendererManager != null) {
             mInstantRendererManager.releaseARAnchor();
+            mInstantRendererManager.releaseObjectAssets();
         }
         super.onDestroy();
     }
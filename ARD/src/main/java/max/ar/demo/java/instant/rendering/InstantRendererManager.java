@@ -21,7 +21,6 @@ import static max.ar.demo.java.instant.InstantActivity.instantActivity;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
-import android.view.MotionEvent;
 import android.widget.SeekBar;
 import android.widget.Toast;
 
@@ -29,9 +28,13 @@ import com.huawei.arengine.demos.R;
 
 import max.ar.demo.common.ArDemoRuntimeException;
 import max.ar.demo.common.GestureEvent;
+import max.ar.demo.common.GestureEventQueue;
 import max.ar.demo.common.LogUtil;
+import max.ar.demo.common.ModelRegistry;
 import max.ar.demo.common.BaseRendererManager;
 import max.ar.demo.common.ObjectDisplay;
+import max.ar.demo.common.ObjectScene;
+import max.ar.demo.common.PickResult;
 import max.ar.demo.common.VirtualObject;
 import max.ar.demo.java.instant.InstantActivity;
 import max.ar.demo.java.utils.CommonUtil;
@@ -48,7 +51,8 @@ import com.huawei.hiar.exceptions.ARSessionPausedException;
 
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.List;
+import java.util.Optional;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -62,14 +66,19 @@ public class InstantRendererManager extends BaseRendererManager implements BaseR
 
     private static final float[] GREEN_COLORS = new float[] {66.0f, 244.0f, 133.0f, 255.0f};
     private static final float[] BLUE_COLORS = new float[] {66.0f, 133.0f, 244.0f, 255.0f};
+
+    private static final String INSTANT_MODEL_NAME = "AR_logo";
+
     private ObjectDisplay mObjectDisplay = new ObjectDisplay();
 
-    private ArrayBlockingQueue<GestureEvent> mQueuedSingleTaps;
+    private GestureEventQueue mQueuedSingleTaps;
+
+    private final List<GestureEvent> mGestureEvents = new ArrayList<>();
 
     private VirtualObject mSelectedObj = null;
 
     //private VirtualObject mVirtualObject = null;
-    private ArrayList<VirtualObject> mVirtualObjects = new ArrayList<>();
+    private ObjectScene mVirtualObjects = new ObjectScene();
 
     private SeekBar mScaleSeekBar = null;
 
@@ -91,7 +100,7 @@ public class InstantRendererManager extends BaseRendererManager implements BaseR
      *
      * @param queuedSingleTaps Gesture type queue.
      */
-    public void setQueuedSingleTaps(ArrayBlockingQueue<GestureEvent> queuedSingleTaps) {
+    public void setQueuedSingleTaps(GestureEventQueue queuedSingleTaps) {
         if (queuedSingleTaps == null) {
             LogUtil.error(TAG, "setQueuedSingleTaps error, queuedSingleTaps is null!");
             return;
@@ -175,26 +184,31 @@ public class InstantRendererManager extends BaseRendererManager implements BaseR
     }
 
     private void drawAllObjects(float[] projectionMatrix, float[] viewMatrix, float lightPixelIntensity) {
+        mObjectDisplay.uploadLoadedData();
         Iterator<VirtualObject> ite = mVirtualObjects.iterator();
         while (ite.hasNext()) {
             VirtualObject obj = ite.next();
             if (obj.getAnchor().getTrackingState() == ARTrackable.TrackingState.STOPPED) {
                 ite.remove();
             }
-            if (obj.getAnchor().getTrackingState() == ARTrackable.TrackingState.TRACKING) {
-                mObjectDisplay.onDrawFrame(viewMatrix, projectionMatrix, lightPixelIntensity, obj);
-            }
         }
+        mObjectDisplay.queueVisibleObjects(mVirtualObjects, viewMatrix, projectionMatrix);
+        mObjectDisplay.drawQueuedObjects(viewMatrix, projectionMatrix, lightPixelIntensity);
     }
 
     private void updateMessageData(StringBuilder sb) {
         float fpsResult = doFpsCalculate();
         sb.append("FPS = ").append(fpsResult).append(System.lineSeparator());
+        sb.append("DrawCalls = ").append(mObjectDisplay.getDrawCallCount())
+            .append(", StateChanges = ").append(mObjectDisplay.getStateChangeCount())
+            .append(", Culled = ").append(mObjectDisplay.getCulledCount())
+            .append(System.lineSeparator());
     }
 
     private void handleGestureEvent(ARFrame arFrame, ARCamera arCamera, float[] projectionMatrix, float[] viewMatrix) {
-        GestureEvent event = mQueuedSingleTaps.poll();
-        if (event == null) {
+        mGestureEvents.clear();
+        mQueuedSingleTaps.drainTo(mGestureEvents);
+        if (mGestureEvents.isEmpty()) {
             return;
         }
 
@@ -203,6 +217,15 @@ public class InstantRendererManager extends BaseRendererManager implements BaseR
             return;
         }
 
+        // Handle every event of the frame; consecutive scrolls have been merged into one.
+        for (GestureEvent event : mGestureEvents) {
+            dispatchGestureEvent(arFrame, arCamera, projectionMatrix, viewMatrix, event);
+        }
+        mGestureEvents.clear();
+    }
+
+    private void dispatchGestureEvent(ARFrame arFrame, ARCamera arCamera, float[] projectionMatrix,
+        float[] viewMatrix, GestureEvent event) {
         switch (event.getType()) {
             case GestureEvent.GESTURE_EVENT_TYPE_DOUBLETAP: {
                 doWhenEventTypeDoubleTap(viewMatrix, projectionMatrix, event);
@@ -213,7 +236,12 @@ public class InstantRendererManager extends BaseRendererManager implements BaseR
                     LogUtil.info(TAG, "Selected object is null when instant scroll event.");
                     break;
                 }
-                CommonUtil.hitTest(arFrame, event.getEventSecond());
+                CommonUtil.hitTest(arFrame, event.getX(), event.getY());
+                break;
+            }
+            case GestureEvent.GESTURE_EVENT_TYPE_UP:
+            case GestureEvent.GESTURE_EVENT_TYPE_CANCEL: {
+                // The instant scroll does not move objects, so there is no drag to finish.
                 break;
             }
             case GestureEvent.GESTURE_EVENT_TYPE_SINGLETAPCONFIRMED: {
@@ -222,8 +250,7 @@ public class InstantRendererManager extends BaseRendererManager implements BaseR
                     mSelectedObj.setIsSelected(false);
                     mSelectedObj = null;
                 }
-                MotionEvent tap = event.getEventFirst();
-                ARHitResult hitResult = hitTest4Result(arFrame,arCamera,tap);
+                ARHitResult hitResult = hitTest4Result(arFrame, arCamera, event);
                 if (hitResult == null) {
                     break;
                 }
@@ -240,12 +267,11 @@ public class InstantRendererManager extends BaseRendererManager implements BaseR
             mSelectedObj.setIsSelected(false);
             mSelectedObj = null;
         }
-        for (VirtualObject obj : mVirtualObjects) {
-            if (mObjectDisplay.hitTest(viewMatrix, projectionMatrix, obj, event.getEventFirst())) {
-                obj.setIsSelected(true);
-                mSelectedObj = obj;
-                break;
-            }
+        Optional<PickResult> pickResult =
+            mObjectDisplay.pickObject(viewMatrix, projectionMatrix, mVirtualObjects, event);
+        if (pickResult.isPresent()) {
+            mSelectedObj = pickResult.get().getObject();
+            mSelectedObj.setIsSelected(true);
         }
     }
 
@@ -253,10 +279,23 @@ public class InstantRendererManager extends BaseRendererManager implements BaseR
         // The hit results are sorted by distance. Only the nearest hit point is valid.
         // Set the number of stored objects to 10 to avoid the overload of rendering and AR Engine.
         if (mVirtualObjects.size() >= 11) {
-            mVirtualObjects.get(0).getAnchor().detach();
-            mVirtualObjects.remove(0);
+            mVirtualObjects.removeOldest().getAnchor().detach();
+        }
+        ModelRegistry.Model model = ModelRegistry.getInstance(mActivity).findModel(INSTANT_MODEL_NAME);
+        if (model == null) {
+            LogUtil.warn(TAG, "Model " + INSTANT_MODEL_NAME + " is not in the manifest.");
+            return;
         }
-        mVirtualObjects.add(new VirtualObject(hitResult.createAnchor(), GREEN_COLORS,"AR_logo"));
+        mObjectDisplay.requestModel(model.getName());
+        mVirtualObjects.add(new VirtualObject(hitResult.createAnchor(), GREEN_COLORS, model.getName(),
+            model.getScale()));
+    }
+
+    /**
+     * Release the cached model assets referenced by this renderer when destroying Activity.
+     */
+    public void releaseObjectAssets() {
+        mObjectDisplay.releaseAssets();
     }
 
     /**
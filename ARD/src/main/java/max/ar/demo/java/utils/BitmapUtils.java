@@ -11,20 +11,31 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 
 public class BitmapUtils {
-    public static void saveBitmap(Context context,Bitmap bitmap, String bitName) throws IOException
+    /**
+     * Save a bitmap to the camera folder and announce it to the media scanner. Can be called on a
+     * worker thread.
+     *
+     * @param context Context used to notify the media scanner.
+     * @param bitmap Image to save.
+     * @param bitName File name.
+     * @return true if the image was written.
+     */
+    public static boolean saveBitmap(Context context,Bitmap bitmap, String bitName) throws IOException
     {
         File file = new File("/sdcard/DCIM/Camera/"+bitName);
         if(file.exists()){
             file.delete();
         }
         FileOutputStream out;
+        boolean saved = false;
         try{
             out = new FileOutputStream(file);
             if(bitmap.compress(Bitmap.CompressFormat.PNG, 90, out))
             {
                 out.flush();
-                out.close();
+                saved = true;
             }
+            out.close();
             Uri uri = Uri.fromFile(file);
             Intent intent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
             intent.setData(uri);
@@ -37,6 +48,8 @@ public class BitmapUtils {
         catch (IOException e)
         {
             e.printStackTrace();
+            saved = false;
         }
+        return saved;
     }
 }
@@ -228,14 +228,22 @@ public class CommonUtil {
      * Get hit result of the position in the screen
      *
      * @param frame ARFrame
-     * @param event input event of screen
+     * @param x x coordinate of the position in the screen
+     * @param y y coordinate of the position in the screen
      * @return List of ARHitResult
      */
-    public static List<ARHitResult> hitTest(ARFrame frame, MotionEvent event) {
-        if (event == null || event.getX() < 0 || event.getY() < 0) {
-            LogUtil.error(TAG, "hitTest, event is null, or coordinate is below zero.");
+    public static List<ARHitResult> hitTest(ARFrame frame, float x, float y) {
+        if (x < 0 || y < 0) {
+            LogUtil.error(TAG, "hitTest, coordinate is below zero.");
             return Collections.emptyList();
         }
-        return frame.hitTest(event);
+
+        // The frame takes the position as a MotionEvent, which is taken from the pool and returned at once.
+        MotionEvent event = MotionEvent.obtain(0L, 0L, MotionEvent.ACTION_DOWN, x, y, 0);
+        try {
+            return frame.hitTest(event);
+        } finally {
+            event.recycle();
+        }
     }
 }
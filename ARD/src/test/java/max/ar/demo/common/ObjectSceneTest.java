@@ -0,0 +1,287 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.huawei.hiar.ARPose;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Check the dynamic AABB tree of {@link ObjectScene}: inserts, removals and moves keep the ray and
+ * nearest-neighbour queries equal to a brute-force search, and the tree balanced. The boxes come from a map instead
+ * of loaded models.
+ */
+public class ObjectSceneTest {
+    private static final float[] COLOR = {1.0f, 1.0f, 1.0f, 1.0f};
+
+    /**
+     * Enlargement of the leaf boxes in the scene; a query may also return objects this close to the ray.
+     */
+    private static final float FAT_MARGIN = 0.05f;
+
+    private static final float EPSILON = 1.0e-4f;
+
+    private final Map<VirtualObject, float[]> mBoxes = new HashMap<>();
+
+    private final ObjectScene.BoundsSource mBoundsSource = (obj, outBoundingBox) -> {
+        float[] box = mBoxes.get(obj);
+        if (box == null) {
+            return false;
+        }
+        System.arraycopy(box, 0, outBoundingBox, 0, box.length);
+        return true;
+    };
+
+    private final Random mRandom = new Random(7L);
+
+    @Test
+    public void add_objectEntersTreeOnceBoundsAreKnown() {
+        ObjectScene scene = new ObjectScene();
+        VirtualObject obj = createObject();
+        scene.add(obj);
+        scene.refresh(mBoundsSource);
+
+        assertEquals(1, scene.size());
+        assertEquals(-1, scene.getTreeHeight());
+        assertTrue(queryRay(scene, 0.5f, 0.5f).isEmpty());
+
+        mBoxes.put(obj, new float[] {0.0f, 0.0f, 0.0f, 1.0f, 1.0f, 1.0f});
+        scene.refresh(mBoundsSource);
+
+        assertEquals(0, scene.getTreeHeight());
+        assertEquals(1, queryRay(scene, 0.5f, 0.5f).size());
+    }
+
+    @Test
+    public void queryRay_matchesBruteForceAfterInsertsAndRemovals() {
+        ObjectScene scene = new ObjectScene();
+        List<VirtualObject> objects = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            VirtualObject obj = createObject();
+            mBoxes.put(obj, randomBox());
+            scene.add(obj);
+            objects.add(obj);
+        }
+        scene.refresh(mBoundsSource);
+        checkRays(scene, objects);
+
+        // Remove every third object directly and every fifth through the iterator.
+        for (int i = 0; i < objects.size(); i += 3) {
+            assertTrue(scene.remove(objects.get(i)));
+        }
+        int index = 0;
+        Iterator<VirtualObject> iterator = scene.iterator();
+        while (iterator.hasNext()) {
+            iterator.next();
+            if (index++ % 5 == 0) {
+                iterator.remove();
+            }
+        }
+        List<VirtualObject> remaining = new ArrayList<>();
+        for (VirtualObject obj : scene) {
+            remaining.add(obj);
+        }
+        assertEquals(remaining.size(), scene.size());
+        checkRays(scene, remaining);
+    }
+
+    @Test
+    public void refresh_reinsertsObjectsThatReportAMove() {
+        ObjectScene scene = new ObjectScene();
+        List<VirtualObject> objects = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            VirtualObject obj = createObject();
+            mBoxes.put(obj, randomBox());
+            scene.add(obj);
+            objects.add(obj);
+        }
+        scene.refresh(mBoundsSource);
+
+        // Move half of the objects far away; a transform change reports the move to the scene.
+        for (int i = 0; i < objects.size(); i += 2) {
+            float[] box = mBoxes.get(objects.get(i));
+            for (int axis = 0; axis < 3; axis++) {
+                box[axis] += 20.0f;
+                box[axis + 3] += 20.0f;
+            }
+            objects.get(i).updateScaleFactor(1.0f);
+        }
+        scene.refresh(mBoundsSource);
+        checkRays(scene, objects);
+    }
+
+    @Test
+    public void findNearest_matchesBruteForceAfterMovesAndRemovals() {
+        ObjectScene scene = new ObjectScene();
+        assertFalse(scene.findNearest(new float[] {0.0f, 0.0f, 0.0f}).isPresent());
+
+        List<VirtualObject> objects = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            VirtualObject obj = createObject();
+            mBoxes.put(obj, randomBox());
+            scene.add(obj);
+            objects.add(obj);
+        }
+        scene.refresh(mBoundsSource);
+        checkNearest(scene, objects);
+
+        // Move a third of the objects and remove a quarter of the rest.
+        for (int i = 0; i < objects.size(); i += 3) {
+            mBoxes.put(objects.get(i), randomBox());
+            objects.get(i).updateScaleFactor(1.0f);
+        }
+        scene.refresh(mBoundsSource);
+        for (int i = objects.size() - 1; i >= 0; i -= 4) {
+            assertTrue(scene.remove(objects.remove(i)));
+        }
+        checkNearest(scene, objects);
+    }
+
+    @Test
+    public void remove_keepsTreeBalancedAndEmptiesIt() {
+        ObjectScene scene = new ObjectScene();
+        List<VirtualObject> objects = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            VirtualObject obj = createObject();
+            mBoxes.put(obj, randomBox());
+            scene.add(obj);
+            objects.add(obj);
+        }
+        scene.refresh(mBoundsSource);
+
+        // A balanced binary tree of n leaves has a height in O(log n).
+        assertTrue(scene.getTreeHeight() <= 16);
+
+        assertSame(objects.get(0), scene.getOldest());
+        assertSame(objects.get(0), scene.removeOldest());
+        assertFalse(scene.remove(objects.get(0)));
+        for (int i = 1; i < objects.size(); i++) {
+            assertTrue(scene.remove(objects.get(i)));
+        }
+        assertTrue(scene.isEmpty());
+        assertEquals(-1, scene.getTreeHeight());
+
+        // A removed object no longer reports its moves to the scene.
+        objects.get(1).updateScaleFactor(1.0f);
+        scene.refresh(mBoundsSource);
+        assertTrue(queryRay(scene, 0.0f, 0.0f).isEmpty());
+    }
+
+    private VirtualObject createObject() {
+        return new VirtualObject((ARPose) null, COLOR, "object");
+    }
+
+    private float[] randomBox() {
+        float[] box = new float[6];
+        for (int axis = 0; axis < 3; axis++) {
+            box[axis] = mRandom.nextFloat() * 10.0f - 5.0f;
+            box[axis + 3] = box[axis] + 0.1f + mRandom.nextFloat();
+        }
+        return box;
+    }
+
+    // Vertical ray down through (x, z); its zero x and z components also cover axis-parallel rays.
+    private List<VirtualObject> queryRay(ObjectScene scene, float x, float z) {
+        List<VirtualObject> result = new ArrayList<>();
+        scene.queryRay(new float[] {x, 100.0f, z}, new float[] {0.0f, -1.0f, 0.0f}, result);
+        return result;
+    }
+
+    private void checkRays(ObjectScene scene, List<VirtualObject> objects) {
+        for (int i = 0; i < 100; i++) {
+            float[] origin = {mRandom.nextFloat() * 30.0f - 10.0f, 50.0f, mRandom.nextFloat() * 30.0f - 10.0f};
+            float[] direction = {mRandom.nextFloat() - 0.5f, -1.0f, mRandom.nextFloat() - 0.5f};
+            if (i % 4 == 0) {
+                direction[0] = 0.0f;
+                direction[2] = 0.0f;
+            }
+            List<VirtualObject> found = new ArrayList<>();
+            scene.queryRay(origin, direction, found);
+            Set<VirtualObject> foundSet = new HashSet<>(found);
+            assertEquals(found.size(), foundSet.size());
+            for (VirtualObject obj : objects) {
+                float[] box = mBoxes.get(obj);
+                if (isRayCrossing(box, 0.0f, origin, direction)) {
+                    assertTrue(foundSet.contains(obj));
+                }
+            }
+            for (VirtualObject obj : found) {
+                assertTrue(objects.contains(obj));
+                assertTrue(isRayCrossing(mBoxes.get(obj), FAT_MARGIN + EPSILON, origin, direction));
+            }
+        }
+    }
+
+    private void checkNearest(ObjectScene scene, List<VirtualObject> objects) {
+        for (int i = 0; i < 100; i++) {
+            float[] point = new float[3];
+            for (int axis = 0; axis < 3; axis++) {
+                point[axis] = mRandom.nextFloat() * 20.0f - 10.0f;
+            }
+            float nearest = Float.POSITIVE_INFINITY;
+            for (VirtualObject obj : objects) {
+                nearest = Math.min(nearest, centerDistanceSquared(mBoxes.get(obj), point));
+            }
+            VirtualObject found = scene.findNearest(point).get();
+            assertTrue(objects.contains(found));
+            assertEquals(nearest, centerDistanceSquared(mBoxes.get(found), point), EPSILON);
+        }
+    }
+
+    private static float centerDistanceSquared(float[] box, float[] point) {
+        float distance = 0.0f;
+        for (int axis = 0; axis < 3; axis++) {
+            float delta = (box[axis] + box[axis + 3]) * 0.5f - point[axis];
+            distance += delta * delta;
+        }
+        return distance;
+    }
+
+    private static boolean isRayCrossing(float[] box, float margin, float[] origin, float[] direction) {
+        double near = 0.0;
+        double far = Double.POSITIVE_INFINITY;
+        for (int axis = 0; axis < 3; axis++) {
+            double min = box[axis] - margin;
+            double max = box[axis + 3] + margin;
+            if (direction[axis] == 0.0f) {
+                if (origin[axis] < min || origin[axis] > max) {
+                    return false;
+                }
+                continue;
+            }
+            double t1 = (min - origin[axis]) / direction[axis];
+            double t2 = (max - origin[axis]) / direction[axis];
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        return near <= far;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common.mesh;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Check the ray casts of {@link MeshBvh} against a linear Moller-Trumbore loop over the triangles
+ * of a random mesh drawn in several ranges, and the rays that must miss.
+ */
+public class MeshBvhTest {
+    private static final int RANGE_COUNT = 3;
+
+    private static final int RANGE_VERTICES = 60;
+
+    private static final int RANGE_TRIANGLES = 80;
+
+    private static final float EPSILON = 1.0e-4f;
+
+    private static final double PARALLEL_EPSILON = 1.0e-6;
+
+    private final Random mRandom = new Random(3L);
+
+    @Test
+    public void intersectRay_matchesBruteForceOnRandomMesh() {
+        MeshData mesh = createRandomMesh();
+        float[] triangles = gatherTriangles(mesh);
+        MeshBvh bvh = MeshBvh.build(mesh);
+        assertEquals(RANGE_COUNT * RANGE_TRIANGLES, bvh.getTriangleCount());
+
+        int[] stack = MeshBvh.createStack();
+        float[] corners = new float[9];
+        int hitCount = 0;
+        for (int i = 0; i < 2000; i++) {
+            float[] origin = randomPoint(6.0f);
+
+            // Aim most rays at the mesh; the others mostly miss it.
+            float[] target = i % 4 == 0 ? randomPoint(6.0f) : randomPoint(1.0f);
+            float[] direction = {target[0] - origin[0], target[1] - origin[1], target[2] - origin[2]};
+            float distance = bvh.intersectRay(origin, direction, Float.POSITIVE_INFINITY, stack);
+            int triangle = bvh.findNearestTriangle(origin, direction, Float.POSITIVE_INFINITY, stack);
+
+            float nearest = Float.POSITIVE_INFINITY;
+            float secondNearest = Float.POSITIVE_INFINITY;
+            int nearestTriangle = -1;
+            for (int t = 0; t < triangles.length / 9; t++) {
+                float candidate = intersectTriangle(triangles, t * 9, origin, direction);
+                if (candidate < nearest) {
+                    secondNearest = nearest;
+                    nearest = candidate;
+                    nearestTriangle = t;
+                } else if (candidate < secondNearest) {
+                    secondNearest = candidate;
+                }
+            }
+            if (nearestTriangle < 0) {
+                assertEquals(Float.POSITIVE_INFINITY, distance, 0.0f);
+                assertEquals(-1, triangle);
+                continue;
+            }
+            hitCount++;
+            assertEquals(nearest, distance, EPSILON * Math.max(1.0f, nearest));
+
+            // Two triangles at almost the same distance, such as at a shared edge, are both correct.
+            if (secondNearest - nearest > EPSILON) {
+                bvh.getTriangle(triangle, corners);
+                float[] expected = new float[9];
+                System.arraycopy(triangles, nearestTriangle * 9, expected, 0, 9);
+                assertArrayEquals(expected, corners, 0.0f);
+            }
+
+            // A hit at or beyond the maximum distance is ignored.
+            assertEquals(Float.POSITIVE_INFINITY, bvh.intersectRay(origin, direction, nearest * 0.5f, stack), 0.0f);
+        }
+        assertTrue(hitCount > 1000);
+    }
+
+    @Test
+    public void intersectRay_missesParallelAndAwayPointingRays() {
+        // Unit square in the plane y = 0, as two triangles.
+        float[] positions = {0.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 1.0f, 0.0f, 1.0f, 0.0f, 0.0f, 1.0f};
+        MeshData mesh = createMesh(positions, new short[] {0, 1, 2, 0, 2, 3},
+            new MeshData.DrawRange[] {new MeshData.DrawRange(0, 0, 6)});
+        MeshBvh bvh = MeshBvh.build(mesh);
+        int[] stack = MeshBvh.createStack();
+
+        // Straight down onto the square.
+        assertEquals(2.0f, bvh.intersectRay(new float[] {0.5f, 2.0f, 0.25f}, new float[] {0.0f, -1.0f, 0.0f},
+            Float.POSITIVE_INFINITY, stack), EPSILON);
+
+        // In the plane of the faces, and parallel to them above the square.
+        assertMiss(bvh, stack, new float[] {-1.0f, 0.0f, 0.5f}, new float[] {1.0f, 0.0f, 0.0f});
+        assertMiss(bvh, stack, new float[] {-1.0f, 0.0f, 0.5f}, new float[] {1.0f, 0.0f, 0.3f});
+        assertMiss(bvh, stack, new float[] {-1.0f, 0.1f, 0.5f}, new float[] {1.0f, 0.0f, 0.0f});
+
+        // Pointing away from the square, and passing beside it.
+        assertMiss(bvh, stack, new float[] {0.5f, 1.0f, 0.5f}, new float[] {0.0f, 1.0f, 0.0f});
+        assertMiss(bvh, stack, new float[] {2.0f, 1.0f, 0.5f}, new float[] {0.0f, -1.0f, 0.0f});
+        assertMiss(bvh, stack, new float[] {0.5f, 1.0f, -0.5f}, new float[] {0.0f, -1.0f, -0.1f});
+    }
+
+    private static void assertMiss(MeshBvh bvh, int[] stack, float[] origin, float[] direction) {
+        assertEquals(Float.POSITIVE_INFINITY, bvh.intersectRay(origin, direction, Float.POSITIVE_INFINITY, stack),
+            0.0f);
+        assertEquals(-1, bvh.findNearestTriangle(origin, direction, Float.POSITIVE_INFINITY, stack));
+    }
+
+    // Random triangles in [-1, 1]^3, drawn in ranges whose 16-bit indices are relative to a base vertex.
+    private MeshData createRandomMesh() {
+        float[] positions = new float[RANGE_COUNT * RANGE_VERTICES * 3];
+        for (int i = 0; i < positions.length; i += 3) {
+            System.arraycopy(randomPoint(1.0f), 0, positions, i, 3);
+        }
+        short[] indices = new short[RANGE_COUNT * RANGE_TRIANGLES * 3];
+        MeshData.DrawRange[] ranges = new MeshData.DrawRange[RANGE_COUNT];
+        for (int r = 0; r < RANGE_COUNT; r++) {
+            int firstIndex = r * RANGE_TRIANGLES * 3;
+            for (int i = firstIndex; i < firstIndex + RANGE_TRIANGLES * 3; i++) {
+                indices[i] = (short) mRandom.nextInt(RANGE_VERTICES);
+            }
+            ranges[r] = new MeshData.DrawRange(r * RANGE_VERTICES, firstIndex, RANGE_TRIANGLES * 3);
+        }
+        return createMesh(positions, indices, ranges);
+    }
+
+    private static MeshData createMesh(float[] positions, short[] indices, MeshData.DrawRange[] ranges) {
+        int vertexCount = positions.length / 3;
+        ByteBuffer vertices = ByteBuffer.allocate(vertexCount * MeshFormat.VERTEX_STRIDE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < vertexCount; i++) {
+            vertices.putFloat(positions[i * 3]).putFloat(positions[i * 3 + 1]).putFloat(positions[i * 3 + 2]);
+            vertices.putInt(0).putInt(0);
+        }
+        vertices.rewind();
+        ByteBuffer indexBuffer = ByteBuffer.allocate(indices.length * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (short index : indices) {
+            indexBuffer.putShort(index);
+        }
+        indexBuffer.rewind();
+        return new MeshData(vertices, indexBuffer, vertexCount, indices.length, MeshFormat.INDEX_TYPE_UNSIGNED_SHORT,
+            new float[] {0.0f, 0.0f, 1.0f, 1.0f}, ranges);
+    }
+
+    // Corners of every triangle in draw order, with the base vertex of its range applied.
+    private static float[] gatherTriangles(MeshData mesh) {
+        ByteBuffer vertices = mesh.getVertices();
+        ByteBuffer indices = mesh.getIndices();
+        float[] triangles = new float[mesh.getIndexCount() * 3];
+        for (int r = 0; r < mesh.getDrawRangeCount(); r++) {
+            MeshData.DrawRange range = mesh.getDrawRange(r);
+            for (int i = range.getFirstIndex(); i < range.getFirstIndex() + range.getIndexCount(); i++) {
+                int vertex = range.getBaseVertex() + Short.toUnsignedInt(indices.getShort(i * Short.BYTES));
+                for (int axis = 0; axis < 3; axis++) {
+                    triangles[i * 3 + axis] = vertices.getFloat(vertex * MeshFormat.VERTEX_STRIDE + axis * Float.BYTES);
+                }
+            }
+        }
+        return triangles;
+    }
+
+    private float[] randomPoint(float extent) {
+        return new float[] {
+            (mRandom.nextFloat() * 2.0f - 1.0f) * extent,
+            (mRandom.nextFloat() * 2.0f - 1.0f) * extent,
+            (mRandom.nextFloat() * 2.0f - 1.0f) * extent
+        };
+    }
+
+    // Moller-Trumbore for both faces, rejecting rays within the parallel tolerance of the BVH.
+    private static float intersectTriangle(float[] v, int base, float[] origin, float[] direction) {
+        double[] edge1 = {v[base + 3] - v[base], v[base + 4] - v[base + 1], v[base + 5] - v[base + 2]};
+        double[] edge2 = {v[base + 6] - v[base], v[base + 7] - v[base + 1], v[base + 8] - v[base + 2]};
+        double[] p = cross(direction[0], direction[1], direction[2], edge2);
+        double determinant = dot(edge1, p);
+        double lengthsSquared = dot(edge1, edge1) * dot(edge2, edge2)
+            * (direction[0] * direction[0] + direction[1] * direction[1] + direction[2] * direction[2]);
+        if (determinant * determinant <= PARALLEL_EPSILON * PARALLEL_EPSILON * lengthsSquared) {
+            return Float.POSITIVE_INFINITY;
+        }
+        double[] s = {origin[0] - v[base], origin[1] - v[base + 1], origin[2] - v[base + 2]};
+        double u = dot(s, p) / determinant;
+        if (u < 0.0 || u > 1.0) {
+            return Float.POSITIVE_INFINITY;
+        }
+        double[] q = cross(s[0], s[1], s[2], edge1);
+        double w = (direction[0] * q[0] + direction[1] * q[1] + direction[2] * q[2]) / determinant;
+        if (w < 0.0 || u + w > 1.0) {
+            return Float.POSITIVE_INFINITY;
+        }
+        double distance = dot(edge2, q) / determinant;
+        return distance >= 0.0 ? (float) distance : Float.POSITIVE_INFINITY;
+    }
+
+    private static double[] cross(double x, double y, double z, double[] b) {
+        return new double[] {y * b[2] - z * b[1], z * b[0] - x * b[2], x * b[1] - y * b[0]};
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common.mesh;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Check that a mesh written by {@link MeshFormat} and {@link ObjMeshCompiler} is read back by
+ * {@link MeshData#parse} unchanged, and that each kind of corrupted file is rejected.
+ */
+public class MeshDataTest {
+    private static final int VERTEX_COUNT_OFFSET = 12;
+
+    private static final int INDEX_COUNT_OFFSET = 16;
+
+    private static final int STRIDE_OFFSET = 20;
+
+    private static final int BOUNDING_BOX_OFFSET = 24;
+
+    private static final int VERTEX_DATA_OFFSET = 48;
+
+    private static final int INDEX_DATA_OFFSET = 52;
+
+    private static final float[] POSITIONS = {
+        0.0f, 0.0f, 0.0f, 2.0f, 0.0f, 0.0f, 2.0f, 1.0f, 0.0f, 0.0f, 1.0f, -3.0f
+    };
+
+    private static final float[] NORMALS = {
+        0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 2.0f, 1.0f, 0.0f, 0.0f, 0.0f, -1.0f, 0.0f
+    };
+
+    private static final float[] TEX_COORDS = {0.0f, 0.0f, 3.0f, 0.0f, 3.0f, 2.0f, -1.0f, 2.0f};
+
+    private static final int[] INDICES = {0, 1, 2, 0, 2, 3};
+
+    private static final String QUAD_OBJ = "v 0 0 0\nv 1 0 0\nv 1 0 -1\nv 0 0 -1\n"
+        + "vt 0 0\nvt 2 0\nvt 2 2\nvt 0 2\nvn 0 1 0\n"
+        + "f 1/1/1 2/2/1 3/3/1\nf 1/1/1 3/3/1 4/4/1\n";
+
+    @Test
+    public void parse_readsBackEncodedMesh() {
+        MeshData mesh = MeshData.parse(MeshFormat.encode(POSITIONS, NORMALS, TEX_COORDS, INDICES));
+
+        assertEquals(4, mesh.getVertexCount());
+        assertEquals(INDICES.length, mesh.getIndexCount());
+        assertEquals(MeshFormat.INDEX_TYPE_UNSIGNED_SHORT, mesh.getIndexType());
+        assertEquals(1, mesh.getDrawRangeCount());
+        assertEquals(INDICES.length, mesh.getDrawRange(0).getIndexCount());
+        assertArrayEquals(new float[] {0.0f, 0.0f, -3.0f, 2.0f, 1.0f, 0.0f}, mesh.getBoundingBox(), 0.0f);
+        float[] texCoordTransform = mesh.getTexCoordTransform();
+        assertArrayEquals(new float[] {-1.0f, 0.0f, 4.0f, 2.0f}, texCoordTransform, 0.0f);
+
+        ByteBuffer vertices = mesh.getVertices();
+        for (int i = 0; i < mesh.getVertexCount(); i++) {
+            int base = i * MeshFormat.VERTEX_STRIDE;
+            for (int axis = 0; axis < 3; axis++) {
+                assertEquals(POSITIONS[i * 3 + axis], vertices.getFloat(base + axis * Float.BYTES), 0.0f);
+            }
+            float length = (float) Math.sqrt(NORMALS[i * 3] * NORMALS[i * 3]
+                + NORMALS[i * 3 + 1] * NORMALS[i * 3 + 1] + NORMALS[i * 3 + 2] * NORMALS[i * 3 + 2]);
+            for (int axis = 0; axis < 3; axis++) {
+                assertEquals(NORMALS[i * 3 + axis] / length,
+                    vertices.get(base + MeshFormat.NORMAL_OFFSET + axis) / 127.0f, 0.5f / 127.0f);
+            }
+            for (int axis = 0; axis < 2; axis++) {
+                int stored = Short.toUnsignedInt(vertices.getShort(base + MeshFormat.TEX_COORD_OFFSET
+                    + axis * Short.BYTES));
+                float texCoord = texCoordTransform[axis] + texCoordTransform[axis + 2] * stored / 65535.0f;
+                assertEquals(TEX_COORDS[i * 2 + axis], texCoord, 1.0e-4f);
+            }
+        }
+        ByteBuffer indices = mesh.getIndices();
+        for (int i = 0; i < INDICES.length; i++) {
+            assertEquals(INDICES[i], Short.toUnsignedInt(indices.getShort(i * Short.BYTES)));
+        }
+        float[] sphere = mesh.getBoundingSphere();
+        for (int i = 0; i < POSITIONS.length; i += 3) {
+            float dx = POSITIONS[i] - sphere[0];
+            float dy = POSITIONS[i + 1] - sphere[1];
+            float dz = POSITIONS[i + 2] - sphere[2];
+            assertTrue(dx * dx + dy * dy + dz * dz <= sphere[3] * sphere[3]);
+        }
+    }
+
+    @Test
+    public void parse_readsBackCompiledObj() throws IOException {
+        MeshData mesh = MeshData.parse(ObjMeshCompiler.compile(
+            new ByteArrayInputStream(QUAD_OBJ.getBytes(StandardCharsets.US_ASCII))));
+
+        assertEquals(4, mesh.getVertexCount());
+        assertEquals(6, mesh.getIndexCount());
+        assertArrayEquals(new float[] {0.0f, 0.0f, -1.0f, 1.0f, 0.0f, 0.0f}, mesh.getBoundingBox(), 0.0f);
+        assertArrayEquals(new float[] {0.0f, 0.0f, 2.0f, 2.0f}, mesh.getTexCoordTransform(), 0.0f);
+
+        // The optimizer may renumber the vertices, but each corner of the quad is one vertex with its
+        // texture coordinate and the normal (0, 1, 0).
+        ByteBuffer vertices = mesh.getVertices();
+        Set<String> corners = new HashSet<>();
+        for (int i = 0; i < mesh.getVertexCount(); i++) {
+            int base = i * MeshFormat.VERTEX_STRIDE;
+            assertEquals(127, vertices.get(base + MeshFormat.NORMAL_OFFSET + 1));
+            float x = vertices.getFloat(base);
+            float z = vertices.getFloat(base + 2 * Float.BYTES);
+            float u = Short.toUnsignedInt(vertices.getShort(base + MeshFormat.TEX_COORD_OFFSET)) / 65535.0f * 2.0f;
+            assertEquals(x * 2.0f, u, 1.0e-4f);
+            corners.add(x + "," + z);
+        }
+        assertEquals(4, corners.size());
+        ByteBuffer indices = mesh.getIndices();
+        Set<Integer> usedVertices = new HashSet<>();
+        for (int i = 0; i < mesh.getIndexCount(); i++) {
+            usedVertices.add(Short.toUnsignedInt(indices.getShort(i * Short.BYTES)));
+        }
+        assertEquals(4, usedVertices.size());
+    }
+
+    @Test
+    public void parse_rejectsBadHeader() {
+        assertRejected(ByteBuffer.allocate(MeshFormat.HEADER_SIZE - 1));
+        assertRejected(withInt(0, 0x12345678));
+        assertRejected(withInt(4, MeshFormat.VERSION + 1));
+        assertRejected(withInt(STRIDE_OFFSET, MeshFormat.VERTEX_STRIDE + 4));
+    }
+
+    @Test
+    public void parse_rejectsBadCounts() {
+        assertRejected(withInt(VERTEX_COUNT_OFFSET, -1));
+        assertRejected(withInt(INDEX_COUNT_OFFSET, -3));
+        assertRejected(withInt(INDEX_COUNT_OFFSET, INDICES.length - 1));
+        assertRejected(withInt(VERTEX_COUNT_OFFSET, 0));
+    }
+
+    @Test
+    public void parse_rejectsDataOutsideFile() {
+        // Counts whose byte sizes overflow int must not wrap around into a valid layout.
+        assertRejected(withInt(VERTEX_COUNT_OFFSET, Integer.MAX_VALUE));
+        assertRejected(withInt(INDEX_COUNT_OFFSET, Integer.MAX_VALUE - 1));
+        assertRejected(withInt(VERTEX_DATA_OFFSET, MeshFormat.HEADER_SIZE - 4));
+        assertRejected(withInt(INDEX_DATA_OFFSET, MeshFormat.HEADER_SIZE));
+
+        ByteBuffer file = encode();
+        ByteBuffer truncated = ByteBuffer.allocate(file.limit() - 4);
+        file.limit(file.limit() - 4);
+        truncated.put(file).rewind();
+        assertRejected(truncated);
+    }
+
+    @Test
+    public void parse_rejectsBadBoundingBox() {
+        assertRejected(withInt(BOUNDING_BOX_OFFSET, Float.floatToIntBits(Float.NaN)));
+        assertRejected(withInt(BOUNDING_BOX_OFFSET, Float.floatToIntBits(Float.NEGATIVE_INFINITY)));
+
+        // The minimum x is above the maximum x.
+        assertRejected(withInt(BOUNDING_BOX_OFFSET, Float.floatToIntBits(3.0f)));
+    }
+
+    @Test
+    public void parse_rejectsIndexOutOfRange() {
+        ByteBuffer file = encode();
+        int indexOffset = file.getInt(INDEX_DATA_OFFSET);
+        file.putShort(indexOffset + 2 * Short.BYTES, (short) 4);
+        assertRejected(file);
+
+        // The largest 16-bit index is not negative.
+        file.putShort(indexOffset + 2 * Short.BYTES, (short) 0xFFFF);
+        assertRejected(file);
+
+        // 32-bit indices are unsigned, so 0xFFFFFFFF is too large rather than negative.
+        assertEquals(MeshFormat.INDEX_TYPE_UNSIGNED_INT, MeshData.parse(encode32Bit(INDICES)).getIndexType());
+        assertRejected(encode32Bit(new int[] {0, 1, 4}));
+        assertRejected(encode32Bit(new int[] {0, 1, 0xFFFFFFFF}));
+    }
+
+    private static ByteBuffer encode() {
+        return MeshFormat.encode(POSITIONS, NORMALS, TEX_COORDS, INDICES);
+    }
+
+    private static ByteBuffer withInt(int offset, int value) {
+        ByteBuffer file = encode();
+        file.putInt(offset, value);
+        return file;
+    }
+
+    // The same mesh with the indices stored as 32-bit integers.
+    private static ByteBuffer encode32Bit(int[] indices) {
+        ByteBuffer file = encode();
+        int indexOffset = file.getInt(INDEX_DATA_OFFSET);
+        ByteBuffer file32 = ByteBuffer.allocate(indexOffset + indices.length * Integer.BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        file.limit(indexOffset);
+        file32.put(file);
+        for (int index : indices) {
+            file32.putInt(index);
+        }
+        file32.putInt(8, MeshFormat.FLAG_INDEX_32BIT);
+        file32.putInt(INDEX_COUNT_OFFSET, indices.length);
+        file32.rewind();
+        return file32;
+    }
+
+    private static void assertRejected(ByteBuffer file) {
+        try {
+            MeshData.parse(file);
+            fail("Invalid mesh file was accepted.");
+        } catch (IllegalArgumentException expected) {
+            // The expected result.
+        }
+    }
+}
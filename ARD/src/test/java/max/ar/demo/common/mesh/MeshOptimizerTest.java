@@ -0,0 +1,204 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common.mesh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Check {@link MeshOptimizer}: the optimized mesh draws the same triangles with merged vertices
+ * numbered by first use, and the FIFO cache miss ratio is measured as expected.
+ */
+public class MeshOptimizerTest {
+    private static final int GRID_SIZE = 32;
+
+    private static final float EPSILON = 1.0e-6f;
+
+    @Test
+    public void optimize_keepsTheTrianglesOfTheInput() {
+        Mesh grid = createGrid(GRID_SIZE, true);
+        MeshOptimizer.Result result = optimize(grid);
+
+        List<String> expected = collectTriangles(grid.mPositions, grid.mNormals, grid.mTexCoords, grid.mIndices);
+        List<String> actual = collectTriangles(result.getPositions(), result.getNormals(), result.getTexCoords(),
+            result.getIndices());
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void optimize_mergesDuplicateVertices() {
+        // Every triangle of the grid has its own three vertices, as in a model without an index.
+        Mesh grid = createGrid(4, false);
+        Mesh unindexed = new Mesh(grid.mIndices.length);
+        for (int i = 0; i < grid.mIndices.length; i++) {
+            System.arraycopy(grid.mPositions, grid.mIndices[i] * 3, unindexed.mPositions, i * 3, 3);
+            System.arraycopy(grid.mNormals, grid.mIndices[i] * 3, unindexed.mNormals, i * 3, 3);
+            System.arraycopy(grid.mTexCoords, grid.mIndices[i] * 2, unindexed.mTexCoords, i * 2, 2);
+            unindexed.mIndices[i] = i;
+        }
+
+        // A copy of a shared vertex that differs only in its normal stays a separate vertex.
+        unindexed.mNormals[3] = 1.0f;
+        MeshOptimizer.Result result = optimize(unindexed);
+
+        assertEquals(5 * 5 + 1, result.getPositions().length / 3);
+        assertEquals(result.getPositions().length / 3 * 3, result.getNormals().length);
+        assertEquals(result.getPositions().length / 3 * 2, result.getTexCoords().length);
+        assertEquals(grid.mIndices.length, result.getIndices().length);
+    }
+
+    @Test
+    public void optimize_numbersVerticesByFirstUse() {
+        MeshOptimizer.Result result = optimize(createGrid(GRID_SIZE, true));
+
+        int nextVertex = 0;
+        for (int index : result.getIndices()) {
+            assertTrue(index <= nextVertex);
+            if (index == nextVertex) {
+                nextVertex++;
+            }
+        }
+        assertEquals(nextVertex, result.getPositions().length / 3);
+    }
+
+    @Test
+    public void optimize_doesNotIncreaseAcmrOfGrid() {
+        Mesh grid = createGrid(GRID_SIZE, false);
+        MeshOptimizer.Result result = optimize(grid);
+
+        float acmrBefore = MeshOptimizer.calculateAcmr(grid.mIndices, grid.mPositions.length / 3);
+        assertEquals(acmrBefore, result.getAcmrBefore(), EPSILON);
+        assertTrue(result.getAcmrAfter() <= acmrBefore);
+        assertEquals(MeshOptimizer.calculateAcmr(result.getIndices(), result.getPositions().length / 3),
+            result.getAcmrAfter(), EPSILON);
+
+        Mesh shuffledGrid = createGrid(GRID_SIZE, true);
+        MeshOptimizer.Result shuffledResult = optimize(shuffledGrid);
+        assertTrue(shuffledResult.getAcmrAfter() <= shuffledResult.getAcmrBefore());
+        assertTrue(shuffledResult.getAcmrAfter() <= acmrBefore);
+    }
+
+    @Test
+    public void calculateAcmr_countsFifoMissesOfStrip() {
+        // Four triangles of a strip over six vertices: each vertex misses once, 6 / 4.
+        int[] strip = {0, 1, 2, 2, 1, 3, 2, 3, 4, 4, 3, 5};
+        assertEquals(1.5f, MeshOptimizer.calculateAcmr(strip, 6), EPSILON);
+
+        // Drawn twice, the second copy hits the cache for all of its vertices: 6 / 8.
+        int[] twice = new int[strip.length * 2];
+        System.arraycopy(strip, 0, twice, 0, strip.length);
+        System.arraycopy(strip, 0, twice, strip.length, strip.length);
+        assertEquals(0.75f, MeshOptimizer.calculateAcmr(twice, 6), EPSILON);
+
+        // After 18 new vertices the 16-entry FIFO holds 2 to 17, so only vertex 0 misses again: 19 / 7.
+        int[] evicting = new int[21];
+        for (int i = 0; i < 18; i++) {
+            evicting[i] = i;
+        }
+        evicting[18] = 17;
+        evicting[19] = 16;
+        evicting[20] = 0;
+        assertEquals(19.0f / 7.0f, MeshOptimizer.calculateAcmr(evicting, 18), EPSILON);
+        assertEquals(0.0f, MeshOptimizer.calculateAcmr(new int[0], 0), 0.0f);
+    }
+
+    private static MeshOptimizer.Result optimize(Mesh mesh) {
+        return MeshOptimizer.optimize(mesh.mPositions, mesh.mNormals, mesh.mTexCoords, mesh.mIndices);
+    }
+
+    // Grid of size x size quads in the XZ plane, two triangles each, in row order or shuffled.
+    private static Mesh createGrid(int size, boolean isShuffled) {
+        int columns = size + 1;
+        Mesh mesh = new Mesh(columns * columns);
+        mesh.mIndices = new int[size * size * 6];
+        for (int z = 0; z < columns; z++) {
+            for (int x = 0; x < columns; x++) {
+                int vertex = z * columns + x;
+                mesh.mPositions[vertex * 3] = x;
+                mesh.mPositions[vertex * 3 + 2] = z;
+                mesh.mNormals[vertex * 3 + 1] = 1.0f;
+                mesh.mTexCoords[vertex * 2] = (float) x / size;
+                mesh.mTexCoords[vertex * 2 + 1] = (float) z / size;
+            }
+        }
+        List<int[]> triangles = new ArrayList<>();
+        for (int z = 0; z < size; z++) {
+            for (int x = 0; x < size; x++) {
+                int corner = z * columns + x;
+                triangles.add(new int[] {corner, corner + columns, corner + 1});
+                triangles.add(new int[] {corner + 1, corner + columns, corner + columns + 1});
+            }
+        }
+        if (isShuffled) {
+            Collections.shuffle(triangles, new Random(11L));
+        }
+        for (int t = 0; t < triangles.size(); t++) {
+            System.arraycopy(triangles.get(t), 0, mesh.mIndices, t * 3, 3);
+        }
+        return mesh;
+    }
+
+    // Describe each triangle by the attributes of its corners, starting at the smallest one so that
+    // the winding is kept but the first corner does not matter.
+    private static List<String> collectTriangles(float[] positions, float[] normals, float[] texCoords,
+        int[] indices) {
+        List<String> triangles = new ArrayList<>();
+        for (int t = 0; t < indices.length; t += 3) {
+            String[] corners = new String[3];
+            for (int corner = 0; corner < 3; corner++) {
+                int vertex = indices[t + corner];
+                corners[corner] = positions[vertex * 3] + "," + positions[vertex * 3 + 1] + ","
+                    + positions[vertex * 3 + 2] + "/" + normals[vertex * 3] + "," + normals[vertex * 3 + 1] + ","
+                    + normals[vertex * 3 + 2] + "/" + texCoords[vertex * 2] + "," + texCoords[vertex * 2 + 1];
+            }
+            int first = 0;
+            for (int corner = 1; corner < 3; corner++) {
+                if (corners[corner].compareTo(corners[first]) < 0) {
+                    first = corner;
+                }
+            }
+            triangles.add(corners[first] + " " + corners[(first + 1) % 3] + " " + corners[(first + 2) % 3]);
+        }
+        return triangles;
+    }
+
+    private static class Mesh {
+        private final float[] mPositions;
+
+        private final float[] mNormals;
+
+        private final float[] mTexCoords;
+
+        private int[] mIndices;
+
+        Mesh(int vertexCount) {
+            mPositions = new float[vertexCount * 3];
+            mNormals = new float[vertexCount * 3];
+            mTexCoords = new float[vertexCount * 2];
+            mIndices = new int[vertexCount];
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.common.mesh;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Check {@link MeshSplitter} on a mesh too large for 16-bit indices: each draw range fits in 16-bit
+ * indices and, with its base vertex applied, draws the same vertices as the 32-bit source.
+ */
+public class MeshSplitterTest {
+    private static final int GRID_SIZE = 300;
+
+    @Test
+    public void splitTo16BitIndices_remapsEveryIndexToTheSourceVertex() {
+        MeshData source = MeshData.parse(createShuffledGrid(GRID_SIZE));
+        assertTrue(source.getVertexCount() > MeshFormat.MAX_SHORT_INDEX_VERTICES);
+        assertEquals(MeshFormat.INDEX_TYPE_UNSIGNED_INT, source.getIndexType());
+
+        MeshData split = MeshSplitter.splitTo16BitIndices(source);
+        assertEquals(MeshFormat.INDEX_TYPE_UNSIGNED_SHORT, split.getIndexType());
+        assertEquals(source.getIndexCount(), split.getIndexCount());
+        assertTrue(split.getDrawRangeCount() > 1);
+
+        ByteBuffer sourceIndices = source.getIndices();
+        ByteBuffer sourceVertices = source.getVertices();
+        ByteBuffer splitIndices = split.getIndices();
+        ByteBuffer splitVertices = split.getVertices();
+        int nextFirstIndex = 0;
+        for (int r = 0; r < split.getDrawRangeCount(); r++) {
+            MeshData.DrawRange range = split.getDrawRange(r);
+            int nextBaseVertex = r + 1 < split.getDrawRangeCount()
+                ? split.getDrawRange(r + 1).getBaseVertex() : split.getVertexCount();
+            int rangeVertexCount = nextBaseVertex - range.getBaseVertex();
+            assertTrue(rangeVertexCount > 0 && rangeVertexCount <= MeshFormat.MAX_SHORT_INDEX_VERTICES);
+
+            // The ranges follow each other and keep the triangles in order.
+            assertEquals(nextFirstIndex, range.getFirstIndex());
+            nextFirstIndex += range.getIndexCount();
+            for (int i = range.getFirstIndex(); i < nextFirstIndex; i++) {
+                int local = Short.toUnsignedInt(splitIndices.getShort(i * Short.BYTES));
+                assertTrue(local < rangeVertexCount);
+                int sourceVertex = sourceIndices.getInt(i * Integer.BYTES);
+                assertVertexEquals(sourceVertices, sourceVertex, splitVertices, range.getBaseVertex() + local);
+            }
+        }
+        assertEquals(split.getIndexCount(), nextFirstIndex);
+
+        assertArrayEquals(source.getBoundingBox(), split.getBoundingBox(), 0.0f);
+        assertArrayEquals(source.getBoundingSphere(), split.getBoundingSphere(), 0.0f);
+        assertArrayEquals(source.getTexCoordTransform(), split.getTexCoordTransform(), 0.0f);
+    }
+
+    @Test
+    public void splitTo16BitIndices_keepsMeshWith16BitIndices() {
+        MeshData mesh = MeshData.parse(createShuffledGrid(10));
+        assertSame(mesh, MeshSplitter.splitTo16BitIndices(mesh));
+    }
+
+    // The vertices of the grid have distinct positions, so equal bytes mean the same source vertex.
+    private static void assertVertexEquals(ByteBuffer expected, int expectedVertex, ByteBuffer actual,
+        int actualVertex) {
+        for (int i = 0; i < MeshFormat.VERTEX_STRIDE; i++) {
+            assertEquals(expected.get(expectedVertex * MeshFormat.VERTEX_STRIDE + i),
+                actual.get(actualVertex * MeshFormat.VERTEX_STRIDE + i));
+        }
+    }
+
+    // Grid of size x size quads with shuffled triangles, so that the ranges share many vertices.
+    private static ByteBuffer createShuffledGrid(int size) {
+        int columns = size + 1;
+        float[] positions = new float[columns * columns * 3];
+        float[] texCoords = new float[columns * columns * 2];
+        for (int z = 0; z < columns; z++) {
+            for (int x = 0; x < columns; x++) {
+                int vertex = z * columns + x;
+                positions[vertex * 3] = x;
+                positions[vertex * 3 + 1] = (x * z) % 7;
+                positions[vertex * 3 + 2] = z;
+                texCoords[vertex * 2] = (float) x / size;
+                texCoords[vertex * 2 + 1] = (float) z / size;
+            }
+        }
+        int[] triangles = new int[size * size * 2];
+        for (int t = 0; t < triangles.length; t++) {
+            triangles[t] = t;
+        }
+        Random random = new Random(5L);
+        for (int t = triangles.length - 1; t > 0; t--) {
+            int other = random.nextInt(t + 1);
+            int swap = triangles[t];
+            triangles[t] = triangles[other];
+            triangles[other] = swap;
+        }
+        int[] indices = new int[triangles.length * 3];
+        for (int t = 0; t < triangles.length; t++) {
+            int quad = triangles[t] / 2;
+            int corner = quad / size * columns + quad % size;
+            boolean isFirst = triangles[t] % 2 == 0;
+            indices[t * 3] = isFirst ? corner : corner + 1;
+            indices[t * 3 + 1] = corner + columns;
+            indices[t * 3 + 2] = isFirst ? corner + 1 : corner + columns + 1;
+        }
+        return MeshFormat.encode(positions, new float[0], texCoords, indices);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2023. Huawei Technologies Co., Ltd. All rights reserved.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package max.ar.demo.build;
+
+import max.ar.demo.common.mesh.MeshFormat;
+import max.ar.demo.common.mesh.ObjMeshCompiler;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Precompile the OBJ model assets into the binary mesh format read by MeshLoader, optimizing
+ * them for the vertex cache on the way.
+ */
+public class CompileMeshesTask extends DefaultTask {
+    private static final String OBJ_SUFFIX = ".obj";
+
+    private final ConfigurableFileCollection mObjFiles = getProject().files();
+
+    private File mOutputDir;
+
+    /**
+     * OBJ models to compile.
+     *
+     * @return OBJ files.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    public ConfigurableFileCollection getObjFiles() {
+        return mObjFiles;
+    }
+
+    /**
+     * Directory receiving the generated *.mesh assets.
+     *
+     * @return Output directory.
+     */
+    @OutputDirectory
+    public File getOutputDir() {
+        return mOutputDir;
+    }
+
+    public void setOutputDir(File outputDir) {
+        mOutputDir = outputDir;
+    }
+
+    /**
+     * Compile every OBJ model into a mesh file with the same base name.
+     */
+    @TaskAction
+    public void compileMeshes() {
+        for (File objFile : mObjFiles) {
+            String objName = objFile.getName();
+            String baseName = objName.substring(0, objName.length() - OBJ_SUFFIX.length());
+            File meshFile = new File(mOutputDir, baseName + MeshFormat.FILE_SUFFIX);
+            try (InputStream inputStream = new FileInputStream(objFile);
+                FileChannel channel = new FileOutputStream(meshFile).getChannel()) {
+                ByteBuffer mesh = ObjMeshCompiler.compile(inputStream,
+                    result -> getLogger().lifecycle("Optimized {}: {}", objName, result.getSummary()));
+                while (mesh.hasRemaining()) {
+                    channel.write(mesh);
+                }
+            } catch (IOException | IllegalArgumentException exception) {
+                throw new GradleException("Compile mesh " + objName + " failed.", exception);
+            }
+            getLogger().info("Compiled {} to {} ({} bytes).", objName, meshFile.getName(), meshFile.length());
+        }
+    }
+}